@@ -2,6 +2,7 @@ package com.tguzik.metrics.mybatis.integrationtests.guice;
 
 import static com.tguzik.metrics.mybatis.integrationtests.IntegrationTestVerificationUtil.validateFailingOperation;
 import static com.tguzik.metrics.mybatis.integrationtests.IntegrationTestVerificationUtil.validateSuccessfulOperation;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 
 import javax.sql.DataSource;
@@ -13,6 +14,7 @@ import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.tguzik.metrics.mybatis.InstrumentingInterceptor;
+import com.tguzik.metrics.mybatis.StatementPreregistration;
 import com.tguzik.metrics.mybatis.integrationtests.IntegrationTestBlueprint;
 import org.apache.ibatis.plugin.Interceptor;
 import org.apache.ibatis.session.SqlSessionFactory;
@@ -81,6 +83,26 @@ public class GuiceIntegrationTest implements IntegrationTestBlueprint {
               InstrumentingInterceptor.class.getSimpleName() );
     }
 
+    @Test
+    public void testPreregistration_createsMetricsOfAllStatementsOnStartup() {
+        String baseMetricName = FakeMapper.class.getCanonicalName();
+
+        assertThat( injector.getInstance( StatementPreregistration.class ).getStatementCount() ).isPositive();
+        assertThat( metricRegistry.getTimers() ).containsKeys( baseMetricName + ".doSelect.elapsed",
+                                                               baseMetricName + ".doDelete.elapsed" );
+        assertThat( metricRegistry.timer( baseMetricName + ".doSelect.elapsed" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testTransaction_timesConnection() {
+        // Perform action
+        fakeMapper.doSelect( "any", 123, "arguments" );
+
+        // Validate
+        assertThat( metricRegistry.timer( "mybatis.transaction.getConnection" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( "mybatis.transaction.close" ).getCount() ).isEqualTo( 1L );
+    }
+
     @Test
     @Override
     public void testMapperOperation_select_success() {
@@ -3,8 +3,9 @@ package com.tguzik.metrics.mybatis.integrationtests.guice;
 import javax.sql.DataSource;
 
 import com.google.inject.util.Providers;
+import com.tguzik.metrics.mybatis.InstrumentedTransactionFactory;
 import com.tguzik.metrics.mybatis.InstrumentingInterceptor;
-import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import com.tguzik.metrics.mybatis.StatementPreregistration;
 import org.hsqldb.jdbc.JDBCDataSource;
 import org.mybatis.guice.MyBatisModule;
 
@@ -22,12 +23,15 @@ public class MyBatisIntegrationModule extends MyBatisModule {
     protected void initialize() {
         // Basic stuff
         environmentId( "integration test" );
-        bindTransactionFactoryType( JdbcTransactionFactory.class );
+        bindTransactionFactoryType( InstrumentedTransactionFactory.class );
         bindDataSourceProvider( Providers.of( dataSource ) );
         addMapperClass( FakeMapper.class );
         failFast( true );
 
         // Add our interceptor
         addInterceptorClass( InstrumentingInterceptor.class );
+
+        // Create metrics of all statements on startup
+        bind( StatementPreregistration.class ).asEagerSingleton();
     }
 }
@@ -0,0 +1,15 @@
+package com.tguzik.metrics.mybatis.integrationtests.purejava;
+
+import org.apache.ibatis.annotations.CacheNamespace;
+import org.apache.ibatis.annotations.Select;
+
+/**
+ * Mapper with second level cache enabled.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@CacheNamespace
+public interface CachedMapper {
+    @Select( "select count(*) from test" )
+    int doCachedSelect();
+}
@@ -1,7 +1,9 @@
 package com.tguzik.metrics.mybatis.integrationtests.purejava;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static com.tguzik.metrics.mybatis.integrationtests.IntegrationTestVerificationUtil.validateFailingOperation;
 import static com.tguzik.metrics.mybatis.integrationtests.IntegrationTestVerificationUtil.validateSuccessfulOperation;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 
 import javax.sql.DataSource;
@@ -10,10 +12,13 @@ import java.sql.Connection;
 import java.sql.SQLException;
 
 import com.codahale.metrics.MetricRegistry;
+import com.tguzik.metrics.mybatis.InstrumentationSettings;
 import com.tguzik.metrics.mybatis.InstrumentingInterceptor;
+import com.tguzik.metrics.mybatis.StatementPreregistration;
 import com.tguzik.metrics.mybatis.integrationtests.IntegrationTestBlueprint;
 import org.apache.ibatis.mapping.Environment;
 import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
@@ -59,6 +64,7 @@ public class PureJavaIntegrationTest implements IntegrationTestBlueprint {
         Environment environment = new Environment( "integration test", new JdbcTransactionFactory(), dataSource );
         Configuration myBatisConfig = new Configuration( environment );
         myBatisConfig.addMapper( FakeMapper.class );
+        myBatisConfig.addMapper( CachedMapper.class );
         myBatisConfig.setEnvironment( environment );
         myBatisConfig.addInterceptor( interceptor );
 
@@ -204,4 +210,83 @@ public class PureJavaIntegrationTest implements IntegrationTestBlueprint {
         String baseMetricName = FakeMapper.class.getCanonicalName() + ".doFailingDelete";
         validateFailingOperation( this.metricRegistry, baseMetricName );
     }
+
+    @Test
+    public void testMapperOperation_select_recordsPhases() {
+        InstrumentationSettings settings = InstrumentationSettings.builder().phaseTimers( true ).build();
+        SqlSessionFactory factory = bootstrapMyBatis( dataSource, new InstrumentingInterceptor( metricRegistry,
+                                                                                                settings ) );
+
+        // Perform action
+        try ( SqlSession session = factory.openSession() ) {
+            session.getMapper( FakeMapper.class ).doSelect( "any", 123, "arguments" );
+        }
+
+        // Validate
+        String baseMetricName = FakeMapper.class.getCanonicalName() + ".doSelect";
+        validateSuccessfulOperation( this.metricRegistry, baseMetricName );
+        for ( String phase : new String[] { "prepare", "bindParameters", "execute", "mapResults" } ) {
+            assertThat( metricRegistry.timer( name( baseMetricName, "phase", phase ) ).getCount() ).isEqualTo( 1L );
+        }
+    }
+
+    @Test
+    public void testMapperOperation_cachedSelect_recordsCacheHits() {
+        InstrumentationSettings settings = InstrumentationSettings.builder().cacheMetrics( true ).build();
+        SqlSessionFactory factory = bootstrapMyBatis( dataSource, new InstrumentingInterceptor( metricRegistry,
+                                                                                                settings ) );
+
+        // Perform action: a miss, a local cache hit and, after the commit, a second level cache hit
+        try ( SqlSession session = factory.openSession() ) {
+            session.getMapper( CachedMapper.class ).doCachedSelect();
+            session.getMapper( CachedMapper.class ).doCachedSelect();
+            session.commit();
+        }
+        try ( SqlSession session = factory.openSession() ) {
+            session.getMapper( CachedMapper.class ).doCachedSelect();
+        }
+
+        // Validate
+        String baseMetricName = CachedMapper.class.getCanonicalName() + ".doCachedSelect";
+        assertThat( metricRegistry.timer( name( baseMetricName, "elapsed" ) ).getCount() ).isEqualTo( 3L );
+        assertThat( metricRegistry.timer( name( baseMetricName, "cacheMiss" ) ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( name( baseMetricName, "cacheHit" ) ).getCount() ).isEqualTo( 2L );
+
+        String cacheMetricName = name( "mybatis.cache", CachedMapper.class.getName() );
+        assertThat( metricRegistry.meter( name( cacheMetricName, "hits" ) ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.meter( name( cacheMetricName, "misses" ) ).getCount() ).isEqualTo( 2L );
+        assertThat( metricRegistry.meter( name( cacheMetricName, "puts" ) ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.getGauges().get( name( cacheMetricName, "size" ) ).getValue() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testPreregistration_createsMetricsBeforeFirstInvocation() {
+        // Perform action
+        int statements = StatementPreregistration.preregister( sqlSessionFactory );
+
+        // Validate
+        String baseMetricName = FakeMapper.class.getCanonicalName() + ".doInsert";
+        assertThat( statements ).isPositive();
+        assertThat( metricRegistry.getTimers() ).containsKey( name( baseMetricName, "elapsed" ) );
+        assertThat( metricRegistry.timer( name( baseMetricName, "elapsed" ) ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testMapperOperation_batchInsert_recordsFlushedBatch() {
+        // Perform action
+        try ( SqlSession session = this.sqlSessionFactory.openSession( ExecutorType.BATCH ) ) {
+            for ( int i = 0; i < 5; i++ ) {
+                session.getMapper( FakeMapper.class ).doInsert( "any", i, "arguments" );
+            }
+            session.commit();
+        }
+
+        // Validate
+        String baseMetricName = FakeMapper.class.getCanonicalName() + ".doInsert";
+        assertThat( metricRegistry.timer( name( baseMetricName, "elapsed" ) ).getCount() ).isEqualTo( 5L );
+        assertThat( metricRegistry.timer( "mybatis.batch.flush" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.histogram( name( baseMetricName, "batch", "size" ) ).getSnapshot().getMax() )
+                .isEqualTo( 5L );
+        assertThat( metricRegistry.timer( name( baseMetricName, "batch", "amortized" ) ).getCount() ).isEqualTo( 1L );
+    }
 }
@@ -0,0 +1,19 @@
+package com.tguzik.metrics.mybatis.integrationtests.spring;
+
+import javax.inject.Inject;
+
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public class FakeService {
+    @Inject
+    private FakeMapper fakeMapper;
+
+    @Transactional
+    public void doSelectsInTransaction() {
+        fakeMapper.doSelect( "any", 123, "arguments" );
+        fakeMapper.doSelect( "any", 456, "arguments" );
+    }
+}
@@ -2,6 +2,7 @@ package com.tguzik.metrics.mybatis.integrationtests.spring;
 
 import static com.tguzik.metrics.mybatis.integrationtests.IntegrationTestVerificationUtil.validateFailingOperation;
 import static com.tguzik.metrics.mybatis.integrationtests.IntegrationTestVerificationUtil.validateSuccessfulOperation;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 
 import javax.inject.Inject;
@@ -10,7 +11,9 @@ import java.io.IOException;
 import java.sql.SQLException;
 
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.tguzik.metrics.mybatis.InstrumentingInterceptor;
+import com.tguzik.metrics.mybatis.StatementPreregistration;
 import com.tguzik.metrics.mybatis.integrationtests.IntegrationTestBlueprint;
 import org.apache.ibatis.plugin.Interceptor;
 import org.apache.ibatis.session.SqlSessionFactory;
@@ -36,6 +39,12 @@ public class SpringIntegrationTest implements IntegrationTestBlueprint {
     @Inject
     private FakeMapper fakeMapper;
 
+    @Inject
+    private StatementPreregistration statementPreregistration;
+
+    @Inject
+    private FakeService fakeService;
+
     @Before
     public void setUp() throws SQLException, IOException {
         /**
@@ -65,6 +74,30 @@ public class SpringIntegrationTest implements IntegrationTestBlueprint {
               InstrumentingInterceptor.class.getSimpleName() );
     }
 
+    @Test
+    public void testPreregistration_createsMetricsOfAllStatementsOnStartup() {
+        String baseMetricName = FakeMapper.class.getCanonicalName();
+
+        assertThat( statementPreregistration.getStatementCount() ).isPositive();
+        assertThat( metricRegistry.getTimers() ).containsKeys( baseMetricName + ".doFailingSelect.elapsed",
+                                                               baseMetricName + ".doFailingDelete.elapsed" );
+    }
+
+    @Test
+    public void testTransactionFactory_joinsSessionsToSpringTransactions() {
+        String baseMetricName = FakeMapper.class.getCanonicalName() + ".doSelect";
+        long selects = metricRegistry.timer( baseMetricName + ".elapsed" ).getCount();
+        Timer getConnection = metricRegistry.timer( "mybatis.transaction.getConnection" );
+        long connections = getConnection.getCount();
+
+        // Perform action
+        fakeService.doSelectsInTransaction();
+
+        // Validate - both selects ran in one session, which got its connection once
+        assertThat( metricRegistry.timer( baseMetricName + ".elapsed" ).getCount() ).isEqualTo( selects + 2 );
+        assertThat( getConnection.getCount() ).isEqualTo( connections + 1 );
+    }
+
     @Test
     @Override
     public void testMapperOperation_select_success() {
@@ -2,6 +2,7 @@ package com.tguzik.metrics.mybatis.integrationtests.xmlfiles;
 
 import static com.tguzik.metrics.mybatis.integrationtests.IntegrationTestVerificationUtil.validateFailingOperation;
 import static com.tguzik.metrics.mybatis.integrationtests.IntegrationTestVerificationUtil.validateSuccessfulOperation;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 
 import javax.inject.Provider;
@@ -16,6 +17,7 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import com.codahale.metrics.MetricRegistry;
 import com.tguzik.metrics.mybatis.PropertyInterceptorWrapper;
+import com.tguzik.metrics.mybatis.StatementPreregistration;
 import com.tguzik.metrics.mybatis.integrationtests.IntegrationTestBlueprint;
 import org.apache.ibatis.io.Resources;
 import org.apache.ibatis.plugin.Interceptor;
@@ -208,6 +210,32 @@ public class XmlFilesIntegrationTest implements IntegrationTestBlueprint {
         validateFailingOperation( this.metricRegistry, baseMetricName );
     }
 
+    @Test
+    public void testPreregistration_createsMetricsBeforeFirstInvocation() {
+        // Perform action
+        int statements = StatementPreregistration.preregister( sqlSessionFactory );
+
+        // Validate
+        String baseMetricName = FakeMapper.class.getCanonicalName() + ".doUpdate";
+        assertThat( statements ).isPositive();
+        assertThat( metricRegistry.getTimers() ).containsKey( baseMetricName + ".elapsed" );
+        assertThat( metricRegistry.timer( baseMetricName + ".elapsed" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testTransaction_timesConnectionAndCommit() {
+        // Perform action
+        try ( SqlSession session = this.sqlSessionFactory.openSession() ) {
+            session.getMapper( FakeMapper.class ).doInsert( "any", 123, "arguments" );
+            session.commit();
+        }
+
+        // Validate
+        assertThat( metricRegistry.timer( "mybatis.transaction.getConnection" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( "mybatis.transaction.commit" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( "mybatis.transaction.close" ).getCount() ).isEqualTo( 1L );
+    }
+
     private Path createMainConfigurationPath( String mainConfigurationFileName ) {
         return Paths.get( getClass().getPackage().getName().replaceAll( "\\.", "/" ), mainConfigurationFileName );
     }
@@ -0,0 +1,33 @@
+package com.tguzik.metrics.mybatis.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks with 1, 8 and 64 threads and with GC profiler enabled, so that each result comes with
+ * ns/op and allocation rate (look for <code>gc.alloc.rate.norm</code>, which is bytes per operation).
+ * <p/>
+ * Usage: <code>java -jar target/benchmarks.jar [regular JMH options]</code>. Any JMH command line options are
+ * honored, with the exception of thread count, which is overridden for each run.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public class BenchmarkRunner {
+    private static final int[] THREAD_COUNTS = { 1, 8, 64 };
+
+    public static void main( String[] args ) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLineOptions = new CommandLineOptions( args );
+
+        for ( int threads : THREAD_COUNTS ) {
+            new Runner( new OptionsBuilder().parent( commandLineOptions )
+                                            .include( InterceptorBenchmark.class.getSimpleName() )
+                                            .threads( threads )
+                                            .addProfiler( GCProfiler.class )
+                                            .build() ).run();
+        }
+    }
+}
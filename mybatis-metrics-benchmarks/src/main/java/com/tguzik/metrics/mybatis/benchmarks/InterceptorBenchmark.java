@@ -0,0 +1,164 @@
+package com.tguzik.metrics.mybatis.benchmarks;
+
+import javax.inject.Provider;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import com.tguzik.metrics.mybatis.InstrumentationSettings;
+import com.tguzik.metrics.mybatis.InstrumentingInterceptor;
+import com.tguzik.metrics.mybatis.PropertyInterceptorWrapper;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the overhead of the interceptors over a raw {@link Invocation#proceed()}. Please see
+ * {@link BenchmarkRunner} for the thread counts and profilers these are meant to be run with.
+ * <p/>
+ * Each thread walks through all of the statements in round-robin fashion, so <code>statementCount</code> controls
+ * how many distinct MappedStatements (and therefore metrics) are being hit concurrently.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class InterceptorBenchmark {
+    @Param( { "1", "100", "10000" } )
+    public int statementCount;
+
+    @Param( { "SUCCESS", "FAILURE" } )
+    public Outcome outcome;
+
+    private Invocation[] invocations;
+    private InstrumentingInterceptor instrumentingInterceptor;
+    private InstrumentingInterceptor asyncInterceptor;
+    private PropertyInterceptorWrapper propertyInterceptorWrapper;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception {
+        Configuration configuration = new Configuration();
+        Executor executor = new SyntheticExecutor( outcome == Outcome.FAILURE );
+        Method query = Executor.class.getMethod( "query",
+                                                 MappedStatement.class,
+                                                 Object.class,
+                                                 RowBounds.class,
+                                                 ResultHandler.class,
+                                                 CacheKey.class,
+                                                 BoundSql.class );
+
+        this.invocations = new Invocation[ statementCount ];
+        for ( int i = 0; i < statementCount; i++ ) {
+            MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                     "benchmark.Mapper.statement" + i,
+                                                                     new StaticSqlSource( configuration, "select 1" ),
+                                                                     SqlCommandType.SELECT ).build();
+            invocations[ i ] = new Invocation( executor,
+                                               query,
+                                               new Object[] { statement, null, RowBounds.DEFAULT, null, null, null } );
+        }
+
+        MetricRegistry registry = new MetricRegistry();
+        RegistryProvider.registry = registry;
+
+        this.instrumentingInterceptor = new InstrumentingInterceptor( registry );
+        this.asyncInterceptor = new InstrumentingInterceptor( registry,
+                                                              InstrumentationSettings.builder().async( true ).build() );
+
+        Properties properties = new Properties();
+        properties.setProperty( PropertyInterceptorWrapper.PROPERTY_NAME, RegistryProvider.class.getName() );
+        this.propertyInterceptorWrapper = new PropertyInterceptorWrapper();
+        this.propertyInterceptorWrapper.setProperties( properties );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() {
+        asyncInterceptor.close();
+    }
+
+    @Benchmark
+    public Object baseline( Cursor cursor ) throws Throwable {
+        Invocation invocation = cursor.next( invocations );
+        try {
+            return invocation.proceed();
+        }
+        catch ( InvocationTargetException e ) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object instrumentingInterceptor( Cursor cursor ) throws Throwable {
+        Invocation invocation = cursor.next( invocations );
+        try {
+            return instrumentingInterceptor.intercept( invocation );
+        }
+        catch ( InvocationTargetException e ) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object asyncInterceptor( Cursor cursor ) throws Throwable {
+        Invocation invocation = cursor.next( invocations );
+        try {
+            return asyncInterceptor.intercept( invocation );
+        }
+        catch ( InvocationTargetException e ) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object propertyInterceptorWrapper( Cursor cursor ) throws Throwable {
+        Invocation invocation = cursor.next( invocations );
+        try {
+            return propertyInterceptorWrapper.intercept( invocation );
+        }
+        catch ( InvocationTargetException e ) {
+            return e;
+        }
+    }
+
+    public enum Outcome {
+        SUCCESS,
+        FAILURE
+    }
+
+    /** Per-thread position in the array of invocations. */
+    @State( Scope.Thread )
+    public static class Cursor {
+        private int position;
+
+        Invocation next( Invocation[] invocations ) {
+            if ( ++position >= invocations.length ) {
+                position = 0;
+            }
+            return invocations[ position ];
+        }
+    }
+
+    /** Hands out the registry to the PropertyInterceptorWrapper, the same way XML-based bootstrap would. */
+    public static class RegistryProvider implements Provider<MetricRegistry> {
+        static volatile MetricRegistry registry;
+
+        @Override
+        public MetricRegistry get() {
+            return registry;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.tguzik.metrics.mybatis.benchmarks;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.transaction.Transaction;
+
+/**
+ * Executor that does not talk to any database. Queries and updates either return a constant or throw the same,
+ * preallocated exception - whatever the benchmark asked for. This way the benchmarks measure the interceptors and
+ * the reflective call MyBatis makes anyway, not the JDBC driver.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public class SyntheticExecutor implements Executor {
+    private static final List<Object> RESULT = Collections.<Object>singletonList( "row" );
+    private static final SQLException FAILURE = new SQLException( "Synthetic failure", "40001" );
+
+    private final boolean failing;
+
+    public SyntheticExecutor( boolean failing ) {
+        this.failing = failing;
+    }
+
+    @Override
+    public int update( MappedStatement ms, Object parameter ) throws SQLException {
+        if ( failing ) {
+            throw FAILURE;
+        }
+        return 1;
+    }
+
+    @Override
+    @SuppressWarnings( "unchecked" )
+    public <E> List<E> query( MappedStatement ms,
+                              Object parameter,
+                              RowBounds rowBounds,
+                              ResultHandler resultHandler,
+                              CacheKey cacheKey,
+                              BoundSql boundSql ) throws SQLException {
+        if ( failing ) {
+            throw FAILURE;
+        }
+        return (List<E>) RESULT;
+    }
+
+    @Override
+    public <E> List<E> query( MappedStatement ms,
+                              Object parameter,
+                              RowBounds rowBounds,
+                              ResultHandler resultHandler ) throws SQLException {
+        return query( ms, parameter, rowBounds, resultHandler, null, null );
+    }
+
+    @Override
+    public List<BatchResult> flushStatements() throws SQLException {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void commit( boolean required ) throws SQLException {
+    }
+
+    @Override
+    public void rollback( boolean required ) throws SQLException {
+    }
+
+    @Override
+    public CacheKey createCacheKey( MappedStatement ms,
+                                    Object parameterObject,
+                                    RowBounds rowBounds,
+                                    BoundSql boundSql ) {
+        return new CacheKey();
+    }
+
+    @Override
+    public boolean isCached( MappedStatement ms, CacheKey key ) {
+        return false;
+    }
+
+    @Override
+    public void clearLocalCache() {
+    }
+
+    @Override
+    public void deferLoad( MappedStatement ms,
+                           MetaObject resultObject,
+                           String property,
+                           CacheKey key,
+                           Class<?> targetType ) {
+    }
+
+    @Override
+    public Transaction getTransaction() {
+        return null;
+    }
+
+    @Override
+    public void close( boolean forceRollback ) {
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public void setExecutorWrapper( Executor executor ) {
+    }
+}
@@ -0,0 +1,159 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves updating of the invocation metrics off the calling threads. Callers only put a record into one of several
+ * {@link RecordRing}s, picked by thread id to keep producers apart, and a single background thread folds the records
+ * into the metrics. That thread is the only one updating the timers and meters, so they are never contended.
+ * <p/>
+ * Memory is bounded by the capacity - when a ring is full, records are dropped and counted under
+ * {@link #DROPPED_METRIC_NAME}. Records still in the rings are folded in when the recorder is closed, which also
+ * happens on JVM shutdown.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class AsyncRecorder implements Closeable {
+    static final String DROPPED_METRIC_NAME = "mybatis.async.dropped";
+    private static final Logger LOGGER = LoggerFactory.getLogger( AsyncRecorder.class );
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000L;
+
+    private static final RecordRing.Consumer AGGREGATOR = new RecordRing.Consumer() {
+        @Override
+        public void accept( @Nonnull BasicInstrumentation instrumentation, long elapsedNanos, boolean failed ) {
+            instrumentation.recordInvocation( elapsedNanos, failed );
+        }
+    };
+
+    private final RecordRing[] rings;
+    private final int ringMask;
+    private final Counter dropped;
+    private final Thread aggregatorThread;
+    private final Thread shutdownHook;
+    private volatile boolean running;
+
+    /** @param capacity total number of records held, split between the rings */
+    public AsyncRecorder( @Nonnull MetricRegistry registry, int capacity ) {
+        int ringCount = 1;
+        while ( ringCount < Runtime.getRuntime().availableProcessors() ) {
+            ringCount <<= 1;
+        }
+
+        this.rings = new RecordRing[ ringCount ];
+        this.ringMask = ringCount - 1;
+        this.dropped = registry.counter( DROPPED_METRIC_NAME );
+        this.running = true;
+
+        for ( int i = 0; i < ringCount; i++ ) {
+            rings[ i ] = new RecordRing( Math.max( 1, capacity / ringCount ) );
+        }
+
+        this.aggregatorThread = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                aggregate();
+            }
+        }, "mybatis-metrics-aggregator" );
+        this.aggregatorThread.setDaemon( true );
+
+        this.shutdownHook = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, "mybatis-metrics-aggregator-shutdown" );
+    }
+
+    /** Starts the aggregator thread and registers the shutdown hook */
+    public void start() {
+        aggregatorThread.start();
+        Runtime.getRuntime().addShutdownHook( shutdownHook );
+    }
+
+    /**
+     * Queues one invocation. Never blocks.
+     *
+     * @param elapsedNanos
+     *         time taken by the invocation, or a negative value if it was not timed
+     */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public void record( @Nonnull BasicInstrumentation instrumentation, long elapsedNanos, boolean failed ) {
+        RecordRing ring = rings[ (int) Thread.currentThread().getId() & ringMask ];
+
+        if ( !ring.offer( instrumentation, elapsedNanos, failed ) ) {
+            dropped.inc();
+        }
+    }
+
+    /** Stops the aggregator thread, folds in the remaining records and unregisters the shutdown hook. */
+    @Override
+    public void close() {
+        stop();
+
+        try {
+            Runtime.getRuntime().removeShutdownHook( shutdownHook );
+        }
+        catch ( IllegalStateException e ) {
+            /* The JVM is shutting down already, the hook takes care of everything */
+        }
+    }
+
+    private void stop() {
+        running = false;
+        LockSupport.unpark( aggregatorThread );
+
+        try {
+            aggregatorThread.join( CLOSE_TIMEOUT_MILLIS );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+
+        /* Rings have a single consumer - drain only if the aggregator is surely done with them */
+        if ( !aggregatorThread.isAlive() ) {
+            drainAll();
+        }
+    }
+
+    private void aggregate() {
+        while ( running ) {
+            if ( drainAll() == 0 ) {
+                LockSupport.parkNanos( this, IDLE_PARK_NANOS );
+            }
+        }
+    }
+
+    private int drainAll() {
+        int drained = 0;
+
+        for ( RecordRing ring : rings ) {
+            try {
+                drained += ring.drain( AGGREGATOR );
+            }
+            catch ( RuntimeException e ) {
+                /* Keep the thread alive - a broken metric should not stop all others from being updated */
+                LOGGER.warn( "Failed to record an invocation", e );
+                drained++;
+            }
+        }
+
+        return drained;
+    }
+
+    public boolean isRunning() {
+        return running && aggregatorThread.isAlive();
+    }
+}
@@ -3,25 +3,74 @@ package com.tguzik.metrics.mybatis;
 import static com.codahale.metrics.MetricRegistry.name;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.WillNotClose;
-import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.ResultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Contains full set of counters/meters/timers for one metric. This class having
  * no mutable state and each counter/meter/timer being thread safe makes this
- * class thread safe too.
+ * class thread safe too. The only exception is the flag set when the instrumentation is evicted for being idle, see
+ * {@link #enter()}.
+ * <p/>
+ * With {@link InstrumentationProfile#LEAN} the invocation counter, invocation meter and failure counter are
+ * read-only views over the timer and the failure meter, so only the latter two are updated. Both profiles can share a
+ * registry: updates of the views are ignored, and a lean instrumentation that finds plain counters and meters
+ * registered by a full one updates them like the full one does.
+ * <p/>
+ * With sampling enabled only some invocations are timed. The timer still counts all of them. Statements whose timer
+ * name is already taken by a timer without sampling are timed in full instead.
+ * <p/>
+ * When enabled, the number of rows is recorded as <code>rowsReturned</code> for selects and
+ * <code>rowsAffected</code> for inserts, updates and deletes. Phase timers, also optional, are registered under
+ * <code>phase.*</code>. With cache metrics enabled, the time of each query is also recorded either as
+ * <code>cacheHit</code> or <code>cacheMiss</code>, depending on whether the database was queried.
+ * <p/>
+ * With fingerprints enabled, executions are also timed per fingerprint of their SQL under <code>fingerprint.*</code>,
+ * see {@link FingerprintInstrumentation}.
+ * <p/>
+ * Selects run with a {@link ResultHandler} can record, when enabled, the time until the first row reached the handler
+ * as <code>resultHandler.timeToFirstRow</code> and the rows it handled as <code>resultHandler.rows</code>, which also
+ * gives their rate. Selects returning no rows do not record the time to the first row.
+ * <p/>
+ * Selects can also get a recommended fetch size, see {@link FetchSizeAdvisor}, and count the sessions in which they
+ * ran too many times under <code>nPlusOne.*</code>, see {@link NPlusOneInstrumentation}.
+ * <p/>
+ * With failure categories enabled, failures are also counted and timed per {@link FailureCategory} under
+ * <code>failures.*</code>, see {@link FailureInstrumentation}.
+ * <p/>
+ * Invocations in progress are counted in <code>inFlight</code>, when enabled. The counter is striped, so threads
+ * entering and leaving the same statement do not contend on it. <code>inFlightPeak</code> is the highest count seen
+ * in the last minute or two, sampled so that entering does not read the stripes other threads write, see
+ * {@link PeakGauge}.
  *
  * @author Tomasz Guzik <tomek@tguzik.com>
  */
-@Immutable
 @ThreadSafe
 final class BasicInstrumentation {
+    private static final Logger LOGGER = LoggerFactory.getLogger( BasicInstrumentation.class );
+
+    private final String baseMetricName;
+    private final int samplingInterval;
+    private final long slowThresholdNanos;
+
     private final Counter totalInvocations;
     private final Counter totalFailures;
 
@@ -30,14 +79,164 @@ final class BasicInstrumentation {
 
     private final Timer elapsed;
 
+    /** Rows returned or affected, depending on the statement type. Null when not recorded. */
+    private final Histogram rows;
+
+    /** Indexed by {@link StatementPhase#ordinal()}. Null when phases are not timed. */
+    private final Timer[] phases;
+
+    /** Both null unless tracking of invocations in progress is enabled. */
+    private final Counter inFlight;
+    private final PeakGauge inFlightPeak;
+
+    /**
+     * Invocations in progress, same instance as {@link #inFlight} when it is registered. Striped like the latter. Null
+     * unless either tracking of invocations in progress or idle statement eviction is enabled, so invocations do not
+     * pay for it otherwise.
+     */
+    private final Counter running;
+
+    /** Set once the metrics are unregistered, after which invocations have to look up a new instance */
+    private volatile boolean evicted;
+
+    /** Null unless fingerprints are enabled. */
+    private final FingerprintInstrumentation fingerprints;
+
+    /** Null unless failure categories are enabled. */
+    private final FailureInstrumentation failureCategories;
+
+    /** Null unless cache metrics are enabled and the statement is a select. */
+    private final Timer cacheHit;
+    private final Timer cacheMiss;
+
+    /** Null unless result handler metrics are enabled and the statement is a select. */
+    private final Timer timeToFirstRow;
+    private final Meter handledRows;
+
+    /** Null unless the fetch size advisor is enabled and the statement is a select. */
+    private final FetchSizeAdvisor fetchSizeAdvisor;
+
+    /** Null unless N+1 detection is enabled and the statement is a select. */
+    private final NPlusOneInstrumentation nPlusOne;
+
+    /** Same instance as {@link #elapsed} when sampling, null otherwise. */
+    private final SampledTimer sampledElapsed;
+
     public BasicInstrumentation( @Nonnull MetricRegistry registry, @Nonnull String baseMetricName ) {
-        this.totalInvocations = registry.counter( name( baseMetricName, "totalInvocations" ) );
-        this.totalFailures = registry.counter( name( baseMetricName, "totalFailures" ) );
-        this.invocationsPerSecond = registry.meter( name( baseMetricName, "invocationsPerSecond" ) );
-        this.failuresPerSecond = registry.meter( name( baseMetricName, "failuresPerSecond" ) );
-        this.elapsed = registry.timer( name( baseMetricName, "elapsed" ) );
+        this( new MetricFactory( registry, InstrumentationSettings.defaults() ), baseMetricName );
+    }
+
+    public BasicInstrumentation( @Nonnull MetricFactory factory, @Nonnull String baseMetricName ) {
+        this( factory, baseMetricName, null );
+    }
+
+    /**
+     * @param statement
+     *         the instrumented statement, used to look up per-statement settings. Null if there is none.
+     */
+    public BasicInstrumentation( @Nonnull MetricFactory factory,
+                                 @Nonnull String baseMetricName,
+                                 @Nullable MappedStatement statement ) {
+        InstrumentationSettings settings = factory.getSettings();
+        String statementId = statement != null ? statement.getId() : null;
+        this.baseMetricName = baseMetricName;
+        boolean lean = settings.getProfile() == InstrumentationProfile.LEAN;
+        this.slowThresholdNanos = settings.getSlowThresholdNanos( statementId );
+        int interval = settings.getSamplingInterval( statementId );
+        SampledTimer sampled = interval > 1 ? factory.sampledTimer( name( baseMetricName, "elapsed" ) ) : null;
+
+        if ( interval > 1 && sampled == null ) {
+            /* Statements sharing the name, e.g. through the namespace strategy, may have sampling turned off. The
+             * timer they registered cannot count untimed invocations, so this statement is timed in full too.
+             */
+            LOGGER.warn( "{} is already timed without sampling, every invocation of {} will be timed as well",
+                         name( baseMetricName, "elapsed" ),
+                         statementId );
+            interval = 1;
+        }
+
+        this.samplingInterval = interval;
+        this.sampledElapsed = sampled;
+        this.elapsed = sampled != null ? sampled : factory.timer( name( baseMetricName, "elapsed" ) );
+
+        this.failuresPerSecond = factory.meter( name( baseMetricName, "failuresPerSecond" ) );
+        this.rows = settings.isRowHistograms() ? createRowsHistogram( factory, baseMetricName, statement ) : null;
+        this.phases = settings.isPhaseTimers() ? createPhaseTimers( factory, baseMetricName ) : null;
+        this.fingerprints = settings.isFingerprints() ? new FingerprintInstrumentation( factory, baseMetricName )
+                                                      : null;
+        this.failureCategories = settings.isFailureCategories() ? new FailureInstrumentation( factory, baseMetricName )
+                                                                : null;
+
+        if ( settings.isInFlight() ) {
+            this.inFlight = factory.counter( name( baseMetricName, "inFlight" ) );
+            this.inFlightPeak = factory.register( name( baseMetricName, "inFlightPeak" ),
+                                                  new PeakGauge( inFlight ),
+                                                  PeakGauge.class );
+        }
+        else {
+            this.inFlight = null;
+            this.inFlightPeak = null;
+        }
+
+        if ( inFlight != null ) {
+            this.running = inFlight;
+        }
+        else {
+            this.running = settings.getStatementIdleTtlNanos() != Long.MAX_VALUE ? new Counter() : null;
+        }
+
+        if ( settings.isCacheMetrics() && //
+             statement != null && //
+             statement.getSqlCommandType() == SqlCommandType.SELECT ) {
+            this.cacheHit = factory.timer( name( baseMetricName, "cacheHit" ) );
+            this.cacheMiss = factory.timer( name( baseMetricName, "cacheMiss" ) );
+        }
+        else {
+            this.cacheHit = null;
+            this.cacheMiss = null;
+        }
+
+        if ( settings.isResultHandlerMetrics() && //
+             statement != null && //
+             statement.getSqlCommandType() == SqlCommandType.SELECT ) {
+            this.timeToFirstRow = factory.timer( name( baseMetricName, "resultHandler", "timeToFirstRow" ) );
+            this.handledRows = factory.meter( name( baseMetricName, "resultHandler", "rows" ) );
+        }
+        else {
+            this.timeToFirstRow = null;
+            this.handledRows = null;
+        }
+
+        this.fetchSizeAdvisor = settings.isFetchSizeAdvisor() && //
+                                statement != null && //
+                                statement.getSqlCommandType() == SqlCommandType.SELECT
+                                ? new FetchSizeAdvisor( factory, baseMetricName )
+                                : null;
+        this.nPlusOne = settings.isNPlusOneDetection() && //
+                        statement != null && //
+                        statement.getSqlCommandType() == SqlCommandType.SELECT
+                        ? new NPlusOneInstrumentation( factory, baseMetricName )
+                        : null;
+
+        if ( lean ) {
+            this.totalInvocations = factory.register( name( baseMetricName, "totalInvocations" ),
+                                                      new DerivedCounter( elapsed ),
+                                                      Counter.class );
+            this.totalFailures = factory.register( name( baseMetricName, "totalFailures" ),
+                                                   new DerivedCounter( failuresPerSecond ),
+                                                   Counter.class );
+            this.invocationsPerSecond = factory.register( name( baseMetricName, "invocationsPerSecond" ),
+                                                          new DerivedMeter( elapsed ),
+                                                          Meter.class );
+        }
+        else {
+            this.totalInvocations = factory.counter( name( baseMetricName, "totalInvocations" ) );
+            this.totalFailures = factory.counter( name( baseMetricName, "totalFailures" ) );
+            this.invocationsPerSecond = factory.meter( name( baseMetricName, "invocationsPerSecond" ) );
+        }
     }
 
+    /** Updates of derived metrics are ignored - the invocation gets counted when its time is recorded. */
     public void markInvoked() {
         this.totalInvocations.inc();
         this.invocationsPerSecond.mark();
@@ -48,6 +247,277 @@ final class BasicInstrumentation {
         this.failuresPerSecond.mark();
     }
 
+    /**
+     * Records the category of a failure and the time it took to fail, when failure categories are enabled. Called in
+     * addition to {@link #markFailed()}.
+     *
+     * @param elapsedNanos
+     *         time taken by the invocation, or a negative value if it was not timed
+     */
+    public void recordFailure( @Nonnull Throwable failure, long elapsedNanos ) {
+        if ( failureCategories != null ) {
+            failureCategories.record( failure, elapsedNanos );
+        }
+    }
+
+    /**
+     * Marks the start of an invocation. Has to be followed by {@link #exit()}, unless it returns false - when the
+     * instrumentation was evicted since it was looked up. The invocation then has to look up the instrumentation
+     * again, since the metrics of this one are no longer registered.
+     */
+    public boolean enter() {
+        if ( running == null ) {
+            /* Nothing evicts the instrumentation without a time to live */
+            return true;
+        }
+
+        running.inc();
+
+        /* Read after the increment, while the evictor sets the flag before counting - one of them sees the other */
+        if ( evicted ) {
+            running.dec();
+            return false;
+        }
+
+        if ( inFlightPeak != null ) {
+            inFlightPeak.update();
+        }
+        return true;
+    }
+
+    /** Marks the end of an invocation, successful or not */
+    public void exit() {
+        if ( running != null ) {
+            running.dec();
+        }
+    }
+
+    /**
+     * Marks the instrumentation as evicted, unless invocations are in progress - statements are idle only when none
+     * of their invocations completed for a while and none are running either. Evicted instrumentation refuses to
+     * {@link #enter()}.
+     *
+     * @return false if the instrumentation is in use and was not evicted
+     */
+    boolean evict() {
+        evicted = true;
+
+        if ( running != null && running.getCount() > 0 ) {
+            evicted = false;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Decides whether the current invocation should be timed. Always true unless sampling is enabled. If this
+     * returns false, the caller should use {@link #markUntimed()} instead of {@link #recordElapsed(long)}.
+     */
+    public boolean shouldTime() {
+        return samplingInterval <= 1 || ThreadLocalRandom.current().nextInt( samplingInterval ) == 0;
+    }
+
+    /** Counts an invocation that was not timed, so that the timer's count stays accurate. */
+    public void markUntimed() {
+        if ( sampledElapsed != null ) {
+            sampledElapsed.markUntimed();
+        }
+    }
+
+    /**
+     * Records a whole invocation at once, after it has finished. Used when invocations are recorded asynchronously,
+     * instead of {@link #markInvoked()}, {@link #markFailed()} and either {@link #recordElapsed(long)} or
+     * {@link #markUntimed()}.
+     *
+     * @param elapsedNanos
+     *         time taken by the invocation, or a negative value if it was not timed
+     */
+    public void recordInvocation( long elapsedNanos, boolean failed ) {
+        markInvoked();
+
+        if ( failed ) {
+            markFailed();
+        }
+
+        if ( elapsedNanos >= 0 ) {
+            recordElapsed( elapsedNanos );
+        }
+        else {
+            markUntimed();
+        }
+    }
+
+    /** Tells whether an invocation that took this long should be captured as a slow statement */
+    public boolean isSlow( long nanos ) {
+        return nanos >= slowThresholdNanos;
+    }
+
+    /** Records the time taken by one invocation. Does not allocate, unlike {@link #openTimerContext()}. */
+    public void recordElapsed( long elapsedNanos ) {
+        this.elapsed.update( elapsedNanos, TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * Records the size of the result: number of rows for queries and number of affected rows for updates. Results
+     * of any other type are ignored. No reference to the result is kept.
+     * <p/>
+     * Negative counts are not row counts: the batch executor returns a marker from every update and some drivers
+     * report {@link java.sql.Statement#SUCCESS_NO_INFO}. They are ignored too.
+     */
+    public void recordRows( @Nullable Object result ) {
+        if ( rows == null ) {
+            return;
+        }
+
+        if ( result instanceof List ) {
+            rows.update( ( (List<?>) result ).size() );
+        }
+        else if ( result instanceof Integer && (Integer) result >= 0 ) {
+            rows.update( (Integer) result );
+        }
+    }
+
+    /** Records time spent in one phase of the statement, excluding phases nested in it */
+    public void recordPhase( @Nonnull StatementPhase phase, long elapsedNanos ) {
+        if ( phases != null ) {
+            phases[ phase.ordinal() ].update( elapsedNanos, TimeUnit.NANOSECONDS );
+        }
+    }
+
+    /** Returns the timer for executions of given SQL, or null if fingerprints are not enabled */
+    @Nullable
+    public Timer fingerprintTimer( @Nonnull String sql ) {
+        return fingerprints != null ? fingerprints.timerFor( sql ) : null;
+    }
+
+    /** Tells whether the caller should find out if invocations were answered from a cache */
+    public boolean tracksCacheHits() {
+        return cacheHit != null;
+    }
+
+    /**
+     * Records the time taken by a query once more, as either a cache hit or a miss. Does nothing unless
+     * {@link #tracksCacheHits()}.
+     */
+    public void recordCacheOutcome( boolean hit, long elapsedNanos ) {
+        if ( cacheHit != null ) {
+            ( hit ? cacheHit : cacheMiss ).update( elapsedNanos, TimeUnit.NANOSECONDS );
+        }
+    }
+
+    /**
+     * Tells whether the caller should wrap result handlers with {@link #wrapResultHandler(ResultHandler, long)}, to
+     * record their metrics or to count the rows for the {@link #getFetchSizeAdvisor() fetch size advisor}.
+     */
+    public boolean tracksResultHandlers() {
+        return timeToFirstRow != null || fetchSizeAdvisor != null;
+    }
+
+    /**
+     * Returns given handler wrapped to record the time to the first row and the rows handled. Must only be called if
+     * {@link #tracksResultHandlers()}.
+     *
+     * @param startNanos
+     *         when the select started, as returned by {@link System#nanoTime()}
+     */
+    @Nonnull
+    public InstrumentedResultHandler wrapResultHandler( @Nonnull ResultHandler handler, long startNanos ) {
+        return new InstrumentedResultHandler( handler, timeToFirstRow, handledRows, startNanos );
+    }
+
+    /** Returns the name all metrics of this instrumentation are registered under */
+    @Nonnull
+    public String getBaseMetricName() {
+        return baseMetricName;
+    }
+
+    /** Returns the fetch size advisor of the statement, or null if it has none */
+    @Nullable
+    public FetchSizeAdvisor getFetchSizeAdvisor() {
+        return fetchSizeAdvisor;
+    }
+
+    /** Counts a session in which this select ran too many times, run by given statement. No-op for non-selects. */
+    public void recordNPlusOne( @Nullable MappedStatement parent ) {
+        if ( nPlusOne != null ) {
+            nPlusOne.record( parent );
+        }
+    }
+
+    @Nonnull
+    private static Timer[] createPhaseTimers( @Nonnull MetricFactory factory, @Nonnull String baseMetricName ) {
+        StatementPhase[] values = StatementPhase.values();
+        Timer[] timers = new Timer[ values.length ];
+
+        for ( StatementPhase phase : values ) {
+            timers[ phase.ordinal() ] = factory.timer( name( baseMetricName, "phase", phase.getMetricName() ) );
+        }
+
+        return timers;
+    }
+
+    @Nullable
+    private static Histogram createRowsHistogram( @Nonnull MetricFactory factory,
+                                                  @Nonnull String baseMetricName,
+                                                  @Nullable MappedStatement statement ) {
+        SqlCommandType type = statement != null ? statement.getSqlCommandType() : null;
+
+        if ( type == SqlCommandType.SELECT ) {
+            return factory.histogram( name( baseMetricName, "rowsReturned" ) );
+        }
+        if ( type == SqlCommandType.INSERT || type == SqlCommandType.UPDATE || type == SqlCommandType.DELETE ) {
+            return factory.histogram( name( baseMetricName, "rowsAffected" ) );
+        }
+        return null;
+    }
+
+    /**
+     * Tells how many invocations were recorded so far, directly or through phases. Only changes of the value are
+     * meaningful - a statement whose activity does not change is not being used.
+     */
+    public long getActivity() {
+        long activity = elapsed.getCount();
+
+        if ( phases != null ) {
+            activity += phases[ StatementPhase.EXECUTE.ordinal() ].getCount();
+        }
+
+        return activity;
+    }
+
+    /** Returns all metrics updated by this instance, as registered in the registry */
+    @Nonnull
+    public List<Metric> getMetrics() {
+        List<Metric> metrics = new ArrayList<>();
+        metrics.addAll( Arrays.<Metric>asList( totalInvocations, totalFailures, invocationsPerSecond,
+                                               failuresPerSecond, elapsed ) );
+
+        for ( Metric metric : Arrays.<Metric>asList( rows, cacheHit, cacheMiss, inFlight, inFlightPeak,
+                                                              timeToFirstRow, handledRows ) ) {
+            if ( metric != null ) {
+                metrics.add( metric );
+            }
+        }
+        if ( phases != null ) {
+            metrics.addAll( Arrays.asList( phases ) );
+        }
+        if ( fingerprints != null ) {
+            metrics.addAll( fingerprints.getMetrics() );
+        }
+        if ( failureCategories != null ) {
+            metrics.addAll( failureCategories.getMetrics() );
+        }
+        if ( fetchSizeAdvisor != null ) {
+            metrics.addAll( fetchSizeAdvisor.getMetrics() );
+        }
+        if ( nPlusOne != null ) {
+            metrics.addAll( nPlusOne.getMetrics() );
+        }
+
+        return metrics;
+    }
+
     /** Opens new timer context that needs to be closed by the caller */
     @WillNotClose
     public Timer.Context openTimerContext() {
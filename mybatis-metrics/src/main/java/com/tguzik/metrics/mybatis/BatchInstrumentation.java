@@ -0,0 +1,163 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.mapping.MappedStatement;
+
+/**
+ * Metrics of batches sent to the database when statements are flushed. Each flush is timed as a whole under
+ * {@link #FLUSH_METRIC_NAME}, and then attributed to the statements it contained:
+ * <ul>
+ * <li><code>batch.size</code> - number of times the statement was added to the batch,</li>
+ * <li><code>batch.flush</code> - share of the flush time, proportional to the size of the statement's batch,</li>
+ * <li><code>batch.amortized</code> - the share divided by the batch size, i.e. time per row.</li>
+ * </ul>
+ * The database does not report how long each batch took, so the attribution is an estimate. It is exact when a
+ * flush contains only one statement, which is the usual case for bulk loads.
+ * <p/>
+ * Metrics of a statement are created the first time it is flushed, so statements never run in a batch do not get
+ * any. They are named after the instrumentation of the statement, so statements over the limit of statements share
+ * them too. They are removed from the registry together with the rest of the statement's metrics when it is evicted
+ * for being idle.
+ * <p/>
+ * Only flushes that go through the intercepted executor are recorded. Flushes the batch executor runs on its own,
+ * before every select, are not.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class BatchInstrumentation {
+    static final String FLUSH_METRIC_NAME = "mybatis.batch.flush";
+
+    private final MetricFactory factory;
+    private final InstrumentationLookup lookup;
+    private final Timer flushes;
+    private final Meter failures;
+    private final ConcurrentMap<MappedStatement, StatementBatchMetrics> statements;
+
+    public BatchInstrumentation( @Nonnull MetricFactory factory, @Nonnull InstrumentationLookup lookup ) {
+        this.factory = factory;
+        this.lookup = lookup;
+        this.flushes = factory.timer( FLUSH_METRIC_NAME );
+        this.failures = factory.meter( name( FLUSH_METRIC_NAME, "failures" ) );
+        this.statements = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Records one flush. Flushes of executors that had nothing to flush are ignored unless they failed.
+     *
+     * @param results
+     *         batches executed by the flush; only the successful ones if it failed
+     */
+    public void record( @Nonnull List<BatchResult> results, long elapsedNanos, boolean failed ) {
+        if ( failed ) {
+            failures.mark();
+        }
+        else if ( results.isEmpty() ) {
+            return;
+        }
+
+        flushes.update( elapsedNanos, TimeUnit.NANOSECONDS );
+
+        long totalRows = 0;
+        for ( BatchResult result : results ) {
+            totalRows += batchSize( result );
+        }
+
+        for ( BatchResult result : results ) {
+            int size = batchSize( result );
+            long share = totalRows > 0 ? elapsedNanos * size / totalRows : elapsedNanos / results.size();
+            getMetrics( result.getMappedStatement() ).record( size, share );
+        }
+    }
+
+    /**
+     * Drops metrics of given statements and unregisters them, unless some other statement uses metrics with the same
+     * names. Statements flushed again later get new metrics.
+     */
+    public synchronized void evict( @Nonnull Collection<?> evicted ) {
+        List<Metric> unused = new ArrayList<>();
+
+        for ( Object statement : evicted ) {
+            StatementBatchMetrics metrics = statements.remove( statement );
+
+            if ( metrics != null ) {
+                unused.addAll( metrics.getMetrics() );
+            }
+        }
+        for ( StatementBatchMetrics remaining : statements.values() ) {
+            unused.removeAll( remaining.getMetrics() );
+        }
+
+        MetricRegistries.removeAll( factory.getRegistry(), unused );
+    }
+
+    @Nonnull
+    private StatementBatchMetrics getMetrics( @Nonnull MappedStatement statement ) {
+        StatementBatchMetrics metrics = statements.get( statement );
+        return metrics != null ? metrics : createMetrics( statement );
+    }
+
+    /** Synchronized with {@link #evict(Collection)}, so that it cannot unregister metrics handed out here */
+    @Nonnull
+    private synchronized StatementBatchMetrics createMetrics( @Nonnull MappedStatement statement ) {
+        StatementBatchMetrics metrics = statements.get( statement );
+
+        if ( metrics == null ) {
+            String baseMetricName = lookup.getInstrumentation( statement ).getBaseMetricName();
+            metrics = new StatementBatchMetrics( factory, name( baseMetricName, "batch" ) );
+            statements.put( statement, metrics );
+        }
+
+        return metrics;
+    }
+
+    private static int batchSize( @Nonnull BatchResult result ) {
+        int[] updateCounts = result.getUpdateCounts();
+        return updateCounts != null ? updateCounts.length : result.getParameterObjects().size();
+    }
+
+    @Immutable
+    @ThreadSafe
+    private static final class StatementBatchMetrics {
+        private final Histogram size;
+        private final Timer flush;
+        private final Timer amortized;
+
+        StatementBatchMetrics( @Nonnull MetricFactory factory, @Nonnull String baseMetricName ) {
+            this.size = factory.histogram( name( baseMetricName, "size" ) );
+            this.flush = factory.timer( name( baseMetricName, "flush" ) );
+            this.amortized = factory.timer( name( baseMetricName, "amortized" ) );
+        }
+
+        void record( int batchSize, long elapsedNanos ) {
+            size.update( batchSize );
+            flush.update( elapsedNanos, TimeUnit.NANOSECONDS );
+
+            if ( batchSize > 0 ) {
+                amortized.update( elapsedNanos / batchSize, TimeUnit.NANOSECONDS );
+            }
+        }
+
+        @Nonnull
+        List<Metric> getMetrics() {
+            return Arrays.<Metric>asList( size, flush, amortized );
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+
+/**
+ * Read-only {@link Counter} that reports the count of another metric. Used to keep the old metric names (and their
+ * types, which matters for reporters) around without paying for the updates.
+ * <p/>
+ * Updates are ignored rather than rejected, since the source metric counts them already. Instrumentations of the full
+ * profile sharing the registry get this counter under the same name, and have to keep working with it.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class DerivedCounter extends Counter {
+    private final Counting source;
+
+    public DerivedCounter( @Nonnull Counting source ) {
+        this.source = source;
+    }
+
+    @Override
+    public long getCount() {
+        return source.getCount();
+    }
+
+    @Override
+    public void inc() {
+    }
+
+    @Override
+    public void inc( long n ) {
+    }
+
+    @Override
+    public void dec() {
+    }
+
+    @Override
+    public void dec( long n ) {
+    }
+}
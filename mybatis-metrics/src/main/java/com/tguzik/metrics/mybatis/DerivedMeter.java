@@ -0,0 +1,55 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+
+/**
+ * Read-only {@link Meter} that reports the count and rates of another metric, usually a
+ * {@link com.codahale.metrics.Timer}. Updates are ignored. See {@link DerivedCounter} for the reasoning.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class DerivedMeter extends Meter {
+    private final Metered source;
+
+    public DerivedMeter( @Nonnull Metered source ) {
+        this.source = source;
+    }
+
+    @Override
+    public void mark() {
+    }
+
+    @Override
+    public void mark( long n ) {
+    }
+
+    @Override
+    public long getCount() {
+        return source.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return source.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return source.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        return source.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return source.getOneMinuteRate();
+    }
+}
@@ -0,0 +1,199 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientConnectionException;
+
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+
+/**
+ * Categories of failed invocations, recorded under
+ * <code>&lt;statement metric name&gt;.failures.&lt;category metric name&gt;</code> when enabled. The categories tell
+ * failures caused by contention, which are worth retrying and tend to grow with load, apart from those caused by bugs.
+ * <p/>
+ * The category is taken from the first {@link SQLException} among the causes of the failure: from its SQLState, from
+ * a few well-known vendor codes of PostgreSQL, MySQL and Oracle, and from its JDBC 4 subclass, in that order.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+enum FailureCategory {
+    /** Deadlocks and serialization failures - SQLState class 40. Retrying the transaction may succeed. */
+    DEADLOCK( "deadlock" ),
+
+    /** Waiting for a lock took too long or the lock was not available */
+    LOCK_TIMEOUT( "lockTimeout" ),
+
+    /** The statement took too long or was cancelled */
+    TIMEOUT( "timeout" ),
+
+    /** The connection could not be established or was lost - SQLState class 08 */
+    CONNECTION( "connection" ),
+
+    /** Unique, foreign key, not null or check constraint was violated - SQLState class 23 */
+    CONSTRAINT_VIOLATION( "constraintViolation" ),
+
+    /** Data did not fit, could not be converted or was otherwise invalid - SQLState class 22 */
+    DATA( "data" ),
+
+    /** Syntax error, missing table or column, or missing privileges - SQLState class 42 */
+    BAD_SQL( "badSql" ),
+
+    /** Any other {@link SQLException} */
+    OTHER_SQL( "otherSql" ),
+
+    /** No {@link SQLException} among the causes, e.g. an error in result mapping */
+    OTHER( "other" );
+
+    /** Causes are followed only this deep, in case of very long or circular chains */
+    private static final int MAX_DEPTH = 16;
+
+    private static final int MYSQL_LOCK_WAIT_TIMEOUT = 1205;
+    private static final int ORACLE_DEADLOCK = 60;
+    private static final int ORACLE_RESOURCE_BUSY = 54;
+    private static final int ORACLE_WAIT_TIMEOUT = 30006;
+    private static final int ORACLE_USER_CANCEL = 1013;
+
+    private final String metricName;
+
+    private FailureCategory( @Nonnull String metricName ) {
+        this.metricName = metricName;
+    }
+
+    @Nonnull
+    public String getMetricName() {
+        return metricName;
+    }
+
+    /** Returns the category of given failure. Only walks the causes and compares strings, so it is cheap. */
+    @Nonnull
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public static FailureCategory of( @Nullable Throwable failure ) {
+        Throwable current = failure;
+
+        for ( int depth = 0; current != null && depth < MAX_DEPTH; depth++ ) {
+            if ( current instanceof SQLException ) {
+                return of( (SQLException) current );
+            }
+
+            Throwable cause = current.getCause();
+            current = cause != current ? cause : null;
+        }
+
+        return OTHER;
+    }
+
+    @Nonnull
+    private static FailureCategory of( @Nonnull SQLException e ) {
+        FailureCategory category = ofSqlState( e.getSQLState(), e.getErrorCode(), e.getMessage() );
+        if ( category == null ) {
+            category = ofType( e );
+        }
+        if ( category == null ) {
+            /* Drivers tend to put the actual reason of a failed batch in the next exception */
+            SQLException next = e.getNextException();
+            category = next != null && next != e ? ofSqlState( next.getSQLState(), next.getErrorCode(), "" ) : null;
+        }
+
+        return category != null ? category : OTHER_SQL;
+    }
+
+    @Nullable
+    private static FailureCategory ofSqlState( @Nullable String state, int vendorCode, @Nullable String message ) {
+        if ( state == null || state.length() != 5 ) {
+            return null;
+        }
+
+        switch ( state ) {
+            case "40P01": // PostgreSQL deadlock_detected
+                return DEADLOCK;
+            case "55P03": // PostgreSQL lock_not_available
+                return LOCK_TIMEOUT;
+            case "57014": // PostgreSQL query_canceled, which includes statement_timeout
+            case "HYT00":
+            case "HYT01":
+                return TIMEOUT;
+            case "61000": // Oracle reports these and more under a few SQLStates
+            case "72000":
+                return ofOracleCode( vendorCode );
+            case "40001":
+                /* MySQL reports lock wait timeouts as serialization failures, while SQL Server uses 1205 for
+                 * deadlocks, so the message is what tells them apart */
+                if ( vendorCode == MYSQL_LOCK_WAIT_TIMEOUT && message != null &&
+                     message.startsWith( "Lock wait timeout" ) ) {
+                    return LOCK_TIMEOUT;
+                }
+                return DEADLOCK;
+            default:
+                break;
+        }
+
+        if ( hasClass( state, '4', '0' ) ) {
+            return DEADLOCK;
+        }
+        if ( hasClass( state, '0', '8' ) ) {
+            return CONNECTION;
+        }
+        if ( hasClass( state, '2', '3' ) ) {
+            return CONSTRAINT_VIOLATION;
+        }
+        if ( hasClass( state, '2', '2' ) ) {
+            return DATA;
+        }
+        if ( hasClass( state, '4', '2' ) ) {
+            return BAD_SQL;
+        }
+        return null;
+    }
+
+    @Nullable
+    private static FailureCategory ofOracleCode( int vendorCode ) {
+        switch ( vendorCode ) {
+            case ORACLE_DEADLOCK:
+                return DEADLOCK;
+            case ORACLE_RESOURCE_BUSY:
+            case ORACLE_WAIT_TIMEOUT:
+                return LOCK_TIMEOUT;
+            case ORACLE_USER_CANCEL:
+                return TIMEOUT;
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private static FailureCategory ofType( @Nonnull SQLException e ) {
+        if ( e instanceof SQLTimeoutException ) {
+            return TIMEOUT;
+        }
+        if ( e instanceof SQLTransactionRollbackException ) {
+            return DEADLOCK;
+        }
+        if ( e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException ||
+             e instanceof SQLRecoverableException ) {
+            return CONNECTION;
+        }
+        if ( e instanceof SQLIntegrityConstraintViolationException ) {
+            return CONSTRAINT_VIOLATION;
+        }
+        if ( e instanceof SQLDataException ) {
+            return DATA;
+        }
+        if ( e instanceof SQLSyntaxErrorException ) {
+            return BAD_SQL;
+        }
+        return null;
+    }
+
+    private static boolean hasClass( @Nonnull String state, char first, char second ) {
+        return state.charAt( 0 ) == first && state.charAt( 1 ) == second;
+    }
+}
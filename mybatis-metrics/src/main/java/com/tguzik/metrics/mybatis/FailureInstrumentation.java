@@ -0,0 +1,95 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+
+/**
+ * Failures of one statement per {@link FailureCategory}. Each category gets a counter under
+ * <code>failures.&lt;category&gt;</code> and a timer of the time it took to fail under
+ * <code>failures.&lt;category&gt;.elapsed</code>. The metrics of a category are registered when it fails for the
+ * first time, so statements that never fail do not get any. Their number is bounded by the number of categories.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class FailureInstrumentation {
+    private static final FailureCategory[] CATEGORIES = FailureCategory.values();
+
+    private final MetricFactory factory;
+    private final String baseMetricName;
+
+    /** Both indexed by {@link FailureCategory#ordinal()}, null until the category fails */
+    private final AtomicReferenceArray<Counter> counters;
+    private final AtomicReferenceArray<Timer> timers;
+
+    public FailureInstrumentation( @Nonnull MetricFactory factory, @Nonnull String baseMetricName ) {
+        this.factory = factory;
+        this.baseMetricName = name( baseMetricName, "failures" );
+        this.counters = new AtomicReferenceArray<>( CATEGORIES.length );
+        this.timers = new AtomicReferenceArray<>( CATEGORIES.length );
+    }
+
+    /**
+     * @param elapsedNanos
+     *         time it took to fail, or a negative value if it was not timed
+     */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public void record( @Nullable Throwable failure, long elapsedNanos ) {
+        FailureCategory category = FailureCategory.of( failure );
+        int index = category.ordinal();
+        Counter counter = counters.get( index );
+
+        if ( counter == null ) {
+            counter = createMetrics( category );
+        }
+
+        counter.inc();
+
+        if ( elapsedNanos >= 0 ) {
+            timers.get( index ).update( elapsedNanos, TimeUnit.NANOSECONDS );
+        }
+    }
+
+    /** Returns all metrics created so far, as registered in the registry */
+    @Nonnull
+    public List<Metric> getMetrics() {
+        List<Metric> metrics = new ArrayList<>();
+
+        for ( int i = 0; i < CATEGORIES.length; i++ ) {
+            Counter counter = counters.get( i );
+
+            if ( counter != null ) {
+                metrics.add( counter );
+                metrics.add( timers.get( i ) );
+            }
+        }
+
+        return metrics;
+    }
+
+    /** Racy on purpose - the registry hands out the same metrics to threads that get here at the same time */
+    @Nonnull
+    private Counter createMetrics( @Nonnull FailureCategory category ) {
+        String metricName = name( baseMetricName, category.getMetricName() );
+        int index = category.ordinal();
+
+        /* The timer goes first, so that it is there for everyone who sees the counter */
+        timers.set( index, factory.timer( name( metricName, "elapsed" ) ) );
+        Counter counter = factory.counter( metricName );
+        counters.set( index, counter );
+        return counter;
+    }
+}
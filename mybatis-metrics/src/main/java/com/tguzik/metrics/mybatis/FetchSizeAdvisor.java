@@ -0,0 +1,148 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.apache.ibatis.mapping.MappedStatement;
+
+/**
+ * Recommends a fetch size for one select from the number of rows it returned recently: enough for nine in ten
+ * selects to get all their rows in one round trip, rounded up to a power of two and capped by
+ * {@link InstrumentationSettings#getMaxFetchSize()}. There is no recommendation until
+ * {@link #MIN_SAMPLES} selects have been seen.
+ * <p/>
+ * The recommendation is registered as the <code>fetchSize.recommended</code> gauge. Selects are also timed as
+ * <code>fetchSize.defaultElapsed</code> or <code>fetchSize.recommendedElapsed</code>, depending on whether the
+ * statement they prepared got the recommended fetch size, to compare the latency before and after applying it. Selects
+ * that prepared no statement, e.g. those answered from a cache, are not timed here. The recommendation is applied only
+ * when enabled, and never to statements that set a fetch size of their own.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class FetchSizeAdvisor {
+    /** Selects seen before the first recommendation */
+    static final int MIN_SAMPLES = 20;
+
+    /** Smallest fetch size recommended - below that the round trips are not worth saving */
+    static final int MIN_FETCH_SIZE = 16;
+
+    /** Number of most recent selects the recommendation is based on. Power of two. */
+    static final int WINDOW = 256;
+
+    /** Selects between updates of the recommendation. Power of two. */
+    private static final int UPDATE_INTERVAL = 64;
+
+    private static final double QUANTILE = 0.9;
+
+    private final boolean apply;
+    private final int maxFetchSize;
+    /**
+     * Row counts of the most recent selects, indexed by their sample number. Not synchronized, since every select of
+     * the statement writes here. Racy on purpose - a recommendation may read a slot while it is replaced, and either
+     * value is as good a sample as the other.
+     */
+    private final int[] rows;
+    private final AtomicLong samples;
+    private final Timer defaultElapsed;
+    private final Timer recommendedElapsed;
+    private final Gauge<Integer> recommended;
+    private volatile int recommendation;
+
+    public FetchSizeAdvisor( @Nonnull MetricFactory factory, @Nonnull String baseMetricName ) {
+        InstrumentationSettings settings = factory.getSettings();
+        String metricName = name( baseMetricName, "fetchSize" );
+        this.apply = settings.isApplyFetchSize();
+        this.maxFetchSize = settings.getMaxFetchSize();
+
+        this.rows = new int[ WINDOW ];
+        this.samples = new AtomicLong();
+        this.defaultElapsed = factory.timer( name( metricName, "defaultElapsed" ) );
+        this.recommendedElapsed = factory.timer( name( metricName, "recommendedElapsed" ) );
+        this.recommended = factory.register( name( metricName, "recommended" ), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getRecommendation();
+            }
+        }, Gauge.class );
+    }
+
+    /** Returns the recommended fetch size, or zero if there is none yet */
+    public int getRecommendation() {
+        return recommendation;
+    }
+
+    /** Returns the fetch size to set on given statement before it runs, or zero to leave it as it is */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public int fetchSizeFor( @Nonnull MappedStatement statement ) {
+        return apply && statement.getFetchSize() == null ? recommendation : 0;
+    }
+
+    /**
+     * @param rowCount
+     *         rows returned by the select, or a negative value if not known
+     * @param elapsedNanos
+     *         time taken by the select, or a negative value if it was not timed
+     * @param withRecommendedFetchSize
+     *         whether the statement was prepared with the recommended fetch size
+     */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public void record( long rowCount, long elapsedNanos, boolean withRecommendedFetchSize ) {
+        if ( rowCount >= 0 ) {
+            long count = samples.incrementAndGet();
+            rows[ (int) ( ( count - 1L ) & ( WINDOW - 1 ) ) ] = (int) Math.min( rowCount, Integer.MAX_VALUE );
+
+            if ( count == MIN_SAMPLES || ( count > MIN_SAMPLES && ( count & ( UPDATE_INTERVAL - 1 ) ) == 0 ) ) {
+                recommendation = recommend( recentRows( count ).getValue( QUANTILE ) );
+            }
+        }
+
+        if ( elapsedNanos >= 0 ) {
+            ( withRecommendedFetchSize ? recommendedElapsed : defaultElapsed ).update( elapsedNanos,
+                                                                                     TimeUnit.NANOSECONDS );
+        }
+    }
+
+    /** Returns all metrics registered by this instance */
+    @Nonnull
+    public List<Metric> getMetrics() {
+        return Arrays.<Metric>asList( defaultElapsed, recommendedElapsed, recommended );
+    }
+
+    /** Once every {@link #UPDATE_INTERVAL} selects */
+    @Nonnull
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    private Snapshot recentRows( long count ) {
+        long[] values = new long[ (int) Math.min( count, WINDOW ) ];
+
+        for ( int i = 0; i < values.length; i++ ) {
+            values[ i ] = rows[ i ];
+        }
+
+        return new Snapshot( values );
+    }
+
+    /** One more than the rows, so that the driver learns there are no more rows in the same round trip */
+    int recommend( double rowCount ) {
+        long wanted = (long) Math.ceil( rowCount ) + 1L;
+        if ( wanted >= maxFetchSize ) {
+            return maxFetchSize;
+        }
+
+        long powerOfTwo = wanted <= MIN_FETCH_SIZE ? MIN_FETCH_SIZE : Long.highestOneBit( wanted - 1L ) << 1;
+
+        return (int) Math.min( powerOfTwo, maxFetchSize );
+    }
+}
@@ -0,0 +1,129 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timers of one statement per {@link SqlFingerprints fingerprint} of the SQL it ran. Dynamic SQL can produce very
+ * different queries from one statement, and this tells them apart.
+ * <p/>
+ * Each fingerprint gets a timer under <code>fingerprint.&lt;identifier&gt;</code> and a gauge with its SQL under
+ * <code>fingerprint.&lt;identifier&gt;.sql</code>. Both the number of fingerprints and the number of distinct SQL
+ * strings remembered are bounded. Fingerprints above the limit share <code>fingerprint.other</code>, and so do SQL
+ * strings first seen after the limit was reached - normalizing them on every invocation would cost more than the
+ * statement is worth measuring. So do fingerprints whose identifier is already taken by another fingerprint, rather
+ * than sharing its timer.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class FingerprintInstrumentation {
+    private static final Logger LOGGER = LoggerFactory.getLogger( FingerprintInstrumentation.class );
+
+    /** SQL strings remembered per fingerprint, on average. Dynamic SQL varies in ways that normalization removes. */
+    private static final int SQL_STRINGS_PER_FINGERPRINT = 8;
+
+    private final MetricFactory factory;
+    private final String baseMetricName;
+    private final int maxFingerprints;
+    private final int maxSqlStrings;
+    private final Timer other;
+
+    /** Timers by the SQL as it was run, so that each string is normalized only once */
+    private final ConcurrentMap<String, Timer> timersBySql;
+
+    /** Timers by the fingerprint, since many SQL strings share one */
+    private final ConcurrentMap<String, Timer> timersByFingerprint;
+
+    /** Everything registered so far. Written only when a fingerprint is seen for the first time. */
+    private final List<Metric> metrics;
+
+    public FingerprintInstrumentation( @Nonnull MetricFactory factory, @Nonnull String baseMetricName ) {
+        this.factory = factory;
+        this.baseMetricName = name( baseMetricName, "fingerprint" );
+        this.maxFingerprints = factory.getSettings().getMaxFingerprints();
+        this.maxSqlStrings = maxFingerprints * SQL_STRINGS_PER_FINGERPRINT;
+        this.other = factory.timer( name( this.baseMetricName, "other" ) );
+        this.timersBySql = new ConcurrentHashMap<>();
+        this.timersByFingerprint = new ConcurrentHashMap<>();
+        this.metrics = new CopyOnWriteArrayList<>();
+        this.metrics.add( other );
+    }
+
+    /** Returns the timer for given SQL. Normalizes the SQL only the first time it is seen, and never once full. */
+    @Nonnull
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public Timer timerFor( @Nonnull String sql ) {
+        Timer timer = timersBySql.get( sql );
+
+        if ( timer == null ) {
+            /* Racy on purpose - overshooting the limit by a few entries is harmless */
+            if ( timersBySql.size() >= maxSqlStrings ) {
+                return other;
+            }
+
+            timer = timerForFingerprint( SqlFingerprints.normalize( sql ) );
+            timersBySql.putIfAbsent( sql, timer );
+        }
+
+        return timer;
+    }
+
+    /** Returns all metrics created so far, as registered in the registry */
+    @Nonnull
+    public List<Metric> getMetrics() {
+        return new ArrayList<>( metrics );
+    }
+
+    @Nonnull
+    private synchronized Timer timerForFingerprint( @Nonnull final String fingerprint ) {
+        Timer timer = timersByFingerprint.get( fingerprint );
+
+        if ( timer == null ) {
+            if ( timersByFingerprint.size() >= maxFingerprints ) {
+                return other;
+            }
+
+            String metricName = name( baseMetricName, SqlFingerprints.identifier( fingerprint ) );
+            Gauge<?> sql = factory.register( name( metricName, "sql" ), new Gauge<String>() {
+                @Override
+                public String getValue() {
+                    return fingerprint;
+                }
+            }, Gauge.class );
+
+            /* Identifiers are hashes, so another fingerprint - of this statement or of one sharing its name - may have
+             * registered the name first. The collided fingerprint is remembered and counts towards the limit.
+             */
+            if ( fingerprint.equals( sql.getValue() ) ) {
+                timer = factory.timer( metricName );
+                metrics.add( timer );
+                metrics.add( sql );
+            }
+            else {
+                LOGGER.debug( "Fingerprint {} collides with {}, timed as {}.other", fingerprint, sql.getValue(),
+                              baseMetricName );
+                timer = other;
+            }
+
+            timersByFingerprint.put( fingerprint, timer );
+        }
+
+        return timer;
+    }
+}
@@ -0,0 +1,131 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.ibatis.mapping.MappedStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds an object a statement, parameter or result set handler works with, such as its {@link MappedStatement} or
+ * the executor that created it. None of these interfaces expose them, but all of MyBatis implementations keep them
+ * in a field - either directly or in a delegate (<code>RoutingStatementHandler</code>) or behind a proxy of another
+ * plugin. The first field of the requested type is read.
+ * <p/>
+ * The fields to read are looked up once per class, so after warm-up this costs a couple of reflective reads.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class HandlerFieldLocator<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger( HandlerFieldLocator.class );
+    private static final int MAX_DEPTH = 8;
+    private static final Access NO_ACCESS = new Access( null, null );
+
+    private final Class<T> type;
+    private final ConcurrentMap<Class<?>, Access> accessByClass;
+
+    public HandlerFieldLocator( @Nonnull Class<T> type ) {
+        this.type = type;
+        this.accessByClass = new ConcurrentHashMap<>();
+    }
+
+    /** Returns the value of the field or null if it could not be found */
+    @Nullable
+    public T locate( @Nullable Object handler ) {
+        Object current = handler;
+
+        for ( int depth = 0; current != null && depth < MAX_DEPTH; depth++ ) {
+            if ( Proxy.isProxyClass( current.getClass() ) ) {
+                current = Proxy.getInvocationHandler( current );
+            }
+
+            Access access = accessFor( current.getClass() );
+
+            try {
+                if ( access.value != null ) {
+                    return type.cast( access.value.get( current ) );
+                }
+                if ( access.delegate == null ) {
+                    return null;
+                }
+
+                current = access.delegate.get( current );
+            }
+            catch ( IllegalAccessException e ) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    @Nonnull
+    private Access accessFor( @Nonnull Class<?> type ) {
+        Access access = accessByClass.get( type );
+
+        if ( access == null ) {
+            access = findAccess( type );
+            accessByClass.putIfAbsent( type, access );
+        }
+
+        return access;
+    }
+
+    @Nonnull
+    private Access findAccess( @Nonnull Class<?> handlerType ) {
+        Field delegate = null;
+
+        for ( Class<?> current = handlerType;
+              current != null && current != Object.class;
+              current = current.getSuperclass() ) {
+            for ( Field field : current.getDeclaredFields() ) {
+                if ( type.isAssignableFrom( field.getType() ) ) {
+                    return accessible( field ) ? new Access( field, null ) : NO_ACCESS;
+                }
+                if ( delegate == null && isDelegate( field ) ) {
+                    delegate = field;
+                }
+            }
+        }
+
+        if ( delegate != null && accessible( delegate ) ) {
+            return new Access( null, delegate );
+        }
+
+        LOGGER.debug( "Unable to find {} in instances of {}", type.getSimpleName(), handlerType.getName() );
+        return NO_ACCESS;
+    }
+
+    private static boolean isDelegate( @Nonnull Field field ) {
+        return "delegate".equals( field.getName() ) || "target".equals( field.getName() );
+    }
+
+    private static boolean accessible( @Nonnull Field field ) {
+        try {
+            field.setAccessible( true );
+            return true;
+        }
+        catch ( SecurityException e ) {
+            LOGGER.debug( "Unable to access field {}", field, e );
+            return false;
+        }
+    }
+
+    /** Either the field holding the value or the field holding the object to look into next */
+    private static final class Access {
+        private final Field value;
+        private final Field delegate;
+
+        private Access( @Nullable Field value, @Nullable Field delegate ) {
+            this.value = value;
+            this.delegate = delegate;
+        }
+    }
+}
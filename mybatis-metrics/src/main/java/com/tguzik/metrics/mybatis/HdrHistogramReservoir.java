@@ -0,0 +1,76 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * {@link Reservoir} backed by HdrHistogram's {@link Recorder}. Unlike Metrics' default reservoir, recording a value
+ * does not take any locks nor allocates, and high percentiles are accurate to the configured number of significant
+ * digits instead of being estimated from a sample.
+ * <p/>
+ * Each call to {@link #getSnapshot()} returns values recorded <i>since the previous call</i>, which matches the way
+ * scheduled reporters work. The flip side is that if more than one reporter reads the same metric, each of them will
+ * see only part of the interval.
+ * <p/>
+ * Memory used by the reservoir is fixed and depends only on the trackable range and precision. Values outside of
+ * the range are clamped to the nearest trackable value, so nothing is lost from the counts.
+ * <p/>
+ * Requires <code>org.hdrhistogram:HdrHistogram</code> on the classpath.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+public final class HdrHistogramReservoir implements Reservoir {
+    private final long lowestDiscernibleValue;
+    private final long highestTrackableValue;
+    private final Recorder recorder;
+
+    /** Guarded by this. Recycled between snapshots so that we don't allocate a new histogram each time. */
+    private Histogram intervalHistogram;
+
+    /** Guarded by this. */
+    private long lastSnapshotCount;
+
+    /**
+     * @param lowestDiscernibleValue
+     *         smallest value that can be told apart from zero; values below it end up in the same bucket
+     * @param highestTrackableValue
+     *         largest value that can be recorded; larger values are clamped
+     * @param numberOfSignificantValueDigits
+     *         precision of the recorded values, between 0 and 5
+     */
+    public HdrHistogramReservoir( long lowestDiscernibleValue,
+                                  long highestTrackableValue,
+                                  int numberOfSignificantValueDigits ) {
+        this.lowestDiscernibleValue = lowestDiscernibleValue;
+        this.highestTrackableValue = highestTrackableValue;
+        this.recorder = new Recorder( lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits );
+    }
+
+    /** Returns the number of values in the most recent snapshot. */
+    @Override
+    public synchronized int size() {
+        return (int) Math.min( lastSnapshotCount, Integer.MAX_VALUE );
+    }
+
+    @Override
+    public void update( long value ) {
+        recorder.recordValue( Math.max( 0L, Math.min( value, highestTrackableValue ) ) );
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        this.intervalHistogram = recorder.getIntervalHistogram( intervalHistogram );
+        this.lastSnapshotCount = intervalHistogram.getTotalCount();
+        return new HdrHistogramSnapshot( intervalHistogram.copy() );
+    }
+
+    @Override
+    public String toString() {
+        return "HdrHistogramReservoir{range=[" + lowestDiscernibleValue + ", " + highestTrackableValue + "]}";
+    }
+}
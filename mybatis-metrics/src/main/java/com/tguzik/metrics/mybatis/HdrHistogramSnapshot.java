@@ -0,0 +1,123 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+/**
+ * {@link Snapshot} that reads its statistics straight from an HdrHistogram instead of a sorted array of samples.
+ * <p/>
+ * Metrics 3.0 does not have an interface for snapshots, so this class extends the array-based implementation and
+ * overrides all of it. Since the histogram does not keep individual values, {@link #getValues()} returns one
+ * (highest equivalent) value for each distinct bucket that was recorded to.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@Immutable
+final class HdrHistogramSnapshot extends Snapshot {
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    /** Must not be modified once passed to the constructor. */
+    private final Histogram histogram;
+
+    public HdrHistogramSnapshot( @Nonnull Histogram histogram ) {
+        super( new long[ 0 ] );
+        this.histogram = histogram;
+    }
+
+    @Override
+    public double getValue( double quantile ) {
+        if ( quantile < 0.0 || quantile > 1.0 || Double.isNaN( quantile ) ) {
+            throw new IllegalArgumentException( quantile + " is not in [0..1]" );
+        }
+
+        return histogram.getValueAtPercentile( quantile * 100.0 );
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min( histogram.getTotalCount(), Integer.MAX_VALUE );
+    }
+
+    @Override
+    public double getMedian() {
+        return getValue( 0.5 );
+    }
+
+    @Override
+    public double get75thPercentile() {
+        return getValue( 0.75 );
+    }
+
+    @Override
+    public double get95thPercentile() {
+        return getValue( 0.95 );
+    }
+
+    @Override
+    public double get98thPercentile() {
+        return getValue( 0.98 );
+    }
+
+    @Override
+    public double get99thPercentile() {
+        return getValue( 0.99 );
+    }
+
+    @Override
+    public double get999thPercentile() {
+        return getValue( 0.999 );
+    }
+
+    @Override
+    public long[] getValues() {
+        long[] values = new long[ 16 ];
+        int size = 0;
+
+        for ( HistogramIterationValue value : histogram.recordedValues() ) {
+            if ( size == values.length ) {
+                values = Arrays.copyOf( values, size * 2 );
+            }
+            values[ size++ ] = histogram.highestEquivalentValue( value.getValueIteratedTo() );
+        }
+
+        return Arrays.copyOf( values, size );
+    }
+
+    @Override
+    public long getMax() {
+        return histogram.getTotalCount() == 0 ? 0 : histogram.getMaxValue();
+    }
+
+    @Override
+    public long getMin() {
+        return histogram.getTotalCount() == 0 ? 0 : histogram.getMinValue();
+    }
+
+    @Override
+    public double getMean() {
+        return histogram.getTotalCount() == 0 ? 0 : histogram.getMean();
+    }
+
+    @Override
+    public double getStdDev() {
+        return histogram.getTotalCount() == 0 ? 0 : histogram.getStdDeviation();
+    }
+
+    @Override
+    public void dump( OutputStream output ) {
+        try ( PrintWriter out = new PrintWriter( new OutputStreamWriter( output, UTF_8 ) ) ) {
+            for ( long value : getValues() ) {
+                out.printf( "%d%n", value );
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes instrumentation of statements that were not invoked for a while, together with their metrics. Keeps the
+ * registry from growing without bounds when statements are generated, e.g. by a dynamic mapper.
+ * <p/>
+ * A statement is idle when the activity of its instrumentation did not change for the whole time to live, and none of
+ * its invocations is in progress - a single invocation may well take longer than that. This is checked periodically
+ * on a background thread, so invocations pay only for counting the ones in progress. Evicted statements get new
+ * metrics the next time they are invoked, starting from zero. Invocations that looked up the instrumentation just
+ * before it was evicted look it up again, see {@link BasicInstrumentation#enter()}.
+ * <p/>
+ * Instrumentation is removed from the cache and its metrics from the registry while holding the lock of the cache.
+ * New instrumentation has to be created under the same lock - otherwise it could pick up metrics that are just
+ * about to be unregistered, and update them from then on without anyone seeing it.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class IdleStatementEvictor implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger( IdleStatementEvictor.class );
+    private static final long MIN_SWEEP_PERIOD_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+
+    /**
+     * Notified about statements that were evicted, after their metrics are unregistered. These are the keys of the
+     * cache, mostly instances of {@link org.apache.ibatis.mapping.MappedStatement}.
+     */
+    interface Listener {
+        void evicted( @Nonnull List<Object> statements );
+    }
+
+    private final MetricRegistry registry;
+    private final InstrumentationCache cache;
+    private final long ttlNanos;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+
+    /** Last seen activity of each cached instrumentation. Guarded by this. */
+    private Map<BasicInstrumentation, Activity> activities;
+
+    public IdleStatementEvictor( @Nonnull MetricRegistry registry,
+                                 @Nonnull InstrumentationCache cache,
+                                 long ttlNanos,
+                                 @Nonnull Listener listener ) {
+        this.registry = registry;
+        this.cache = cache;
+        this.ttlNanos = ttlNanos;
+        this.listener = listener;
+        this.activities = new IdentityHashMap<>();
+        this.executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            @Override
+            public Thread newThread( @Nonnull Runnable runnable ) {
+                Thread thread = new Thread( runnable, "mybatis-metrics-evictor" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    /** Starts sweeping periodically, a few times per time to live */
+    public void start() {
+        long period = Math.max( ttlNanos / 4, MIN_SWEEP_PERIOD_NANOS );
+
+        executor.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep( System.nanoTime() );
+                }
+                catch ( RuntimeException e ) {
+                    /* Exceptions would cancel further sweeps */
+                    LOGGER.warn( "Failed to evict idle statements", e );
+                }
+            }
+        }, period, period, TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * Evicts statements that stayed idle for the time to live, as of given time.
+     *
+     * @return statements that were evicted
+     */
+    @Nonnull
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    public synchronized List<Object> sweep( long nowNanos ) {
+        Map<BasicInstrumentation, Activity> current = new IdentityHashMap<>();
+        List<Map.Entry<Object, BasicInstrumentation>> idle = new ArrayList<>();
+
+        for ( Map.Entry<Object, BasicInstrumentation> entry : cache.entries() ) {
+            BasicInstrumentation instrumentation = entry.getValue();
+            long count = instrumentation.getActivity();
+            Activity previous = activities.get( instrumentation );
+
+            if ( previous == null || previous.count != count ) {
+                current.put( instrumentation, new Activity( count, nowNanos ) );
+            }
+            else {
+                current.put( instrumentation, previous );
+
+                if ( nowNanos - previous.sinceNanos >= ttlNanos ) {
+                    idle.add( entry );
+                }
+            }
+        }
+
+        /* Forgets instrumentation that is no longer cached, e.g. after the settings changed */
+        activities = current;
+
+        if ( idle.isEmpty() ) {
+            return Collections.emptyList();
+        }
+
+        List<Object> evicted = evict( idle );
+        if ( !evicted.isEmpty() ) {
+            LOGGER.debug( "Evicted {} idle statement(s)", evicted.size() );
+            listener.evicted( evicted );
+        }
+
+        return evicted;
+    }
+
+    @Nonnull
+    private List<Object> evict( @Nonnull List<Map.Entry<Object, BasicInstrumentation>> idle ) {
+        List<Object> evicted = new ArrayList<>();
+
+        synchronized ( cache ) {
+            List<Metric> unused = new ArrayList<>();
+
+            for ( Map.Entry<Object, BasicInstrumentation> entry : idle ) {
+                /* Instrumentation with invocations in progress stays, whether they completed or not */
+                if ( entry.getValue().evict() && cache.remove( entry.getKey(), entry.getValue() ) ) {
+                    evicted.add( entry.getKey() );
+                    unused.addAll( entry.getValue().getMetrics() );
+                    activities.remove( entry.getValue() );
+                }
+            }
+
+            /* Statements with colliding names share metrics with the evicted ones */
+            for ( BasicInstrumentation remaining : cache.values() ) {
+                unused.removeAll( remaining.getMetrics() );
+            }
+
+            MetricRegistries.removeAll( registry, unused );
+        }
+
+        return evicted;
+    }
+
+    /** Stops sweeping. Metrics of idle statements stay registered. */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static final class Activity {
+        final long count;
+        final long sinceNanos;
+
+        Activity( long count, long sinceNanos ) {
+            this.count = count;
+            this.sinceNanos = sinceNanos;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.apache.ibatis.mapping.MappedStatement;
+
+/**
+ * Holds one instance of {@link BasicInstrumentation} per {@link MappedStatement}, and per other instrumented thing
+ * that counts as a statement, such as an overload of a mapper method.
+ * <p/>
+ * MappedStatement does not override <code>equals()</code> nor <code>hashCode()</code>, so the statements are
+ * effectively compared by identity. This is what we want - MyBatis creates exactly one instance per statement
+ * per {@link org.apache.ibatis.session.Configuration} and it lives as long as the configuration does. Other keys
+ * should be compared by identity as well. Reads are
+ * lock-free, writes happen only the first time a statement is seen and when an idle statement is evicted. Both of
+ * these synchronize on the cache instance, see {@link IdleStatementEvictor}.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class InstrumentationCache {
+    private final ConcurrentMap<Object, BasicInstrumentation> instrumentations;
+
+    public InstrumentationCache() {
+        this.instrumentations = new ConcurrentHashMap<>();
+    }
+
+    /** Returns cached instrumentation or null if the statement was not seen yet */
+    @Nullable
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public BasicInstrumentation get( @Nonnull Object statement ) {
+        return instrumentations.get( statement );
+    }
+
+    /**
+     * Caches the instrumentation, unless some other thread got there first. Returns the instance that ended up in
+     * the cache.
+     */
+    @Nonnull
+    public BasicInstrumentation putIfAbsent( @Nonnull Object statement,
+                                             @Nonnull BasicInstrumentation instrumentation ) {
+        BasicInstrumentation existing = instrumentations.putIfAbsent( statement, instrumentation );
+        return existing != null ? existing : instrumentation;
+    }
+
+    /** Removes the instrumentation, but only if it is still cached for given statement */
+    public boolean remove( @Nonnull Object statement, @Nonnull BasicInstrumentation instrumentation ) {
+        return instrumentations.remove( statement, instrumentation );
+    }
+
+    /** Live view of cached instrumentation. Iteration is weakly consistent and never throws. */
+    @Nonnull
+    public Set<Map.Entry<Object, BasicInstrumentation>> entries() {
+        return instrumentations.entrySet();
+    }
+
+    /** Live view of cached instrumentation, same as {@link #entries()} */
+    @Nonnull
+    public Collection<BasicInstrumentation> values() {
+        return instrumentations.values();
+    }
+
+    public int size() {
+        return instrumentations.size();
+    }
+
+    public void clear() {
+        instrumentations.clear();
+    }
+}
@@ -0,0 +1,43 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.apache.ibatis.mapping.MappedStatement;
+
+/**
+ * Instrumentation cached by {@link InstrumentingInterceptor}, for code recording invocations the interceptor does not
+ * see on its own. Instrumentation obtained here counts towards {@link InstrumentationSettings#getMaxStatements()} and
+ * is evicted when idle, same as the instrumentation of statements, so it should be looked up for every invocation
+ * instead of being kept.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+interface InstrumentationLookup {
+    /** Returns the base metric name of given statement, the same one its invocations get */
+    @Nonnull
+    String deriveMetricName( @Nonnull MappedStatement statement );
+
+    /**
+     * Returns the instrumentation of given statement, the same one its invocations get. Statements over the limit
+     * share one instrumentation.
+     */
+    @Nonnull
+    BasicInstrumentation getInstrumentation( @Nonnull MappedStatement statement );
+
+    /**
+     * Returns the instrumentation cached for given key, creating it under given name the first time. Keys should
+     * not override <code>equals()</code>, same as statements.
+     *
+     * @param statement
+     *         statement the key belongs to, if any
+     * @return null if the limit of statements was reached
+     */
+    @Nullable
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    BasicInstrumentation getInstrumentation( @Nonnull Object key,
+                                             @Nonnull String baseMetricName,
+                                             @Nullable MappedStatement statement );
+}
@@ -0,0 +1,21 @@
+package com.tguzik.metrics.mybatis;
+
+/**
+ * Determines which metrics are updated on each invocation of a mapped statement.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public enum InstrumentationProfile {
+    /**
+     * Default. Updates separate counters and meters for invocations and failures, plus the timer. This means
+     * three independent atomic updates for each invocation.
+     */
+    FULL,
+
+    /**
+     * Updates only the timer and, when the invocation fails, the failure meter. The invocation counter and meter,
+     * as well as the failure counter, are still registered under their usual names, but their values are read from
+     * the timer and the failure meter. Roughly halves the number of contended atomic updates per invocation.
+     */
+    LEAN
+}
@@ -0,0 +1,1054 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ibatis.io.Resources;
+
+/**
+ * Configuration of {@link InstrumentingInterceptor}. Instances can be built either in code, using
+ * {@link #builder()}, or from MyBatis plugin properties - see the <code>*_PROPERTY</code> constants for the keys
+ * that are recognized.
+ * <p/>
+ * Settings are applied when instrumentation for a statement is created, which happens once per statement.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@Immutable
+public final class InstrumentationSettings {
+    /** One of {@link InstrumentationProfile} names, case insensitive. */
+    public static final String PROFILE_PROPERTY = "metrics.instrumentation.profile";
+
+    /** One of {@link LatencyReservoir} names, case insensitive. */
+    public static final String LATENCY_RESERVOIR_PROPERTY = "metrics.latency.reservoir";
+
+    /** Highest latency, in milliseconds, tracked by {@link LatencyReservoir#HDR_HISTOGRAM}. */
+    public static final String HDR_MAX_MILLIS_PROPERTY = "metrics.latency.hdr.maxMillis";
+
+    /** Number of significant digits, 0 to 5, kept by {@link LatencyReservoir#HDR_HISTOGRAM}. */
+    public static final String HDR_SIGNIFICANT_DIGITS_PROPERTY = "metrics.latency.hdr.significantDigits";
+
+    /**
+     * Base naming strategy: one of {@link MetricNameStrategies} constants or a fully qualified name of a class
+     * implementing {@link MetricNameStrategy}.
+     */
+    public static final String NAMING_STRATEGY_PROPERTY = "metrics.naming.strategy";
+
+    /** Prefix put in front of every metric name. */
+    public static final String NAMING_PREFIX_PROPERTY = "metrics.naming.prefix";
+
+    /** When <code>true</code>, database id of the statement is appended to its metric name. */
+    public static final String NAMING_DATABASE_ID_SUFFIX_PROPERTY = "metrics.naming.databaseIdSuffix";
+
+    /** Times one in this many invocations, on average. Invocations and failures are always counted exactly. */
+    public static final String SAMPLING_INTERVAL_PROPERTY = "metrics.sampling.interval";
+
+    /**
+     * Prefix of properties that override the sampling interval for a single statement. Full property name is the
+     * prefix followed by the statement id, e.g. <code>metrics.sampling.interval.com.example.Mapper.select</code>.
+     */
+    public static final String SAMPLING_INTERVAL_OVERRIDE_PREFIX = SAMPLING_INTERVAL_PROPERTY + ".";
+
+    /**
+     * Invocations that take at least this many milliseconds are captured in the {@link SlowStatementLog}. Slow
+     * statements are not captured unless this property, or a per-statement override, is set.
+     */
+    public static final String SLOW_THRESHOLD_MILLIS_PROPERTY = "metrics.slow.thresholdMillis";
+
+    /** Prefix of properties that override the slow statement threshold for a single statement. */
+    public static final String SLOW_THRESHOLD_MILLIS_OVERRIDE_PREFIX = SLOW_THRESHOLD_MILLIS_PROPERTY + ".";
+
+    /** Number of most recent slow statements kept by {@link SlowStatementLog}. */
+    public static final String SLOW_CAPACITY_PROPERTY = "metrics.slow.capacity";
+
+    /** Longest rendering of the parameters of a slow statement, in characters. */
+    public static final String SLOW_PARAMETER_MAX_LENGTH_PROPERTY = "metrics.slow.parameterMaxLength";
+
+    /**
+     * Comma separated names of parameters whose values are never rendered, e.g. <code>password,ssn</code>. Use
+     * <code>*</code> to hide values of all parameters.
+     */
+    public static final String SLOW_REDACTED_PARAMETERS_PROPERTY = "metrics.slow.redactedParameters";
+
+    /** Value of {@link #SLOW_REDACTED_PARAMETERS_PROPERTY} that hides all parameters */
+    public static final String ALL_PARAMETERS = "*";
+
+    /**
+     * When <code>true</code>, the number of rows returned by queries and affected by updates is recorded in a
+     * histogram per statement. Disabled by default, because the default reservoir allocates on every update.
+     */
+    public static final String ROW_HISTOGRAMS_PROPERTY = "metrics.rows.histograms";
+
+    /**
+     * When <code>true</code>, statement, parameter and result set handlers are intercepted as well, and time spent
+     * preparing the statement, binding parameters, executing and mapping results is recorded separately.
+     */
+    public static final String PHASE_TIMERS_PROPERTY = "metrics.phases.enabled";
+
+    /**
+     * When <code>true</code>, caches of mapped statements are decorated with {@link InstrumentedCache} and queries
+     * answered from a cache are timed apart from those that went to the database.
+     */
+    public static final String CACHE_METRICS_PROPERTY = "metrics.cache.enabled";
+
+    /**
+     * When <code>true</code>, the number of invocations of each statement in progress is tracked, together with the
+     * peak since the peak was last read.
+     */
+    public static final String IN_FLIGHT_PROPERTY = "metrics.inFlight.enabled";
+
+    /**
+     * When <code>true</code>, invocations are queued and folded into the metrics by a background thread, so that
+     * threads calling mappers do not contend on the metrics. Rows, phases, cache outcomes and slow statements are
+     * still recorded on the calling thread.
+     */
+    public static final String ASYNC_PROPERTY = "metrics.async.enabled";
+
+    /** Number of invocations that can be queued when recording asynchronously. Further invocations are dropped. */
+    public static final String ASYNC_CAPACITY_PROPERTY = "metrics.async.capacity";
+
+    /**
+     * Times the execution of each statement per fingerprint of its SQL, i.e. the SQL with literals and lists of
+     * parameters collapsed. Disabled by default.
+     */
+    public static final String FINGERPRINTS_PROPERTY = "metrics.fingerprints.enabled";
+
+    /** Highest number of fingerprints timed separately per statement. The rest share one timer. */
+    public static final String FINGERPRINTS_MAX_PROPERTY = "metrics.fingerprints.max";
+
+    /**
+     * Counts and times failures per {@link FailureCategory category}, e.g. deadlocks apart from constraint violations.
+     * Disabled by default.
+     */
+    public static final String FAILURE_CATEGORIES_PROPERTY = "metrics.failures.categories.enabled";
+
+    /**
+     * Records time to the first row and the rows handled by selects run with a
+     * {@link org.apache.ibatis.session.ResultHandler}, i.e. streamed. Disabled by default.
+     */
+    public static final String RESULT_HANDLER_METRICS_PROPERTY = "metrics.resultHandler.enabled";
+
+    /** Recommends a fetch size for each select from the number of rows it returns, see {@link FetchSizeAdvisor} */
+    public static final String FETCH_SIZE_ADVISOR_PROPERTY = "metrics.fetchSize.advisor.enabled";
+
+    /**
+     * Applies the recommended fetch size to selects that do not set one. Implies
+     * {@link #FETCH_SIZE_ADVISOR_PROPERTY}. Disabled by default.
+     */
+    public static final String FETCH_SIZE_APPLY_PROPERTY = "metrics.fetchSize.apply";
+
+    /**
+     * Highest fetch size recommended. Drivers buffer this many rows per open result set, so it caps the memory a
+     * recommendation can cost.
+     */
+    public static final String FETCH_SIZE_MAX_PROPERTY = "metrics.fetchSize.max";
+
+    /**
+     * Sessions in which one select runs more than this many times are counted as N+1 sessions, together with the
+     * statement that ran it. Disabled when not set.
+     */
+    public static final String N_PLUS_ONE_THRESHOLD_PROPERTY = "metrics.nPlusOne.threshold";
+
+    /**
+     * Highest number of statements instrumented separately. Statements seen after that share the metrics of
+     * {@link InstrumentingInterceptor#OVERFLOW_METRIC_NAME}. Unlimited when not set.
+     */
+    public static final String MAX_STATEMENTS_PROPERTY = "metrics.statements.max";
+
+    /**
+     * Statements not invoked for this many seconds have their metrics removed from the registry. They get new ones
+     * when they are invoked again. Disabled when not set.
+     */
+    public static final String STATEMENT_IDLE_TTL_SECONDS_PROPERTY = "metrics.statements.idleTtlSeconds";
+
+    /**
+     * Number of synthetic invocations run through a throwaway interceptor when statements are preregistered, so that
+     * the JIT compiles the instrumentation before real traffic arrives. Disabled when zero, which is the default.
+     */
+    public static final String WARM_UP_ITERATIONS_PROPERTY = "metrics.warmUp.iterations";
+
+    private static final InstrumentationSettings DEFAULTS = builder().build();
+
+    private final InstrumentationProfile profile;
+    private final LatencyReservoir latencyReservoir;
+    private final long hdrMaxMillis;
+    private final int hdrSignificantDigits;
+    private final MetricNameStrategy baseNameStrategy;
+    private final String namePrefix;
+    private final boolean databaseIdSuffix;
+    private final int samplingInterval;
+    private final Map<String, Integer> samplingIntervalOverrides;
+    private final long slowThresholdNanos;
+    private final Map<String, Long> slowThresholdNanosOverrides;
+    private final int slowStatementCapacity;
+    private final int slowParameterMaxLength;
+    private final Set<String> redactedParameters;
+    private final boolean rowHistograms;
+    private final boolean phaseTimers;
+    private final boolean cacheMetrics;
+    private final boolean inFlight;
+    private final boolean fingerprints;
+    private final int maxFingerprints;
+    private final boolean failureCategories;
+    private final boolean resultHandlerMetrics;
+    private final boolean fetchSizeAdvisor;
+    private final boolean applyFetchSize;
+    private final int maxFetchSize;
+    private final int nPlusOneThreshold;
+    private final int maxStatements;
+    private final long statementIdleTtlNanos;
+    private final int warmUpIterations;
+    private final boolean async;
+    private final int asyncCapacity;
+
+    /** Base strategy with prefix and suffix applied. */
+    private final MetricNameStrategy nameStrategy;
+
+    private InstrumentationSettings( @Nonnull Builder builder ) {
+        this.profile = builder.profile;
+        this.latencyReservoir = builder.latencyReservoir;
+        this.hdrMaxMillis = builder.hdrMaxMillis;
+        this.hdrSignificantDigits = builder.hdrSignificantDigits;
+        this.baseNameStrategy = builder.baseNameStrategy;
+        this.namePrefix = builder.namePrefix;
+        this.databaseIdSuffix = builder.databaseIdSuffix;
+        this.samplingInterval = builder.samplingInterval;
+        this.samplingIntervalOverrides = Collections.unmodifiableMap(
+                new HashMap<>( builder.samplingIntervalOverrides ) );
+        this.slowThresholdNanos = builder.slowThresholdNanos;
+        this.slowThresholdNanosOverrides = Collections.unmodifiableMap(
+                new HashMap<>( builder.slowThresholdNanosOverrides ) );
+        this.slowStatementCapacity = builder.slowStatementCapacity;
+        this.slowParameterMaxLength = builder.slowParameterMaxLength;
+        this.redactedParameters = Collections.unmodifiableSet( new HashSet<>( builder.redactedParameters ) );
+        this.rowHistograms = builder.rowHistograms;
+        this.phaseTimers = builder.phaseTimers;
+        this.cacheMetrics = builder.cacheMetrics;
+        this.inFlight = builder.inFlight;
+        this.fingerprints = builder.fingerprints;
+        this.maxFingerprints = builder.maxFingerprints;
+        this.failureCategories = builder.failureCategories;
+        this.resultHandlerMetrics = builder.resultHandlerMetrics;
+        this.fetchSizeAdvisor = builder.fetchSizeAdvisor || builder.applyFetchSize;
+        this.applyFetchSize = builder.applyFetchSize;
+        this.maxFetchSize = builder.maxFetchSize;
+        this.nPlusOneThreshold = builder.nPlusOneThreshold;
+        this.maxStatements = builder.maxStatements;
+        this.statementIdleTtlNanos = builder.statementIdleTtlNanos;
+        this.warmUpIterations = builder.warmUpIterations;
+        this.async = builder.async;
+        this.asyncCapacity = builder.asyncCapacity;
+
+        MetricNameStrategy strategy = baseNameStrategy;
+        if ( databaseIdSuffix ) {
+            strategy = MetricNameStrategies.withDatabaseIdSuffix( strategy );
+        }
+        if ( namePrefix != null ) {
+            strategy = MetricNameStrategies.prefixed( namePrefix, strategy );
+        }
+        this.nameStrategy = strategy;
+    }
+
+    @Nonnull
+    public static InstrumentationSettings defaults() {
+        return DEFAULTS;
+    }
+
+    @Nonnull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** Creates a builder that starts off with values taken from provided settings */
+    @Nonnull
+    public static Builder builder( @Nonnull InstrumentationSettings settings ) {
+        return new Builder( settings );
+    }
+
+    @Nonnull
+    public InstrumentationProfile getProfile() {
+        return profile;
+    }
+
+    @Nonnull
+    public LatencyReservoir getLatencyReservoir() {
+        return latencyReservoir;
+    }
+
+    public long getHdrMaxMillis() {
+        return hdrMaxMillis;
+    }
+
+    public int getHdrSignificantDigits() {
+        return hdrSignificantDigits;
+    }
+
+    /** Naming strategy with the configured prefix and database id suffix applied */
+    @Nonnull
+    public MetricNameStrategy getNameStrategy() {
+        return nameStrategy;
+    }
+
+    /** Returns the sampling interval for given statement id. 1 means that every invocation is timed. */
+    public int getSamplingInterval( @Nullable String statementId ) {
+        Integer override = statementId == null ? null : samplingIntervalOverrides.get( statementId );
+        return override != null ? override : samplingInterval;
+    }
+
+    /**
+     * Returns the threshold, in nanoseconds, above which invocations of given statement are considered slow.
+     * {@link Long#MAX_VALUE} means that slow statements are not captured.
+     */
+    public long getSlowThresholdNanos( @Nullable String statementId ) {
+        Long override = statementId == null ? null : slowThresholdNanosOverrides.get( statementId );
+        return override != null ? override : slowThresholdNanos;
+    }
+
+    public int getSlowStatementCapacity() {
+        return slowStatementCapacity;
+    }
+
+    public int getSlowParameterMaxLength() {
+        return slowParameterMaxLength;
+    }
+
+    /** Names of parameters whose values are never rendered. May contain {@link #ALL_PARAMETERS}. */
+    @Nonnull
+    public Set<String> getRedactedParameters() {
+        return redactedParameters;
+    }
+
+    public boolean isRowHistograms() {
+        return rowHistograms;
+    }
+
+    public boolean isPhaseTimers() {
+        return phaseTimers;
+    }
+
+    public boolean isCacheMetrics() {
+        return cacheMetrics;
+    }
+
+    public boolean isInFlight() {
+        return inFlight;
+    }
+
+    public boolean isFingerprints() {
+        return fingerprints;
+    }
+
+    public int getMaxFingerprints() {
+        return maxFingerprints;
+    }
+
+    public boolean isFailureCategories() {
+        return failureCategories;
+    }
+
+    public boolean isResultHandlerMetrics() {
+        return resultHandlerMetrics;
+    }
+
+    public boolean isFetchSizeAdvisor() {
+        return fetchSizeAdvisor;
+    }
+
+    public boolean isApplyFetchSize() {
+        return applyFetchSize;
+    }
+
+    public int getMaxFetchSize() {
+        return maxFetchSize;
+    }
+
+    /** {@link Integer#MAX_VALUE} means that N+1 sessions are not detected */
+    public int getNPlusOneThreshold() {
+        return nPlusOneThreshold;
+    }
+
+    public boolean isNPlusOneDetection() {
+        return nPlusOneThreshold != Integer.MAX_VALUE;
+    }
+
+    public int getMaxStatements() {
+        return maxStatements;
+    }
+
+    /** {@link Long#MAX_VALUE} means that idle statements are never evicted */
+    public long getStatementIdleTtlNanos() {
+        return statementIdleTtlNanos;
+    }
+
+    public int getWarmUpIterations() {
+        return warmUpIterations;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public int getAsyncCapacity() {
+        return asyncCapacity;
+    }
+
+    @Override
+    public String toString() {
+        return "InstrumentationSettings{profile=" + profile + ", latencyReservoir=" + latencyReservoir +
+               ", hdrMaxMillis=" + hdrMaxMillis + ", hdrSignificantDigits=" + hdrSignificantDigits +
+               ", nameStrategy=" + nameStrategy + ", samplingInterval=" + samplingInterval +
+               ", samplingIntervalOverrides=" + samplingIntervalOverrides +
+               ", slowThresholdNanos=" + slowThresholdNanos +
+               ", slowThresholdNanosOverrides=" + slowThresholdNanosOverrides +
+               ", slowStatementCapacity=" + slowStatementCapacity +
+               ", slowParameterMaxLength=" + slowParameterMaxLength +
+               ", redactedParameters=" + redactedParameters + ", rowHistograms=" + rowHistograms +
+               ", phaseTimers=" + phaseTimers + ", cacheMetrics=" + cacheMetrics +
+               ", inFlight=" + inFlight + ", fingerprints=" + fingerprints + ", maxFingerprints=" + maxFingerprints +
+               ", failureCategories=" + failureCategories + ", resultHandlerMetrics=" + resultHandlerMetrics +
+               ", fetchSizeAdvisor=" + fetchSizeAdvisor + ", applyFetchSize=" + applyFetchSize +
+               ", maxFetchSize=" + maxFetchSize + ", nPlusOneThreshold=" + nPlusOneThreshold +
+               ", maxStatements=" + maxStatements +
+               ", statementIdleTtlNanos=" + statementIdleTtlNanos + ", warmUpIterations=" + warmUpIterations +
+               ", async=" + async +
+               ", asyncCapacity=" + asyncCapacity + "}";
+    }
+
+    @NotThreadSafe
+    public static final class Builder {
+        private InstrumentationProfile profile;
+        private LatencyReservoir latencyReservoir;
+        private long hdrMaxMillis;
+        private int hdrSignificantDigits;
+        private MetricNameStrategy baseNameStrategy;
+        private String namePrefix;
+        private boolean databaseIdSuffix;
+        private int samplingInterval;
+        private final Map<String, Integer> samplingIntervalOverrides;
+        private long slowThresholdNanos;
+        private final Map<String, Long> slowThresholdNanosOverrides;
+        private int slowStatementCapacity;
+        private int slowParameterMaxLength;
+        private final Set<String> redactedParameters;
+        private boolean rowHistograms;
+        private boolean phaseTimers;
+        private boolean cacheMetrics;
+        private boolean inFlight;
+        private boolean fingerprints;
+        private int maxFingerprints;
+        private boolean failureCategories;
+        private boolean resultHandlerMetrics;
+        private boolean fetchSizeAdvisor;
+        private boolean applyFetchSize;
+        private int maxFetchSize;
+        private int nPlusOneThreshold;
+        private int maxStatements;
+        private long statementIdleTtlNanos;
+        private int warmUpIterations;
+        private boolean async;
+        private int asyncCapacity;
+
+        private Builder() {
+            this.profile = InstrumentationProfile.FULL;
+            this.latencyReservoir = LatencyReservoir.DEFAULT;
+            this.hdrMaxMillis = 60000L;
+            this.hdrSignificantDigits = 2;
+            this.baseNameStrategy = MetricNameStrategies.statementId();
+            this.samplingInterval = 1;
+            this.samplingIntervalOverrides = new HashMap<>();
+            this.slowThresholdNanos = Long.MAX_VALUE;
+            this.slowThresholdNanosOverrides = new HashMap<>();
+            this.slowStatementCapacity = 100;
+            this.slowParameterMaxLength = 256;
+            this.redactedParameters = new HashSet<>();
+            this.asyncCapacity = 65536;
+            this.maxFingerprints = 50;
+            this.maxFetchSize = 1000;
+            this.nPlusOneThreshold = Integer.MAX_VALUE;
+            this.maxStatements = Integer.MAX_VALUE;
+            this.statementIdleTtlNanos = Long.MAX_VALUE;
+        }
+
+        private Builder( @Nonnull InstrumentationSettings settings ) {
+            this.profile = settings.profile;
+            this.latencyReservoir = settings.latencyReservoir;
+            this.hdrMaxMillis = settings.hdrMaxMillis;
+            this.hdrSignificantDigits = settings.hdrSignificantDigits;
+            this.baseNameStrategy = settings.baseNameStrategy;
+            this.namePrefix = settings.namePrefix;
+            this.databaseIdSuffix = settings.databaseIdSuffix;
+            this.samplingInterval = settings.samplingInterval;
+            this.samplingIntervalOverrides = new HashMap<>( settings.samplingIntervalOverrides );
+            this.slowThresholdNanos = settings.slowThresholdNanos;
+            this.slowThresholdNanosOverrides = new HashMap<>( settings.slowThresholdNanosOverrides );
+            this.slowStatementCapacity = settings.slowStatementCapacity;
+            this.slowParameterMaxLength = settings.slowParameterMaxLength;
+            this.redactedParameters = new HashSet<>( settings.redactedParameters );
+            this.rowHistograms = settings.rowHistograms;
+            this.phaseTimers = settings.phaseTimers;
+            this.cacheMetrics = settings.cacheMetrics;
+            this.inFlight = settings.inFlight;
+            this.fingerprints = settings.fingerprints;
+            this.maxFingerprints = settings.maxFingerprints;
+            this.failureCategories = settings.failureCategories;
+            this.resultHandlerMetrics = settings.resultHandlerMetrics;
+            this.fetchSizeAdvisor = settings.fetchSizeAdvisor;
+            this.applyFetchSize = settings.applyFetchSize;
+            this.maxFetchSize = settings.maxFetchSize;
+            this.nPlusOneThreshold = settings.nPlusOneThreshold;
+            this.maxStatements = settings.maxStatements;
+            this.statementIdleTtlNanos = settings.statementIdleTtlNanos;
+            this.warmUpIterations = settings.warmUpIterations;
+            this.async = settings.async;
+            this.asyncCapacity = settings.asyncCapacity;
+        }
+
+        @Nonnull
+        public Builder profile( @Nonnull InstrumentationProfile profile ) {
+            this.profile = profile;
+            return this;
+        }
+
+        @Nonnull
+        public Builder latencyReservoir( @Nonnull LatencyReservoir latencyReservoir ) {
+            this.latencyReservoir = latencyReservoir;
+            return this;
+        }
+
+        /** Highest latency tracked by HdrHistogram. Larger values are recorded as this value. */
+        @Nonnull
+        public Builder hdrMaxMillis( long hdrMaxMillis ) {
+            if ( hdrMaxMillis < 1 ) {
+                throw new IllegalArgumentException( "Highest trackable latency must be positive: " + hdrMaxMillis );
+            }
+
+            this.hdrMaxMillis = hdrMaxMillis;
+            return this;
+        }
+
+        /** Precision of HdrHistogram. Each additional digit multiplies the memory used by ten. */
+        @Nonnull
+        public Builder hdrSignificantDigits( int hdrSignificantDigits ) {
+            if ( hdrSignificantDigits < 0 || hdrSignificantDigits > 5 ) {
+                throw new IllegalArgumentException( "Significant digits must be between 0 and 5: " +
+                                                    hdrSignificantDigits );
+            }
+
+            this.hdrSignificantDigits = hdrSignificantDigits;
+            return this;
+        }
+
+        /** Strategy used to name the metrics. The prefix and database id suffix, if set, are applied on top of it. */
+        @Nonnull
+        public Builder nameStrategy( @Nonnull MetricNameStrategy nameStrategy ) {
+            this.baseNameStrategy = nameStrategy;
+            return this;
+        }
+
+        /** Prefix put in front of every metric name, or null for none */
+        @Nonnull
+        public Builder namePrefix( @Nullable String namePrefix ) {
+            this.namePrefix = trimToNull( namePrefix );
+            return this;
+        }
+
+        @Nonnull
+        public Builder databaseIdSuffix( boolean databaseIdSuffix ) {
+            this.databaseIdSuffix = databaseIdSuffix;
+            return this;
+        }
+
+        /** On average, one in this many invocations will be timed. 1 (default) times every invocation. */
+        @Nonnull
+        public Builder samplingInterval( int samplingInterval ) {
+            this.samplingInterval = validateSamplingInterval( samplingInterval );
+            return this;
+        }
+
+        /** Overrides the sampling interval for one statement */
+        @Nonnull
+        public Builder samplingInterval( @Nonnull String statementId, int samplingInterval ) {
+            this.samplingIntervalOverrides.put( statementId, validateSamplingInterval( samplingInterval ) );
+            return this;
+        }
+
+        /** Invocations that take at least this long are captured in the {@link SlowStatementLog} */
+        @Nonnull
+        public Builder slowThreshold( long threshold, @Nonnull TimeUnit unit ) {
+            this.slowThresholdNanos = validateSlowThreshold( threshold, unit );
+            return this;
+        }
+
+        /** Overrides the slow statement threshold for one statement */
+        @Nonnull
+        public Builder slowThreshold( @Nonnull String statementId, long threshold, @Nonnull TimeUnit unit ) {
+            this.slowThresholdNanosOverrides.put( statementId, validateSlowThreshold( threshold, unit ) );
+            return this;
+        }
+
+        /** Number of most recent slow statements that are kept */
+        @Nonnull
+        public Builder slowStatementCapacity( int slowStatementCapacity ) {
+            if ( slowStatementCapacity < 1 ) {
+                throw new IllegalArgumentException( "Slow statement capacity must be positive: " +
+                                                    slowStatementCapacity );
+            }
+
+            this.slowStatementCapacity = slowStatementCapacity;
+            return this;
+        }
+
+        /** Longest rendering of the parameters of a slow statement. Longer renderings are truncated. */
+        @Nonnull
+        public Builder slowParameterMaxLength( int slowParameterMaxLength ) {
+            if ( slowParameterMaxLength < 0 ) {
+                throw new IllegalArgumentException( "Maximum parameter length must not be negative: " +
+                                                    slowParameterMaxLength );
+            }
+
+            this.slowParameterMaxLength = slowParameterMaxLength;
+            return this;
+        }
+
+        /** Names of parameters whose values are never rendered. {@link #ALL_PARAMETERS} hides all of them. */
+        @Nonnull
+        public Builder redactedParameters( @Nonnull Collection<String> redactedParameters ) {
+            this.redactedParameters.clear();
+            for ( String name : redactedParameters ) {
+                String trimmed = trimToNull( name );
+                if ( trimmed != null ) {
+                    this.redactedParameters.add( trimmed );
+                }
+            }
+            return this;
+        }
+
+        /** Records the number of rows returned by queries and affected by updates */
+        @Nonnull
+        public Builder rowHistograms( boolean rowHistograms ) {
+            this.rowHistograms = rowHistograms;
+            return this;
+        }
+
+        /** Times preparation, parameter binding, execution and result mapping of each statement separately */
+        @Nonnull
+        public Builder phaseTimers( boolean phaseTimers ) {
+            this.phaseTimers = phaseTimers;
+            return this;
+        }
+
+        /** Records cache hits and misses, and times queries answered from a cache separately */
+        @Nonnull
+        public Builder cacheMetrics( boolean cacheMetrics ) {
+            this.cacheMetrics = cacheMetrics;
+            return this;
+        }
+
+        /** Tracks the number of invocations in progress and its peak */
+        @Nonnull
+        public Builder inFlight( boolean inFlight ) {
+            this.inFlight = inFlight;
+            return this;
+        }
+
+        /** Times executions per fingerprint of the SQL */
+        @Nonnull
+        public Builder fingerprints( boolean fingerprints ) {
+            this.fingerprints = fingerprints;
+            return this;
+        }
+
+        /** Highest number of fingerprints timed separately per statement */
+        @Nonnull
+        public Builder maxFingerprints( int maxFingerprints ) {
+            if ( maxFingerprints < 1 ) {
+                throw new IllegalArgumentException( "Maximum number of fingerprints must be positive: " +
+                                                    maxFingerprints );
+            }
+
+            this.maxFingerprints = maxFingerprints;
+            return this;
+        }
+
+        /** Counts and times failures per category */
+        @Nonnull
+        public Builder failureCategories( boolean failureCategories ) {
+            this.failureCategories = failureCategories;
+            return this;
+        }
+
+        /** Records time to the first row and rows handled by selects streamed through a ResultHandler */
+        @Nonnull
+        public Builder resultHandlerMetrics( boolean resultHandlerMetrics ) {
+            this.resultHandlerMetrics = resultHandlerMetrics;
+            return this;
+        }
+
+        /** Recommends a fetch size for each select */
+        @Nonnull
+        public Builder fetchSizeAdvisor( boolean fetchSizeAdvisor ) {
+            this.fetchSizeAdvisor = fetchSizeAdvisor;
+            return this;
+        }
+
+        /** Applies the recommended fetch size to selects that do not set one, enables the advisor too */
+        @Nonnull
+        public Builder applyFetchSize( boolean applyFetchSize ) {
+            this.applyFetchSize = applyFetchSize;
+            return this;
+        }
+
+        /** Highest fetch size recommended */
+        @Nonnull
+        public Builder maxFetchSize( int maxFetchSize ) {
+            if ( maxFetchSize < 1 ) {
+                throw new IllegalArgumentException( "Maximum fetch size must be positive: " + maxFetchSize );
+            }
+
+            this.maxFetchSize = maxFetchSize;
+            return this;
+        }
+
+        /** Counts sessions in which one select runs more than given number of times */
+        @Nonnull
+        public Builder nPlusOneThreshold( int threshold ) {
+            if ( threshold < 1 ) {
+                throw new IllegalArgumentException( "N+1 threshold must be positive: " + threshold );
+            }
+
+            this.nPlusOneThreshold = threshold;
+            return this;
+        }
+
+        /** Highest number of statements that get metrics of their own */
+        @Nonnull
+        public Builder maxStatements( int maxStatements ) {
+            if ( maxStatements < 1 ) {
+                throw new IllegalArgumentException( "Maximum number of statements must be positive: " +
+                                                    maxStatements );
+            }
+
+            this.maxStatements = maxStatements;
+            return this;
+        }
+
+        /** Removes metrics of statements that were not invoked for given time */
+        @Nonnull
+        public Builder statementIdleTtl( long ttl, @Nonnull TimeUnit unit ) {
+            if ( ttl < 1 ) {
+                throw new IllegalArgumentException( "Statement idle time to live must be positive: " + ttl );
+            }
+
+            this.statementIdleTtlNanos = unit.toNanos( ttl );
+            return this;
+        }
+
+        /** Warms up the instrumentation when statements are preregistered. Zero disables warm-up. */
+        @Nonnull
+        public Builder warmUpIterations( int warmUpIterations ) {
+            if ( warmUpIterations < 0 ) {
+                throw new IllegalArgumentException( "Warm-up iterations must not be negative: " + warmUpIterations );
+            }
+
+            this.warmUpIterations = warmUpIterations;
+            return this;
+        }
+
+        /** Folds invocations into the metrics on a background thread */
+        @Nonnull
+        public Builder async( boolean async ) {
+            this.async = async;
+            return this;
+        }
+
+        /** Number of invocations that can be queued for the background thread */
+        @Nonnull
+        public Builder asyncCapacity( int asyncCapacity ) {
+            if ( asyncCapacity < 1 ) {
+                throw new IllegalArgumentException( "Async capacity must be positive: " + asyncCapacity );
+            }
+
+            this.asyncCapacity = asyncCapacity;
+            return this;
+        }
+
+        /**
+         * Overrides the values with those found in provided properties. Properties that are missing or empty
+         * are ignored.
+         *
+         * @throws IllegalArgumentException
+         *         when a property has a value that does not make sense
+         */
+        @Nonnull
+        public Builder properties( @Nullable Properties properties ) {
+            if ( properties == null ) {
+                return this;
+            }
+
+            String profileName = trimToNull( properties.getProperty( PROFILE_PROPERTY ) );
+            if ( profileName != null ) {
+                profile( parseEnum( InstrumentationProfile.class, PROFILE_PROPERTY, profileName ) );
+            }
+
+            String reservoirName = trimToNull( properties.getProperty( LATENCY_RESERVOIR_PROPERTY ) );
+            if ( reservoirName != null ) {
+                latencyReservoir( parseEnum( LatencyReservoir.class, LATENCY_RESERVOIR_PROPERTY, reservoirName ) );
+            }
+
+            String maxMillis = trimToNull( properties.getProperty( HDR_MAX_MILLIS_PROPERTY ) );
+            if ( maxMillis != null ) {
+                hdrMaxMillis( parseLong( HDR_MAX_MILLIS_PROPERTY, maxMillis ) );
+            }
+
+            String significantDigits = trimToNull( properties.getProperty( HDR_SIGNIFICANT_DIGITS_PROPERTY ) );
+            if ( significantDigits != null ) {
+                hdrSignificantDigits( parseInt( HDR_SIGNIFICANT_DIGITS_PROPERTY, significantDigits ) );
+            }
+
+            String strategyName = trimToNull( properties.getProperty( NAMING_STRATEGY_PROPERTY ) );
+            if ( strategyName != null ) {
+                nameStrategy( parseNameStrategy( strategyName ) );
+            }
+
+            String prefix = trimToNull( properties.getProperty( NAMING_PREFIX_PROPERTY ) );
+            if ( prefix != null ) {
+                namePrefix( prefix );
+            }
+
+            String suffix = trimToNull( properties.getProperty( NAMING_DATABASE_ID_SUFFIX_PROPERTY ) );
+            if ( suffix != null ) {
+                databaseIdSuffix( parseBoolean( NAMING_DATABASE_ID_SUFFIX_PROPERTY, suffix ) );
+            }
+
+            String interval = trimToNull( properties.getProperty( SAMPLING_INTERVAL_PROPERTY ) );
+            if ( interval != null ) {
+                samplingInterval( parseInt( SAMPLING_INTERVAL_PROPERTY, interval ) );
+            }
+
+            String threshold = trimToNull( properties.getProperty( SLOW_THRESHOLD_MILLIS_PROPERTY ) );
+            if ( threshold != null ) {
+                slowThreshold( parseLong( SLOW_THRESHOLD_MILLIS_PROPERTY, threshold ), TimeUnit.MILLISECONDS );
+            }
+
+            String capacity = trimToNull( properties.getProperty( SLOW_CAPACITY_PROPERTY ) );
+            if ( capacity != null ) {
+                slowStatementCapacity( parseInt( SLOW_CAPACITY_PROPERTY, capacity ) );
+            }
+
+            String maxLength = trimToNull( properties.getProperty( SLOW_PARAMETER_MAX_LENGTH_PROPERTY ) );
+            if ( maxLength != null ) {
+                slowParameterMaxLength( parseInt( SLOW_PARAMETER_MAX_LENGTH_PROPERTY, maxLength ) );
+            }
+
+            String redacted = trimToNull( properties.getProperty( SLOW_REDACTED_PARAMETERS_PROPERTY ) );
+            if ( redacted != null ) {
+                redactedParameters( Arrays.asList( redacted.split( "," ) ) );
+            }
+
+            String rows = trimToNull( properties.getProperty( ROW_HISTOGRAMS_PROPERTY ) );
+            if ( rows != null ) {
+                rowHistograms( parseBoolean( ROW_HISTOGRAMS_PROPERTY, rows ) );
+            }
+
+            String phases = trimToNull( properties.getProperty( PHASE_TIMERS_PROPERTY ) );
+            if ( phases != null ) {
+                phaseTimers( parseBoolean( PHASE_TIMERS_PROPERTY, phases ) );
+            }
+
+            String cache = trimToNull( properties.getProperty( CACHE_METRICS_PROPERTY ) );
+            if ( cache != null ) {
+                cacheMetrics( parseBoolean( CACHE_METRICS_PROPERTY, cache ) );
+            }
+
+            String inFlight = trimToNull( properties.getProperty( IN_FLIGHT_PROPERTY ) );
+            if ( inFlight != null ) {
+                inFlight( parseBoolean( IN_FLIGHT_PROPERTY, inFlight ) );
+            }
+
+            String fingerprints = trimToNull( properties.getProperty( FINGERPRINTS_PROPERTY ) );
+            if ( fingerprints != null ) {
+                fingerprints( parseBoolean( FINGERPRINTS_PROPERTY, fingerprints ) );
+            }
+
+            String maxFingerprints = trimToNull( properties.getProperty( FINGERPRINTS_MAX_PROPERTY ) );
+            if ( maxFingerprints != null ) {
+                maxFingerprints( parseInt( FINGERPRINTS_MAX_PROPERTY, maxFingerprints ) );
+            }
+
+            String failureCategories = trimToNull( properties.getProperty( FAILURE_CATEGORIES_PROPERTY ) );
+            if ( failureCategories != null ) {
+                failureCategories( parseBoolean( FAILURE_CATEGORIES_PROPERTY, failureCategories ) );
+            }
+
+            String resultHandler = trimToNull( properties.getProperty( RESULT_HANDLER_METRICS_PROPERTY ) );
+            if ( resultHandler != null ) {
+                resultHandlerMetrics( parseBoolean( RESULT_HANDLER_METRICS_PROPERTY, resultHandler ) );
+            }
+
+            String fetchSizeAdvisor = trimToNull( properties.getProperty( FETCH_SIZE_ADVISOR_PROPERTY ) );
+            if ( fetchSizeAdvisor != null ) {
+                fetchSizeAdvisor( parseBoolean( FETCH_SIZE_ADVISOR_PROPERTY, fetchSizeAdvisor ) );
+            }
+
+            String applyFetchSize = trimToNull( properties.getProperty( FETCH_SIZE_APPLY_PROPERTY ) );
+            if ( applyFetchSize != null ) {
+                applyFetchSize( parseBoolean( FETCH_SIZE_APPLY_PROPERTY, applyFetchSize ) );
+            }
+
+            String maxFetchSize = trimToNull( properties.getProperty( FETCH_SIZE_MAX_PROPERTY ) );
+            if ( maxFetchSize != null ) {
+                maxFetchSize( parseInt( FETCH_SIZE_MAX_PROPERTY, maxFetchSize ) );
+            }
+
+            String nPlusOneThreshold = trimToNull( properties.getProperty( N_PLUS_ONE_THRESHOLD_PROPERTY ) );
+            if ( nPlusOneThreshold != null ) {
+                nPlusOneThreshold( parseInt( N_PLUS_ONE_THRESHOLD_PROPERTY, nPlusOneThreshold ) );
+            }
+
+            String maxStatements = trimToNull( properties.getProperty( MAX_STATEMENTS_PROPERTY ) );
+            if ( maxStatements != null ) {
+                maxStatements( parseInt( MAX_STATEMENTS_PROPERTY, maxStatements ) );
+            }
+
+            String idleTtl = trimToNull( properties.getProperty( STATEMENT_IDLE_TTL_SECONDS_PROPERTY ) );
+            if ( idleTtl != null ) {
+                statementIdleTtl( parseLong( STATEMENT_IDLE_TTL_SECONDS_PROPERTY, idleTtl ), TimeUnit.SECONDS );
+            }
+
+            String warmUpIterations = trimToNull( properties.getProperty( WARM_UP_ITERATIONS_PROPERTY ) );
+            if ( warmUpIterations != null ) {
+                warmUpIterations( parseInt( WARM_UP_ITERATIONS_PROPERTY, warmUpIterations ) );
+            }
+
+            String async = trimToNull( properties.getProperty( ASYNC_PROPERTY ) );
+            if ( async != null ) {
+                async( parseBoolean( ASYNC_PROPERTY, async ) );
+            }
+
+            String asyncCapacity = trimToNull( properties.getProperty( ASYNC_CAPACITY_PROPERTY ) );
+            if ( asyncCapacity != null ) {
+                asyncCapacity( parseInt( ASYNC_CAPACITY_PROPERTY, asyncCapacity ) );
+            }
+
+            for ( String name : properties.stringPropertyNames() ) {
+                String value = trimToNull( properties.getProperty( name ) );
+
+                if ( name.startsWith( SAMPLING_INTERVAL_OVERRIDE_PREFIX ) && value != null ) {
+                    samplingInterval( name.substring( SAMPLING_INTERVAL_OVERRIDE_PREFIX.length() ),
+                                      parseInt( name, value ) );
+                }
+                else if ( name.startsWith( SLOW_THRESHOLD_MILLIS_OVERRIDE_PREFIX ) && value != null ) {
+                    slowThreshold( name.substring( SLOW_THRESHOLD_MILLIS_OVERRIDE_PREFIX.length() ),
+                                   parseLong( name, value ),
+                                   TimeUnit.MILLISECONDS );
+                }
+            }
+
+            return this;
+        }
+
+        @Nonnull
+        public InstrumentationSettings build() {
+            return new InstrumentationSettings( this );
+        }
+
+        @Nullable
+        private static String trimToNull( @Nullable String value ) {
+            return value == null || value.trim().isEmpty() ? null : value.trim();
+        }
+
+        private static int validateSamplingInterval( int samplingInterval ) {
+            if ( samplingInterval < 1 ) {
+                throw new IllegalArgumentException( "Sampling interval must be positive: " + samplingInterval );
+            }
+
+            return samplingInterval;
+        }
+
+        private static long validateSlowThreshold( long threshold, @Nonnull TimeUnit unit ) {
+            if ( threshold < 0 ) {
+                throw new IllegalArgumentException( "Slow statement threshold must not be negative: " + threshold );
+            }
+
+            return unit.toNanos( threshold );
+        }
+
+        @Nonnull
+        private static MetricNameStrategy parseNameStrategy( String value ) {
+            switch ( value ) {
+                case MetricNameStrategies.STATEMENT_ID:
+                    return MetricNameStrategies.statementId();
+                case MetricNameStrategies.NAMESPACE:
+                    return MetricNameStrategies.namespace();
+                case MetricNameStrategies.STATEMENT_ID_AND_COMMAND_TYPE:
+                    return MetricNameStrategies.withSqlCommandType( MetricNameStrategies.statementId() );
+                default:
+                    return instantiate( MetricNameStrategy.class, NAMING_STRATEGY_PROPERTY, value );
+            }
+        }
+
+        @Nonnull
+        private static <T> T instantiate( Class<T> type, String property, String className ) {
+            try {
+                return type.cast( Resources.classForName( className ).getDeclaredConstructor().newInstance() );
+            }
+            catch ( ReflectiveOperationException | ClassCastException e ) {
+                throw new IllegalArgumentException( "Unable to create " + type.getSimpleName() + " from class '" +
+                                                    className + "' given in property '" + property + "'", e );
+            }
+        }
+
+        private static boolean parseBoolean( String property, String value ) {
+            if ( "true".equalsIgnoreCase( value ) || "false".equalsIgnoreCase( value ) ) {
+                return Boolean.parseBoolean( value );
+            }
+
+            throw new IllegalArgumentException( "Value '" + value + "' of property '" + property +
+                                                "' is neither 'true' nor 'false'" );
+        }
+
+        private static long parseLong( String property, String value ) {
+            try {
+                return Long.parseLong( value );
+            }
+            catch ( NumberFormatException e ) {
+                throw new IllegalArgumentException( "Value '" + value + "' of property '" + property +
+                                                    "' is not a number", e );
+            }
+        }
+
+        /** Values out of the range of int are rejected, instead of wrapping around into one that is valid */
+        private static int parseInt( String property, String value ) {
+            try {
+                return Integer.parseInt( value );
+            }
+            catch ( NumberFormatException e ) {
+                throw new IllegalArgumentException( "Value '" + value + "' of property '" + property +
+                                                    "' is not a number", e );
+            }
+        }
+
+        @Nonnull
+        private static <E extends Enum<E>> E parseEnum( Class<E> type, String property, String value ) {
+            try {
+                return Enum.valueOf( type, value.toUpperCase( Locale.ENGLISH ) );
+            }
+            catch ( IllegalArgumentException e ) {
+                throw new IllegalArgumentException( "Unrecognized value '" + value + "' of property '" + property +
+                                                    "'", e );
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.apache.ibatis.cache.Cache;
+
+/**
+ * Decorator for MyBatis second level cache that records how well the cache is doing. Caches are created per
+ * namespace and use it as their id, so metrics are registered as <code>&lt;prefix&gt;.&lt;namespace&gt;.*</code>:
+ * <ul>
+ * <li><code>hits</code>, <code>misses</code> - lookups that found or did not find a value,</li>
+ * <li><code>hitRatio</code> - hits to all lookups, over the last minute,</li>
+ * <li><code>puts</code>, <code>removals</code>, <code>clears</code> - changes made through this decorator,</li>
+ * <li><code>evictions</code> - puts that did not make the cache any bigger,</li>
+ * <li><code>size</code> - number of values in the cache.</li>
+ * </ul>
+ * Evictions made by MyBatis' own decorators (LRU, FIFO, ...) happen below this decorator and can not be seen
+ * directly. MyBatis only puts values after a miss, so a put that leaves the size unchanged almost always pushed
+ * something else out - the rare overwrite of an existing key is counted as an eviction too.
+ * <p/>
+ * Thread safe as long as the decorated cache is.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+public class InstrumentedCache implements Cache {
+    public static final String DEFAULT_METRIC_PREFIX = "mybatis.cache";
+
+    private final Cache delegate;
+
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter puts;
+    private final Meter evictions;
+    private final Meter removals;
+    private final Meter clears;
+
+    public InstrumentedCache( @Nonnull Cache delegate, @Nonnull MetricRegistry registry ) {
+        this( delegate, registry, DEFAULT_METRIC_PREFIX );
+    }
+
+    public InstrumentedCache( @Nonnull final Cache delegate,
+                              @Nonnull MetricRegistry registry,
+                              @Nonnull String prefix ) {
+        String baseMetricName = name( prefix, delegate.getId() );
+        this.delegate = delegate;
+        this.hits = registry.meter( name( baseMetricName, "hits" ) );
+        this.misses = registry.meter( name( baseMetricName, "misses" ) );
+        this.puts = registry.meter( name( baseMetricName, "puts" ) );
+        this.evictions = registry.meter( name( baseMetricName, "evictions" ) );
+        this.removals = registry.meter( name( baseMetricName, "removals" ) );
+        this.clears = registry.meter( name( baseMetricName, "clears" ) );
+
+        /* Gauges registered by an earlier decorator of the same cache are reused - they read the same values */
+        MetricRegistries.getOrRegister( registry, name( baseMetricName, "size" ), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return delegate.getSize();
+            }
+        }, Gauge.class );
+        MetricRegistries.getOrRegister( registry, name( baseMetricName, "hitRatio" ), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                double hitRate = hits.getOneMinuteRate();
+                return Ratio.of( hitRate, hitRate + misses.getOneMinuteRate() );
+            }
+        }, Gauge.class );
+    }
+
+    @Nonnull
+    public Cache getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getId() {
+        return delegate.getId();
+    }
+
+    @Override
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public Object getObject( Object key ) {
+        Object value = delegate.getObject( key );
+        ( value != null ? hits : misses ).mark();
+        return value;
+    }
+
+    @Override
+    public void putObject( Object key, @Nullable Object value ) {
+        int sizeBefore = delegate.getSize();
+        delegate.putObject( key, value );
+        puts.mark();
+
+        if ( delegate.getSize() <= sizeBefore ) {
+            evictions.mark();
+        }
+    }
+
+    @Override
+    public Object removeObject( Object key ) {
+        removals.mark();
+        return delegate.removeObject( key );
+    }
+
+    @Override
+    public void clear() {
+        clears.mark();
+        delegate.clear();
+    }
+
+    @Override
+    public int getSize() {
+        return delegate.getSize();
+    }
+
+    @Override
+    public ReadWriteLock getReadWriteLock() {
+        return delegate.getReadWriteLock();
+    }
+
+    @Override
+    public String toString() {
+        return "InstrumentedCache{" + delegate.getId() + "}";
+    }
+}
@@ -0,0 +1,259 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.apache.ibatis.binding.MapperProxy;
+import org.apache.ibatis.binding.MapperProxyFactory;
+import org.apache.ibatis.binding.MapperRegistry;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.reflection.SystemMetaObject;
+import org.apache.ibatis.session.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates mapper proxies that record overloaded mapper methods separately. MyBatis maps all overloads of a method to
+ * one {@link MappedStatement}, which carries no argument types, so the interceptor cannot tell them apart.
+ * <p/>
+ * The overloads are found once, when the factory is installed, and each gets its own {@link BasicInstrumentation}
+ * under <code>&lt;statement metric name&gt;.overload.&lt;argument types&gt;</code>, e.g.
+ * <code>overload.int-java.lang.String</code>. Types are named by their binary names, so types with the same simple
+ * name do not share metrics. The proxy finds the overload by method in a precomputed map and passes invocations of
+ * methods that are not overloaded straight to MyBatis.
+ * <p/>
+ * Instrumentation of the overloads is looked up through the interceptor on every invocation, so they count towards
+ * the limit of statements and are evicted when idle, like statements. Overloads seen once the limit is reached are
+ * not recorded separately.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class InstrumentedMapperProxyFactory<T> extends MapperProxyFactory<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger( InstrumentedMapperProxyFactory.class );
+
+    private final InstrumentationLookup lookup;
+    private final Map<Method, Overload> overloads;
+
+    private InstrumentedMapperProxyFactory( @Nonnull Class<T> mapperInterface,
+                                            @Nonnull InstrumentationLookup lookup,
+                                            @Nonnull Map<Method, Overload> overloads ) {
+        super( mapperInterface );
+        this.lookup = lookup;
+        this.overloads = overloads;
+    }
+
+    /**
+     * Replaces the proxy factories of mappers with overloaded methods, among the mappers known to the configuration.
+     * Mappers created afterwards record their overloads separately, mappers created earlier are not affected.
+     *
+     * @return number of mappers whose factory was replaced
+     */
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    public static int install( @Nonnull Configuration configuration, @Nonnull InstrumentationLookup lookup ) {
+        MapperRegistry mapperRegistry = configuration.getMapperRegistry();
+
+        /* MapperRegistry has no way to replace a factory, MetaObject falls back to the field */
+        @SuppressWarnings( "unchecked" )
+        Map<Class<?>, MapperProxyFactory<?>> knownMappers =
+                (Map<Class<?>, MapperProxyFactory<?>>) SystemMetaObject.forObject( mapperRegistry )
+                                                                       .getValue( "knownMappers" );
+        int installed = 0;
+
+        for ( Class<?> mapperInterface : new ArrayList<>( mapperRegistry.getMappers() ) ) {
+            if ( knownMappers.get( mapperInterface ) instanceof InstrumentedMapperProxyFactory ) {
+                continue;
+            }
+
+            MapperProxyFactory<?> instrumented = create( configuration, lookup, mapperInterface );
+            if ( instrumented != null ) {
+                knownMappers.put( mapperInterface, instrumented );
+                installed++;
+            }
+        }
+
+        LOGGER.debug( "Instrumented overloaded methods of {} mapper(s)", installed );
+        return installed;
+    }
+
+    /** Returns the factory for given mapper or null if none of its methods are overloaded */
+    @Nullable
+    private static <T> InstrumentedMapperProxyFactory<T> create( @Nonnull Configuration configuration,
+                                                                 @Nonnull InstrumentationLookup lookup,
+                                                                 @Nonnull Class<T> mapperInterface ) {
+        Map<String, List<Method>> methodsByName = new HashMap<>();
+
+        for ( Method method : mapperInterface.getMethods() ) {
+            if ( method.isBridge() || method.isSynthetic() ) {
+                continue;
+            }
+
+            List<Method> methods = methodsByName.get( method.getName() );
+            if ( methods == null ) {
+                methods = new ArrayList<>();
+                methodsByName.put( method.getName(), methods );
+            }
+            methods.add( method );
+        }
+
+        Map<Method, Overload> overloads = new HashMap<>();
+
+        for ( List<Method> methods : methodsByName.values() ) {
+            if ( methods.size() < 2 ) {
+                continue;
+            }
+
+            for ( Method method : methods ) {
+                String statementId = mapperInterface.getName() + "." + method.getName();
+                MappedStatement statement = configuration.hasStatement( statementId )
+                                            ? configuration.getMappedStatement( statementId )
+                                            : null;
+                String baseMetricName = statement != null ? lookup.deriveMetricName( statement ) : statementId;
+
+                overloads.put( method, new Overload( name( baseMetricName, "overload", signature( method ) ),
+                                                     statement ) );
+            }
+        }
+
+        if ( overloads.isEmpty() ) {
+            return null;
+        }
+
+        return new InstrumentedMapperProxyFactory<>( mapperInterface,
+                                                     lookup,
+                                                     Collections.unmodifiableMap( overloads ) );
+    }
+
+    @Nonnull
+    private static String signature( @Nonnull Method method ) {
+        Class<?>[] types = method.getParameterTypes();
+
+        if ( types.length == 0 ) {
+            return "noArguments";
+        }
+
+        StringBuilder signature = new StringBuilder();
+        for ( Class<?> type : types ) {
+            if ( signature.length() > 0 ) {
+                signature.append( '-' );
+            }
+            signature.append( typeName( type ) );
+        }
+
+        return signature.toString();
+    }
+
+    /** Binary name of the type, which is unique unlike the simple name, with arrays spelled out */
+    @Nonnull
+    private static String typeName( @Nonnull Class<?> type ) {
+        return type.isArray() ? typeName( type.getComponentType() ) + "[]" : type.getName();
+    }
+
+    @Override
+    @SuppressWarnings( "unchecked" )
+    protected T newInstance( MapperProxy<T> mapperProxy ) {
+        return (T) Proxy.newProxyInstance( getMapperInterface().getClassLoader(),
+                                           new Class<?>[] { getMapperInterface() },
+                                           new InstrumentedMapperProxy( mapperProxy, lookup, overloads ) );
+    }
+
+    /** Records invocations of overloaded methods and passes everything to MyBatis' proxy */
+    @Immutable
+    @ThreadSafe
+    private static final class InstrumentedMapperProxy implements InvocationHandler {
+        private final InvocationHandler delegate;
+        private final InstrumentationLookup lookup;
+        private final Map<Method, Overload> overloads;
+
+        InstrumentedMapperProxy( @Nonnull InvocationHandler delegate,
+                                 @Nonnull InstrumentationLookup lookup,
+                                 @Nonnull Map<Method, Overload> overloads ) {
+            this.delegate = delegate;
+            this.lookup = lookup;
+            this.overloads = overloads;
+        }
+
+        @Override
+        @ExpectedPerformanceProfile( path = Path.HOT )
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+            Overload overload = overloads.get( method );
+
+            if ( overload == null ) {
+                return delegate.invoke( proxy, method, args );
+            }
+
+            BasicInstrumentation instrumentation = enter( lookup, overload );
+            if ( instrumentation == null ) {
+                return delegate.invoke( proxy, method, args );
+            }
+
+            instrumentation.markInvoked();
+            boolean timed = instrumentation.shouldTime();
+            long start = timed ? System.nanoTime() : 0L;
+            Throwable failure = null;
+
+            try {
+                return delegate.invoke( proxy, method, args );
+            }
+            catch ( Throwable e ) {
+                failure = e;
+                instrumentation.markFailed();
+                throw e;
+            }
+            finally {
+                long elapsed = timed ? System.nanoTime() - start : -1L;
+                instrumentation.exit();
+
+                if ( timed ) {
+                    instrumentation.recordElapsed( elapsed );
+                }
+                else {
+                    instrumentation.markUntimed();
+                }
+                if ( failure != null ) {
+                    instrumentation.recordFailure( failure, elapsed );
+                }
+            }
+        }
+    }
+
+    /** Looks up the instrumentation and enters it, again if it was evicted, see {@link BasicInstrumentation#enter()} */
+    @Nullable
+    private static BasicInstrumentation enter( @Nonnull InstrumentationLookup lookup, @Nonnull Overload overload ) {
+        BasicInstrumentation instrumentation = lookup.getInstrumentation( overload,
+                                                                          overload.baseMetricName,
+                                                                          overload.statement );
+
+        while ( instrumentation != null && !instrumentation.enter() ) {
+            instrumentation = lookup.getInstrumentation( overload, overload.baseMetricName, overload.statement );
+        }
+
+        return instrumentation;
+    }
+
+    /** One overloaded method. Serves as the key of its instrumentation, so it is compared by identity. */
+    @Immutable
+    private static final class Overload {
+        final String baseMetricName;
+        final MappedStatement statement;
+
+        Overload( @Nonnull String baseMetricName, @Nullable MappedStatement statement ) {
+            this.baseMetricName = baseMetricName;
+            this.statement = statement;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Timer;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.apache.ibatis.executor.loader.ProxyFactory;
+import org.apache.ibatis.executor.loader.ResultLoaderMap;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.reflection.SystemMetaObject;
+import org.apache.ibatis.reflection.factory.ObjectFactory;
+import org.apache.ibatis.session.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates lazy loading proxies of result objects that record which property triggered which statement. Lazy loads
+ * run as ordinary statements, which on their own say nothing about the property that caused them.
+ * <p/>
+ * Every property loaded is timed, which also counts the loads, under
+ * <code>&lt;statement metric name&gt;.lazyLoad.&lt;result type&gt;.&lt;property&gt;.elapsed</code> of the statement
+ * that loaded it, named by the {@link MetricNameStrategy} of the settings. Timers are looked up once per result type,
+ * property and statement, lazy loads are often the N in N+1 selects. Properties loaded all at once, e.g. with
+ * aggressive lazy loading, are recorded one by one.
+ * <p/>
+ * Proxies are still created by the factory that was configured before, this one only decorates the map of pending
+ * loads they are given.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class InstrumentedProxyFactory implements ProxyFactory {
+    private static final Logger LOGGER = LoggerFactory.getLogger( InstrumentedProxyFactory.class );
+
+    private final ProxyFactory delegate;
+    private final MetricFactory factory;
+    private final ConcurrentMap<LoadKey, Timer> timers;
+
+    InstrumentedProxyFactory( @Nonnull ProxyFactory delegate, @Nonnull MetricFactory factory ) {
+        this.delegate = delegate;
+        this.factory = factory;
+        this.timers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Decorates the proxy factory of given configuration. Result objects created afterwards record their lazy loads,
+     * objects created earlier are not affected.
+     *
+     * @return false if the factory was decorated already
+     */
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    public static boolean install( @Nonnull Configuration configuration, @Nonnull MetricFactory factory ) {
+        ProxyFactory current = configuration.getProxyFactory();
+
+        if ( current instanceof InstrumentedProxyFactory ) {
+            return false;
+        }
+
+        configuration.setProxyFactory( new InstrumentedProxyFactory( current, factory ) );
+        LOGGER.debug( "Instrumented lazy loading of {}", current.getClass().getName() );
+        return true;
+    }
+
+    @Override
+    public void setProperties( Properties properties ) {
+        delegate.setProperties( properties );
+    }
+
+    @Override
+    public Object createProxy( Object target,
+                               ResultLoaderMap lazyLoader,
+                               Configuration configuration,
+                               ObjectFactory objectFactory,
+                               List<Class<?>> constructorArgTypes,
+                               List<Object> constructorArgs ) {
+        ResultLoaderMap instrumented = instrument( lazyLoader, target.getClass() );
+        return delegate.createProxy( target,
+                                     instrumented != null ? instrumented : lazyLoader,
+                                     configuration,
+                                     objectFactory,
+                                     constructorArgTypes,
+                                     constructorArgs );
+    }
+
+    /**
+     * Loaders are added to the map after the proxy is created, so the decorator has to share the loaders of the
+     * original map instead of copying them. ResultLoaderMap hands out only copies, MetaObject falls back to the field.
+     *
+     * @return the decorated map or null if the loaders could not be shared
+     */
+    @Nullable
+    private ResultLoaderMap instrument( @Nonnull ResultLoaderMap lazyLoader, @Nonnull Class<?> resultType ) {
+        try {
+            Map<?, ?> loaders = (Map<?, ?>) SystemMetaObject.forObject( lazyLoader ).getValue( "loaderMap" );
+            InstrumentedResultLoaderMap instrumented = new InstrumentedResultLoaderMap( this, resultType, loaders );
+            SystemMetaObject.forObject( instrumented ).setValue( "loaderMap", loaders );
+            return instrumented;
+        }
+        catch ( RuntimeException e ) {
+            LOGGER.debug( "Unable to instrument lazy loading of {}", resultType.getName(), e );
+            return null;
+        }
+    }
+
+    /** Called for every load, which is once per row of the parent select when it runs N+1 selects */
+    @Nonnull
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    Timer getTimer( @Nonnull Class<?> resultType, @Nonnull String property, @Nonnull MappedStatement statement ) {
+        LoadKey key = new LoadKey( resultType, property, statement );
+        Timer timer = timers.get( key );
+
+        if ( timer == null ) {
+            /* Racy on purpose - the registry hands out the same timer to threads that get here at the same time */
+            String baseMetricName = factory.getSettings().getNameStrategy().deriveMetricName( statement );
+            timer = factory.timer( name( baseMetricName, "lazyLoad", resultType.getName(), property, "elapsed" ) );
+            timers.putIfAbsent( key, timer );
+        }
+
+        return timer;
+    }
+
+    /** Records loads of the properties of one result object, which is not thread safe either */
+    @NotThreadSafe
+    static final class InstrumentedResultLoaderMap extends ResultLoaderMap {
+        private final InstrumentedProxyFactory proxyFactory;
+        private final Class<?> resultType;
+
+        /** Same instance as the map of the superclass, which offers only copies of it */
+        private final Map<?, ?> loaders;
+
+        InstrumentedResultLoaderMap( @Nonnull InstrumentedProxyFactory proxyFactory,
+                                     @Nonnull Class<?> resultType,
+                                     @Nonnull Map<?, ?> loaders ) {
+            this.proxyFactory = proxyFactory;
+            this.resultType = resultType;
+            this.loaders = loaders;
+        }
+
+        /**
+         * Also called for each property by {@link #loadAll()}. The property and the statement are read from the
+         * pending load, since the argument may be upper-cased or a nested property.
+         */
+        @Override
+        @ExpectedPerformanceProfile( path = Path.HOT )
+        public boolean load( String property ) throws SQLException {
+            int dot = property.indexOf( '.' );
+            String loaded = dot < 0 ? property : property.substring( 0, dot );
+            Object pending = loaders.get( loaded.toUpperCase( Locale.ENGLISH ) );
+
+            if ( pending == null ) {
+                return super.load( property );
+            }
+
+            MetaObject meta = SystemMetaObject.forObject( pending );
+            Object statement = meta.getValue( "resultLoader.mappedStatement" );
+
+            if ( !( statement instanceof MappedStatement ) ) {
+                return super.load( property );
+            }
+
+            Timer timer = proxyFactory.getTimer( resultType,
+                                                 String.valueOf( meta.getValue( "property" ) ),
+                                                 (MappedStatement) statement );
+            long start = System.nanoTime();
+
+            try {
+                return super.load( property );
+            }
+            finally {
+                timer.update( System.nanoTime() - start, TimeUnit.NANOSECONDS );
+            }
+        }
+    }
+
+    /** Result type, property and the statement that loaded it */
+    @Immutable
+    private static final class LoadKey {
+        private final Class<?> resultType;
+        private final String property;
+        private final MappedStatement statement;
+
+        LoadKey( @Nonnull Class<?> resultType, @Nonnull String property, @Nonnull MappedStatement statement ) {
+            this.resultType = resultType;
+            this.property = property;
+            this.statement = statement;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( !( obj instanceof LoadKey ) ) {
+                return false;
+            }
+
+            LoadKey other = (LoadKey) obj;
+            return resultType == other.resultType && statement == other.statement && property.equals( other.property );
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * ( 31 * resultType.hashCode() + property.hashCode() ) + System.identityHashCode( statement );
+        }
+    }
+}
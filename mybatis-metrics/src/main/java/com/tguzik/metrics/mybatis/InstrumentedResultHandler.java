@@ -0,0 +1,78 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
+
+/**
+ * Wraps the {@link ResultHandler} of one select to record the time until the first row reached it and the rows it
+ * handled. One instance is created per select and the rows are handled on the thread that runs the select, so the
+ * per-row work is a plain increment. The rows meter is marked in batches, so that its rates follow long streams
+ * without being updated for every row. The metrics are optional, the rows are counted anyway.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@NotThreadSafe
+final class InstrumentedResultHandler implements ResultHandler {
+    /** Rows handled between updates of the rows meter. Power of two. */
+    static final int BATCH_SIZE = 1024;
+
+    private final ResultHandler delegate;
+    private final Timer timeToFirstRow;
+    private final Meter rows;
+    private final long startNanos;
+    private long handled;
+
+    public InstrumentedResultHandler( @Nonnull ResultHandler delegate,
+                                      @Nullable Timer timeToFirstRow,
+                                      @Nullable Meter rows,
+                                      long startNanos ) {
+        this.delegate = delegate;
+        this.timeToFirstRow = timeToFirstRow;
+        this.rows = rows;
+        this.startNanos = startNanos;
+    }
+
+    @Override
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public void handleResult( ResultContext context ) {
+        long count = ++handled;
+
+        if ( count == 1 ) {
+            if ( timeToFirstRow != null ) {
+                timeToFirstRow.update( System.nanoTime() - startNanos, TimeUnit.NANOSECONDS );
+            }
+        }
+        else if ( rows != null && ( count & ( BATCH_SIZE - 1 ) ) == 0 ) {
+            rows.mark( BATCH_SIZE );
+        }
+
+        delegate.handleResult( context );
+    }
+
+    /** Marks the rows not marked yet. Called once the select has finished, successfully or not. */
+    public void finish() {
+        long pending = handled & ( BATCH_SIZE - 1 );
+
+        if ( rows != null && pending > 0 ) {
+            rows.mark( pending );
+        }
+    }
+
+    public long getHandled() {
+        return handled;
+    }
+
+    @Nonnull
+    public ResultHandler getDelegate() {
+        return delegate;
+    }
+}
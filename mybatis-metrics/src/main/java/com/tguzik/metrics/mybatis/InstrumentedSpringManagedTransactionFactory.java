@@ -0,0 +1,45 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+import java.sql.Connection;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.session.TransactionIsolationLevel;
+import org.apache.ibatis.transaction.Transaction;
+import org.mybatis.spring.transaction.SpringManagedTransactionFactory;
+
+/**
+ * {@link SpringManagedTransactionFactory} that times the transactions it creates, the same way
+ * {@link InstrumentedTransactionFactory} does. Give it to <code>SqlSessionFactoryBean#setTransactionFactory()</code>.
+ * <p/>
+ * mybatis-spring joins sessions to Spring transactions only if the transaction factory is an instance of
+ * SpringManagedTransactionFactory, and refuses to run statements in <code>@Transactional</code> methods otherwise. This
+ * is why the transaction factory is extended here instead of being wrapped by InstrumentedTransactionFactory.
+ * <p/>
+ * Requires mybatis-spring on the classpath.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public class InstrumentedSpringManagedTransactionFactory extends SpringManagedTransactionFactory {
+    private final TransactionInstrumentation instrumentation;
+
+    public InstrumentedSpringManagedTransactionFactory( @Nonnull MetricRegistry registry ) {
+        this( registry, InstrumentedTransactionFactory.DEFAULT_METRIC_PREFIX );
+    }
+
+    public InstrumentedSpringManagedTransactionFactory( @Nonnull MetricRegistry registry,
+                                                        @Nonnull String metricPrefix ) {
+        this.instrumentation = new TransactionInstrumentation( registry, metricPrefix );
+    }
+
+    @Override
+    public Transaction newTransaction( Connection connection ) {
+        return new InstrumentedTransaction( super.newTransaction( connection ), instrumentation );
+    }
+
+    @Override
+    public Transaction newTransaction( DataSource dataSource, TransactionIsolationLevel level, boolean autoCommit ) {
+        return new InstrumentedTransaction( super.newTransaction( dataSource, level, autoCommit ), instrumentation );
+    }
+}
@@ -0,0 +1,101 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.tguzik.metrics.mybatis.TransactionInstrumentation.Operation;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.ibatis.transaction.Transaction;
+
+/**
+ * Times the operations of a {@link Transaction}. Created by {@link InstrumentedTransactionFactory}.
+ * <p/>
+ * MyBatis executors ask for the connection before every statement, but transactions open it only once and hand out
+ * the same one afterwards. Only the calls made until the connection was obtained are timed, so the timer shows how
+ * long it takes to get a connection - typically the wait for a connection pool - and not how often MyBatis asks.
+ * <p/>
+ * Not thread safe, just like the transactions MyBatis creates.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@NotThreadSafe
+final class InstrumentedTransaction implements Transaction {
+    private final Transaction delegate;
+    private final TransactionInstrumentation instrumentation;
+    private boolean connectionObtained;
+
+    public InstrumentedTransaction( @Nonnull Transaction delegate,
+                                    @Nonnull TransactionInstrumentation instrumentation ) {
+        this.delegate = delegate;
+        this.instrumentation = instrumentation;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if ( connectionObtained ) {
+            return delegate.getConnection();
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            Connection connection = delegate.getConnection();
+            connectionObtained = true;
+            failed = false;
+            return connection;
+        }
+        finally {
+            instrumentation.record( Operation.GET_CONNECTION, System.nanoTime() - start, failed );
+        }
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        long start = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            delegate.commit();
+            failed = false;
+        }
+        finally {
+            instrumentation.record( Operation.COMMIT, System.nanoTime() - start, failed );
+        }
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        long start = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            delegate.rollback();
+            failed = false;
+        }
+        finally {
+            instrumentation.record( Operation.ROLLBACK, System.nanoTime() - start, failed );
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        long start = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            delegate.close();
+            failed = false;
+        }
+        finally {
+            instrumentation.record( Operation.CLOSE, System.nanoTime() - start, failed );
+        }
+    }
+
+    @Nonnull
+    Transaction getDelegate() {
+        return delegate;
+    }
+}
@@ -0,0 +1,167 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.io.Resources;
+import org.apache.ibatis.session.TransactionIsolationLevel;
+import org.apache.ibatis.transaction.Transaction;
+import org.apache.ibatis.transaction.TransactionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.apache.ibatis.transaction.managed.ManagedTransactionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TransactionFactory} that times getting the connection, commits, rollbacks and closing of the transactions
+ * created by another factory. These metrics are kept apart from statement metrics, under
+ * {@link #DEFAULT_METRIC_PREFIX} unless configured otherwise.
+ * <p/>
+ * Depending on how MyBatis is set up:
+ * <ul>
+ * <li>XML: use this class as the <code>type</code> of <code>transactionManager</code> and give it the
+ * <code>metrics.registry.provider</code> property or register a {@link MetricRegistryProvider} service, the same as
+ * for {@link PropertyInterceptorWrapper}. The factory to delegate to is set with {@link #DELEGATE_PROPERTY} and gets
+ * all the other properties.</li>
+ * <li>Guice: bind this class as the transaction factory type. The registry will be injected and transactions will be
+ * created by {@link JdbcTransactionFactory}.</li>
+ * <li>Spring: use {@link InstrumentedSpringManagedTransactionFactory} instead. mybatis-spring checks the type of the
+ * transaction factory and does not join sessions to Spring transactions when it is wrapped by this class.</li>
+ * </ul>
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public class InstrumentedTransactionFactory implements TransactionFactory {
+    /** <code>JDBC</code>, <code>MANAGED</code> or fully qualified name of a TransactionFactory. Default is JDBC. */
+    public static final String DELEGATE_PROPERTY = "metrics.transaction.delegate";
+
+    /** Prefix of the names of transaction metrics */
+    public static final String METRIC_PREFIX_PROPERTY = "metrics.transaction.prefix";
+
+    public static final String DEFAULT_METRIC_PREFIX = "mybatis.transaction";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( InstrumentedTransactionFactory.class );
+    private static final RateLimitedWarning NOT_INITIALIZED_WARNING =
+            new RateLimitedWarning( LOGGER,
+                                    "InstrumentedTransactionFactory is not initialized - no transaction metrics are " +
+                                    "collected! Check whether you have set the '" +
+                                    MetricRegistryProviders.PROPERTY_NAME + "' system or MyBatis property, or " +
+                                    "registered a MetricRegistryProvider service.",
+                                    TimeUnit.MINUTES.toNanos( 1 ) );
+
+    /** Replaced (never modified) when properties are passed from MyBatis. */
+    private volatile TransactionFactory delegate;
+    private volatile MetricRegistry registry;
+    private volatile String metricPrefix;
+
+    /** Null until we have a registry to report to */
+    private volatile TransactionInstrumentation instrumentation;
+
+    /** For MyBatis XML configuration, see {@link #setProperties(Properties)} */
+    public InstrumentedTransactionFactory() {
+        this.delegate = new JdbcTransactionFactory();
+        this.metricPrefix = DEFAULT_METRIC_PREFIX;
+        this.registry = MetricRegistryProviders.lookUpDefault();
+        this.instrumentation = createInstrumentation();
+    }
+
+    @Inject
+    public InstrumentedTransactionFactory( @Nonnull MetricRegistry registry ) {
+        this( registry, new JdbcTransactionFactory() );
+    }
+
+    public InstrumentedTransactionFactory( @Nonnull MetricRegistry registry, @Nonnull TransactionFactory delegate ) {
+        this.delegate = delegate;
+        this.metricPrefix = DEFAULT_METRIC_PREFIX;
+        this.registry = registry;
+        this.instrumentation = createInstrumentation();
+    }
+
+    /**
+     * Reads {@link #DELEGATE_PROPERTY}, {@link #METRIC_PREFIX_PROPERTY} and <code>metrics.registry.provider</code>,
+     * then passes all the properties on to the factory it delegates to.
+     */
+    @Override
+    public synchronized void setProperties( @Nullable Properties properties ) {
+        if ( properties == null ) {
+            return;
+        }
+
+        String delegateName = trimToNull( properties.getProperty( DELEGATE_PROPERTY ) );
+        if ( delegateName != null ) {
+            this.delegate = createDelegate( delegateName );
+        }
+
+        String prefix = trimToNull( properties.getProperty( METRIC_PREFIX_PROPERTY ) );
+        if ( prefix != null ) {
+            this.metricPrefix = prefix;
+        }
+
+        MetricRegistry provided = MetricRegistryProviders.lookUp( "MyBatis property",
+                                                                  properties.getProperty(
+                                                                          MetricRegistryProviders.PROPERTY_NAME ) );
+        if ( provided != null ) {
+            this.registry = provided;
+        }
+
+        this.delegate.setProperties( properties );
+        this.instrumentation = createInstrumentation();
+    }
+
+    @Override
+    public Transaction newTransaction( Connection connection ) {
+        return instrument( delegate.newTransaction( connection ) );
+    }
+
+    @Override
+    public Transaction newTransaction( DataSource dataSource, TransactionIsolationLevel level, boolean autoCommit ) {
+        return instrument( delegate.newTransaction( dataSource, level, autoCommit ) );
+    }
+
+    @Nonnull
+    private Transaction instrument( @Nonnull Transaction transaction ) {
+        TransactionInstrumentation current = instrumentation;
+
+        if ( current == null ) {
+            NOT_INITIALIZED_WARNING.warn();
+            return transaction;
+        }
+
+        return new InstrumentedTransaction( transaction, current );
+    }
+
+    @Nullable
+    private TransactionInstrumentation createInstrumentation() {
+        MetricRegistry current = registry;
+        return current != null ? new TransactionInstrumentation( current, metricPrefix ) : null;
+    }
+
+    @Nonnull
+    private static TransactionFactory createDelegate( @Nonnull String name ) {
+        if ( "JDBC".equalsIgnoreCase( name ) ) {
+            return new JdbcTransactionFactory();
+        }
+        if ( "MANAGED".equalsIgnoreCase( name ) ) {
+            return new ManagedTransactionFactory();
+        }
+
+        try {
+            return (TransactionFactory) Resources.classForName( name ).getDeclaredConstructor().newInstance();
+        }
+        catch ( ReflectiveOperationException | ClassCastException e ) {
+            throw new IllegalArgumentException( "Unable to create TransactionFactory from class '" + name +
+                                                "' given in property '" + DELEGATE_PROPERTY + "'", e );
+        }
+    }
+
+    @Nullable
+    private static String trimToNull( @Nullable String value ) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+}
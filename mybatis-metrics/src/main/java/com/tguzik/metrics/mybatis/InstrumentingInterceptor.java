@@ -3,18 +3,42 @@ package com.tguzik.metrics.mybatis;
 import static com.tguzik.annotations.ExpectedPerformanceProfile.Path;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.tguzik.annotations.ExpectedPerformanceProfile;
 import com.tguzik.annotations.RefactorThis;
+import org.apache.ibatis.cache.Cache;
 import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.BatchExecutorException;
+import org.apache.ibatis.executor.BatchResult;
 import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.parameter.ParameterHandler;
+import org.apache.ibatis.executor.resultset.ResultSetHandler;
+import org.apache.ibatis.executor.statement.StatementHandler;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
 import org.apache.ibatis.plugin.*;
+import org.apache.ibatis.reflection.SystemMetaObject;
+import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
 import org.slf4j.Logger;
@@ -22,9 +46,9 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Interceptor for mapper invocations that saves basic instrumentation data to
- * provided {@link MetricRegistry}. At this time there's only one pattern for
- * mapper method metric names - each metric is constructed using package, class
- * name and specific metric name.
+ * provided {@link MetricRegistry}. By default each metric is constructed using
+ * package, class name and specific metric name - see {@link MetricNameStrategy}
+ * to change that.
  * <p/>
  * As for the class usage, this interceptor has to be registered with MyBatis
  * (please refer to main README for this project for examples) *and* has to have
@@ -46,41 +70,427 @@ import org.slf4j.LoggerFactory;
                                     CacheKey.class, BoundSql.class } ), //
                @Signature( type = Executor.class,
                            method = "query",
-                           args = { MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class } ) //
+                           args = { MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class } ), //
+               @Signature( type = Executor.class, method = "flushStatements", args = { } ), //
+               @Signature( type = Executor.class, method = "commit", args = { boolean.class } ), //
+               @Signature( type = Executor.class, method = "close", args = { boolean.class } ), //
+               /* Handlers are wrapped only when some of the optional metrics need them, see #plugin() */
+               @Signature( type = StatementHandler.class, method = "prepare", args = { Connection.class } ), //
+               @Signature( type = StatementHandler.class,
+                           method = "query",
+                           args = { Statement.class, ResultHandler.class } ), //
+               @Signature( type = StatementHandler.class, method = "update", args = { Statement.class } ), //
+               @Signature( type = StatementHandler.class, method = "batch", args = { Statement.class } ), //
+               @Signature( type = ParameterHandler.class,
+                           method = "setParameters",
+                           args = { PreparedStatement.class } ), //
+               @Signature( type = ResultSetHandler.class, method = "handleResultSets", args = { Statement.class } ), //
+               @Signature( type = ResultSetHandler.class,
+                           method = "handleOutputParameters",
+                           args = { CallableStatement.class } ) //
              } )
 @RefactorThis( "Class turned out to be semi-ugly. Refactor it to be prettier." )
-public class InstrumentingInterceptor implements Interceptor {
+public class InstrumentingInterceptor implements Interceptor, Closeable {
     protected static final String INVALID_INVOCATION_METRIC_NAME = "mybatis-mybatis.invocations.invalid";
+    protected static final String OVERFLOW_METRIC_NAME = "mybatis.statements.overflow";
+    protected static final String N_PLUS_ONE_METRIC_NAME = "mybatis.sessions.nPlusOne";
+    protected static final String N_PLUS_ONE_UNTRACKED_METRIC_NAME = "mybatis.sessions.nPlusOne.untrackedSelects";
+    private static final String FLUSH_STATEMENTS_METHOD = "flushStatements";
+    private static final String COMMIT_METHOD = "commit";
+    private static final String CLOSE_METHOD = "close";
+    private static final String QUERY_METHOD = "query";
+    private static final String BATCH_METHOD = "batch";
     private static final Logger LOGGER = LoggerFactory.getLogger( InstrumentingInterceptor.class );
 
     /** Metric registry to be used to store all mybatis. */
     private final MetricRegistry metricRegistry;
 
+    /** One instance of instrumentation per mapped statement. */
+    private final InstrumentationCache instrumentationCache;
+
+    /** Instrumentation of this interceptor, for invocations it does not intercept itself. */
+    private final InstrumentationLookup lookup;
+
+    /** Finds statements of intercepted handlers, used only when handlers are wrapped. */
+    private final HandlerFieldLocator<MappedStatement> statementLocator;
+
+    /** Decorators installed into mapped statements, by cache id. Used only when cache metrics are enabled. */
+    private final Map<String, InstrumentedCache> instrumentedCaches;
+
+    /** Shared by all invocations we could not make sense of. Racy on purpose, see #getInstrumentation(). */
+    private volatile BasicInstrumentation invalidInvocationInstrumentation;
+
+    /** Shared by statements seen after the limit of statements was reached. Racy like the one above. */
+    private volatile BasicInstrumentation overflowInstrumentation;
+
+    /** Created on first flush, since the registry might not be available earlier. Racy like the one above. */
+    private volatile BatchInstrumentation batchInstrumentation;
+
+    /** Created on first invocation when recording asynchronously, null otherwise. Guarded by this for writes. */
+    private volatile AsyncRecorder asyncRecorder;
+
+    /** Created with the first instrumentation when idle statements are evicted. Guarded by this for writes. */
+    private volatile IdleStatementEvictor idleStatementEvictor;
+
+    /** Created on first select when N+1 sessions are detected, null otherwise. Guarded by this for writes. */
+    private volatile NPlusOneDetector nPlusOneDetector;
+
+    /** Set by #close(), after which invocations are recorded synchronously. Guarded by this. */
+    private boolean closed;
+
+    /** Replaced (never modified) when properties are passed from MyBatis. */
+    private volatile InstrumentationSettings settings;
+
+    /** Replaced together with the settings. */
+    private volatile SlowStatementLog slowStatementLog;
+
     @Inject
     public InstrumentingInterceptor( @Nonnull MetricRegistry metricRegistry ) {
+        this( metricRegistry, InstrumentationSettings.defaults() );
+    }
+
+    public InstrumentingInterceptor( @Nonnull MetricRegistry metricRegistry,
+                                     @Nonnull MetricNameStrategy nameStrategy ) {
+        this( metricRegistry, InstrumentationSettings.builder().nameStrategy( nameStrategy ).build() );
+    }
+
+    public InstrumentingInterceptor( @Nonnull MetricRegistry metricRegistry,
+                                     @Nonnull InstrumentationSettings settings ) {
         this.metricRegistry = metricRegistry;
+        this.settings = settings;
+        this.slowStatementLog = new SlowStatementLog( settings );
+        this.instrumentationCache = new InstrumentationCache();
+        this.statementLocator = new HandlerFieldLocator<>( MappedStatement.class );
+        this.instrumentedCaches = new HashMap<>();
+        this.lookup = new InstrumentationLookup() {
+            @Nonnull
+            @Override
+            public String deriveMetricName( @Nonnull MappedStatement statement ) {
+                return deriveStatementMetricName( statement );
+            }
+
+            @Nonnull
+            @Override
+            public BasicInstrumentation getInstrumentation( @Nonnull MappedStatement statement ) {
+                /* As if the statement was invoked, since the lookup of invocations may be overridden */
+                Invocation invocation = new Invocation( null, null, new Object[] { statement } );
+                return InstrumentingInterceptor.this.getInstrumentation( invocation );
+            }
+
+            @Nullable
+            @Override
+            public BasicInstrumentation getInstrumentation( @Nonnull Object key,
+                                                            @Nonnull String baseMetricName,
+                                                            @Nullable MappedStatement statement ) {
+                BasicInstrumentation instrumentation = instrumentationCache.get( key );
+                return instrumentation != null || isStatementLimitReached()
+                       ? instrumentation
+                       : cacheInstrumentation( key, baseMetricName, statement );
+            }
+        };
     }
 
     @Override
     @ExpectedPerformanceProfile( path = Path.HOT )
     public Object intercept( @Nonnull Invocation invocation ) throws Throwable {
-        LOGGER.trace( "Intercepting invocation for {}#{}...",
-                      invocation.getTarget().getClass().getName(),
-                      invocation.getMethod().getName() );
+        /* Nothing on this path should allocate: the instrumentation comes from the cache, the timing is taken
+         * directly instead of through Timer.Context and logging arguments are not evaluated unless needed.
+         */
+        if ( LOGGER.isTraceEnabled() ) {
+            LOGGER.trace( "Intercepting invocation for {}#{}...",
+                          invocation.getTarget().getClass().getName(),
+                          invocation.getMethod().getName() );
+        }
 
-        BasicInstrumentation instrumentation = getInstrumentation( invocation );
+        StatementPhase phase = StatementPhase.of( invocation );
+        if ( phase != null ) {
+            return interceptPhase( invocation, phase );
+        }
 
-        /* Note that the Timer.Context will double-count the time taken if it is closed twice,
-         * or stopped and then closed.
-         */
-        try ( Timer.Context ctx = instrumentation.openTimerContext() ) {
+        if ( invocation.getTarget() instanceof Executor ) {
+            String methodName = invocation.getMethod().getName();
+
+            if ( FLUSH_STATEMENTS_METHOD.equals( methodName ) ) {
+                return interceptFlush( invocation );
+            }
+            if ( COMMIT_METHOD.equals( methodName ) ) {
+                return interceptCommit( invocation );
+            }
+            if ( CLOSE_METHOD.equals( methodName ) ) {
+                return interceptClose( invocation );
+            }
+        }
+
+        BasicInstrumentation instrumentation = enter( invocation );
+        AsyncRecorder recorder = getAsyncRecorder();
+        if ( recorder == null ) {
             instrumentation.markInvoked();
+        }
+
+        boolean timed = instrumentation.shouldTime();
+        PhaseClock clock = timed && instrumentation.tracksCacheHits() ? PhaseClock.current() : null;
+        long executions = clock != null ? clock.getExecutions() : 0L;
+        boolean completed = false;
+        Throwable failure = null;
+        InstrumentedResultHandler resultHandler = wrapResultHandler( invocation, instrumentation );
+        FetchSizeAdvisor advisor = instrumentation.getFetchSizeAdvisor();
+        PhaseClock prepares = advisor != null ? PhaseClock.current() : null;
+        int outerPrepare = prepares != null ? prepares.watchPrepare() : 0;
+        long rowCount = -1L;
+        long start = timed ? System.nanoTime() : 0L;
+
+        try {
+            Object result = invocation.proceed();
+            completed = true;
+
+            if ( resultHandler != null ) {
+                rowCount = resultHandler.getHandled();
+            }
+            else if ( !hasResultHandler( invocation ) ) {
+                instrumentation.recordRows( result );
+                rowCount = result instanceof List ? ( (List<?>) result ).size() : -1L;
+            }
+            return result;
+        }
+        catch ( Throwable e ) {
+            failure = e;
+            if ( recorder == null ) {
+                instrumentation.markFailed();
+            }
+            throw e;
+        }
+        finally {
+            long elapsed = timed ? System.nanoTime() - start : -1L;
+            instrumentation.exit();
+
+            if ( resultHandler != null ) {
+                resultHandler.finish();
+            }
+
+            if ( recorder != null ) {
+                recorder.record( instrumentation, elapsed, !completed );
+            }
+            else if ( timed ) {
+                instrumentation.recordElapsed( elapsed );
+            }
+            else {
+                instrumentation.markUntimed();
+            }
+
+            if ( prepares != null ) {
+                int fetchSize = prepares.unwatchPrepare( outerPrepare );
+
+                if ( completed ) {
+                    /* Selects that prepared no statement were answered from a cache, whatever the fetch size */
+                    advisor.record( rowCount, fetchSize != PhaseClock.NOT_PREPARED ? elapsed : -1L, fetchSize > 0 );
+                }
+            }
+
+            if ( failure != null ) {
+                /* Failures are rare, so they are categorized on the calling thread even when recorded asynchronously */
+                instrumentation.recordFailure( failure, elapsed );
+            }
+
+            if ( timed ) {
+                if ( clock != null && completed ) {
+                    /* No statement reached the database, so the result came from the local or second level cache */
+                    instrumentation.recordCacheOutcome( clock.getExecutions() == executions, elapsed );
+                }
+                if ( instrumentation.isSlow( elapsed ) ) {
+                    captureSlowStatement( invocation, elapsed );
+                }
+            }
+        }
+    }
+
+    /**
+     * Times one phase of the statement. Phases can nest - result mapping may run nested selects, which are not
+     * intercepted on the executor level, but whose phases are - so only the time not spent in nested phases is
+     * attributed to each phase.
+     * <p/>
+     * Executions are counted even when phases are not timed, since that is how cache hits are detected. With
+     * fingerprints enabled, executions are also timed per fingerprint of the SQL taken from the statement handler.
+     * Adding to a batch does not run anything, so it is not timed per fingerprint.
+     * <p/>
+     * Selects are counted per session here too, when N+1 sessions are detected, since nested selects and lazy loads
+     * are not seen on the executor level. With the fetch size advisor enabled, the fetch size set when preparing is
+     * handed to the select being intercepted on the executor level, so that it is timed by the fetch size it really
+     * ran with.
+     */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    private Object interceptPhase( @Nonnull Invocation invocation, @Nonnull StatementPhase phase ) throws Throwable {
+        PhaseClock clock = PhaseClock.current();
+        InstrumentationSettings current = getSettings();
+        boolean fingerprint = false;
+        boolean watchFetchSize = phase == StatementPhase.PREPARE && current.isFetchSizeAdvisor();
+        NPlusOneDetector detector = null;
+
+        if ( phase == StatementPhase.EXECUTE ) {
+            String methodName = invocation.getMethod().getName();
+            clock.countExecution();
+            fingerprint = current.isFingerprints() && !BATCH_METHOD.equals( methodName );
+            detector = current.isNPlusOneDetection() && QUERY_METHOD.equals( methodName ) ? getNPlusOneDetector()
+                                                                                          : null;
+        }
+        if ( !current.isPhaseTimers() && !fingerprint && !watchFetchSize && detector == null ) {
             return invocation.proceed();
         }
+
+        MappedStatement statement = statementLocator.locate( invocation.getTarget() );
+
+        if ( statement == null ) {
+            return invocation.proceed();
+        }
+
+        BasicInstrumentation instrumentation = getInstrumentation( statement );
+        Timer fingerprintTimer = fingerprint ? getFingerprintTimer( instrumentation, invocation ) : null;
+
+        if ( detector != null ) {
+            detector.enter( invocation.getTarget(), statement, instrumentation );
+        }
+
+        clock.enter();
+        long start = System.nanoTime();
+
+        try {
+            Object result = invocation.proceed();
+
+            if ( watchFetchSize ) {
+                clock.countPrepare( applyFetchSize( instrumentation, statement, result ) );
+            }
+            return result;
+        }
+        finally {
+            long elapsed = clock.exit( System.nanoTime() - start );
+            instrumentation.recordPhase( phase, elapsed );
+
+            if ( detector != null ) {
+                detector.exit();
+            }
+
+            if ( fingerprintTimer != null ) {
+                fingerprintTimer.update( elapsed, TimeUnit.NANOSECONDS );
+            }
+        }
+    }
+
+    /**
+     * Sets the recommended fetch size on the JDBC statement that was just prepared, unless the mapped statement sets
+     * one. Drivers may refuse it, which is not worth failing the statement for.
+     *
+     * @return fetch size that was set, zero if none was
+     */
+    private static int applyFetchSize( @Nonnull BasicInstrumentation instrumentation,
+                                        @Nonnull MappedStatement statement,
+                                        @Nullable Object prepared ) {
+        FetchSizeAdvisor advisor = instrumentation.getFetchSizeAdvisor();
+        int fetchSize = advisor != null ? advisor.fetchSizeFor( statement ) : 0;
+
+        if ( fetchSize > 0 && prepared instanceof Statement ) {
+            try {
+                ( (Statement) prepared ).setFetchSize( fetchSize );
+                return fetchSize;
+            }
+            catch ( SQLException e ) {
+                LOGGER.debug( "Unable to set fetch size {} for {}", fetchSize, statement.getId(), e );
+            }
+        }
+        return 0;
+    }
+
+    @Nullable
+    private static Timer getFingerprintTimer( @Nonnull BasicInstrumentation instrumentation,
+                                              @Nonnull Invocation invocation ) {
+        BoundSql boundSql = ( (StatementHandler) invocation.getTarget() ).getBoundSql();
+        return boundSql != null && boundSql.getSql() != null ? instrumentation.fingerprintTimer( boundSql.getSql() )
+                                                              : null;
+    }
+
+    /**
+     * Batched statements are executed when they are flushed, and the executor's <code>update()</code> returns right
+     * away. Flushes are timed and attributed to the batched statements by {@link BatchInstrumentation}.
+     * <p/>
+     * Only flushes that go through the intercepted executor are seen here, including the ones before commits. The
+     * batch executor also flushes on its own before every select, which is then part of the time of the select, and
+     * discards pending statements on rollback and close. Such flushes are not attributed to the batched statements.
+     */
+    private Object interceptFlush( @Nonnull Invocation invocation ) throws Throwable {
+        long start = System.nanoTime();
+        List<BatchResult> results;
+
+        try {
+            @SuppressWarnings( "unchecked" )
+            List<BatchResult> proceeded = (List<BatchResult>) invocation.proceed();
+            results = proceeded;
+        }
         catch ( Throwable e ) {
-            instrumentation.markFailed();
+            recordFailedFlush( e, System.nanoTime() - start );
             throw e;
         }
+
+        getBatchInstrumentation().record( results, System.nanoTime() - start, false );
+        return results;
+    }
+
+    /**
+     * Commit flushes the executor too, but it does so internally and discards the results. To see them, pending
+     * statements are flushed right before the commit - which then has nothing left to flush. Other executors than
+     * the batch one have nothing to flush and cost only a method call.
+     */
+    private Object interceptCommit( @Nonnull Invocation invocation ) throws Throwable {
+        Executor executor = (Executor) invocation.getTarget();
+        long start = System.nanoTime();
+        List<BatchResult> results;
+
+        try {
+            results = executor.flushStatements();
+        }
+        catch ( Throwable e ) {
+            recordFailedFlush( e, System.nanoTime() - start );
+            throw e;
+        }
+
+        getBatchInstrumentation().record( results, System.nanoTime() - start, false );
+        return invocation.proceed();
+    }
+
+    /** Closing the executor ends the session, so whatever was counted for N+1 detection is dropped */
+    private Object interceptClose( @Nonnull Invocation invocation ) throws Throwable {
+        NPlusOneDetector detector = nPlusOneDetector;
+
+        try {
+            return invocation.proceed();
+        }
+        finally {
+            if ( detector != null ) {
+                detector.close( invocation.getTarget() );
+            }
+        }
+    }
+
+    /** Batches executed before the failing one are still attributed to their statements */
+    private void recordFailedFlush( @Nonnull Throwable e, long elapsedNanos ) {
+        Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+        List<BatchResult> successful = cause instanceof BatchExecutorException
+                                       ? ( (BatchExecutorException) cause ).getSuccessfulBatchResults()
+                                       : Collections.<BatchResult>emptyList();
+
+        getBatchInstrumentation().record( successful, elapsedNanos, true );
+    }
+
+    /**
+     * Slow statements are captured as-is, without rendering anything on the calling thread. Only invocations that
+     * are timed can be captured, so with sampling enabled some slow invocations will be missed.
+     */
+    private void captureSlowStatement( @Nonnull Invocation invocation, long elapsedNanos ) {
+        if ( !firstArgumentIsMappedStatement( invocation ) ) {
+            return;
+        }
+
+        Object[] args = invocation.getArgs();
+        BoundSql boundSql = args.length > 5 && args[ 5 ] instanceof BoundSql ? (BoundSql) args[ 5 ] : null;
+        slowStatementLog.record( (MappedStatement) args[ 0 ], args.length > 1 ? args[ 1 ] : null, boundSql,
+                                 elapsedNanos );
     }
 
     /**
@@ -88,13 +498,25 @@ public class InstrumentingInterceptor implements Interceptor {
      * that the original intent was to allow plugins to enhance (or 'plug into') these objects. It also appears that
      * there is an expectation to return the enhanced object.
      * <p/>
-     * This class doesn't need to do that, so it just returns what it was given.
+     * Executors are always wrapped. Statement, parameter and result set handlers are wrapped only when phase timers
+     * are enabled, since they are created for every statement execution. Cache metrics, fingerprints, applying
+     * the recommended fetch size and N+1 detection need only statement handlers. Everything else is returned as it
+     * was given.
      */
     @Override
     @ExpectedPerformanceProfile( path = Path.COLD )
     public Object plugin( Object target ) {
-        LOGGER.trace( "{}#plugin(): ", getClass().getSimpleName(), target.getClass().getName() );
-        return Plugin.wrap( target, this );
+        LOGGER.trace( "{}#plugin(): {}", getClass().getSimpleName(), target );
+        return shouldWrap( target ) ? Plugin.wrap( target, this ) : target;
+    }
+
+    /** Tells whether {@link #plugin(Object)} should wrap given object with a proxy */
+    boolean shouldWrap( @Nullable Object target ) {
+        InstrumentationSettings current = getSettings();
+        return target instanceof Executor || //
+               current.isPhaseTimers() || //
+               ( ( current.isCacheMetrics() || current.isFingerprints() || current.isFetchSizeAdvisor() ||
+                   current.isNPlusOneDetection() ) && target instanceof StatementHandler );
     }
 
     /**
@@ -103,36 +525,412 @@ public class InstrumentingInterceptor implements Interceptor {
      * to the instance. Appears to be called only once, right after instanitation (this may change in future
      * versions, of course).
      * <p/>
-     * Since this plugin does not need any configuration (yet), invoking this method has no effect.
+     * Properties recognized by {@link InstrumentationSettings} override the settings this instance was created
+     * with. Since the settings are applied when instrumentation is created, all cached instrumentation is dropped.
      */
     @Override
     @ExpectedPerformanceProfile( path = Path.COLD )
     public void setProperties( Properties properties ) {
         LOGGER.trace( "{}#setProperties( {} )", getClass().getSimpleName(), properties );
+
+        if ( properties == null ) {
+            return;
+        }
+
+        this.settings = InstrumentationSettings.builder( settings ).properties( properties ).build();
+        stopAsyncRecorder();
+        stopIdleStatementEvictor();
+        this.slowStatementLog = new SlowStatementLog( settings );
+        this.invalidInvocationInstrumentation = null;
+        this.overflowInstrumentation = null;
+        this.batchInstrumentation = null;
+        this.nPlusOneDetector = null;
+        this.instrumentationCache.clear();
     }
 
     /**
-     * Retrieves or creates an instance of {@link BasicInstrumentation} to be used. Code on hot
-     * path.
+     * Retrieves or creates an instance of {@link BasicInstrumentation} to be used. Code on hot path.
+     * <p/>
+     * Instances are cached per {@link MappedStatement}, which means that {@link #deriveMetricName(Invocation)} is
+     * called only the first time a statement is seen. Invocations that do not carry a MappedStatement all share one
+     * instance that uses {@link #INVALID_INVOCATION_METRIC_NAME}, and so do statements seen after the configured
+     * maximum number of statements was reached, under {@link #OVERFLOW_METRIC_NAME}.
      */
     @Nonnull
     @ExpectedPerformanceProfile( path = Path.HOT )
     protected BasicInstrumentation getInstrumentation( @Nonnull Invocation invocation ) {
-        /* So here's the deal, class for Invocation does not override .hashCode() method, which means
-         * that if we wanted to create a cache for instances of BasicInstrumentation (one instance
-         * of BasicInstrumentation per one mapper method), we would have to calculate its identity
-         * on each invocation of this method. While doing so on just hash codes of the method (part
-         * of Invocation instance) and its containing class, it would be also beneficial to go through
-         * method arguments... which all in all is quite a bit of work just to reuse instances of
-         * BasicInstrumentation that frankly I'd like to avoid (it's messy and it's not our ultimate
-         * objective). While this might change once this code is profiled, for now let's just
-         * create new instance of BasicInstrumentation and use it as if it came from cache.
-         *
-         * Basically using cache vs. creating instances would come down to what is faster. However,
-         * considering where this library is right now, let's just do what is simpler.
-         */
+        if ( !firstArgumentIsMappedStatement( invocation ) ) {
+            return getInvalidInvocationInstrumentation( invocation );
+        }
+
+        MappedStatement statement = (MappedStatement) invocation.getArgs()[ 0 ];
+        BasicInstrumentation instrumentation = instrumentationCache.get( statement );
+
+        if ( instrumentation == null ) {
+            instrumentation = isStatementLimitReached()
+                              ? getOverflowInstrumentation()
+                              : cacheStatementInstrumentation( statement, deriveMetricName( invocation ) );
+        }
+
+        return instrumentation;
+    }
+
+    /**
+     * Looks up the instrumentation and marks the start of the invocation. Looks it up again if it was evicted in the
+     * meantime, which gets new metrics if it is not cached anymore. Has to be followed by
+     * {@link BasicInstrumentation#exit()}.
+     */
+    @Nonnull
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    private BasicInstrumentation enter( @Nonnull Invocation invocation ) {
+        BasicInstrumentation instrumentation = getInstrumentation( invocation );
+
+        while ( !instrumentation.enter() ) {
+            instrumentation = getInstrumentation( invocation );
+        }
+
+        return instrumentation;
+    }
+
+    /**
+     * Same as {@link #getInstrumentation(Invocation)}, for invocations of handlers. Statements seen here first, such
+     * as nested selects that do not go through the intercepted executor, are named by the {@link MetricNameStrategy}
+     * without consulting {@link #deriveMetricName(Invocation)}.
+     */
+    @Nonnull
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    private BasicInstrumentation getInstrumentation( @Nonnull MappedStatement statement ) {
+        BasicInstrumentation instrumentation = instrumentationCache.get( statement );
+
+        if ( instrumentation == null ) {
+            instrumentation = isStatementLimitReached()
+                              ? getOverflowInstrumentation()
+                              : cacheStatementInstrumentation( statement,
+                                                               getSettings().getNameStrategy()
+                                                                            .deriveMetricName( statement ) );
+        }
+
+        return instrumentation;
+    }
+
+    /** Same as {@link #cacheInstrumentation}, statements over the limit share the overflow instrumentation */
+    @Nonnull
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    private BasicInstrumentation cacheStatementInstrumentation( @Nonnull MappedStatement statement,
+                                                                @Nonnull String baseMetricName ) {
+        BasicInstrumentation instrumentation = cacheInstrumentation( statement, baseMetricName, statement );
+        return instrumentation != null ? instrumentation : getOverflowInstrumentation();
+    }
+
+    /**
+     * Creates and caches instrumentation for a statement seen for the first time. Holds the lock of the cache, so
+     * that the {@link IdleStatementEvictor} cannot unregister the metrics while they are handed out. The name is
+     * derived before that, since it may call overridden code.
+     *
+     * @return null if the limit of statements was reached
+     */
+    @Nullable
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    private BasicInstrumentation cacheInstrumentation( @Nonnull Object key,
+                                                       @Nonnull String baseMetricName,
+                                                       @Nullable MappedStatement statement ) {
+        if ( getSettings().getStatementIdleTtlNanos() != Long.MAX_VALUE && idleStatementEvictor == null ) {
+            startIdleStatementEvictor();
+        }
+
+        synchronized ( instrumentationCache ) {
+            BasicInstrumentation instrumentation = instrumentationCache.get( key );
+
+            if ( instrumentation == null ) {
+                if ( isStatementLimitReached() ) {
+                    return null;
+                }
+
+                instrumentation = createInstrumentation( baseMetricName, statement );
+                instrumentationCache.putIfAbsent( key, instrumentation );
+            }
+
+            return instrumentation;
+        }
+    }
+
+    private boolean isStatementLimitReached() {
+        return instrumentationCache.size() >= getSettings().getMaxStatements();
+    }
+
+    @Nonnull
+    private BasicInstrumentation getOverflowInstrumentation() {
+        BasicInstrumentation instrumentation = overflowInstrumentation;
+
+        if ( instrumentation == null ) {
+            LOGGER.warn( "Reached the limit of {} instrumented statements, statements seen from now on share metric " +
+                         "'{}'", getSettings().getMaxStatements(), OVERFLOW_METRIC_NAME );
+            instrumentation = createInstrumentation( OVERFLOW_METRIC_NAME, null );
+            overflowInstrumentation = instrumentation;
+        }
+
+        return instrumentation;
+    }
+
+    @Nonnull
+    private BasicInstrumentation getInvalidInvocationInstrumentation( @Nonnull Invocation invocation ) {
+        BasicInstrumentation instrumentation = invalidInvocationInstrumentation;
+
+        if ( instrumentation == null ) {
+            instrumentation = createInstrumentation( deriveMetricName( invocation ), null );
+            invalidInvocationInstrumentation = instrumentation;
+        }
+
+        return instrumentation;
+    }
+
+    /** Returns the recorder to pass invocations to, or null if they should be recorded right away */
+    @Nullable
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    private AsyncRecorder getAsyncRecorder() {
+        AsyncRecorder recorder = asyncRecorder;
+
+        if ( recorder == null && getSettings().isAsync() ) {
+            recorder = startAsyncRecorder();
+        }
+
+        return recorder;
+    }
+
+    @Nullable
+    private synchronized AsyncRecorder startAsyncRecorder() {
+        if ( asyncRecorder == null && !closed && getSettings().isAsync() ) {
+            AsyncRecorder recorder = new AsyncRecorder( getRegistry(), getSettings().getAsyncCapacity() );
+            recorder.start();
+            asyncRecorder = recorder;
+        }
+
+        return asyncRecorder;
+    }
+
+    @Nonnull
+    private NPlusOneDetector getNPlusOneDetector() {
+        NPlusOneDetector detector = nPlusOneDetector;
+        return detector != null ? detector : startNPlusOneDetector();
+    }
+
+    /** Not racy like the instrumentation above, since sessions counted by a detector that got replaced are lost */
+    @Nonnull
+    private synchronized NPlusOneDetector startNPlusOneDetector() {
+        if ( nPlusOneDetector == null ) {
+            nPlusOneDetector = new NPlusOneDetector( getSettings().getNPlusOneThreshold(),
+                                                     getRegistry().counter( N_PLUS_ONE_METRIC_NAME ),
+                                                     getRegistry().counter( N_PLUS_ONE_UNTRACKED_METRIC_NAME ) );
+        }
+
+        return nPlusOneDetector;
+    }
+
+    private synchronized void stopAsyncRecorder() {
+        AsyncRecorder recorder = asyncRecorder;
+        asyncRecorder = null;
+
+        if ( recorder != null ) {
+            recorder.close();
+        }
+    }
+
+    private synchronized void startIdleStatementEvictor() {
+        if ( idleStatementEvictor == null && !closed ) {
+            IdleStatementEvictor.Listener listener = new IdleStatementEvictor.Listener() {
+                @Override
+                public void evicted( @Nonnull List<Object> statements ) {
+                    evictBatchMetrics( statements );
+                }
+            };
+            IdleStatementEvictor evictor = new IdleStatementEvictor( getRegistry(),
+                                                                     instrumentationCache,
+                                                                     getSettings().getStatementIdleTtlNanos(),
+                                                                     listener );
+            evictor.start();
+            idleStatementEvictor = evictor;
+        }
+    }
+
+    private synchronized void stopIdleStatementEvictor() {
+        IdleStatementEvictor evictor = idleStatementEvictor;
+        idleStatementEvictor = null;
+
+        if ( evictor != null ) {
+            evictor.close();
+        }
+    }
+
+    private void evictBatchMetrics( @Nonnull List<Object> statements ) {
+        BatchInstrumentation instrumentation = batchInstrumentation;
+
+        if ( instrumentation != null ) {
+            instrumentation.evict( statements );
+        }
+    }
+
+    /**
+     * Stops the background threads: the one used when recording asynchronously, after folding the invocations that
+     * are still queued into the metrics, and the one evicting idle statements. Invocations after this are recorded
+     * synchronously and idle statements are no longer evicted. Does nothing if neither is enabled.
+     * <p/>
+     * Queued invocations are also folded in on JVM shutdown, so calling this is needed only to stop the threads
+     * earlier, e.g. when the application is redeployed.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        stopAsyncRecorder();
+        stopIdleStatementEvictor();
+    }
+
+    @Nonnull
+    private BatchInstrumentation getBatchInstrumentation() {
+        BatchInstrumentation instrumentation = batchInstrumentation;
+
+        if ( instrumentation == null ) {
+            MetricFactory factory = new MetricFactory( getRegistry(), getSettings() );
+            instrumentation = new BatchInstrumentation( factory, lookup );
+            batchInstrumentation = instrumentation;
+        }
+
+        return instrumentation;
+    }
+
+    @Nonnull
+    private BasicInstrumentation createInstrumentation( @Nonnull String baseMetricName,
+                                                        @Nullable MappedStatement statement ) {
+        if ( statement != null && getSettings().isCacheMetrics() ) {
+            instrumentCache( statement );
+        }
+
+        return new BasicInstrumentation( new MetricFactory( getRegistry(), getSettings() ),
+                                         baseMetricName,
+                                         statement );
+    }
+
+    /**
+     * Decorates the cache of given statement with {@link InstrumentedCache}, together with all other statements of
+     * the configuration that share the cache (through <code>cache-ref</code>). They have to get the same decorator at
+     * once - MyBatis keeps transactional state per cache instance, and would not see the decorator and the cache as
+     * the same cache if statements that are not instrumented, e.g. over the limit of statements, kept the latter.
+     * <p/>
+     * Runs before the statement is executed for the first time, so even its first lookup goes through the decorator.
+     */
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    private void instrumentCache( @Nonnull MappedStatement statement ) {
+        synchronized ( instrumentedCaches ) {
+            Cache cache = statement.getCache();
+
+            if ( cache == null || cache instanceof InstrumentedCache ) {
+                return;
+            }
+
+            InstrumentedCache instrumented = instrumentedCaches.get( cache.getId() );
+            if ( instrumented == null || instrumented.getDelegate() != cache ) {
+                instrumented = new InstrumentedCache( cache, getRegistry() );
+                instrumentedCaches.put( cache.getId(), instrumented );
+            }
+
+            replaceCache( statement, instrumented );
+            for ( Object value : getMappedStatements( statement.getConfiguration() ) ) {
+                if ( value instanceof MappedStatement && ( (MappedStatement) value ).getCache() == cache ) {
+                    replaceCache( (MappedStatement) value, instrumented );
+                }
+            }
+        }
+    }
+
+    private static void replaceCache( @Nonnull MappedStatement statement, @Nonnull InstrumentedCache instrumented ) {
+        /* MappedStatement has no setter for its cache, MetaObject falls back to the field */
+        SystemMetaObject.forObject( statement ).setValue( "cache", instrumented );
+    }
+
+    /**
+     * Returns all statements of the configuration, which builds the pending ones first. If that fails, statements
+     * sharing a cache get it decorated only once they are invoked themselves.
+     */
+    @Nonnull
+    private static Collection<?> getMappedStatements( @Nullable Configuration configuration ) {
+        try {
+            return configuration != null ? configuration.getMappedStatements() : Collections.emptyList();
+        }
+        catch ( RuntimeException e ) {
+            LOGGER.debug( "Unable to list statements sharing a cache, they will be decorated once invoked", e );
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Creates instrumentation for all statements of given configuration up front, so that their first invocations do
+     * not pay for creating and registering the metrics. Also warms up the invocation path, if configured with
+     * {@link InstrumentationSettings#WARM_UP_ITERATIONS_PROPERTY}. Has to be called after the configuration is
+     * complete - e.g. right after building the SqlSessionFactory, see {@link StatementPreregistration}.
+     * <p/>
+     * Names are derived by {@link #deriveMetricName(Invocation)}, as if the statements were invoked. Statements above
+     * {@link InstrumentationSettings#MAX_STATEMENTS_PROPERTY} are skipped.
+     *
+     * @return number of distinct statements in the configuration
+     */
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    public int preregister( @Nonnull Configuration configuration ) {
+        Set<MappedStatement> statements = Collections.newSetFromMap( new IdentityHashMap<MappedStatement, Boolean>() );
+
+        /* Statements are also stored under their short names, which map to a placeholder when ambiguous */
+        for ( Object value : configuration.getMappedStatements() ) {
+            if ( !( value instanceof MappedStatement ) || !statements.add( (MappedStatement) value ) ) {
+                continue;
+            }
+
+            MappedStatement statement = (MappedStatement) value;
+            if ( instrumentationCache.get( statement ) == null && !isStatementLimitReached() ) {
+                cacheStatementInstrumentation( statement, deriveStatementMetricName( statement ) );
+            }
+        }
 
-        return new BasicInstrumentation( getRegistry(), deriveMetricName( invocation ) );
+        LOGGER.debug( "Preregistered metrics of {} statement(s)", statements.size() );
+
+        if ( getSettings().getWarmUpIterations() > 0 ) {
+            InterceptorWarmUp.run( getSettings(), getSettings().getWarmUpIterations() );
+        }
+
+        return statements.size();
+    }
+
+    /**
+     * Records overloaded methods of mappers known to given configuration separately, under
+     * <code>&lt;statement metric name&gt;.overload.&lt;argument types&gt;</code>. MyBatis runs all overloads as one
+     * statement, so the interceptor alone cannot tell them apart. Has to be called after all mappers are added to the
+     * configuration and before mapper instances are created - e.g. right after building the SqlSessionFactory.
+     *
+     * @return number of mappers with overloaded methods
+     */
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    public int instrumentOverloadedMappers( @Nonnull Configuration configuration ) {
+        return InstrumentedMapperProxyFactory.install( configuration, lookup );
+    }
+
+    /**
+     * Records which property of which result type triggered each lazy load, and how long it took, under
+     * <code>&lt;statement metric name&gt;.lazyLoad.&lt;result type&gt;.&lt;property&gt;</code> of the statement that
+     * loaded it. Has to be called after the proxy factory is configured and before result objects are created - e.g.
+     * right after building the SqlSessionFactory.
+     *
+     * @return false if lazy loading of given configuration was instrumented already
+     */
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    public boolean instrumentLazyLoading( @Nonnull Configuration configuration ) {
+        MetricFactory factory = new MetricFactory( getRegistry(), getSettings() );
+        return InstrumentedProxyFactory.install( configuration, factory );
+    }
+
+    /**
+     * Returns the log of slow statements. The instance is replaced when {@link #setProperties(Properties)} is
+     * called, so it should be retrieved after MyBatis is configured.
+     */
+    @Nonnull
+    public SlowStatementLog getSlowStatementLog() {
+        return slowStatementLog;
     }
 
     /** Returns instance of MetricRegistry for child classes. */
@@ -140,8 +938,15 @@ public class InstrumentingInterceptor implements Interceptor {
         return metricRegistry;
     }
 
+    /** Returns current settings for child classes. */
+    @Nonnull
+    protected InstrumentationSettings getSettings() {
+        return settings;
+    }
+
     /**
-     * Used to determine metric names. Override this method if you want to implement a custom name template
+     * Used to determine metric names. Uses {@link MetricNameStrategy} from the settings - that is the preferred way
+     * to implement a custom name template, but overriding this method works too.
      * <p/>
      * When we get instance of Invocation, the value in {@link Invocation#target} is an implementation of
      * {@link org.apache.ibatis.executor.Executor}, it's {@link Invocation#method} is one of {@link Executor#query}
@@ -154,12 +959,14 @@ public class InstrumentingInterceptor implements Interceptor {
      * annotation {@link org.apache.ibatis.plugin.Intercepts}.
      * <p/>
      * Remember that we're basically using a private API that can change at any time for any reason!
+     * <p/>
+     * The result is cached for each MappedStatement, so this method is not called on every invocation.
      */
     protected String deriveMetricName( Invocation invocation ) {
         /* ...and here we have some black magic that we love MyBatis for... */
         if ( firstArgumentIsMappedStatement( invocation ) ) {
             MappedStatement statement = (MappedStatement) invocation.getArgs()[ 0 ];
-            return statement.getId();
+            return getSettings().getNameStrategy().deriveMetricName( statement );
         }
 
         /* Well, we're fsck'd. We can't make any assumptions on the argument names, so we don't know what is
@@ -168,10 +975,43 @@ public class InstrumentingInterceptor implements Interceptor {
          * in the future
          */
         LOGGER.warn( "Received invocation for unknown or invalid target. Did MyBatis implementation change? I'll " +
-                     "use metric name '" + INVALID_INVOCATION_METRIC_NAME + "' instead." );
+                     "use metric name '{}' instead.", INVALID_INVOCATION_METRIC_NAME );
         return INVALID_INVOCATION_METRIC_NAME;
     }
 
+    /** Derives the name of a statement invoked outside of the intercepted methods, as if it was invoked by them */
+    @Nonnull
+    private String deriveStatementMetricName( @Nonnull MappedStatement statement ) {
+        return deriveMetricName( new Invocation( null, null, new Object[] { statement } ) );
+    }
+
+    /**
+     * Replaces the result handler of a select with one that records time to the first row and rows handled, if the
+     * statement records them. Returns the replacement, or null if there was nothing to replace.
+     */
+    @Nullable
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    private static InstrumentedResultHandler wrapResultHandler( @Nonnull Invocation invocation,
+                                                                @Nonnull BasicInstrumentation instrumentation ) {
+        if ( !instrumentation.tracksResultHandlers() || !hasResultHandler( invocation ) ) {
+            return null;
+        }
+
+        Object[] args = invocation.getArgs();
+        InstrumentedResultHandler wrapped = instrumentation.wrapResultHandler( (ResultHandler) args[ 3 ],
+                                                                               System.nanoTime() );
+
+        /* The arguments are copied for every call of the proxy, so nobody else sees the replacement */
+        args[ 3 ] = wrapped;
+        return wrapped;
+    }
+
+    /** Queries given a ResultHandler pass the rows to it and return nothing useful, so their rows are not counted. */
+    private static boolean hasResultHandler( @Nonnull Invocation invocation ) {
+        Object[] args = invocation.getArgs();
+        return args != null && args.length > 3 && args[ 3 ] instanceof ResultHandler;
+    }
+
     protected boolean firstArgumentIsMappedStatement( Invocation invocation ) {
         return invocation != null && //
                invocation.getArgs() != null && //
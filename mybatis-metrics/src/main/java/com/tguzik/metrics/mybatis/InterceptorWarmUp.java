@@ -0,0 +1,89 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.codahale.metrics.MetricRegistry;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs synthetic queries through a throwaway interceptor, so that the JIT compiles the code on the invocation path
+ * before the first real invocations arrive. The throwaway interceptor has the same settings but its own registry and
+ * its own statement, so none of the real metrics are touched. The executor it calls does nothing.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+final class InterceptorWarmUp {
+    private static final Logger LOGGER = LoggerFactory.getLogger( InterceptorWarmUp.class );
+
+    private InterceptorWarmUp() {
+    }
+
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    public static void run( @Nonnull InstrumentationSettings settings, int iterations ) {
+        InstrumentingInterceptor interceptor = new InstrumentingInterceptor( new MetricRegistry(), settings );
+        long start = System.nanoTime();
+
+        try {
+            Invocation invocation = createInvocation();
+
+            for ( int i = 0; i < iterations; i++ ) {
+                interceptor.intercept( invocation );
+            }
+
+            LOGGER.debug( "Warmed up with {} invocations in {} ms",
+                          iterations,
+                          ( System.nanoTime() - start ) / 1000000L );
+        }
+        catch ( Throwable e ) {
+            /* Warm-up is an optimization, it must not break the application */
+            LOGGER.warn( "Warm-up failed", e );
+        }
+        finally {
+            interceptor.close();
+        }
+    }
+
+    @Nonnull
+    private static Invocation createInvocation() throws NoSuchMethodException {
+        Configuration configuration = new Configuration();
+        MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                 "mybatis-metrics.warmUp",
+                                                                 new StaticSqlSource( configuration, "select 1" ),
+                                                                 SqlCommandType.SELECT ).build();
+        Executor executor = (Executor) Proxy.newProxyInstance( Executor.class.getClassLoader(),
+                                                               new Class<?>[] { Executor.class },
+                                                               new InvocationHandler() {
+                                                                   @Override
+                                                                   public Object invoke( Object proxy,
+                                                                                         Method method,
+                                                                                         Object[] args ) {
+                                                                       return null;
+                                                                   }
+                                                               } );
+        Method query = Executor.class.getMethod( "query",
+                                                 MappedStatement.class,
+                                                 Object.class,
+                                                 RowBounds.class,
+                                                 ResultHandler.class,
+                                                 CacheKey.class,
+                                                 BoundSql.class );
+
+        return new Invocation( executor, query, new Object[] { statement, null, RowBounds.DEFAULT, null, null, null } );
+    }
+}
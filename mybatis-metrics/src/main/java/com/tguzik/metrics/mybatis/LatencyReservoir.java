@@ -0,0 +1,16 @@
+package com.tguzik.metrics.mybatis;
+
+/**
+ * Determines how the distribution of latencies (and other sampled values) is recorded.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public enum LatencyReservoir {
+    /** Default. Whatever {@link com.codahale.metrics.MetricRegistry} creates for timers and histograms. */
+    DEFAULT,
+
+    /**
+     * Lock-free {@link HdrHistogramReservoir}, reset after each snapshot. Requires HdrHistogram on the classpath.
+     */
+    HDR_HISTOGRAM
+}
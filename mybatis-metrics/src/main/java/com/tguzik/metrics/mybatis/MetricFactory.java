@@ -0,0 +1,111 @@
+package com.tguzik.metrics.mybatis;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Timer;
+
+/**
+ * Creates (or looks up) metrics in the registry the way current {@link InstrumentationSettings} say they should be
+ * created. This is the only place that should know about the implementation of timers and histograms.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@Immutable
+final class MetricFactory {
+    private final MetricRegistry registry;
+    private final InstrumentationSettings settings;
+
+    public MetricFactory( @Nonnull MetricRegistry registry, @Nonnull InstrumentationSettings settings ) {
+        this.registry = registry;
+        this.settings = settings;
+    }
+
+    @Nonnull
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    @Nonnull
+    public InstrumentationSettings getSettings() {
+        return settings;
+    }
+
+    @Nonnull
+    public Counter counter( @Nonnull String name ) {
+        return registry.counter( name );
+    }
+
+    @Nonnull
+    public Meter meter( @Nonnull String name ) {
+        return registry.meter( name );
+    }
+
+    @Nonnull
+    public Timer timer( @Nonnull String name ) {
+        if ( settings.getLatencyReservoir() == LatencyReservoir.DEFAULT ) {
+            return registry.timer( name );
+        }
+
+        return register( name, new Timer( latencyReservoir() ), Timer.class );
+    }
+
+    /** Creates a histogram of counts, such as the number of rows. */
+    @Nonnull
+    public Histogram histogram( @Nonnull String name ) {
+        if ( settings.getLatencyReservoir() == LatencyReservoir.DEFAULT ) {
+            return registry.histogram( name );
+        }
+
+        return register( name,
+                         new Histogram( new HdrHistogramReservoir( 1, Integer.MAX_VALUE,
+                                                                   settings.getHdrSignificantDigits() ) ),
+                         Histogram.class );
+    }
+
+    /**
+     * Creates a timer that can count events without measuring their duration.
+     *
+     * @return null if the name is already taken by another metric, e.g. by a timer that times every event
+     */
+    @Nullable
+    public SampledTimer sampledTimer( @Nonnull String name ) {
+        Reservoir reservoir = settings.getLatencyReservoir() == LatencyReservoir.DEFAULT
+                              ? new ExponentiallyDecayingReservoir()
+                              : latencyReservoir();
+
+        try {
+            return register( name, new SampledTimer( reservoir ), SampledTimer.class );
+        }
+        catch ( IllegalArgumentException e ) {
+            return null;
+        }
+    }
+
+    /** Registers the metric, unless the name is already taken by a metric of the same type. */
+    @Nonnull
+    public <T extends Metric> T register( @Nonnull String name, @Nonnull T metric, @Nonnull Class<? super T> type ) {
+        return MetricRegistries.getOrRegister( registry, name, metric, type );
+    }
+
+    @Nonnull
+    private Reservoir latencyReservoir() {
+        /* Timers record nanoseconds. Anything below a microsecond is noise as far as SQL is concerned, and
+         * not tracking it saves quite a bit of memory.
+         */
+        return new HdrHistogramReservoir( MICROSECONDS.toNanos( 1 ),
+                                          MILLISECONDS.toNanos( settings.getHdrMaxMillis() ),
+                                          settings.getHdrSignificantDigits() );
+    }
+}
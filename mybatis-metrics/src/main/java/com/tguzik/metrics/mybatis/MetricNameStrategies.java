@@ -0,0 +1,126 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import java.util.Locale;
+
+import org.apache.ibatis.mapping.MappedStatement;
+
+/**
+ * Built-in {@link MetricNameStrategy} implementations. Decorating strategies (<code>prefixed</code>,
+ * <code>withSqlCommandType</code>, <code>withDatabaseIdSuffix</code>) can be stacked on top of each other.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public final class MetricNameStrategies {
+    /** Property value selecting {@link #statementId()} */
+    public static final String STATEMENT_ID = "statement-id";
+
+    /** Property value selecting {@link #namespace()} */
+    public static final String NAMESPACE = "namespace";
+
+    /** Property value selecting {@link #withSqlCommandType(MetricNameStrategy)} on top of {@link #statementId()} */
+    public static final String STATEMENT_ID_AND_COMMAND_TYPE = "statement-id-and-command-type";
+
+    private static final MetricNameStrategy STATEMENT_ID_STRATEGY = new MetricNameStrategy() {
+        @Nonnull
+        @Override
+        public String deriveMetricName( @Nonnull MappedStatement statement ) {
+            return statement.getId();
+        }
+
+        @Override
+        public String toString() {
+            return STATEMENT_ID;
+        }
+    };
+
+    private static final MetricNameStrategy NAMESPACE_STRATEGY = new MetricNameStrategy() {
+        @Nonnull
+        @Override
+        public String deriveMetricName( @Nonnull MappedStatement statement ) {
+            String id = statement.getId();
+            int lastDot = id.lastIndexOf( '.' );
+            return lastDot > 0 ? id.substring( 0, lastDot ) : id;
+        }
+
+        @Override
+        public String toString() {
+            return NAMESPACE;
+        }
+    };
+
+    private MetricNameStrategies() {
+    }
+
+    /** Default. Full id of the statement, which usually is the mapper class name followed by the method name. */
+    @Nonnull
+    public static MetricNameStrategy statementId() {
+        return STATEMENT_ID_STRATEGY;
+    }
+
+    /** Namespace of the statement (usually the mapper class name), which rolls all statements of a mapper into one */
+    @Nonnull
+    public static MetricNameStrategy namespace() {
+        return NAMESPACE_STRATEGY;
+    }
+
+    /** Puts given prefix in front of the names returned by the delegate */
+    @Nonnull
+    public static MetricNameStrategy prefixed( @Nonnull final String prefix,
+                                               @Nonnull final MetricNameStrategy delegate ) {
+        return new MetricNameStrategy() {
+            @Nonnull
+            @Override
+            public String deriveMetricName( @Nonnull MappedStatement statement ) {
+                return name( prefix, delegate.deriveMetricName( statement ) );
+            }
+
+            @Override
+            public String toString() {
+                return "prefixed(" + prefix + ", " + delegate + ")";
+            }
+        };
+    }
+
+    /** Appends lowercase {@link org.apache.ibatis.mapping.SqlCommandType} to the names returned by the delegate */
+    @Nonnull
+    public static MetricNameStrategy withSqlCommandType( @Nonnull final MetricNameStrategy delegate ) {
+        return new MetricNameStrategy() {
+            @Nonnull
+            @Override
+            public String deriveMetricName( @Nonnull MappedStatement statement ) {
+                return name( delegate.deriveMetricName( statement ),
+                             statement.getSqlCommandType().name().toLowerCase( Locale.ENGLISH ) );
+            }
+
+            @Override
+            public String toString() {
+                return "withSqlCommandType(" + delegate + ")";
+            }
+        };
+    }
+
+    /**
+     * Appends the database id (see MyBatis' <code>databaseIdProvider</code>) to the names returned by the delegate.
+     * Statements without database id keep the name returned by the delegate.
+     */
+    @Nonnull
+    public static MetricNameStrategy withDatabaseIdSuffix( @Nonnull final MetricNameStrategy delegate ) {
+        return new MetricNameStrategy() {
+            @Nonnull
+            @Override
+            public String deriveMetricName( @Nonnull MappedStatement statement ) {
+                String baseName = delegate.deriveMetricName( statement );
+                String databaseId = statement.getDatabaseId();
+                return databaseId == null || databaseId.isEmpty() ? baseName : name( baseName, databaseId );
+            }
+
+            @Override
+            public String toString() {
+                return "withDatabaseIdSuffix(" + delegate + ")";
+            }
+        };
+    }
+}
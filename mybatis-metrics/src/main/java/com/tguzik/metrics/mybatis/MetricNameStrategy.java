@@ -0,0 +1,23 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+
+import org.apache.ibatis.mapping.MappedStatement;
+
+/**
+ * Determines the base metric name for a mapped statement. Names of specific metrics (e.g. <code>elapsed</code>) are
+ * appended to the base name.
+ * <p/>
+ * The strategy is called once per {@link MappedStatement} and the result is cached, so implementations do not need
+ * to be particularly fast. They do need to be thread safe and return the same name for the same statement. Several
+ * statements may share one name, in which case they will share the metrics too.
+ * <p/>
+ * Implementations configured through plugin properties need a public no-argument constructor. See
+ * {@link MetricNameStrategies} for the built-in ones.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public interface MetricNameStrategy {
+    @Nonnull
+    String deriveMetricName( @Nonnull MappedStatement statement );
+}
@@ -0,0 +1,70 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Helpers for registering metrics that {@link MetricRegistry} cannot create by itself, such as gauges or metrics
+ * with non-default implementation.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+final class MetricRegistries {
+    private MetricRegistries() {
+    }
+
+    /**
+     * Registers the metric under given name or, if there already is a metric of the same type with that name,
+     * returns the existing one. This mimics what {@link MetricRegistry#counter(String)} and friends do.
+     *
+     * @throws IllegalArgumentException
+     *         when the name is taken by a metric of a different type
+     */
+    @Nonnull
+    public static <T extends Metric> T getOrRegister( @Nonnull MetricRegistry registry,
+                                                      @Nonnull String name,
+                                                      @Nonnull T metric,
+                                                      @Nonnull Class<? super T> type ) {
+        try {
+            return registry.register( name, metric );
+        }
+        catch ( IllegalArgumentException e ) {
+            Metric existing = registry.getMetrics().get( name );
+
+            if ( type.isInstance( existing ) ) {
+                @SuppressWarnings( "unchecked" )
+                T result = (T) existing;
+                return result;
+            }
+
+            throw new IllegalArgumentException( name + " is already used for a different type of metric", e );
+        }
+    }
+
+    /**
+     * Unregisters given metric instances, whatever names they are registered under. Metrics are compared by
+     * identity, so a metric registered later under the same name is left alone.
+     */
+    public static void removeAll( @Nonnull MetricRegistry registry, @Nonnull Collection<? extends Metric> metrics ) {
+        if ( metrics.isEmpty() ) {
+            return;
+        }
+
+        final Set<Metric> removed = Collections.newSetFromMap( new IdentityHashMap<Metric, Boolean>() );
+        removed.addAll( metrics );
+
+        registry.removeMatching( new MetricFilter() {
+            @Override
+            public boolean matches( String name, Metric metric ) {
+                return removed.contains( metric );
+            }
+        } );
+    }
+}
@@ -0,0 +1,18 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.inject.Provider;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Provides the {@link MetricRegistry} to classes that MyBatis instantiates itself from XML configuration, when no
+ * provider is configured through the <code>metrics.registry.provider</code> property.
+ * <p/>
+ * Implementations are discovered with {@link java.util.ServiceLoader}: list the fully qualified class name in
+ * <code>META-INF/services/com.tguzik.metrics.mybatis.MetricRegistryProvider</code>. They need a public no-argument
+ * constructor and should return the same registry on every call.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public interface MetricRegistryProvider extends Provider<MetricRegistry> {
+}
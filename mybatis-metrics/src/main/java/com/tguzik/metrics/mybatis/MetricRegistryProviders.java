@@ -0,0 +1,103 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Provider;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.io.Resources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Obtains {@link MetricRegistry} for classes that MyBatis instantiates itself from XML configuration, and that have
+ * nothing but a class name of a {@link Provider} to go on, or a {@link MetricRegistryProvider} registered as a service.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+final class MetricRegistryProviders {
+    /** System or MyBatis property holding fully qualified class name of a Provider of MetricRegistry */
+    public static final String PROPERTY_NAME = "metrics.registry.provider";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( MetricRegistryProviders.class );
+
+    private MetricRegistryProviders() {
+    }
+
+    /**
+     * Looks up the registry through the provider named in the <code>metrics.registry.provider</code> system property
+     * and, if that is not set, through a {@link MetricRegistryProvider} registered as a service.
+     */
+    @Nullable
+    public static MetricRegistry lookUpDefault() {
+        String providerName = System.getProperty( PROPERTY_NAME );
+
+        if ( providerName == null || providerName.trim().isEmpty() ) {
+            return discover( Thread.currentThread().getContextClassLoader() );
+        }
+
+        return lookUp( "System property", providerName );
+    }
+
+    /**
+     * Returns the registry from the first {@link MetricRegistryProvider} found by {@link ServiceLoader} in given class
+     * loader. Returns null, after logging why, if there is none or it cannot be instantiated.
+     */
+    @Nullable
+    public static MetricRegistry discover( @Nullable ClassLoader classLoader ) {
+        try {
+            Iterator<MetricRegistryProvider> providers = ServiceLoader.load( MetricRegistryProvider.class,
+                                                                             classLoader ).iterator();
+            if ( !providers.hasNext() ) {
+                LOGGER.debug( "No {} service found.", MetricRegistryProvider.class.getName() );
+                return null;
+            }
+
+            MetricRegistryProvider provider = providers.next();
+            if ( providers.hasNext() ) {
+                LOGGER.warn( "More than one {} service found, using {}",
+                             MetricRegistryProvider.class.getName(),
+                             provider.getClass().getName() );
+            }
+
+            LOGGER.debug( "Using MetricRegistry provided by service '{}'", provider.getClass().getName() );
+            return provider.get();
+        }
+        catch ( ServiceConfigurationError e ) {
+            LOGGER.warn( "Unable to load MetricRegistryProvider service: {}", e.getMessage(), e );
+            return null;
+        }
+    }
+
+    /**
+     * Instantiates the provider and returns the registry it provides. Returns null, after logging why, if that is
+     * not possible.
+     *
+     * @param propertySource
+     *         where the class name came from, for logging
+     */
+    @Nullable
+    @SuppressWarnings( "unchecked" )
+    public static MetricRegistry lookUp( @Nonnull String propertySource, @Nullable String providerName ) {
+        if ( providerName == null || providerName.trim().isEmpty() ) {
+            LOGGER.debug( "{} '{}' was null or empty.", propertySource, PROPERTY_NAME );
+            return null;
+        }
+
+        LOGGER.debug( "Attempting to instantiate javax.inject.Provider<MetricRegistry> from class '{}'...",
+                      providerName );
+
+        try {
+            Class<Provider<MetricRegistry>> clazz = (Class<Provider<MetricRegistry>>) Resources.classForName(
+                    providerName.trim() );
+            return clazz.newInstance().get();
+        }
+        catch ( ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e ) {
+            LOGGER.warn( "Unable to instantiate MetricRegistry provider: {}", e.getMessage(), e );
+            return null;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.reflection.SystemMetaObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects N+1 selects: sessions in which one select runs over and over, typically once per row of another select -
+ * through a nested select of a result map, lazy loading or a loop in the calling code. Selects are counted per
+ * session, and when one runs more times than the threshold, the session is counted by the
+ * {@link NPlusOneInstrumentation} of that select, together with the statement that ran it. Sessions with at least
+ * one such select are also counted once in total.
+ * <p/>
+ * Nested selects and lazy loads do not go through the intercepted executor, so selects are counted by the statement
+ * handlers, and sessions are told apart by the executor that created the handler. The counts of a session are
+ * dropped when its executor is closed, or once it is garbage collected - executors are not kept alive by the
+ * detector, since they hold the local cache and the transaction of their session. Counts are looked up without
+ * locking, and each session is locked only by the thread using it. At most {@link #MAX_SESSIONS}
+ * sessions are tracked at a time. Selects of sessions started after that are not counted, but they are counted as
+ * untracked and logged, so that a detector which stopped detecting anything does not go unnoticed.
+ * <p/>
+ * The statement that ran a select is the one whose execution was in progress on the same thread - result mapping,
+ * which runs nested selects, is part of it.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class NPlusOneDetector {
+    static final int MAX_SESSIONS = 10000;
+    private static final Logger LOGGER = LoggerFactory.getLogger( NPlusOneDetector.class );
+
+    private final int threshold;
+    private final int maxSessions;
+    private final Counter totalSessions;
+    private final Counter untrackedSelects;
+    private final RateLimitedWarning untrackedWarning;
+    private final HandlerFieldLocator<Executor> executorLocator;
+    private final ConcurrentMap<ExecutorKey, Session> sessions;
+    private final ReferenceQueue<Object> collectedExecutors;
+    private final ThreadLocal<Running> running;
+
+    /**
+     * @param threshold
+     *         highest number of times a select may run in one session without it being counted
+     * @param totalSessions
+     *         counter of sessions with at least one select that ran too many times
+     * @param untrackedSelects
+     *         counter of selects that were not counted, since too many sessions were tracked already
+     */
+    public NPlusOneDetector( int threshold, @Nonnull Counter totalSessions, @Nonnull Counter untrackedSelects ) {
+        this( threshold, MAX_SESSIONS, totalSessions, untrackedSelects );
+    }
+
+    NPlusOneDetector( int threshold,
+                      int maxSessions,
+                      @Nonnull Counter totalSessions,
+                      @Nonnull Counter untrackedSelects ) {
+        this.threshold = threshold;
+        this.maxSessions = maxSessions;
+        this.totalSessions = totalSessions;
+        this.untrackedSelects = untrackedSelects;
+        this.untrackedWarning = new RateLimitedWarning( LOGGER,
+                                                        "N+1 detection tracks " + maxSessions + " sessions already, "
+                                                        + "selects of other sessions are not counted. Are sessions "
+                                                        + "being closed?",
+                                                        TimeUnit.MINUTES.toNanos( 1 ) );
+        this.executorLocator = new HandlerFieldLocator<>( Executor.class );
+        this.sessions = new ConcurrentHashMap<>();
+        this.collectedExecutors = new ReferenceQueue<>();
+        this.running = new ThreadLocal<Running>() {
+            @Override
+            protected Running initialValue() {
+                return new Running();
+            }
+        };
+    }
+
+    /**
+     * Counts a select that is about to run. Must be followed by {@link #exit()} once it is done, whether it succeeded
+     * or not.
+     *
+     * @param handler
+     *         statement handler running the select
+     * @param instrumentation
+     *         instrumentation of the select, which records the sessions it ran too many times in
+     */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public void enter( @Nonnull Object handler,
+                       @Nonnull MappedStatement statement,
+                       @Nonnull BasicInstrumentation instrumentation ) {
+        Running current = running.get();
+        Session session = sessionOf( executorLocator.locate( handler ), current.lookup );
+
+        if ( session != null && session.increment( statement ) == threshold + 1 ) {
+            MappedStatement parent = current.peek();
+            instrumentation.recordNPlusOne( parent );
+
+            if ( session.flag() ) {
+                totalSessions.inc();
+            }
+
+            LOGGER.debug( "Statement {} ran more than {} times in one session, run by {}",
+                          statement.getId(),
+                          threshold,
+                          parent != null ? parent.getId() : NPlusOneInstrumentation.NO_PARENT );
+        }
+
+        current.push( statement );
+    }
+
+    /** Marks the end of the select passed to the most recent {@link #enter} on this thread */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public void exit() {
+        running.get().pop();
+    }
+
+    /** Drops the counts of the session of given executor */
+    public void close( @Nullable Object executor ) {
+        Object unwrapped = unwrap( executor );
+
+        if ( unwrapped != null ) {
+            sessions.remove( new LookupKey().of( unwrapped ) );
+        }
+
+        expungeCollected();
+    }
+
+    /** Returns the number of sessions tracked at the moment */
+    public int getTrackedSessions() {
+        expungeCollected();
+        return sessions.size();
+    }
+
+    @Nullable
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    private Session sessionOf( @Nullable Executor executor, @Nonnull LookupKey lookup ) {
+        if ( executor == null ) {
+            return null;
+        }
+
+        Session session = sessions.get( lookup.of( executor ) );
+        lookup.clear();
+
+        if ( session == null ) {
+            session = startSession( executor );
+        }
+
+        if ( session == null ) {
+            untrackedSelects.inc();
+            untrackedWarning.warn();
+        }
+
+        return session;
+    }
+
+    /** Once per session. Racy on purpose - threads starting sessions at the same time may exceed the limit a bit. */
+    @Nullable
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    private Session startSession( @Nonnull Executor executor ) {
+        expungeCollected();
+
+        if ( sessions.size() >= maxSessions ) {
+            return null;
+        }
+
+        Session session = new Session();
+        Session existing = sessions.putIfAbsent( new WeakKey( executor, collectedExecutors ), session );
+        return existing != null ? existing : session;
+    }
+
+    /** Drops the counts of sessions whose executors were garbage collected without being closed */
+    private void expungeCollected() {
+        Reference<?> collected;
+
+        while ( ( collected = collectedExecutors.poll() ) != null ) {
+            sessions.remove( collected );
+        }
+    }
+
+    /**
+     * Handlers know the executor as it was before plugins wrapped it, but the one being closed may have been wrapped
+     * by other plugins before this one
+     */
+    @Nullable
+    private static Object unwrap( @Nullable Object executor ) {
+        Object current = executor;
+
+        while ( current != null && Proxy.isProxyClass( current.getClass() ) ) {
+            InvocationHandler handler = Proxy.getInvocationHandler( current );
+
+            if ( !( handler instanceof Plugin ) ) {
+                break;
+            }
+
+            current = SystemMetaObject.forObject( handler ).getValue( "target" );
+        }
+
+        return current;
+    }
+
+    /** Number of times each select ran in one session. Sessions are used by one thread at a time. */
+    @ThreadSafe
+    private static final class Session {
+        /** Guarded by this, like the rest */
+        private final Map<MappedStatement, int[]> counts = new IdentityHashMap<>();
+        private boolean flagged;
+
+        /** Returns how many times the statement ran, including this time */
+        synchronized int increment( @Nonnull MappedStatement statement ) {
+            int[] count = counts.get( statement );
+
+            if ( count == null ) {
+                count = new int[ 1 ];
+                counts.put( statement, count );
+            }
+
+            return ++count[ 0 ];
+        }
+
+        /** Returns true only the first time it is called */
+        synchronized boolean flag() {
+            boolean first = !flagged;
+            flagged = true;
+            return first;
+        }
+    }
+
+    /**
+     * Identifies the session of an executor. Executors are told apart by identity, whichever implementation of the key
+     * holds them, so that looking a session up does not create a weak reference.
+     */
+    private interface ExecutorKey {
+        @Nullable
+        Object executor();
+    }
+
+    /** Key of a tracked session. Does not keep the executor alive. */
+    @ThreadSafe
+    private static final class WeakKey extends WeakReference<Object> implements ExecutorKey {
+        private final int hash;
+
+        WeakKey( @Nonnull Object executor, @Nonnull ReferenceQueue<Object> queue ) {
+            super( executor, queue );
+            this.hash = System.identityHashCode( executor );
+        }
+
+        @Override
+        public Object executor() {
+            return get();
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            return obj == this || sameExecutor( this, obj );
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** Key used only to look up sessions, reused by each thread */
+    @NotThreadSafe
+    private static final class LookupKey implements ExecutorKey {
+        private Object executor;
+        private int hash;
+
+        @Nonnull
+        LookupKey of( @Nonnull Object executor ) {
+            this.executor = executor;
+            this.hash = System.identityHashCode( executor );
+            return this;
+        }
+
+        void clear() {
+            this.executor = null;
+        }
+
+        @Override
+        public Object executor() {
+            return executor;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            return obj == this || sameExecutor( this, obj );
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** Keys whose executor was garbage collected are equal to nothing but themselves */
+    private static boolean sameExecutor( @Nonnull ExecutorKey key, @Nullable Object obj ) {
+        Object executor = key.executor();
+        return executor != null && obj instanceof ExecutorKey && executor == ( (ExecutorKey) obj ).executor();
+    }
+
+    /** Selects running on one thread, innermost last. Does not allocate unless they nest deeper than ever before. */
+    @NotThreadSafe
+    private static final class Running {
+        /** Reused by every select of this thread */
+        private final LookupKey lookup = new LookupKey();
+
+        private MappedStatement[] statements = new MappedStatement[ 8 ];
+        private int depth;
+
+        void push( @Nonnull MappedStatement statement ) {
+            if ( depth == statements.length ) {
+                statements = Arrays.copyOf( statements, depth * 2 );
+            }
+
+            statements[ depth++ ] = statement;
+        }
+
+        void pop() {
+            statements[ --depth ] = null;
+        }
+
+        @Nullable
+        MappedStatement peek() {
+            return depth > 0 ? statements[ depth - 1 ] : null;
+        }
+    }
+}
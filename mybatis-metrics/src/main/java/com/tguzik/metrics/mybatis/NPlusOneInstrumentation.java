@@ -0,0 +1,69 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import org.apache.ibatis.mapping.MappedStatement;
+
+/**
+ * N+1 sessions of one select, as detected by {@link NPlusOneDetector}. Each session in which the select ran more
+ * times than the threshold is counted under <code>nPlusOne.sessions</code>, and once more under
+ * <code>nPlusOne.parent.&lt;statement id&gt;</code> of the statement that ran it - the select whose results were
+ * being mapped at the time, or {@link #NO_PARENT} when it was run directly by the caller. Counters of parents are
+ * registered when they are first seen, their number is bounded by the number of statements.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class NPlusOneInstrumentation {
+    static final String NO_PARENT = "none";
+
+    private final MetricFactory factory;
+    private final String baseMetricName;
+    private final Counter sessions;
+    private final ConcurrentMap<String, Counter> parents;
+
+    public NPlusOneInstrumentation( @Nonnull MetricFactory factory, @Nonnull String baseMetricName ) {
+        this.factory = factory;
+        this.baseMetricName = name( baseMetricName, "nPlusOne" );
+        this.sessions = factory.counter( name( this.baseMetricName, "sessions" ) );
+        this.parents = new ConcurrentHashMap<>();
+    }
+
+    /** Counts one N+1 session, run by given statement */
+    public void record( @Nullable MappedStatement parent ) {
+        String parentId = parent != null ? parent.getId() : NO_PARENT;
+        Counter counter = parents.get( parentId );
+
+        if ( counter == null ) {
+            /* Racy on purpose - the registry hands out the same counter to threads that get here at the same time */
+            counter = factory.counter( name( baseMetricName, "parent", parentId ) );
+            parents.putIfAbsent( parentId, counter );
+        }
+
+        sessions.inc();
+        counter.inc();
+    }
+
+    public long getSessions() {
+        return sessions.getCount();
+    }
+
+    /** Returns all metrics created so far, as registered in the registry */
+    @Nonnull
+    public List<Metric> getMetrics() {
+        List<Metric> metrics = new ArrayList<>();
+        metrics.add( sessions );
+        metrics.addAll( parents.values() );
+        return metrics;
+    }
+}
@@ -0,0 +1,108 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+
+/**
+ * Highest value a counter reached recently. Peaks are kept per window of {@link #WINDOW_NANOS}, and the gauge reads
+ * the highest of the current and the previous window, so that it covers at least one whole window. Reading does not
+ * change the gauge, so any number of reporters can read it and all of them see the same peak.
+ * <p/>
+ * The gauge does not watch the counter by itself - whoever increments the counter has to {@link #update()} it too.
+ * Reading a striped counter reads every stripe, which other threads keep writing, so only about one in
+ * {@link #SAMPLING_INTERVAL} updates reads it, and only those check whether the window ended. Peaks shorter than
+ * that many increments may be missed. Updates always read the counter while the peak of the current window is zero,
+ * so the first increments are never missed.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class PeakGauge implements Gauge<Long> {
+    static final int SAMPLING_INTERVAL = 8;
+    static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos( 1 );
+
+    private final Counter source;
+    private final Clock clock;
+    private final int samplingInterval;
+    private final long windowNanos;
+
+    /** Peak of the window started at {@link #windowStart} */
+    private final AtomicLong peak;
+    private volatile long previousPeak;
+    private volatile long windowStart;
+
+    public PeakGauge( @Nonnull Counter source ) {
+        this( source, Clock.defaultClock(), SAMPLING_INTERVAL, WINDOW_NANOS );
+    }
+
+    PeakGauge( @Nonnull Counter source, @Nonnull Clock clock, int samplingInterval, long windowNanos ) {
+        this.source = source;
+        this.clock = clock;
+        this.samplingInterval = samplingInterval;
+        this.windowNanos = windowNanos;
+        this.peak = new AtomicLong();
+        this.windowStart = clock.getTick();
+    }
+
+    /** Takes the current value of the counter into account, now and then */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public void update() {
+        long current = peak.get();
+
+        if ( current > 0 && ThreadLocalRandom.current().nextInt( samplingInterval ) != 0 ) {
+            return;
+        }
+
+        long now = clock.getTick();
+
+        if ( now - windowStart >= windowNanos ) {
+            startWindow( now );
+            current = peak.get();
+        }
+
+        long value = source.getCount();
+
+        while ( value > current && !peak.compareAndSet( current, value ) ) {
+            current = peak.get();
+        }
+    }
+
+    /** Returns the highest value seen in the current and the previous window, or the current value if higher */
+    @Override
+    public Long getValue() {
+        long age = clock.getTick() - windowStart;
+        long value = source.getCount();
+
+        if ( age < windowNanos ) {
+            return Math.max( value, Math.max( peak.get(), previousPeak ) );
+        }
+
+        /* Nothing updated the gauge since the window ended, the current one would have started not long ago */
+        return age < 2 * windowNanos ? Math.max( value, peak.get() ) : value;
+    }
+
+    /** Once per window. Updates racing with this one may count towards either window. */
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    private synchronized void startWindow( long now ) {
+        long start = windowStart;
+
+        if ( now - start < windowNanos ) {
+            return;
+        }
+
+        /* Readers see the ended window as the current one until its peak is moved */
+        long ended = now - start < 2 * windowNanos ? peak.get() : 0L;
+        windowStart = now;
+        previousPeak = ended;
+        peak.set( 0L );
+    }
+}
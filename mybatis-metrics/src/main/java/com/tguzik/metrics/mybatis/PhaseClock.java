@@ -0,0 +1,122 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * Keeps track of the phases in progress on the current thread, so that each phase is attributed only the time not
+ * spent in phases nested in it. Result mapping, for example, can run nested selects whose execution should not
+ * count as result mapping of the outer statement.
+ * <p/>
+ * Also counts statements sent to the database, so that a query during which none were sent can be told apart as one
+ * answered from a cache, and tells the fetch size the statement of a query was prepared with.
+ * <p/>
+ * One instance per thread. Does not allocate unless nesting gets deeper than ever before on that thread.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@NotThreadSafe
+final class PhaseClock {
+    /** Returned by {@link #unwatchPrepare(int)} when no statement was prepared */
+    static final int NOT_PREPARED = -1;
+    private static final int NOT_WATCHED = -2;
+
+    private static final ThreadLocal<PhaseClock> CURRENT = new ThreadLocal<PhaseClock>() {
+        @Override
+        protected PhaseClock initialValue() {
+            return new PhaseClock();
+        }
+    };
+
+    /** Time spent in nested phases, for each phase in progress */
+    private long[] nestedNanos;
+    private int depth;
+
+    /** Statements executed on this thread, ever. Only differences between two readings are meaningful. */
+    private long executions;
+
+    /** Fetch size of the first statement prepared since {@link #watchPrepare()} */
+    private int preparedFetchSize;
+
+    PhaseClock() {
+        this.nestedNanos = new long[ 8 ];
+        this.preparedFetchSize = NOT_WATCHED;
+    }
+
+    @Nonnull
+    public static PhaseClock current() {
+        return CURRENT.get();
+    }
+
+    /** Marks the start of a phase */
+    public void enter() {
+        if ( depth == nestedNanos.length ) {
+            nestedNanos = Arrays.copyOf( nestedNanos, depth * 2 );
+        }
+
+        nestedNanos[ depth++ ] = 0L;
+    }
+
+    /**
+     * Marks the end of the most recently started phase.
+     *
+     * @param elapsedNanos
+     *         total time taken by the phase
+     *
+     * @return time taken by the phase itself, without the phases nested in it
+     */
+    public long exit( long elapsedNanos ) {
+        long exclusiveNanos = elapsedNanos - nestedNanos[ --depth ];
+
+        if ( depth > 0 ) {
+            nestedNanos[ depth - 1 ] += elapsedNanos;
+        }
+
+        return exclusiveNanos;
+    }
+
+    /** Marks execution of a statement against the database */
+    public void countExecution() {
+        executions++;
+    }
+
+    public long getExecutions() {
+        return executions;
+    }
+
+    /**
+     * Starts watching for the next statement prepared on this thread. Nested selects prepare their statements after
+     * the query that runs them, so only the first one counts. Watches nest too - a query run while another one maps
+     * its results puts the watch of the latter back when done.
+     *
+     * @return the previous watch, to be passed to {@link #unwatchPrepare(int)}
+     */
+    public int watchPrepare() {
+        int previous = preparedFetchSize;
+        preparedFetchSize = NOT_PREPARED;
+        return previous;
+    }
+
+    /** Marks preparation of a statement, with the fetch size set on it or zero if none was set */
+    public void countPrepare( int fetchSize ) {
+        if ( preparedFetchSize == NOT_PREPARED ) {
+            preparedFetchSize = fetchSize;
+        }
+    }
+
+    /**
+     * Stops watching, see {@link #watchPrepare()}.
+     *
+     * @return fetch size set on the first statement prepared since, zero if none was set, or {@link #NOT_PREPARED}
+     */
+    public int unwatchPrepare( int previous ) {
+        int fetchSize = preparedFetchSize;
+        preparedFetchSize = previous;
+        return fetchSize;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+}
@@ -2,55 +2,44 @@ package com.tguzik.metrics.mybatis;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.inject.Provider;
+import java.io.Closeable;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
 import java.util.Properties;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
 
 import com.codahale.metrics.MetricRegistry;
 import com.tguzik.annotations.ExpectedPerformanceProfile;
 import com.tguzik.annotations.RefactorThis;
 import org.apache.ibatis.cache.CacheKey;
 import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.parameter.ParameterHandler;
+import org.apache.ibatis.executor.resultset.ResultSetHandler;
+import org.apache.ibatis.executor.statement.StatementHandler;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
 import org.apache.ibatis.plugin.*;
+import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Acts as a wrapper/decorator on {@link com.tguzik.metrics.mybatis.InstrumentingInterceptor} in order to bootstrap
- * the interceptor with an instance of {@link com.codahale.metrics.MetricRegistry} from a {@link javax.inject.Provider}
- * that is taken from either:
+ * Bootstraps {@link InstrumentingInterceptor} when MyBatis instantiates the plugin itself from XML configuration, and
+ * so cannot pass it a {@link MetricRegistry}. The registry is taken from, in order:
  * <ul>
- * <li>System property with key <code>mybatis.registry.provider</code></li>
- * <li>MyBatis plugin property with key <code>mybatis.registry.provider</code></li>
+ * <li>{@link javax.inject.Provider} named in the <code>metrics.registry.provider</code> system property,</li>
+ * <li>{@link MetricRegistryProvider} registered as a {@link java.util.ServiceLoader service},</li>
+ * <li>{@link javax.inject.Provider} named in the <code>metrics.registry.provider</code> MyBatis plugin property.</li>
  * </ul>
+ * The first two are looked up when the wrapper is created and the last one when MyBatis passes the properties.
  * <p/>
- * If both lookups fail, this class will pass on the invocations to MyBatis mappers while loudly complaining through
- * SLF4j logger's WARN messages.
- * <p/>
- * <p/>
- * <p/>
- * TODO: Rewrite this incoherent rant below.
- * <p/>
- * So here's the thing. Superclass works great when it is instanitated either manually or when instanitated by a
- * dependency injection framework, such as guice. The problem starts when we have to do bootstrap 'the traditional
- * mybatis way', with bunch of XML files and nothing else. In that situation we don't really know how to get the
- * {@link com.codahale.metrics.MetricRegistry} to count for all these fancy numbers.
- * <p/>
- * But fear not! MyBatis has this mechanism to pass some properties to the plugins, so we can define a provider there.
- * Now, the problem is that these properties are passed *AFTER* the object is created, which means that if we depend on
- * basic functionality from properties, *we are not threadsafe*!
- * <p/>
- * To combat that we have to do some real sketchy stuff: we need to  override the {@link
- * InstrumentingInterceptor#getRegistry()} method and make it return the data from an instance of {@link
- * java.util.concurrent.atomic.AtomicReference}.
- * <p/>
- * Since this sucks majorly, we'll also try to look up a system property (with same name as the property in mybatis
- * configuration) and try to get the registry from there - if we succeed then we don't have to deal with the
- * {@linkplain java.util.concurrent.atomic.AtomicReference} BS.
+ * This class is not on the invocation path: once the interceptor is initialized, {@link #plugin(Object)} lets it wrap
+ * the targets itself, so MyBatis calls it directly. Until then the targets are passed through as they are and a
+ * warning is logged, rate-limited so that it does not flood the logs under load.
  *
  * @author Tomasz Guzik <tomek@tguzik.com>
  */
@@ -69,41 +58,80 @@ import org.slf4j.LoggerFactory;
                              BoundSql.class } ), //
         @Signature( type = Executor.class,
                     method = "query",
-                    args = { MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class } ) //
+                    args = { MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class } ), //
+        @Signature( type = Executor.class, method = "flushStatements", args = { } ), //
+        @Signature( type = Executor.class, method = "commit", args = { boolean.class } ), //
+        @Signature( type = Executor.class, method = "close", args = { boolean.class } ), //
+        /* Same as in InstrumentingInterceptor, which decides whether the handlers get wrapped */
+        @Signature( type = StatementHandler.class, method = "prepare", args = { Connection.class } ), //
+        @Signature( type = StatementHandler.class, method = "query", args = { Statement.class, ResultHandler.class } ),
+        @Signature( type = StatementHandler.class, method = "update", args = { Statement.class } ), //
+        @Signature( type = StatementHandler.class, method = "batch", args = { Statement.class } ), //
+        @Signature( type = ParameterHandler.class, method = "setParameters", args = { PreparedStatement.class } ), //
+        @Signature( type = ResultSetHandler.class, method = "handleResultSets", args = { Statement.class } ), //
+        @Signature( type = ResultSetHandler.class,
+                    method = "handleOutputParameters",
+                    args = { CallableStatement.class } ) //
              } )
-public class PropertyInterceptorWrapper implements Interceptor {
-    public static final String PROPERTY_NAME = "metrics.registry.provider";
+public class PropertyInterceptorWrapper implements Interceptor, Closeable {
+    public static final String PROPERTY_NAME = MetricRegistryProviders.PROPERTY_NAME;
     private static final Logger LOGGER = LoggerFactory.getLogger( PropertyInterceptorWrapper.class );
+    private static final long WARNING_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos( 1 );
+
+    private final RateLimitedWarning notInitializedWarning;
 
-    private final AtomicReference<Interceptor> interceptorReference;
+    /** Null until we have a registry to report to, set only once */
+    private volatile InstrumentingInterceptor interceptor;
 
     public PropertyInterceptorWrapper() {
-        this.interceptorReference = new AtomicReference<>();
-        tryToInstantiateProvider( "System property", System.getProperty( PROPERTY_NAME ) );
+        this.notInitializedWarning = new RateLimitedWarning( LOGGER,
+                                                             "InstrumentingInterceptor is not initialized - no " +
+                                                             "metrics are collected! Check whether you have " +
+                                                             "correctly set the '" + PROPERTY_NAME + "' system or " +
+                                                             "MyBatis plugin property, or registered a " +
+                                                             "MetricRegistryProvider service.",
+                                                             WARNING_INTERVAL_NANOS );
+
+        MetricRegistry registry = MetricRegistryProviders.lookUpDefault();
+        if ( registry != null ) {
+            initializeInterceptor( registry );
+        }
     }
 
+    /**
+     * Only called for objects wrapped by this class, which {@link #plugin(Object)} does not do. Passes the invocation
+     * on to the interceptor, if initialized.
+     */
     @Override
     @ExpectedPerformanceProfile( path = ExpectedPerformanceProfile.Path.HOT )
     public Object intercept( Invocation invocation ) throws Throwable {
-        // Get the reference
-        Interceptor interceptor = interceptorReference.get();
+        InstrumentingInterceptor current = interceptor;
 
-        if ( interceptor == null ) {
-            // Complain loudly, but in the end do whatever the invocation intended to do.
-            LOGGER.warn( "InstrumentingInterceptor is not initialized - no mybatis are collected! Check whether you " +
-                         "have correctly set the '" + PROPERTY_NAME + "' system or MyBatis plugin property." );
+        if ( current == null ) {
+            // Complain, but in the end do whatever the invocation intended to do.
+            notInitializedWarning.warn();
             return invocation.proceed();
         }
 
-        // All is well. Let it do whatever it does.
-        return interceptor.intercept( invocation );
+        return current.intercept( invocation );
     }
 
+    /**
+     * Once initialized, lets the interceptor wrap the target itself, so that invocations do not go through this class.
+     * Until then returns the target as it is - objects created before the initialization are not instrumented.
+     */
     @Override
     @Nullable
     public Object plugin( @Nullable Object target ) {
-        LOGGER.trace( "{}#plugin(): ", getClass().getSimpleName(), target.getClass().getName() );
-        return Plugin.wrap( target, this );
+        LOGGER.trace( "{}#plugin(): {}", getClass().getSimpleName(), target );
+        InstrumentingInterceptor current = interceptor;
+
+        if ( current == null ) {
+            notInitializedWarning.warn();
+            return target;
+        }
+
+        return current.plugin( target );
     }
 
     @Override
@@ -114,48 +142,48 @@ public class PropertyInterceptorWrapper implements Interceptor {
             return;
         }
 
-        tryToInstantiateProvider( "MyBatis plugin property", properties.getProperty( PROPERTY_NAME ) );
-        Interceptor interceptor = interceptorReference.get();
-
         if ( interceptor == null ) {
-            LOGGER.warn( "The interceptor was not initialized! No mybatis will be collected! Make sure you've " +
-                         "set up either system property or MyBatis plugin property with MetricRegistry provider!" );
+            MetricRegistry registry = MetricRegistryProviders.lookUp( "MyBatis plugin property",
+                                                                      properties.getProperty( PROPERTY_NAME ) );
+            if ( registry != null ) {
+                initializeInterceptor( registry );
+            }
+        }
+
+        InstrumentingInterceptor current = interceptor;
+        if ( current == null ) {
+            LOGGER.warn( "The interceptor was not initialized! No metrics will be collected! Make sure you've " +
+                         "set up either system property or MyBatis plugin property with MetricRegistry provider, " +
+                         "or registered a MetricRegistryProvider service!" );
             return;
         }
 
         // Pass the properties to constructed instance - it may read something from these
-        interceptor.setProperties( properties );
+        current.setProperties( properties );
     }
 
-    private void tryToInstantiateProvider( @Nonnull String propertySource, @Nullable String providerName ) {
-        if ( providerName == null || providerName.trim().isEmpty() ) {
-            LOGGER.debug( "{} '{}' was null or empty.", propertySource, PROPERTY_NAME );
-            return;
-        }
+    /**
+     * @return number of statements, or zero if the interceptor is not initialized
+     * @see InstrumentingInterceptor#preregister(Configuration)
+     */
+    public int preregister( @Nonnull Configuration configuration ) {
+        InstrumentingInterceptor current = interceptor;
+        return current != null ? current.preregister( configuration ) : 0;
+    }
 
-        LOGGER.debug( "Attempting to instantiate javax.inject.Provider<MetricRegistry> from class '{}'...",
-                      providerName );
+    /** @see InstrumentingInterceptor#close() */
+    @Override
+    public void close() {
+        InstrumentingInterceptor current = interceptor;
 
-        try {
-            Class<Provider<MetricRegistry>> clazz = (Class<Provider<MetricRegistry>>) Class.forName( providerName );
-            initializeInterceptor( clazz.newInstance() );
-        }
-        catch ( ClassNotFoundException | InstantiationException | IllegalAccessException e ) {
-            LOGGER.warn( "Unable to instantiate MetricRegistry provider: {}", e.getMessage(), e );
+        if ( current != null ) {
+            current.close();
         }
     }
 
-    private void initializeInterceptor( @Nonnull Provider<MetricRegistry> provider ) {
-        // Do we need to do anything?
-        if ( interceptorReference.get() != null ) {
-            // No, we don't.
-            return;
-        }
-
-        /* The instances of InstrumentingInterceptor are pretty lightweight and since constructing another instance
-         * does not bring any side effects, we can just discard the old instance, if there was any.
-         */
-        interceptorReference.set( new InstrumentingInterceptor( provider.get() ) );
+    private void initializeInterceptor( @Nonnull MetricRegistry registry ) {
+        /* Objects wrapped by the interceptor keep a reference to it, so it must not be replaced afterwards */
+        this.interceptor = new InstrumentingInterceptor( registry );
         LOGGER.info( "Interceptor initialized." );
     }
 }
@@ -0,0 +1,63 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+import org.slf4j.Logger;
+
+/**
+ * Warning about a condition that may occur on every invocation. The first occurrence is logged right away, later ones
+ * at most once per interval, together with the number of occurrences that were not logged in between.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class RateLimitedWarning {
+    private final Logger logger;
+    private final String message;
+    private final long intervalNanos;
+    private final AtomicBoolean warned;
+    private final AtomicLong nextWarningNanos;
+    private final AtomicLong suppressed;
+
+    public RateLimitedWarning( @Nonnull Logger logger, @Nonnull String message, long intervalNanos ) {
+        if ( intervalNanos <= 0 ) {
+            throw new IllegalArgumentException( "Interval must be positive: " + intervalNanos );
+        }
+
+        this.logger = logger;
+        this.message = message;
+        this.intervalNanos = intervalNanos;
+        this.warned = new AtomicBoolean();
+        this.nextWarningNanos = new AtomicLong();
+        this.suppressed = new AtomicLong();
+    }
+
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public void warn() {
+        warn( System.nanoTime() );
+    }
+
+    /** @return true if the warning was logged */
+    boolean warn( long nowNanos ) {
+        if ( !warned.get() && warned.compareAndSet( false, true ) ) {
+            /* Racy on purpose - a second warning logged by a thread that came in between is harmless */
+            nextWarningNanos.set( nowNanos + intervalNanos );
+            logger.warn( message );
+            return true;
+        }
+
+        long next = nextWarningNanos.get();
+        if ( nowNanos - next >= 0 && nextWarningNanos.compareAndSet( next, nowNanos + intervalNanos ) ) {
+            logger.warn( "{} ({} more time(s) since the last warning)", message, suppressed.getAndSet( 0 ) );
+            return true;
+        }
+
+        suppressed.incrementAndGet();
+        return false;
+    }
+}
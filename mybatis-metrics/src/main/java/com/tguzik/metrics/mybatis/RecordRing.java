@@ -0,0 +1,132 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+
+/**
+ * Bounded ring buffer of invocation records, with many producers and one consumer. Records are stored in
+ * preallocated parallel arrays, so neither offering nor draining allocates.
+ * <p/>
+ * Each slot has a sequence number that tells whose turn it is: slot <code>i</code> is free for the producer of
+ * position <code>p</code> when its sequence equals <code>p</code>, and holds a record for the consumer when it equals
+ * <code>p + 1</code>. Producers claim positions with a CAS, write the record and then publish it by advancing the
+ * sequence. Writes to the plain arrays are made visible by that volatile write.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class RecordRing {
+    /** Consumes records drained from the ring */
+    interface Consumer {
+        void accept( @Nonnull BasicInstrumentation instrumentation, long elapsedNanos, boolean failed );
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final BasicInstrumentation[] instrumentations;
+    private final long[] elapsedNanos;
+    private final boolean[] failures;
+
+    /** Next position to be claimed by producers */
+    private final AtomicLong tail;
+
+    /** Next position to be read. Touched only by the consumer. */
+    private long head;
+
+    /**
+     * @param capacity
+     *         rounded up to the next power of two, at least two - with a single slot, a published record would look
+     *         like a free slot to the producer of the next position
+     */
+    public RecordRing( int capacity ) {
+        int size = 2;
+        while ( size < capacity ) {
+            size <<= 1;
+        }
+
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray( size );
+        this.instrumentations = new BasicInstrumentation[ size ];
+        this.elapsedNanos = new long[ size ];
+        this.failures = new boolean[ size ];
+        this.tail = new AtomicLong();
+
+        for ( int i = 0; i < size; i++ ) {
+            sequences.set( i, i );
+        }
+    }
+
+    /**
+     * Adds a record to the ring.
+     *
+     * @return false if the ring was full and the record was dropped
+     */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public boolean offer( @Nonnull BasicInstrumentation instrumentation, long elapsed, boolean failed ) {
+        long position = tail.get();
+        int index;
+
+        while ( true ) {
+            index = (int) position & mask;
+            long difference = sequences.get( index ) - position;
+
+            if ( difference == 0 ) {
+                if ( tail.compareAndSet( position, position + 1 ) ) {
+                    break;
+                }
+                position = tail.get();
+            }
+            else if ( difference < 0 ) {
+                /* The slot still holds a record from the previous lap */
+                return false;
+            }
+            else {
+                position = tail.get();
+            }
+        }
+
+        instrumentations[ index ] = instrumentation;
+        elapsedNanos[ index ] = elapsed;
+        failures[ index ] = failed;
+        sequences.lazySet( index, position + 1 );
+        return true;
+    }
+
+    /**
+     * Passes all published records to the consumer. Must not be called by more than one thread at a time.
+     *
+     * @return number of records drained
+     */
+    public int drain( @Nonnull Consumer consumer ) {
+        int drained = 0;
+
+        while ( true ) {
+            int index = (int) head & mask;
+
+            if ( sequences.get( index ) != head + 1 ) {
+                return drained;
+            }
+
+            BasicInstrumentation instrumentation = instrumentations[ index ];
+            long elapsed = elapsedNanos[ index ];
+            boolean failed = failures[ index ];
+
+            /* Don't keep instrumentation alive after the settings changed */
+            instrumentations[ index ] = null;
+            sequences.lazySet( index, head + mask + 1 );
+            head++;
+            drained++;
+
+            consumer.accept( instrumentation, elapsed, failed );
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
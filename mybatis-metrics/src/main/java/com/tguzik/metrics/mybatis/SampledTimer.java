@@ -0,0 +1,78 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * {@link Timer} that is updated only for a sample of the events, but still counts all of them. The count and the
+ * rates come from {@link #update(long, TimeUnit)} and {@link #markUntimed()} combined, while the snapshot contains
+ * only the durations that were actually recorded.
+ * <p/>
+ * Metrics 3.0 keeps the internals of the timer private, so this class keeps its own meter and histogram and
+ * overrides everything that reads from them.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+final class SampledTimer extends Timer {
+    private final Meter events;
+    private final Histogram durations;
+
+    public SampledTimer( @Nonnull Reservoir reservoir ) {
+        super( reservoir );
+        this.events = new Meter();
+        this.durations = new Histogram( reservoir );
+    }
+
+    /** Counts an event whose duration was not measured */
+    public void markUntimed() {
+        events.mark();
+    }
+
+    @Override
+    public void update( long duration, TimeUnit unit ) {
+        long nanos = unit.toNanos( duration );
+
+        if ( nanos >= 0 ) {
+            durations.update( nanos );
+            events.mark();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return events.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return events.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return events.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        return events.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return events.getOneMinuteRate();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return durations.getSnapshot();
+    }
+}
@@ -0,0 +1,80 @@
+package com.tguzik.metrics.mybatis;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.beans.ConstructorProperties;
+
+/**
+ * One invocation captured by {@link SlowStatementLog}, rendered for reading.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@Immutable
+public final class SlowStatement {
+    private final String statementId;
+    private final String sql;
+    private final String parameters;
+    private final long elapsedNanos;
+    private final String threadName;
+    private final long timestamp;
+
+    @ConstructorProperties( { "statementId", "sql", "parameters", "elapsedNanos", "threadName", "timestamp" } )
+    public SlowStatement( @Nonnull String statementId,
+                          @Nonnull String sql,
+                          @Nonnull String parameters,
+                          long elapsedNanos,
+                          @Nonnull String threadName,
+                          long timestamp ) {
+        this.statementId = statementId;
+        this.sql = sql;
+        this.parameters = parameters;
+        this.elapsedNanos = elapsedNanos;
+        this.threadName = threadName;
+        this.timestamp = timestamp;
+    }
+
+    @Nonnull
+    public String getStatementId() {
+        return statementId;
+    }
+
+    /** SQL sent to the database, with whitespace collapsed */
+    @Nonnull
+    public String getSql() {
+        return sql;
+    }
+
+    /** Parameters bound to the SQL, possibly redacted and truncated */
+    @Nonnull
+    public String getParameters() {
+        return parameters;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long getElapsedMillis() {
+        return NANOSECONDS.toMillis( elapsedNanos );
+    }
+
+    /** Name of the thread that made the invocation */
+    @Nonnull
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /** When the invocation finished, in milliseconds since the epoch */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "SlowStatement{statementId=" + statementId + ", elapsedMillis=" + getElapsedMillis() +
+               ", threadName=" + threadName + ", timestamp=" + timestamp + ", sql=" + sql +
+               ", parameters=" + parameters + "}";
+    }
+}
@@ -0,0 +1,227 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.ParameterMode;
+import org.apache.ibatis.session.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed-size ring buffer of the most recent slow statements.
+ * <p/>
+ * Recording is lock-free and does as little as possible on the calling thread: the statement, its parameter object
+ * and the timing are stored as-is. SQL and parameters are rendered the first time someone reads the entry, which
+ * also means that a parameter object modified after the invocation will be rendered with its new contents.
+ * <p/>
+ * When the buffer is full, the oldest entries are overwritten.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@ThreadSafe
+public final class SlowStatementLog implements SlowStatementLogMXBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger( SlowStatementLog.class );
+    private static final String REDACTED = "***";
+    private static final String TRUNCATED = "...";
+    private static final String UNAVAILABLE = "<unavailable>";
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong sequence;
+    private final int parameterMaxLength;
+    private final Set<String> redactedParameters;
+
+    public SlowStatementLog( @Nonnull InstrumentationSettings settings ) {
+        this.entries = new AtomicReferenceArray<>( settings.getSlowStatementCapacity() );
+        this.sequence = new AtomicLong();
+        this.parameterMaxLength = settings.getSlowParameterMaxLength();
+        this.redactedParameters = settings.getRedactedParameters();
+    }
+
+    /**
+     * Stores the invocation. Nothing is rendered here.
+     *
+     * @param boundSql
+     *         SQL the statement was executed with or null if not known. It will be derived from the statement and
+     *         the parameter when needed.
+     */
+    @ExpectedPerformanceProfile( path = Path.HOT )
+    public void record( @Nonnull MappedStatement statement,
+                        @Nullable Object parameter,
+                        @Nullable BoundSql boundSql,
+                        long elapsedNanos ) {
+        long index = sequence.getAndIncrement();
+        Entry entry = new Entry( index,
+                                 statement,
+                                 parameter,
+                                 boundSql,
+                                 elapsedNanos,
+                                 Thread.currentThread().getName(),
+                                 System.currentTimeMillis() );
+
+        entries.set( (int) ( index % entries.length() ), entry );
+    }
+
+    @Override
+    public int getCapacity() {
+        return entries.length();
+    }
+
+    @Override
+    public long getTotalRecorded() {
+        return sequence.get();
+    }
+
+    @Nonnull
+    @Override
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    public List<SlowStatement> getSlowStatements() {
+        List<Entry> snapshot = new ArrayList<>( entries.length() );
+        for ( int i = 0; i < entries.length(); i++ ) {
+            Entry entry = entries.get( i );
+            if ( entry != null ) {
+                snapshot.add( entry );
+            }
+        }
+
+        Collections.sort( snapshot, new Comparator<Entry>() {
+            @Override
+            public int compare( Entry left, Entry right ) {
+                return Long.compare( right.sequence, left.sequence );
+            }
+        } );
+
+        List<SlowStatement> result = new ArrayList<>( snapshot.size() );
+        for ( Entry entry : snapshot ) {
+            result.add( render( entry ) );
+        }
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        for ( int i = 0; i < entries.length(); i++ ) {
+            entries.set( i, null );
+        }
+    }
+
+    @Nonnull
+    private SlowStatement render( @Nonnull Entry entry ) {
+        SlowStatement rendered = entry.rendered;
+
+        if ( rendered == null ) {
+            String sql = UNAVAILABLE;
+            String parameters = UNAVAILABLE;
+
+            try {
+                BoundSql boundSql = entry.boundSql;
+                if ( boundSql == null ) {
+                    boundSql = entry.statement.getBoundSql( entry.parameter );
+                }
+
+                sql = boundSql.getSql().replaceAll( "\\s+", " " ).trim();
+                parameters = renderParameters( entry.statement.getConfiguration(), boundSql );
+            }
+            catch ( RuntimeException e ) {
+                LOGGER.debug( "Unable to render slow statement {}", entry.statement.getId(), e );
+            }
+
+            /* Racy, but rendering twice gives the same result */
+            rendered = new SlowStatement( entry.statement.getId(),
+                                          sql,
+                                          parameters,
+                                          entry.elapsedNanos,
+                                          entry.threadName,
+                                          entry.timestamp );
+            entry.rendered = rendered;
+        }
+
+        return rendered;
+    }
+
+    /** Follows what {@link org.apache.ibatis.scripting.defaults.DefaultParameterHandler} does to get the values. */
+    @Nonnull
+    private String renderParameters( @Nonnull Configuration configuration, @Nonnull BoundSql boundSql ) {
+        Object parameter = boundSql.getParameterObject();
+        StringBuilder builder = new StringBuilder();
+        boolean redactAll = redactedParameters.contains( InstrumentationSettings.ALL_PARAMETERS );
+
+        for ( ParameterMapping mapping : boundSql.getParameterMappings() ) {
+            if ( mapping.getMode() == ParameterMode.OUT ) {
+                continue;
+            }
+
+            String property = mapping.getProperty();
+            if ( builder.length() > 0 ) {
+                builder.append( ", " );
+            }
+            builder.append( property ).append( '=' );
+
+            if ( redactAll || redactedParameters.contains( property ) ) {
+                builder.append( REDACTED );
+            }
+            else if ( boundSql.hasAdditionalParameter( property ) ) {
+                builder.append( boundSql.getAdditionalParameter( property ) );
+            }
+            else if ( parameter == null ) {
+                builder.append( "null" );
+            }
+            else if ( configuration.getTypeHandlerRegistry().hasTypeHandler( parameter.getClass() ) ) {
+                builder.append( parameter );
+            }
+            else {
+                builder.append( configuration.newMetaObject( parameter ).getValue( property ) );
+            }
+
+            if ( builder.length() > parameterMaxLength ) {
+                builder.setLength( parameterMaxLength );
+                builder.append( TRUNCATED );
+                break;
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /** Raw invocation data. Rendered lazily, see {@link #render(Entry)}. */
+    private static final class Entry {
+        private final long sequence;
+        private final MappedStatement statement;
+        private final Object parameter;
+        private final BoundSql boundSql;
+        private final long elapsedNanos;
+        private final String threadName;
+        private final long timestamp;
+        private volatile SlowStatement rendered;
+
+        private Entry( long sequence,
+                       MappedStatement statement,
+                       Object parameter,
+                       BoundSql boundSql,
+                       long elapsedNanos,
+                       String threadName,
+                       long timestamp ) {
+            this.sequence = sequence;
+            this.statement = statement;
+            this.parameter = parameter;
+            this.boundSql = boundSql;
+            this.elapsedNanos = elapsedNanos;
+            this.threadName = threadName;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.tguzik.metrics.mybatis;
+
+import java.util.List;
+
+/**
+ * Management interface of {@link SlowStatementLog}. Register the log with an MBean server to browse slow statements
+ * from JConsole, VisualVM or any other JMX client:
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer()
+ *                  .registerMBean( interceptor.getSlowStatementLog(),
+ *                                  new ObjectName( "com.tguzik.metrics.mybatis:type=SlowStatementLog" ) );
+ * </pre>
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+public interface SlowStatementLogMXBean {
+    /** Maximum number of slow statements kept */
+    int getCapacity();
+
+    /** Number of slow statements recorded since the log was created, including those no longer kept */
+    long getTotalRecorded();
+
+    /** Slow statements currently kept, most recent first */
+    List<SlowStatement> getSlowStatements();
+
+    /** Forgets all slow statements currently kept */
+    void clear();
+}
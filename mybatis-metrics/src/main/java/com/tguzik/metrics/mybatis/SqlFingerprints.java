@@ -0,0 +1,51 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import java.util.regex.Pattern;
+
+import com.tguzik.annotations.ExpectedPerformanceProfile;
+import com.tguzik.annotations.ExpectedPerformanceProfile.Path;
+
+/**
+ * Reduces SQL to its shape, so that queries differing only in values end up with the same fingerprint:
+ * <ul>
+ * <li>string and numeric literals become <code>?</code>,</li>
+ * <li>lists of placeholders, such as <code>IN (?, ?, ?)</code>, become <code>(?+)</code>, and repeated lists of
+ * them, such as rows of a multi-row insert, become <code>(?+)+</code>,</li>
+ * <li>comments are removed and whitespace is collapsed to single spaces.</li>
+ * </ul>
+ * Keywords and identifiers are left as they are. This is based on regular expressions and is not meant to be fast -
+ * callers should cache the results.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+final class SqlFingerprints {
+    private static final Pattern STRING_LITERAL = Pattern.compile( "'(?:[^']|'')*'" );
+    private static final Pattern BLOCK_COMMENT = Pattern.compile( "/\\*.*?\\*/", Pattern.DOTALL );
+    private static final Pattern LINE_COMMENT = Pattern.compile( "--[^\\n]*" );
+    private static final Pattern NUMERIC_LITERAL = Pattern.compile( "(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])" );
+    private static final Pattern WHITESPACE = Pattern.compile( "\\s+" );
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile( "\\( ?\\?(?: ?, ?\\?)* ?\\)" );
+    private static final Pattern REPEATED_LISTS = Pattern.compile( "\\(\\?\\+\\)(?: ?, ?\\(\\?\\+\\))+" );
+
+    private SqlFingerprints() {
+    }
+
+    @Nonnull
+    @ExpectedPerformanceProfile( path = Path.COLD )
+    public static String normalize( @Nonnull String sql ) {
+        String result = STRING_LITERAL.matcher( sql ).replaceAll( "?" );
+        result = BLOCK_COMMENT.matcher( result ).replaceAll( " " );
+        result = LINE_COMMENT.matcher( result ).replaceAll( " " );
+        result = NUMERIC_LITERAL.matcher( result ).replaceAll( "?" );
+        result = WHITESPACE.matcher( result ).replaceAll( " " ).trim();
+        result = PLACEHOLDER_LIST.matcher( result ).replaceAll( "(?+)" );
+        return REPEATED_LISTS.matcher( result ).replaceAll( "(?+)+" );
+    }
+
+    /** Short, stable identifier of a fingerprint, usable in metric names */
+    @Nonnull
+    public static String identifier( @Nonnull String fingerprint ) {
+        return String.format( "%08x", fingerprint.hashCode() );
+    }
+}
@@ -0,0 +1,57 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.ibatis.executor.parameter.ParameterHandler;
+import org.apache.ibatis.executor.resultset.ResultSetHandler;
+import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.plugin.Invocation;
+
+/**
+ * Phases of a statement execution that are timed separately when phase instrumentation is enabled. Each phase is
+ * recorded under <code>&lt;statement metric name&gt;.phase.&lt;phase metric name&gt;</code>.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+enum StatementPhase {
+    /** Creating the JDBC statement, see {@link StatementHandler#prepare(java.sql.Connection)} */
+    PREPARE( "prepare" ),
+
+    /** Binding parameters to the JDBC statement, see {@link ParameterHandler#setParameters} */
+    BIND_PARAMETERS( "bindParameters" ),
+
+    /** Running the statement in the database, excluding result mapping */
+    EXECUTE( "execute" ),
+
+    /** Turning result sets and output parameters into objects, excluding nested statements */
+    MAP_RESULTS( "mapResults" );
+
+    private final String metricName;
+
+    private StatementPhase( @Nonnull String metricName ) {
+        this.metricName = metricName;
+    }
+
+    @Nonnull
+    public String getMetricName() {
+        return metricName;
+    }
+
+    /** Returns the phase the invocation belongs to, or null if it is not an invocation of one of the handlers. */
+    @Nullable
+    public static StatementPhase of( @Nonnull Invocation invocation ) {
+        Object target = invocation.getTarget();
+
+        if ( target instanceof StatementHandler ) {
+            return "prepare".equals( invocation.getMethod().getName() ) ? PREPARE : EXECUTE;
+        }
+        if ( target instanceof ParameterHandler ) {
+            return BIND_PARAMETERS;
+        }
+        if ( target instanceof ResultSetHandler ) {
+            return MAP_RESULTS;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,66 @@
+package com.tguzik.metrics.mybatis;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.inject.Inject;
+
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Preregisters metrics of all statements with the interceptors registered in a {@link SqlSessionFactory}, see
+ * {@link InstrumentingInterceptor#preregister(Configuration)}. Works the same way for each kind of bootstrap:
+ * <ul>
+ * <li>Pure Java and XML files: call {@link #preregister(SqlSessionFactory)} after building the factory.</li>
+ * <li>Guice: <code>bind( StatementPreregistration.class ).asEagerSingleton()</code>.</li>
+ * <li>Spring: declare a bean of this class with the SqlSessionFactory as constructor argument.</li>
+ * </ul>
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@Immutable
+public final class StatementPreregistration {
+    private static final Logger LOGGER = LoggerFactory.getLogger( StatementPreregistration.class );
+
+    private final int statementCount;
+
+    /** Preregisters the statements right away, meant for dependency injection containers */
+    @Inject
+    public StatementPreregistration( @Nonnull SqlSessionFactory sqlSessionFactory ) {
+        this.statementCount = preregister( sqlSessionFactory );
+    }
+
+    /** Returns the number of statements preregistered when this instance was created */
+    public int getStatementCount() {
+        return statementCount;
+    }
+
+    /**
+     * Preregisters statements with each {@link InstrumentingInterceptor} and {@link PropertyInterceptorWrapper} of
+     * the factory.
+     *
+     * @return number of statements preregistered, summed over the interceptors, zero if there are none
+     */
+    public static int preregister( @Nonnull SqlSessionFactory sqlSessionFactory ) {
+        Configuration configuration = sqlSessionFactory.getConfiguration();
+        int statements = 0;
+
+        for ( Interceptor interceptor : configuration.getInterceptors() ) {
+            if ( interceptor instanceof InstrumentingInterceptor ) {
+                statements += ( (InstrumentingInterceptor) interceptor ).preregister( configuration );
+            }
+            else if ( interceptor instanceof PropertyInterceptorWrapper ) {
+                statements += ( (PropertyInterceptorWrapper) interceptor ).preregister( configuration );
+            }
+        }
+
+        if ( statements == 0 ) {
+            LOGGER.warn( "No statements were preregistered. Is the interceptor registered with MyBatis?" );
+        }
+
+        return statements;
+    }
+}
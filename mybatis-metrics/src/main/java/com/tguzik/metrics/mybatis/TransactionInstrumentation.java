@@ -0,0 +1,59 @@
+package com.tguzik.metrics.mybatis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Timers and failure meters for operations on {@link org.apache.ibatis.transaction.Transaction}. Each operation is
+ * timed as <code>&lt;prefix&gt;.&lt;operation&gt;</code> and its failures are metered as
+ * <code>&lt;prefix&gt;.&lt;operation&gt;.failures</code>.
+ *
+ * @author Tomasz Guzik <tomek@tguzik.com>
+ */
+@Immutable
+@ThreadSafe
+final class TransactionInstrumentation {
+    enum Operation {
+        GET_CONNECTION( "getConnection" ),
+        COMMIT( "commit" ),
+        ROLLBACK( "rollback" ),
+        CLOSE( "close" );
+
+        private final String metricName;
+
+        private Operation( @Nonnull String metricName ) {
+            this.metricName = metricName;
+        }
+    }
+
+    /** Indexed by {@link Operation#ordinal()} */
+    private final Timer[] timers;
+    private final Meter[] failures;
+
+    public TransactionInstrumentation( @Nonnull MetricRegistry registry, @Nonnull String prefix ) {
+        Operation[] operations = Operation.values();
+        this.timers = new Timer[ operations.length ];
+        this.failures = new Meter[ operations.length ];
+
+        for ( Operation operation : operations ) {
+            timers[ operation.ordinal() ] = registry.timer( name( prefix, operation.metricName ) );
+            failures[ operation.ordinal() ] = registry.meter( name( prefix, operation.metricName, "failures" ) );
+        }
+    }
+
+    public void record( @Nonnull Operation operation, long elapsedNanos, boolean failed ) {
+        timers[ operation.ordinal() ].update( elapsedNanos, TimeUnit.NANOSECONDS );
+
+        if ( failed ) {
+            failures[ operation.ordinal() ].mark();
+        }
+    }
+}
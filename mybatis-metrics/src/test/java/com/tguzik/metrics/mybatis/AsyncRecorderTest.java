@@ -0,0 +1,48 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncRecorderTest {
+    private MetricRegistry registry;
+    private BasicInstrumentation instrumentation;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        this.instrumentation = new BasicInstrumentation( registry, "statement" );
+    }
+
+    @Test
+    public void testClose_foldsQueuedRecordsIntoMetrics() {
+        AsyncRecorder recorder = new AsyncRecorder( registry, 1024 );
+        recorder.start();
+
+        recorder.record( instrumentation, 1000L, false );
+        recorder.record( instrumentation, 2000L, true );
+        recorder.record( instrumentation, -1L, false );
+        recorder.close();
+
+        assertThat( recorder.isRunning() ).isFalse();
+        assertThat( registry.counter( "statement.totalInvocations" ).getCount() ).isEqualTo( 3L );
+        assertThat( registry.counter( "statement.totalFailures" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.timer( "statement.elapsed" ).getCount() ).isEqualTo( 2L );
+    }
+
+    @Test
+    public void testRecord_countsDroppedRecordsWhenFull() {
+        /* Not started, so nothing drains the rings. Each ring holds at least two records. */
+        AsyncRecorder recorder = new AsyncRecorder( registry, 1 );
+
+        for ( int i = 0; i < 10; i++ ) {
+            recorder.record( instrumentation, 1000L, false );
+        }
+
+        assertThat( registry.counter( AsyncRecorder.DROPPED_METRIC_NAME ).getCount() ).isEqualTo( 8L );
+        recorder.close();
+        assertThat( registry.counter( "statement.totalInvocations" ).getCount() ).isEqualTo( 2L );
+    }
+}
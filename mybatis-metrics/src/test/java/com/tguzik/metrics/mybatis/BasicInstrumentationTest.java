@@ -1,10 +1,23 @@
 package com.tguzik.metrics.mybatis;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.apache.ibatis.mapping.SqlCommandType.SELECT;
+import static org.apache.ibatis.mapping.SqlCommandType.UPDATE;
 import static org.junit.Assert.assertNotNull;
 
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.executor.BatchExecutor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -102,4 +115,239 @@ public class BasicInstrumentationTest {
         assertThat( registry.getCounters().get( NAME + ".totalInvocations" ).getCount() ).isZero();
         assertThat( registry.getMeters().get( NAME + ".invocationsPerSecond" ).getCount() ).isZero();
     }
+
+    @Test
+    public void testRecordElapsed() {
+        basicInstrumentation.recordElapsed( 1000L );
+
+        // Verify update
+        assertThat( registry.getTimers().get( NAME + ".elapsed" ).getCount() ).isEqualTo( 1 );
+        assertThat( registry.getTimers().get( NAME + ".elapsed" ).getSnapshot().getMax() ).isEqualTo( 1000L );
+
+        // Verify these mybatis are not updated
+        assertThat( registry.getCounters().get( NAME + ".totalInvocations" ).getCount() ).isZero();
+        assertThat( registry.getMeters().get( NAME + ".invocationsPerSecond" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testLeanProfile_registersSameNamesAndTypes() {
+        MetricRegistry leanRegistry = new MetricRegistry();
+        new BasicInstrumentation( leanFactory( leanRegistry ), NAME );
+
+        assertThat( leanRegistry.getNames() ).isEqualTo( registry.getNames() );
+        assertThat( leanRegistry.getCounters() ).hasSize( 2 );
+        assertThat( leanRegistry.getMeters() ).hasSize( 2 );
+        assertThat( leanRegistry.getTimers() ).hasSize( 1 );
+    }
+
+    @Test
+    public void testLeanProfile_derivesCountersFromTimerAndFailureMeter() {
+        MetricRegistry leanRegistry = new MetricRegistry();
+        BasicInstrumentation lean = new BasicInstrumentation( leanFactory( leanRegistry ), NAME );
+
+        lean.markInvoked();
+        lean.recordElapsed( 1000L );
+        lean.markInvoked();
+        lean.markFailed();
+        lean.recordElapsed( 1000L );
+
+        assertThat( leanRegistry.getCounters().get( NAME + ".totalInvocations" ).getCount() ).isEqualTo( 2 );
+        assertThat( leanRegistry.getMeters().get( NAME + ".invocationsPerSecond" ).getCount() ).isEqualTo( 2 );
+        assertThat( leanRegistry.getCounters().get( NAME + ".totalFailures" ).getCount() ).isEqualTo( 1 );
+        assertThat( leanRegistry.getMeters().get( NAME + ".failuresPerSecond" ).getCount() ).isEqualTo( 1 );
+        assertThat( leanRegistry.getTimers().get( NAME + ".elapsed" ).getCount() ).isEqualTo( 2 );
+    }
+
+    @Test
+    public void testLeanProfile_reusesMetricsAlreadyInRegistry() {
+        MetricRegistry leanRegistry = new MetricRegistry();
+        new BasicInstrumentation( leanFactory( leanRegistry ), NAME );
+        BasicInstrumentation second = new BasicInstrumentation( leanFactory( leanRegistry ), NAME );
+
+        second.recordElapsed( 1000L );
+
+        assertThat( leanRegistry.getCounters().get( NAME + ".totalInvocations" ).getCount() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testFullProfile_sharesRegistryWithLeanProfile() {
+        MetricRegistry sharedRegistry = new MetricRegistry();
+        BasicInstrumentation lean = new BasicInstrumentation( leanFactory( sharedRegistry ), NAME );
+        BasicInstrumentation full = new BasicInstrumentation( sharedRegistry, NAME );
+
+        full.markInvoked();
+        full.markFailed();
+        full.recordElapsed( 1000L );
+        lean.markInvoked();
+        lean.recordElapsed( 1000L );
+
+        assertThat( sharedRegistry.getCounters().get( NAME + ".totalInvocations" ).getCount() ).isEqualTo( 2 );
+        assertThat( sharedRegistry.getMeters().get( NAME + ".invocationsPerSecond" ).getCount() ).isEqualTo( 2 );
+        assertThat( sharedRegistry.getCounters().get( NAME + ".totalFailures" ).getCount() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testLeanProfile_updatesCountersRegisteredByFullProfile() {
+        MetricRegistry sharedRegistry = new MetricRegistry();
+        BasicInstrumentation full = new BasicInstrumentation( sharedRegistry, NAME );
+        BasicInstrumentation lean = new BasicInstrumentation( leanFactory( sharedRegistry ), NAME );
+
+        full.markInvoked();
+        full.recordElapsed( 1000L );
+        lean.markInvoked();
+        lean.markFailed();
+        lean.recordElapsed( 1000L );
+
+        assertThat( sharedRegistry.getCounters().get( NAME + ".totalInvocations" ).getCount() ).isEqualTo( 2 );
+        assertThat( sharedRegistry.getMeters().get( NAME + ".invocationsPerSecond" ).getCount() ).isEqualTo( 2 );
+        assertThat( sharedRegistry.getCounters().get( NAME + ".totalFailures" ).getCount() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testHdrHistogramReservoir_registersElapsedTimerWithIt() {
+        MetricRegistry hdrRegistry = new MetricRegistry();
+        InstrumentationSettings settings = InstrumentationSettings.builder()
+                                                                  .latencyReservoir( LatencyReservoir.HDR_HISTOGRAM )
+                                                                  .build();
+        BasicInstrumentation hdr = new BasicInstrumentation( new MetricFactory( hdrRegistry, settings ), NAME );
+
+        hdr.recordElapsed( 5000000L );
+
+        Timer timer = hdrRegistry.getTimers().get( NAME + ".elapsed" );
+        assertThat( timer.getCount() ).isEqualTo( 1 );
+        assertThat( timer.getSnapshot() ).isInstanceOf( HdrHistogramSnapshot.class );
+    }
+
+    @Test
+    public void testSampling_registersSampledTimer() {
+        MetricRegistry sampledRegistry = new MetricRegistry();
+        InstrumentationSettings settings = InstrumentationSettings.builder().samplingInterval( 10 ).build();
+        BasicInstrumentation sampled = new BasicInstrumentation( new MetricFactory( sampledRegistry, settings ),
+                                                                 NAME );
+
+        sampled.recordElapsed( 1000L );
+        sampled.markUntimed();
+        sampled.markUntimed();
+
+        Timer timer = sampledRegistry.getTimers().get( NAME + ".elapsed" );
+        assertThat( timer ).isInstanceOf( SampledTimer.class );
+        assertThat( timer.getCount() ).isEqualTo( 3 );
+        assertThat( timer.getSnapshot().size() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testShouldTime_alwaysTrueWithoutSampling() {
+        for ( int i = 0; i < 1000; i++ ) {
+            assertThat( basicInstrumentation.shouldTime() ).isTrue();
+        }
+    }
+
+    @Test
+    public void testMarkUntimed_ignoredWithoutSampling() {
+        basicInstrumentation.markUntimed();
+
+        assertThat( registry.getTimers().get( NAME + ".elapsed" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testIsSlow_neverWithoutThreshold() {
+        assertThat( basicInstrumentation.isSlow( Long.MAX_VALUE - 1 ) ).isFalse();
+    }
+
+    @Test
+    public void testIsSlow_usesThresholdOfTheStatement() {
+        InstrumentationSettings settings = InstrumentationSettings.builder()
+                                                                  .slowThreshold( 10, TimeUnit.NANOSECONDS )
+                                                                  .slowThreshold( "other", 5, TimeUnit.NANOSECONDS )
+                                                                  .build();
+        MetricFactory factory = new MetricFactory( new MetricRegistry(), settings );
+
+        BasicInstrumentation statement = new BasicInstrumentation( factory, NAME, statement( "statement", SELECT ) );
+        BasicInstrumentation other = new BasicInstrumentation( factory, NAME, statement( "other", SELECT ) );
+
+        assertThat( statement.isSlow( 9 ) ).isFalse();
+        assertThat( statement.isSlow( 10 ) ).isTrue();
+        assertThat( other.isSlow( 5 ) ).isTrue();
+    }
+
+    @Test
+    public void testRecordRows_disabledByDefault() {
+        basicInstrumentation.recordRows( Arrays.asList( 1, 2, 3 ) );
+
+        assertThat( registry.getHistograms() ).isEmpty();
+    }
+
+    @Test
+    public void testRecordRows_recordsResultSizeOfSelects() {
+        MetricRegistry rowsRegistry = new MetricRegistry();
+        BasicInstrumentation rows = new BasicInstrumentation( rowsFactory( rowsRegistry ),
+                                                              NAME,
+                                                              statement( "select", SELECT ) );
+
+        rows.recordRows( Arrays.asList( 1, 2, 3 ) );
+        rows.recordRows( Collections.emptyList() );
+
+        Histogram histogram = rowsRegistry.getHistograms().get( NAME + ".rowsReturned" );
+        assertThat( histogram.getCount() ).isEqualTo( 2 );
+        assertThat( histogram.getSnapshot().getMax() ).isEqualTo( 3 );
+        assertThat( histogram.getSnapshot().getMin() ).isZero();
+    }
+
+    @Test
+    public void testRecordRows_recordsAffectedRowsOfUpdates() {
+        MetricRegistry rowsRegistry = new MetricRegistry();
+        BasicInstrumentation rows = new BasicInstrumentation( rowsFactory( rowsRegistry ),
+                                                              NAME,
+                                                              statement( "update", UPDATE ) );
+
+        rows.recordRows( 42 );
+        rows.recordRows( "not a row count" );
+
+        Histogram histogram = rowsRegistry.getHistograms().get( NAME + ".rowsAffected" );
+        assertThat( histogram.getCount() ).isEqualTo( 1 );
+        assertThat( histogram.getSnapshot().getMax() ).isEqualTo( 42 );
+    }
+
+    @Test
+    public void testRecordRows_ignoresNegativeCounts() {
+        MetricRegistry rowsRegistry = new MetricRegistry();
+        BasicInstrumentation rows = new BasicInstrumentation( rowsFactory( rowsRegistry ),
+                                                              NAME,
+                                                              statement( "update", UPDATE ) );
+
+        rows.recordRows( BatchExecutor.BATCH_UPDATE_RETURN_VALUE );
+        rows.recordRows( Statement.SUCCESS_NO_INFO );
+        rows.recordRows( 0 );
+
+        Histogram histogram = rowsRegistry.getHistograms().get( NAME + ".rowsAffected" );
+        assertThat( histogram.getCount() ).isEqualTo( 1 );
+        assertThat( histogram.getSnapshot().getMin() ).isZero();
+    }
+
+    @Test
+    public void testRecordRows_ignoredWithoutStatement() {
+        MetricRegistry rowsRegistry = new MetricRegistry();
+        BasicInstrumentation rows = new BasicInstrumentation( rowsFactory( rowsRegistry ), NAME );
+
+        rows.recordRows( 42 );
+
+        assertThat( rowsRegistry.getHistograms() ).isEmpty();
+    }
+
+    private static MetricFactory rowsFactory( MetricRegistry registry ) {
+        return new MetricFactory( registry, InstrumentationSettings.builder().rowHistograms( true ).build() );
+    }
+
+    private static MappedStatement statement( String id, SqlCommandType type ) {
+        Configuration configuration = new Configuration();
+        return new MappedStatement.Builder( configuration,
+                                            id,
+                                            new StaticSqlSource( configuration, "sql" ),
+                                            type ).build();
+    }
+
+    private static MetricFactory leanFactory( MetricRegistry registry ) {
+        return new MetricFactory( registry,
+                                  InstrumentationSettings.builder().profile( InstrumentationProfile.LEAN ).build() );
+    }
 }
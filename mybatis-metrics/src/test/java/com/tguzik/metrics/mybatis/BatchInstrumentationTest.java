@@ -0,0 +1,124 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchInstrumentationTest {
+    private MetricRegistry registry;
+    private BatchInstrumentation instrumentation;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        MetricFactory factory = new MetricFactory( registry, InstrumentationSettings.defaults() );
+        this.instrumentation = new BatchInstrumentation( factory, new StatementIdLookup( factory ) );
+    }
+
+    @Test
+    public void testRecord_attributesFlushProportionallyToBatchSizes() {
+        BatchResult inserts = result( "insert", 3 );
+        BatchResult updates = result( "update", 1 );
+
+        instrumentation.record( Arrays.asList( inserts, updates ), TimeUnit.MILLISECONDS.toNanos( 8 ), false );
+
+        assertThat( registry.timer( BatchInstrumentation.FLUSH_METRIC_NAME ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.histogram( "insert.batch.size" ).getSnapshot().getMax() ).isEqualTo( 3L );
+        assertThat( registry.timer( "insert.batch.flush" ).getSnapshot().getMax() )
+                .isEqualTo( TimeUnit.MILLISECONDS.toNanos( 6 ) );
+        assertThat( registry.timer( "insert.batch.amortized" ).getSnapshot().getMax() )
+                .isEqualTo( TimeUnit.MILLISECONDS.toNanos( 2 ) );
+        assertThat( registry.timer( "update.batch.flush" ).getSnapshot().getMax() )
+                .isEqualTo( TimeUnit.MILLISECONDS.toNanos( 2 ) );
+    }
+
+    @Test
+    public void testRecord_ignoresEmptyFlushes() {
+        instrumentation.record( Collections.<BatchResult>emptyList(), 1000L, false );
+
+        assertThat( registry.timer( BatchInstrumentation.FLUSH_METRIC_NAME ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testRecord_countsFailuresAndAttributesSuccessfulBatches() {
+        instrumentation.record( Collections.singletonList( result( "insert", 2 ) ), 1000L, true );
+        instrumentation.record( Collections.<BatchResult>emptyList(), 1000L, true );
+
+        assertThat( registry.meter( BatchInstrumentation.FLUSH_METRIC_NAME + ".failures" ).getCount() ).isEqualTo( 2L );
+        assertThat( registry.timer( BatchInstrumentation.FLUSH_METRIC_NAME ).getCount() ).isEqualTo( 2L );
+        assertThat( registry.timer( "insert.batch.flush" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testEvict_unregistersMetricsOfStatement() {
+        BatchResult inserts = result( "insert", 2 );
+        instrumentation.record( Collections.singletonList( inserts ), 1000L, false );
+
+        instrumentation.evict( Collections.singletonList( inserts.getMappedStatement() ) );
+
+        assertThat( registry.getNames() ).doesNotContain( "insert.batch.size", "insert.batch.flush" );
+        assertThat( registry.getTimers() ).containsKey( BatchInstrumentation.FLUSH_METRIC_NAME );
+    }
+
+    @Test
+    public void testRecord_namesMetricsAfterInstrumentationOfStatement() {
+        final MetricFactory factory = new MetricFactory( registry, InstrumentationSettings.defaults() );
+        BatchInstrumentation overflowing = new BatchInstrumentation( factory, new StatementIdLookup( factory ) {
+            @Override
+            public BasicInstrumentation getInstrumentation( MappedStatement statement ) {
+                return new BasicInstrumentation( factory, "overflow" );
+            }
+        } );
+
+        overflowing.record( Arrays.asList( result( "insert", 1 ), result( "update", 2 ) ), 1000L, false );
+
+        assertThat( registry.histogram( "overflow.batch.size" ).getCount() ).isEqualTo( 2L );
+        assertThat( registry.getNames() ).doesNotContain( "insert.batch.size", "update.batch.size" );
+    }
+
+    private static BatchResult result( String id, int size ) {
+        Configuration configuration = new Configuration();
+        MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                 id,
+                                                                 new StaticSqlSource( configuration, id ),
+                                                                 SqlCommandType.INSERT ).build();
+        BatchResult result = new BatchResult( statement, id );
+        result.setUpdateCounts( new int[ size ] );
+        return result;
+    }
+
+    /** Names statements by their ids, like the default name strategy */
+    private static class StatementIdLookup implements InstrumentationLookup {
+        private final MetricFactory factory;
+
+        StatementIdLookup( MetricFactory factory ) {
+            this.factory = factory;
+        }
+
+        @Override
+        public String deriveMetricName( MappedStatement statement ) {
+            return statement.getId();
+        }
+
+        @Override
+        public BasicInstrumentation getInstrumentation( MappedStatement statement ) {
+            return new BasicInstrumentation( factory, statement.getId(), statement );
+        }
+
+        @Override
+        public BasicInstrumentation getInstrumentation( Object key, String baseMetricName, MappedStatement statement ) {
+            return new BasicInstrumentation( factory, baseMetricName, statement );
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.InvocationTargetException;
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+
+import org.apache.ibatis.exceptions.PersistenceException;
+import org.apache.ibatis.executor.ExecutorException;
+import org.junit.Test;
+
+public class FailureCategoryTest {
+    @Test
+    public void testOf_unwrapsPersistenceAndInvocationTargetExceptions() {
+        Throwable failure = new InvocationTargetException( new PersistenceException( "wrapped",
+                                                                                     sqlException( "23505", 0 ) ) );
+
+        assertThat( FailureCategory.of( failure ) ).isEqualTo( FailureCategory.CONSTRAINT_VIOLATION );
+    }
+
+    @Test
+    public void testOf_usesSqlStateClasses() {
+        assertThat( FailureCategory.of( sqlException( "40001", 0 ) ) ).isEqualTo( FailureCategory.DEADLOCK );
+        assertThat( FailureCategory.of( sqlException( "08006", 0 ) ) ).isEqualTo( FailureCategory.CONNECTION );
+        assertThat( FailureCategory.of( sqlException( "23000", 0 ) ) ).isEqualTo(
+                FailureCategory.CONSTRAINT_VIOLATION );
+        assertThat( FailureCategory.of( sqlException( "22001", 0 ) ) ).isEqualTo( FailureCategory.DATA );
+        assertThat( FailureCategory.of( sqlException( "42P01", 0 ) ) ).isEqualTo( FailureCategory.BAD_SQL );
+        assertThat( FailureCategory.of( sqlException( "XX000", 0 ) ) ).isEqualTo( FailureCategory.OTHER_SQL );
+    }
+
+    @Test
+    public void testOf_recognizesPostgreSqlStates() {
+        assertThat( FailureCategory.of( sqlException( "40P01", 0 ) ) ).isEqualTo( FailureCategory.DEADLOCK );
+        assertThat( FailureCategory.of( sqlException( "55P03", 0 ) ) ).isEqualTo( FailureCategory.LOCK_TIMEOUT );
+        assertThat( FailureCategory.of( sqlException( "57014", 0 ) ) ).isEqualTo( FailureCategory.TIMEOUT );
+    }
+
+    @Test
+    public void testOf_recognizesOracleCodes() {
+        assertThat( FailureCategory.of( sqlException( "61000", 60 ) ) ).isEqualTo( FailureCategory.DEADLOCK );
+        assertThat( FailureCategory.of( sqlException( "61000", 54 ) ) ).isEqualTo( FailureCategory.LOCK_TIMEOUT );
+        assertThat( FailureCategory.of( sqlException( "72000", 1013 ) ) ).isEqualTo( FailureCategory.TIMEOUT );
+        assertThat( FailureCategory.of( sqlException( "61000", 1 ) ) ).isEqualTo( FailureCategory.OTHER_SQL );
+    }
+
+    @Test
+    public void testOf_tellsMySqlLockWaitTimeoutApartFromDeadlock() {
+        SQLException lockWaitTimeout = new SQLException( "Lock wait timeout exceeded; try restarting transaction",
+                                                         "40001",
+                                                         1205 );
+        SQLException sqlServerDeadlock = new SQLException( "Transaction was deadlocked", "40001", 1205 );
+
+        assertThat( FailureCategory.of( lockWaitTimeout ) ).isEqualTo( FailureCategory.LOCK_TIMEOUT );
+        assertThat( FailureCategory.of( sqlServerDeadlock ) ).isEqualTo( FailureCategory.DEADLOCK );
+    }
+
+    @Test
+    public void testOf_fallsBackToExceptionType() {
+        assertThat( FailureCategory.of( new SQLTimeoutException() ) ).isEqualTo( FailureCategory.TIMEOUT );
+        assertThat( FailureCategory.of( new SQLTransientConnectionException() ) ).isEqualTo(
+                FailureCategory.CONNECTION );
+        assertThat( FailureCategory.of( new SQLIntegrityConstraintViolationException() ) ).isEqualTo(
+                FailureCategory.CONSTRAINT_VIOLATION );
+    }
+
+    @Test
+    public void testOf_usesNextExceptionOfBatch() {
+        BatchUpdateException batch = new BatchUpdateException( "batch failed", new int[ 0 ] );
+        batch.setNextException( sqlException( "23505", 0 ) );
+
+        assertThat( FailureCategory.of( batch ) ).isEqualTo( FailureCategory.CONSTRAINT_VIOLATION );
+    }
+
+    @Test
+    public void testOf_withoutSqlException() {
+        assertThat( FailureCategory.of( new ExecutorException( "mapping failed" ) ) ).isEqualTo(
+                FailureCategory.OTHER );
+        assertThat( FailureCategory.of( null ) ).isEqualTo( FailureCategory.OTHER );
+    }
+
+    @Test
+    public void testOf_stopsOnCircularCauses() {
+        RuntimeException first = new RuntimeException();
+        RuntimeException second = new RuntimeException( first );
+        first.initCause( second );
+
+        assertThat( FailureCategory.of( first ) ).isEqualTo( FailureCategory.OTHER );
+    }
+
+    private static SQLException sqlException( String sqlState, int vendorCode ) {
+        return new SQLException( "failed", sqlState, vendorCode );
+    }
+}
@@ -0,0 +1,53 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.sql.SQLException;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FailureInstrumentationTest {
+    private MetricRegistry registry;
+    private FailureInstrumentation instrumentation;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        this.instrumentation = new FailureInstrumentation( new MetricFactory( registry,
+                                                                              InstrumentationSettings.defaults() ),
+                                                           "statement" );
+    }
+
+    @Test
+    public void testRecord_countsAndTimesPerCategory() {
+        instrumentation.record( new SQLException( "deadlock", "40P01" ), 1000L );
+        instrumentation.record( new SQLException( "deadlock", "40P01" ), 2000L );
+        instrumentation.record( new SQLException( "duplicate", "23505" ), 3000L );
+
+        assertThat( registry.counter( "statement.failures.deadlock" ).getCount() ).isEqualTo( 2L );
+        assertThat( registry.timer( "statement.failures.deadlock.elapsed" ).getCount() ).isEqualTo( 2L );
+        assertThat( registry.counter( "statement.failures.constraintViolation" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testRecord_untimedFailureIsOnlyCounted() {
+        instrumentation.record( new IllegalStateException(), -1L );
+
+        assertThat( registry.counter( "statement.failures.other" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.timer( "statement.failures.other.elapsed" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testGetMetrics_containsOnlyCategoriesThatFailed() {
+        assertThat( instrumentation.getMetrics() ).isEmpty();
+        assertThat( registry.getMetrics() ).isEmpty();
+
+        instrumentation.record( new SQLException( "timeout", "57014" ), 1000L );
+
+        assertThat( instrumentation.getMetrics() ).containsOnly(
+                registry.counter( "statement.failures.timeout" ),
+                registry.timer( "statement.failures.timeout.elapsed" ) );
+    }
+}
@@ -0,0 +1,98 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FetchSizeAdvisorTest {
+    private MetricRegistry registry;
+    private FetchSizeAdvisor advisor;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        this.advisor = createAdvisor( InstrumentationSettings.builder().applyFetchSize( true ).maxFetchSize( 500 ) );
+    }
+
+    @Test
+    public void testGetRecommendation_noneUntilEnoughSamples() {
+        recordRows( 100, FetchSizeAdvisor.MIN_SAMPLES - 1 );
+
+        assertThat( advisor.getRecommendation() ).isZero();
+
+        recordRows( 100, 1 );
+
+        assertThat( advisor.getRecommendation() ).isEqualTo( 128 );
+        assertThat( registry.getGauges().get( "statement.fetchSize.recommended" ).getValue() ).isEqualTo( 128 );
+    }
+
+    @Test
+    public void testGetRecommendation_ignoresSelectsWithUnknownRowCount() {
+        recordRows( -1, FetchSizeAdvisor.MIN_SAMPLES );
+
+        assertThat( advisor.getRecommendation() ).isZero();
+    }
+
+    @Test
+    public void testGetRecommendation_basedOnMostRecentSelects() {
+        recordRows( 100, FetchSizeAdvisor.WINDOW );
+        recordRows( 10, FetchSizeAdvisor.WINDOW );
+
+        assertThat( advisor.getRecommendation() ).isEqualTo( 16 );
+    }
+
+    @Test
+    public void testRecommend_roundsUpToPowerOfTwoWithinLimits() {
+        assertThat( advisor.recommend( 0 ) ).isEqualTo( FetchSizeAdvisor.MIN_FETCH_SIZE );
+        assertThat( advisor.recommend( 15 ) ).isEqualTo( 16 );
+        assertThat( advisor.recommend( 16 ) ).isEqualTo( 32 );
+        assertThat( advisor.recommend( 200.5 ) ).isEqualTo( 256 );
+        assertThat( advisor.recommend( 300 ) ).isEqualTo( 500 );
+        assertThat( advisor.recommend( 1e12 ) ).isEqualTo( 500 );
+    }
+
+    @Test
+    public void testFetchSizeFor_onlyWhenApplyingAndStatementHasNone() {
+        recordRows( 10, FetchSizeAdvisor.MIN_SAMPLES );
+
+        assertThat( advisor.fetchSizeFor( createStatement( null ) ) ).isEqualTo( 16 );
+        assertThat( advisor.fetchSizeFor( createStatement( 50 ) ) ).isZero();
+        assertThat( createAdvisor( InstrumentationSettings.builder().fetchSizeAdvisor( true ) ).fetchSizeFor(
+                createStatement( null ) ) ).isZero();
+    }
+
+    @Test
+    public void testRecord_timesSelectsByFetchSize() {
+        advisor.record( 5, 1000L, false );
+        advisor.record( 5, 1000L, true );
+        advisor.record( 5, -1L, true );
+
+        assertThat( registry.timer( "statement.fetchSize.defaultElapsed" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.timer( "statement.fetchSize.recommendedElapsed" ).getCount() ).isEqualTo( 1L );
+        assertThat( advisor.getMetrics() ).hasSize( 3 );
+    }
+
+    private void recordRows( long rows, int times ) {
+        for ( int i = 0; i < times; i++ ) {
+            advisor.record( rows, -1L, false );
+        }
+    }
+
+    private FetchSizeAdvisor createAdvisor( InstrumentationSettings.Builder settings ) {
+        return new FetchSizeAdvisor( new MetricFactory( registry, settings.build() ), "statement" );
+    }
+
+    private static MappedStatement createStatement( Integer fetchSize ) {
+        Configuration configuration = new Configuration();
+        return new MappedStatement.Builder( configuration,
+                                            "statement",
+                                            new StaticSqlSource( configuration, "select 1" ),
+                                            SqlCommandType.SELECT ).fetchSize( fetchSize ).build();
+    }
+}
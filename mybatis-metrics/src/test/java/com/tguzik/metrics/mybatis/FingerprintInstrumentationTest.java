@@ -0,0 +1,77 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FingerprintInstrumentationTest {
+    private MetricRegistry registry;
+    private FingerprintInstrumentation instrumentation;
+
+    @Before
+    public void setUp() {
+        InstrumentationSettings settings = InstrumentationSettings.builder().maxFingerprints( 2 ).build();
+        this.registry = new MetricRegistry();
+        this.instrumentation = new FingerprintInstrumentation( new MetricFactory( registry, settings ), "statement" );
+    }
+
+    @Test
+    public void testTimerFor_sharesTimerBetweenSqlWithSameFingerprint() {
+        Timer timer = instrumentation.timerFor( "select * from t where id in (?, ?)" );
+
+        assertThat( instrumentation.timerFor( "select * from t where id in (?, ?, ?)" ) ).isSameAs( timer );
+        assertThat( instrumentation.timerFor( "select * from t where id = ?" ) ).isNotSameAs( timer );
+    }
+
+    @Test
+    public void testTimerFor_registersTimerAndSqlUnderStatementName() {
+        String identifier = SqlFingerprints.identifier( "select * from t where id = ?" );
+
+        Timer timer = instrumentation.timerFor( "select * from t where id = 7" );
+
+        assertThat( registry.getTimers().get( "statement.fingerprint." + identifier ) ).isSameAs( timer );
+        assertThat( registry.getGauges().get( "statement.fingerprint." + identifier + ".sql" ).getValue() )
+                .isEqualTo( "select * from t where id = ?" );
+    }
+
+    @Test
+    public void testTimerFor_usesSharedTimerAboveLimit() {
+        instrumentation.timerFor( "select a from t" );
+        instrumentation.timerFor( "select b from t" );
+
+        Timer timer = instrumentation.timerFor( "select c from t" );
+
+        assertThat( timer ).isSameAs( registry.timer( "statement.fingerprint.other" ) );
+        assertThat( instrumentation.getMetrics() ).hasSize( 5 );
+    }
+
+    @Test
+    public void testTimerFor_usesSharedTimerForNewSqlOnceSqlLimitIsReached() {
+        StringBuilder placeholders = new StringBuilder( "?" );
+        Timer timer = instrumentation.timerFor( "select * from t where id in (" + placeholders + ")" );
+
+        for ( int i = 1; i < 16; i++ ) {
+            placeholders.append( ", ?" );
+            instrumentation.timerFor( "select * from t where id in (" + placeholders + ")" );
+        }
+        placeholders.append( ", ?" );
+
+        assertThat( instrumentation.timerFor( "select * from t where id in (?)" ) ).isSameAs( timer );
+        assertThat( instrumentation.timerFor( "select * from t where id in (" + placeholders + ")" ) )
+                .isSameAs( registry.timer( "statement.fingerprint.other" ) );
+    }
+
+    @Test
+    public void testTimerFor_usesSharedTimerWhenIdentifiersCollide() {
+        assertThat( SqlFingerprints.identifier( "select Aa" ) ).isEqualTo( SqlFingerprints.identifier( "select BB" ) );
+        Timer other = registry.timer( "statement.fingerprint.other" );
+        Timer timer = instrumentation.timerFor( "select Aa" );
+
+        assertThat( instrumentation.timerFor( "select BB" ) ).isSameAs( other ).isNotSameAs( timer );
+        assertThat( registry.getGauges().get( "statement.fingerprint." + SqlFingerprints.identifier( "select Aa" ) +
+                                              ".sql" ).getValue() ).isEqualTo( "select Aa" );
+    }
+}
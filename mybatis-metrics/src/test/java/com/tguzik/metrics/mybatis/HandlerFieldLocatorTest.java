@@ -0,0 +1,121 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.Properties;
+
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.parameter.ParameterHandler;
+import org.apache.ibatis.executor.statement.RoutingStatementHandler;
+import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.RowBounds;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HandlerFieldLocatorTest {
+    private HandlerFieldLocator<MappedStatement> locator;
+    private Executor executor;
+    private Configuration configuration;
+    private MappedStatement statement;
+    private BoundSql boundSql;
+
+    @Before
+    public void setUp() {
+        this.locator = new HandlerFieldLocator<>( MappedStatement.class );
+        this.executor = mock( Executor.class );
+        this.configuration = new Configuration();
+        this.statement = new MappedStatement.Builder( configuration,
+                                                      "statement id",
+                                                      new StaticSqlSource( configuration, "select 1" ),
+                                                      SqlCommandType.SELECT ).build();
+        this.boundSql = statement.getBoundSql( null );
+    }
+
+    @Test
+    public void testLocate_routingStatementHandler() {
+        StatementHandler handler = newStatementHandler();
+
+        assertThat( locator.locate( handler ) ).isSameAs( statement );
+        assertThat( locator.locate( handler ) ).isSameAs( statement );
+    }
+
+    @Test
+    public void testLocate_parameterHandler() {
+        ParameterHandler handler = configuration.newParameterHandler( statement, null, boundSql );
+
+        assertThat( locator.locate( handler ) ).isSameAs( statement );
+    }
+
+    @Test
+    public void testLocate_resultSetHandler() {
+        Object handler = configuration.newResultSetHandler( mock( Executor.class ),
+                                                            statement,
+                                                            RowBounds.DEFAULT,
+                                                            configuration.newParameterHandler( statement,
+                                                                                               null,
+                                                                                               boundSql ),
+                                                            null,
+                                                            boundSql );
+
+        assertThat( locator.locate( handler ) ).isSameAs( statement );
+    }
+
+    @Test
+    public void testLocate_handlerWrappedByAnotherPlugin() {
+        Object wrapped = Plugin.wrap( newStatementHandler(), new OtherPlugin() );
+
+        assertThat( wrapped ).isNotInstanceOf( RoutingStatementHandler.class );
+        assertThat( locator.locate( wrapped ) ).isSameAs( statement );
+    }
+
+    @Test
+    public void testLocate_executorOfHandlerWrappedByAnotherPlugin() {
+        HandlerFieldLocator<Executor> executorLocator = new HandlerFieldLocator<>( Executor.class );
+        Object wrapped = Plugin.wrap( newStatementHandler(), new OtherPlugin() );
+
+        assertThat( executorLocator.locate( wrapped ) ).isSameAs( executor );
+    }
+
+    @Test
+    public void testLocate_unknownObject() {
+        assertThat( locator.locate( "not a handler" ) ).isNull();
+        assertThat( locator.locate( null ) ).isNull();
+    }
+
+    private StatementHandler newStatementHandler() {
+        return new RoutingStatementHandler( executor,
+                                            statement,
+                                            null,
+                                            RowBounds.DEFAULT,
+                                            null,
+                                            boundSql );
+    }
+
+    @Intercepts( @Signature( type = StatementHandler.class, method = "getBoundSql", args = {} ) )
+    public static class OtherPlugin implements Interceptor {
+        @Override
+        public Object intercept( Invocation invocation ) throws Throwable {
+            return invocation.proceed();
+        }
+
+        @Override
+        public Object plugin( Object target ) {
+            return Plugin.wrap( target, this );
+        }
+
+        @Override
+        public void setProperties( Properties properties ) {
+        }
+    }
+}
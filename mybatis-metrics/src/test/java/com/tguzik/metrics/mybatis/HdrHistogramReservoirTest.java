@@ -0,0 +1,70 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HdrHistogramReservoirTest {
+    private HdrHistogramReservoir reservoir;
+
+    @Before
+    public void setUp() {
+        this.reservoir = new HdrHistogramReservoir( 1, 1000000, 3 );
+    }
+
+    @Test
+    public void testGetSnapshot_empty() {
+        Snapshot snapshot = reservoir.getSnapshot();
+
+        assertThat( snapshot.size() ).isZero();
+        assertThat( snapshot.getMin() ).isZero();
+        assertThat( snapshot.getMax() ).isZero();
+        assertThat( snapshot.getMean() ).isZero();
+        assertThat( snapshot.getValues() ).isEmpty();
+    }
+
+    @Test
+    public void testGetSnapshot_percentiles() {
+        for ( int i = 1; i <= 1000; i++ ) {
+            reservoir.update( i );
+        }
+
+        Snapshot snapshot = reservoir.getSnapshot();
+
+        assertThat( snapshot.size() ).isEqualTo( 1000 );
+        assertThat( snapshot.getMin() ).isEqualTo( 1 );
+        assertThat( snapshot.getMax() ).isEqualTo( 1000 );
+        assertThat( snapshot.getMedian() ).isEqualTo( 500, within( 1.0 ) );
+        assertThat( snapshot.get99thPercentile() ).isEqualTo( 990, within( 1.0 ) );
+        assertThat( snapshot.get999thPercentile() ).isEqualTo( 999, within( 1.0 ) );
+        assertThat( snapshot.getValues() ).hasSize( 1000 );
+    }
+
+    @Test
+    public void testGetSnapshot_containsOnlyValuesSincePreviousSnapshot() {
+        reservoir.update( 10 );
+        reservoir.getSnapshot();
+        reservoir.update( 20 );
+
+        Snapshot snapshot = reservoir.getSnapshot();
+
+        assertThat( snapshot.size() ).isEqualTo( 1 );
+        assertThat( snapshot.getMin() ).isEqualTo( 20 );
+        assertThat( reservoir.size() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testUpdate_clampsValuesOutsideOfRange() {
+        reservoir.update( -5 );
+        reservoir.update( Long.MAX_VALUE );
+
+        Snapshot snapshot = reservoir.getSnapshot();
+
+        assertThat( snapshot.size() ).isEqualTo( 2 );
+        assertThat( snapshot.getMin() ).isZero();
+        assertThat( snapshot.getMax() ).isGreaterThanOrEqualTo( 1000000 );
+    }
+}
@@ -0,0 +1,137 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IdleStatementEvictorTest {
+    private static final long TTL = TimeUnit.MINUTES.toNanos( 1 );
+
+    private MetricRegistry registry;
+    private MetricFactory factory;
+    private InstrumentationCache cache;
+    private List<Object> evicted;
+    private IdleStatementEvictor evictor;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        this.factory = new MetricFactory( registry,
+                                          InstrumentationSettings.builder()
+                                                                 .statementIdleTtl( TTL, TimeUnit.NANOSECONDS )
+                                                                 .build() );
+        this.cache = new InstrumentationCache();
+        this.evicted = new ArrayList<>();
+        this.evictor = new IdleStatementEvictor( registry, cache, TTL, new IdleStatementEvictor.Listener() {
+            @Override
+            public void evicted( List<Object> statements ) {
+                evicted.addAll( statements );
+            }
+        } );
+    }
+
+    @Test
+    public void testSweep_evictsStatementsIdleForTimeToLive() {
+        MappedStatement statement = statement( "idle" );
+        cache.putIfAbsent( statement, new BasicInstrumentation( registry, "idle" ) );
+
+        assertThat( evictor.sweep( 0L ) ).isEmpty();
+        assertThat( evictor.sweep( TTL - 1 ) ).isEmpty();
+        assertThat( evictor.sweep( TTL ) ).containsExactly( statement );
+
+        assertThat( cache.get( statement ) ).isNull();
+        assertThat( registry.getNames() ).isEmpty();
+        assertThat( evicted ).containsExactly( statement );
+    }
+
+    @Test
+    public void testSweep_keepsStatementsInvokedInTheMeantime() {
+        MappedStatement statement = statement( "busy" );
+        BasicInstrumentation instrumentation = new BasicInstrumentation( registry, "busy" );
+        cache.putIfAbsent( statement, instrumentation );
+
+        evictor.sweep( 0L );
+        instrumentation.recordInvocation( 1000L, false );
+
+        assertThat( evictor.sweep( TTL ) ).isEmpty();
+        assertThat( evictor.sweep( 2 * TTL - 1 ) ).isEmpty();
+        assertThat( evictor.sweep( 2 * TTL ) ).containsExactly( statement );
+    }
+
+    @Test
+    public void testSweep_keepsStatementsWithInvocationsInProgress() {
+        MappedStatement statement = statement( "slow" );
+        BasicInstrumentation instrumentation = new BasicInstrumentation( factory, "slow" );
+        cache.putIfAbsent( statement, instrumentation );
+
+        assertThat( instrumentation.enter() ).isTrue();
+        evictor.sweep( 0L );
+
+        assertThat( evictor.sweep( 2 * TTL ) ).isEmpty();
+        assertThat( instrumentation.enter() ).isTrue();
+
+        instrumentation.exit();
+        instrumentation.exit();
+        assertThat( evictor.sweep( 3 * TTL ) ).containsExactly( statement );
+    }
+
+    @Test
+    public void testSweep_evictedInstrumentationRefusesInvocations() {
+        MappedStatement statement = statement( "idle" );
+        BasicInstrumentation instrumentation = new BasicInstrumentation( factory, "idle" );
+        cache.putIfAbsent( statement, instrumentation );
+
+        evictor.sweep( 0L );
+        evictor.sweep( TTL );
+
+        assertThat( instrumentation.enter() ).isFalse();
+    }
+
+    @Test
+    public void testSweep_keepsMetricsSharedWithRemainingStatements() {
+        MappedStatement idle = statement( "idle" );
+        MappedStatement recent = statement( "recent" );
+        BasicInstrumentation recentInstrumentation = new BasicInstrumentation( registry, "shared" );
+        cache.putIfAbsent( idle, new BasicInstrumentation( registry, "shared" ) );
+        evictor.sweep( 0L );
+
+        cache.putIfAbsent( recent, recentInstrumentation );
+        evictor.sweep( TTL );
+
+        assertThat( cache.get( idle ) ).isNull();
+        assertThat( cache.get( recent ) ).isSameAs( recentInstrumentation );
+        assertThat( registry.getTimers() ).containsKey( "shared.elapsed" );
+    }
+
+    @Test
+    public void testSweep_evictedStatementGetsNewMetrics() {
+        MappedStatement statement = statement( "statement" );
+        BasicInstrumentation instrumentation = new BasicInstrumentation( registry, "statement" );
+        instrumentation.recordInvocation( 1000L, false );
+        cache.putIfAbsent( statement, instrumentation );
+
+        evictor.sweep( 0L );
+        evictor.sweep( TTL );
+        cache.putIfAbsent( statement, new BasicInstrumentation( registry, "statement" ) );
+
+        assertThat( registry.timer( "statement.elapsed" ).getCount() ).isZero();
+    }
+
+    private static MappedStatement statement( String id ) {
+        Configuration configuration = new Configuration();
+        return new MappedStatement.Builder( configuration,
+                                            id,
+                                            new StaticSqlSource( configuration, "select 1" ),
+                                            SqlCommandType.SELECT ).build();
+    }
+}
@@ -0,0 +1,339 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ibatis.mapping.MappedStatement;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentationSettingsTest {
+    private Properties properties;
+
+    @Before
+    public void setUp() {
+        this.properties = new Properties();
+    }
+
+    @Test
+    public void testDefaults() {
+        assertThat( InstrumentationSettings.defaults().getProfile() ).isEqualTo( InstrumentationProfile.FULL );
+    }
+
+    @Test
+    public void testProperties_emptyPropertiesKeepValues() {
+        InstrumentationSettings settings = InstrumentationSettings.builder()
+                                                                  .profile( InstrumentationProfile.LEAN )
+                                                                  .properties( properties )
+                                                                  .build();
+
+        assertThat( settings.getProfile() ).isEqualTo( InstrumentationProfile.LEAN );
+    }
+
+    @Test
+    public void testProperties_profileIsCaseInsensitive() {
+        properties.setProperty( InstrumentationSettings.PROFILE_PROPERTY, " Lean " );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.getProfile() ).isEqualTo( InstrumentationProfile.LEAN );
+    }
+
+    @Test
+    public void testProperties_rejectsIntValueOutOfRange() {
+        properties.setProperty( InstrumentationSettings.MAX_STATEMENTS_PROPERTY, "4294967297" );
+
+        try {
+            InstrumentationSettings.builder().properties( properties );
+            fail( "Expected the value to be rejected" );
+        }
+        catch ( IllegalArgumentException e ) {
+            assertThat( e.getMessage() ).contains( InstrumentationSettings.MAX_STATEMENTS_PROPERTY )
+                                        .contains( "is not a number" );
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testProperties_unknownProfile() {
+        properties.setProperty( InstrumentationSettings.PROFILE_PROPERTY, "skinny" );
+
+        InstrumentationSettings.builder().properties( properties );
+    }
+
+    @Test
+    public void testBuilder_copiesExistingSettings() {
+        InstrumentationSettings original = InstrumentationSettings.builder()
+                                                                  .profile( InstrumentationProfile.LEAN )
+                                                                  .build();
+
+        InstrumentationSettings copy = InstrumentationSettings.builder( original ).build();
+
+        assertThat( copy.getProfile() ).isEqualTo( InstrumentationProfile.LEAN );
+    }
+
+    @Test
+    public void testProperties_namingStrategyAlias() {
+        properties.setProperty( InstrumentationSettings.NAMING_STRATEGY_PROPERTY, MetricNameStrategies.NAMESPACE );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.getNameStrategy() ).isSameAs( MetricNameStrategies.namespace() );
+    }
+
+    @Test
+    public void testProperties_namingStrategyClass() {
+        properties.setProperty( InstrumentationSettings.NAMING_STRATEGY_PROPERTY,
+                                ConstantNameStrategy.class.getName() );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.getNameStrategy() ).isInstanceOf( ConstantNameStrategy.class );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testProperties_namingStrategyClassThatIsNotAStrategy() {
+        properties.setProperty( InstrumentationSettings.NAMING_STRATEGY_PROPERTY, Object.class.getName() );
+
+        InstrumentationSettings.builder().properties( properties );
+    }
+
+    @Test
+    public void testProperties_prefixIsAppliedOnTopOfStrategy() {
+        properties.setProperty( InstrumentationSettings.NAMING_STRATEGY_PROPERTY,
+                                ConstantNameStrategy.class.getName() );
+        properties.setProperty( InstrumentationSettings.NAMING_PREFIX_PROPERTY, "prefix" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.getNameStrategy().deriveMetricName( null ) ).isEqualTo( "prefix.constant" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testProperties_databaseIdSuffixIsNotABoolean() {
+        properties.setProperty( InstrumentationSettings.NAMING_DATABASE_ID_SUFFIX_PROPERTY, "yes" );
+
+        InstrumentationSettings.builder().properties( properties );
+    }
+
+    @Test
+    public void testProperties_samplingInterval() {
+        properties.setProperty( InstrumentationSettings.SAMPLING_INTERVAL_PROPERTY, "100" );
+        properties.setProperty( InstrumentationSettings.SAMPLING_INTERVAL_OVERRIDE_PREFIX + "com.example.select", "1" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.getSamplingInterval( "com.example.insert" ) ).isEqualTo( 100 );
+        assertThat( settings.getSamplingInterval( "com.example.select" ) ).isEqualTo( 1 );
+        assertThat( settings.getSamplingInterval( null ) ).isEqualTo( 100 );
+    }
+
+    @Test
+    public void testDefaults_samplingDisabled() {
+        assertThat( InstrumentationSettings.defaults().getSamplingInterval( "any" ) ).isEqualTo( 1 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBuilder_samplingIntervalMustBePositive() {
+        InstrumentationSettings.builder().samplingInterval( 0 );
+    }
+
+    @Test
+    public void testProperties_slowStatements() {
+        properties.setProperty( InstrumentationSettings.SLOW_THRESHOLD_MILLIS_PROPERTY, "250" );
+        properties.setProperty( InstrumentationSettings.SLOW_THRESHOLD_MILLIS_OVERRIDE_PREFIX + "com.example.report",
+                                "5000" );
+        properties.setProperty( InstrumentationSettings.SLOW_CAPACITY_PROPERTY, "16" );
+        properties.setProperty( InstrumentationSettings.SLOW_PARAMETER_MAX_LENGTH_PROPERTY, "64" );
+        properties.setProperty( InstrumentationSettings.SLOW_REDACTED_PARAMETERS_PROPERTY, " password, ssn ,," );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.getSlowThresholdNanos( "com.example.select" ) ).isEqualTo( 250000000L );
+        assertThat( settings.getSlowThresholdNanos( "com.example.report" ) ).isEqualTo( 5000000000L );
+        assertThat( settings.getSlowStatementCapacity() ).isEqualTo( 16 );
+        assertThat( settings.getSlowParameterMaxLength() ).isEqualTo( 64 );
+        assertThat( settings.getRedactedParameters() ).containsOnly( "password", "ssn" );
+    }
+
+    @Test
+    public void testDefaults_slowStatementsNotCaptured() {
+        assertThat( InstrumentationSettings.defaults().getSlowThresholdNanos( "any" ) ).isEqualTo( Long.MAX_VALUE );
+    }
+
+    @Test
+    public void testProperties_rowHistograms() {
+        properties.setProperty( InstrumentationSettings.ROW_HISTOGRAMS_PROPERTY, "true" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isRowHistograms() ).isTrue();
+        assertThat( InstrumentationSettings.defaults().isRowHistograms() ).isFalse();
+    }
+
+    @Test
+    public void testProperties_phaseTimers() {
+        properties.setProperty( InstrumentationSettings.PHASE_TIMERS_PROPERTY, "true" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isPhaseTimers() ).isTrue();
+        assertThat( InstrumentationSettings.defaults().isPhaseTimers() ).isFalse();
+    }
+
+    @Test
+    public void testProperties_cacheMetrics() {
+        properties.setProperty( InstrumentationSettings.CACHE_METRICS_PROPERTY, "true" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isCacheMetrics() ).isTrue();
+        assertThat( InstrumentationSettings.defaults().isCacheMetrics() ).isFalse();
+    }
+
+    @Test
+    public void testProperties_inFlight() {
+        properties.setProperty( InstrumentationSettings.IN_FLIGHT_PROPERTY, "true" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isInFlight() ).isTrue();
+        assertThat( InstrumentationSettings.defaults().isInFlight() ).isFalse();
+    }
+
+    @Test
+    public void testProperties_fingerprints() {
+        properties.setProperty( InstrumentationSettings.FINGERPRINTS_PROPERTY, "true" );
+        properties.setProperty( InstrumentationSettings.FINGERPRINTS_MAX_PROPERTY, "10" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isFingerprints() ).isTrue();
+        assertThat( settings.getMaxFingerprints() ).isEqualTo( 10 );
+        assertThat( InstrumentationSettings.defaults().isFingerprints() ).isFalse();
+    }
+
+    @Test
+    public void testProperties_failureCategories() {
+        properties.setProperty( InstrumentationSettings.FAILURE_CATEGORIES_PROPERTY, "true" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isFailureCategories() ).isTrue();
+        assertThat( InstrumentationSettings.defaults().isFailureCategories() ).isFalse();
+    }
+
+    @Test
+    public void testProperties_resultHandlerMetrics() {
+        properties.setProperty( InstrumentationSettings.RESULT_HANDLER_METRICS_PROPERTY, "true" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isResultHandlerMetrics() ).isTrue();
+        assertThat( InstrumentationSettings.defaults().isResultHandlerMetrics() ).isFalse();
+    }
+
+    @Test
+    public void testProperties_fetchSize() {
+        properties.setProperty( InstrumentationSettings.FETCH_SIZE_APPLY_PROPERTY, "true" );
+        properties.setProperty( InstrumentationSettings.FETCH_SIZE_MAX_PROPERTY, "500" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isApplyFetchSize() ).isTrue();
+        assertThat( settings.isFetchSizeAdvisor() ).isTrue();
+        assertThat( settings.getMaxFetchSize() ).isEqualTo( 500 );
+        assertThat( InstrumentationSettings.defaults().isFetchSizeAdvisor() ).isFalse();
+        assertThat( InstrumentationSettings.defaults().getMaxFetchSize() ).isEqualTo( 1000 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBuilder_rejectsNonPositiveMaxFetchSize() {
+        InstrumentationSettings.builder().maxFetchSize( 0 );
+    }
+
+    @Test
+    public void testProperties_nPlusOneThreshold() {
+        properties.setProperty( InstrumentationSettings.N_PLUS_ONE_THRESHOLD_PROPERTY, "20" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isNPlusOneDetection() ).isTrue();
+        assertThat( settings.getNPlusOneThreshold() ).isEqualTo( 20 );
+        assertThat( InstrumentationSettings.defaults().isNPlusOneDetection() ).isFalse();
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBuilder_rejectsNonPositiveNPlusOneThreshold() {
+        InstrumentationSettings.builder().nPlusOneThreshold( 0 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBuilder_rejectsNonPositiveMaxFingerprints() {
+        InstrumentationSettings.builder().maxFingerprints( 0 );
+    }
+
+    @Test
+    public void testProperties_statementLimits() {
+        properties.setProperty( InstrumentationSettings.MAX_STATEMENTS_PROPERTY, "500" );
+        properties.setProperty( InstrumentationSettings.STATEMENT_IDLE_TTL_SECONDS_PROPERTY, "60" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.getMaxStatements() ).isEqualTo( 500 );
+        assertThat( settings.getStatementIdleTtlNanos() ).isEqualTo( TimeUnit.SECONDS.toNanos( 60 ) );
+        assertThat( InstrumentationSettings.defaults().getMaxStatements() ).isEqualTo( Integer.MAX_VALUE );
+        assertThat( InstrumentationSettings.defaults().getStatementIdleTtlNanos() ).isEqualTo( Long.MAX_VALUE );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBuilder_rejectsNonPositiveMaxStatements() {
+        InstrumentationSettings.builder().maxStatements( 0 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBuilder_rejectsNonPositiveStatementIdleTtl() {
+        InstrumentationSettings.builder().statementIdleTtl( 0, TimeUnit.SECONDS );
+    }
+
+    @Test
+    public void testProperties_warmUpIterations() {
+        properties.setProperty( InstrumentationSettings.WARM_UP_ITERATIONS_PROPERTY, "10000" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.getWarmUpIterations() ).isEqualTo( 10000 );
+        assertThat( InstrumentationSettings.defaults().getWarmUpIterations() ).isZero();
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBuilder_rejectsNegativeWarmUpIterations() {
+        InstrumentationSettings.builder().warmUpIterations( -1 );
+    }
+
+    @Test
+    public void testProperties_async() {
+        properties.setProperty( InstrumentationSettings.ASYNC_PROPERTY, "true" );
+        properties.setProperty( InstrumentationSettings.ASYNC_CAPACITY_PROPERTY, "1024" );
+
+        InstrumentationSettings settings = InstrumentationSettings.builder().properties( properties ).build();
+
+        assertThat( settings.isAsync() ).isTrue();
+        assertThat( settings.getAsyncCapacity() ).isEqualTo( 1024 );
+        assertThat( InstrumentationSettings.defaults().isAsync() ).isFalse();
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBuilder_rejectsNonPositiveAsyncCapacity() {
+        InstrumentationSettings.builder().asyncCapacity( 0 );
+    }
+
+    public static class ConstantNameStrategy implements MetricNameStrategy {
+        @Override
+        public String deriveMetricName( MappedStatement statement ) {
+            return "constant";
+        }
+    }
+}
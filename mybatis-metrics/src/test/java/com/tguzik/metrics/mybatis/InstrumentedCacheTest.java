@@ -0,0 +1,72 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.decorators.LruCache;
+import org.apache.ibatis.cache.impl.PerpetualCache;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentedCacheTest {
+    private MetricRegistry registry;
+    private LruCache lru;
+    private InstrumentedCache cache;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        this.lru = new LruCache( new PerpetualCache( "com.example.Users" ) );
+        this.cache = new InstrumentedCache( lru, registry );
+    }
+
+    @Test
+    public void testGetObject_countsHitsAndMisses() {
+        cache.putObject( "key", "value" );
+
+        assertThat( cache.getObject( "key" ) ).isEqualTo( "value" );
+        assertThat( cache.getObject( "other key" ) ).isNull();
+        assertThat( cache.getObject( "key" ) ).isEqualTo( "value" );
+
+        assertThat( registry.meter( "mybatis.cache.com.example.Users.hits" ).getCount() ).isEqualTo( 2L );
+        assertThat( registry.meter( "mybatis.cache.com.example.Users.misses" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.getGauges().get( "mybatis.cache.com.example.Users.hitRatio" ) ).isNotNull();
+    }
+
+    @Test
+    public void testPutObject_countsEvictions() {
+        lru.setSize( 2 );
+
+        cache.putObject( "first", 1 );
+        cache.putObject( "second", 2 );
+        cache.putObject( "third", 3 );
+
+        assertThat( registry.meter( "mybatis.cache.com.example.Users.puts" ).getCount() ).isEqualTo( 3L );
+        assertThat( registry.meter( "mybatis.cache.com.example.Users.evictions" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.getGauges().get( "mybatis.cache.com.example.Users.size" ).getValue() ).isEqualTo( 2 );
+    }
+
+    @Test
+    public void testRemoveObjectAndClear_areCounted() {
+        cache.putObject( "key", "value" );
+
+        assertThat( cache.removeObject( "key" ) ).isEqualTo( "value" );
+        cache.clear();
+
+        assertThat( registry.meter( "mybatis.cache.com.example.Users.removals" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.meter( "mybatis.cache.com.example.Users.clears" ).getCount() ).isEqualTo( 1L );
+        assertThat( cache.getSize() ).isZero();
+    }
+
+    @Test
+    public void testConstructor_secondDecoratorOfSameCacheSharesMetrics() {
+        Cache other = new InstrumentedCache( lru, registry );
+
+        other.getObject( "key" );
+        cache.getObject( "key" );
+
+        assertThat( registry.meter( "mybatis.cache.com.example.Users.misses" ).getCount() ).isEqualTo( 2L );
+        assertThat( other.getId() ).isEqualTo( "com.example.Users" );
+    }
+}
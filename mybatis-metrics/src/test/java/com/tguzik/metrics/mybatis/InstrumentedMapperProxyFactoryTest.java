@@ -0,0 +1,115 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentedMapperProxyFactoryTest {
+    private static final String BASE = OverloadedMapper.class.getName() + ".find.overload.";
+
+    private MetricRegistry registry;
+    private Configuration configuration;
+    private InstrumentingInterceptor interceptor;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        this.configuration = new Configuration();
+        this.interceptor = new InstrumentingInterceptor( registry );
+
+        configuration.addMapper( OverloadedMapper.class );
+        configuration.addMapper( PlainMapper.class );
+        addStatement( OverloadedMapper.class.getName() + ".find" );
+        addStatement( OverloadedMapper.class.getName() + ".count" );
+    }
+
+    @Test
+    public void testInstall_replacesFactoriesOfMappersWithOverloads() {
+        assertThat( interceptor.instrumentOverloadedMappers( configuration ) ).isEqualTo( 1 );
+        assertThat( interceptor.instrumentOverloadedMappers( configuration ) ).isZero();
+    }
+
+    @Test
+    public void testMapper_recordsOverloadsSeparately() {
+        interceptor.instrumentOverloadedMappers( configuration );
+        OverloadedMapper mapper = newMapper();
+
+        mapper.find( 1 );
+        mapper.find( 1 );
+        mapper.find( "name", 2L );
+        mapper.count();
+
+        assertThat( registry.timer( BASE + "int.elapsed" ).getCount() ).isEqualTo( 2L );
+        assertThat( registry.timer( BASE + "java.lang.String-long.elapsed" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.getTimers() ).doesNotContainKey( OverloadedMapper.class.getName() +
+                                                              ".count.overload.noArguments.elapsed" );
+    }
+
+    @Test
+    public void testMapper_recordsTypesWithSameSimpleNameSeparately() {
+        interceptor.instrumentOverloadedMappers( configuration );
+        OverloadedMapper mapper = newMapper();
+
+        mapper.find( new java.util.Date() );
+        mapper.find( new java.sql.Date( 0L ) );
+        mapper.find( new java.sql.Date[ 0 ] );
+
+        assertThat( registry.timer( BASE + "java.util.Date.elapsed" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.timer( BASE + "java.sql.Date.elapsed" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.timer( BASE + "java.sql.Date[].elapsed" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testMapper_doesNotRecordOverloadsOverLimitOfStatements() {
+        this.interceptor = new InstrumentingInterceptor( registry,
+                                                         InstrumentationSettings.builder().maxStatements( 1 ).build() );
+        interceptor.instrumentOverloadedMappers( configuration );
+        OverloadedMapper mapper = newMapper();
+
+        mapper.find( 1 );
+        mapper.find( "name", 2L );
+
+        assertThat( registry.timer( BASE + "int.elapsed" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.getTimers() ).doesNotContainKey( BASE + "java.lang.String-long.elapsed" );
+    }
+
+    private OverloadedMapper newMapper() {
+        SqlSession session = mock( SqlSession.class );
+        when( session.getConfiguration() ).thenReturn( configuration );
+        return configuration.getMapper( OverloadedMapper.class, session );
+    }
+
+    private void addStatement( String id ) {
+        configuration.addMappedStatement( new MappedStatement.Builder( configuration,
+                                                                       id,
+                                                                       new StaticSqlSource( configuration, "select 1" ),
+                                                                       SqlCommandType.SELECT ).build() );
+    }
+
+    public interface OverloadedMapper {
+        Object find( int id );
+
+        Object find( String name, long limit );
+
+        Object find( java.util.Date date );
+
+        Object find( java.sql.Date date );
+
+        Object find( java.sql.Date[] dates );
+
+        Object count();
+    }
+
+    public interface PlainMapper {
+        Object get();
+    }
+}
@@ -0,0 +1,178 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.loader.ProxyFactory;
+import org.apache.ibatis.executor.loader.ResultLoader;
+import org.apache.ibatis.executor.loader.ResultLoaderMap;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.reflection.factory.ObjectFactory;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentedProxyFactoryTest {
+    private static final String TIMER = "selectAuthor.lazyLoad." + Blog.class.getName() + ".author.elapsed";
+
+    private MetricRegistry registry;
+    private Configuration configuration;
+    private MetricFactory factory;
+    private CapturingProxyFactory proxyFactory;
+    private MappedStatement statement;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        this.configuration = new Configuration();
+        this.factory = new MetricFactory( registry, InstrumentationSettings.defaults() );
+
+        this.proxyFactory = new CapturingProxyFactory();
+        this.statement = new MappedStatement.Builder( configuration,
+                                                      "selectAuthor",
+                                                      new StaticSqlSource( configuration, "select 1" ),
+                                                      SqlCommandType.SELECT ).build();
+
+        /* Neither CGLIB nor Javassist is on the classpath, so the test calls the loader map like a proxy would */
+        configuration.setProxyFactory( proxyFactory );
+        InstrumentedProxyFactory.install( configuration, factory );
+    }
+
+    @Test
+    public void testInstall_decoratesFactoryOnce() {
+        assertThat( configuration.getProxyFactory() ).isInstanceOf( InstrumentedProxyFactory.class );
+        assertThat( InstrumentedProxyFactory.install( configuration, factory ) ).isFalse();
+    }
+
+    @Test
+    public void testLoad_recordsPropertyAndStatement() throws Exception {
+        Author author = new Author();
+        Blog blog = newLazyBlog( author );
+
+        assertThat( proxyFactory.lazyLoader.load( "author" ) ).isTrue();
+        assertThat( proxyFactory.lazyLoader.load( "author" ) ).isFalse();
+
+        assertThat( blog.getAuthor() ).isSameAs( author );
+        assertThat( registry.getTimers().get( TIMER ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testLoad_looksUpTimerOncePerPropertyAndStatement() throws Exception {
+        newLazyBlog( new Author() );
+        proxyFactory.lazyLoader.load( "author" );
+        registry.remove( TIMER );
+
+        newLazyBlog( new Author() );
+        proxyFactory.lazyLoader.load( "author" );
+
+        assertThat( registry.getTimers() ).doesNotContainKey( TIMER );
+    }
+
+    @Test
+    public void testLoad_namesTimerWithNameStrategy() throws Exception {
+        Configuration prefixedConfiguration = new Configuration();
+        prefixedConfiguration.setProxyFactory( proxyFactory );
+        InstrumentedProxyFactory.install( prefixedConfiguration,
+                                          new MetricFactory( registry,
+                                                             InstrumentationSettings.builder()
+                                                                                    .namePrefix( "app" )
+                                                                                    .build() ) );
+        this.configuration = prefixedConfiguration;
+
+        newLazyBlog( new Author() );
+        proxyFactory.lazyLoader.load( "author" );
+
+        assertThat( registry.getTimers() ).containsKey( "app." + TIMER );
+    }
+
+    @Test
+    public void testLoadAll_recordsEachProperty() throws Exception {
+        Author author = new Author();
+        Blog blog = newLazyBlog( author );
+
+        proxyFactory.lazyLoader.loadAll();
+
+        assertThat( blog.getAuthor() ).isSameAs( author );
+        assertThat( proxyFactory.lazyLoader.size() ).isZero();
+        assertThat( registry.getTimers().get( TIMER ).getCount() ).isEqualTo( 1L );
+    }
+
+    /** Adds the loader after creating the proxy, the same way result set handlers do */
+    private Blog newLazyBlog( Author author ) throws Exception {
+        Executor executor = mock( Executor.class );
+        when( executor.query( any( MappedStatement.class ),
+                              any(),
+                              any( RowBounds.class ),
+                              any( ResultHandler.class ),
+                              any( CacheKey.class ),
+                              any( BoundSql.class ) ) ).thenReturn( Collections.<Object>singletonList( author ) );
+        Blog target = new Blog();
+        ResultLoaderMap lazyLoader = new ResultLoaderMap();
+        configuration.getProxyFactory().createProxy( target,
+                                                     lazyLoader,
+                                                     configuration,
+                                                     configuration.getObjectFactory(),
+                                                     Collections.<Class<?>>emptyList(),
+                                                     Collections.emptyList() );
+
+        assertThat( proxyFactory.lazyLoader ).isNotSameAs( lazyLoader );
+        lazyLoader.addLoader( "author",
+                              configuration.newMetaObject( target ),
+                              new ResultLoader( configuration,
+                                                executor,
+                                                statement,
+                                                null,
+                                                Author.class,
+                                                new CacheKey(),
+                                                statement.getBoundSql( null ) ) );
+        return target;
+    }
+
+    public static class Blog {
+        private Author author;
+
+        public Author getAuthor() {
+            return author;
+        }
+
+        public void setAuthor( Author author ) {
+            this.author = author;
+        }
+    }
+
+    public static class Author {
+    }
+
+    private static class CapturingProxyFactory implements ProxyFactory {
+        private ResultLoaderMap lazyLoader;
+
+        @Override
+        public void setProperties( Properties properties ) {
+        }
+
+        @Override
+        public Object createProxy( Object target,
+                                   ResultLoaderMap lazyLoader,
+                                   Configuration configuration,
+                                   ObjectFactory objectFactory,
+                                   List<Class<?>> constructorArgTypes,
+                                   List<Object> constructorArgs ) {
+            this.lazyLoader = lazyLoader;
+            return target;
+        }
+    }
+}
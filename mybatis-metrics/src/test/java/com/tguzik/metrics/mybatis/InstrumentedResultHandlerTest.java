@@ -0,0 +1,84 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentedResultHandlerTest {
+    private ResultHandler delegate;
+    private Timer timeToFirstRow;
+    private Meter rows;
+    private InstrumentedResultHandler handler;
+
+    @Before
+    public void setUp() {
+        this.delegate = mock( ResultHandler.class );
+        this.timeToFirstRow = new Timer();
+        this.rows = new Meter();
+        this.handler = new InstrumentedResultHandler( delegate, timeToFirstRow, rows, System.nanoTime() );
+    }
+
+    @Test
+    public void testHandleResult_passesRowsToDelegate() {
+        ResultContext context = mock( ResultContext.class );
+
+        handler.handleResult( context );
+        handler.handleResult( context );
+
+        verify( delegate, times( 2 ) ).handleResult( context );
+        assertThat( handler.getHandled() ).isEqualTo( 2L );
+    }
+
+    @Test
+    public void testHandleResult_timesOnlyFirstRow() {
+        handler.handleResult( null );
+        handler.handleResult( null );
+
+        assertThat( timeToFirstRow.getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testHandleResult_marksRowsInBatches() {
+        for ( int i = 0; i < InstrumentedResultHandler.BATCH_SIZE + 5; i++ ) {
+            handler.handleResult( null );
+        }
+
+        assertThat( rows.getCount() ).isEqualTo( InstrumentedResultHandler.BATCH_SIZE );
+
+        handler.finish();
+
+        assertThat( rows.getCount() ).isEqualTo( InstrumentedResultHandler.BATCH_SIZE + 5 );
+    }
+
+    @Test
+    public void testFinish_withoutRows() {
+        handler.finish();
+
+        assertThat( rows.getCount() ).isZero();
+        assertThat( timeToFirstRow.getCount() ).isZero();
+    }
+
+    @Test
+    public void testHandleResult_exceptionFromDelegateIsPassedOn() {
+        RuntimeException expected = new RuntimeException( "expected" );
+        doThrow( expected ).when( delegate ).handleResult( null );
+
+        try {
+            handler.handleResult( null );
+            fail( "Expected exception" );
+        }
+        catch ( RuntimeException e ) {
+            assertThat( e ).isSameAs( expected );
+        }
+        handler.finish();
+
+        assertThat( rows.getCount() ).isEqualTo( 1L );
+    }
+}
@@ -0,0 +1,95 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+import javax.inject.Provider;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.Properties;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.session.TransactionIsolationLevel;
+import org.apache.ibatis.transaction.Transaction;
+import org.apache.ibatis.transaction.TransactionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransaction;
+import org.apache.ibatis.transaction.managed.ManagedTransaction;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentedTransactionFactoryTest {
+    private static final MetricRegistry PROVIDED_REGISTRY = new MetricRegistry();
+
+    private MetricRegistry registry;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+    }
+
+    @Test
+    public void testNewTransaction_wrapsJdbcTransactionByDefault() throws Exception {
+        InstrumentedTransactionFactory factory = new InstrumentedTransactionFactory( registry );
+
+        Transaction transaction = factory.newTransaction( mock( DataSource.class ), null, false );
+
+        assertThat( transaction ).isInstanceOf( InstrumentedTransaction.class );
+        assertThat( ( (InstrumentedTransaction) transaction ).getDelegate() ).isInstanceOf( JdbcTransaction.class );
+    }
+
+    @Test
+    public void testNewTransaction_usesGivenDelegate() throws Exception {
+        TransactionFactory delegate = mock( TransactionFactory.class );
+        Transaction delegateTransaction = mock( Transaction.class );
+        Connection connection = mock( Connection.class );
+        doReturn( delegateTransaction ).when( delegate ).newTransaction( connection );
+        InstrumentedTransactionFactory factory = new InstrumentedTransactionFactory( registry, delegate );
+
+        factory.newTransaction( connection ).commit();
+
+        verify( delegateTransaction ).commit();
+        assertThat( registry.timer( "mybatis.transaction.commit" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testSetProperties_configuresDelegatePrefixAndRegistry() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentedTransactionFactory.DELEGATE_PROPERTY, "managed" );
+        properties.setProperty( InstrumentedTransactionFactory.METRIC_PREFIX_PROPERTY, "custom" );
+        properties.setProperty( MetricRegistryProviders.PROPERTY_NAME, RegistryProvider.class.getName() );
+        InstrumentedTransactionFactory factory = new InstrumentedTransactionFactory();
+
+        factory.setProperties( properties );
+        Transaction transaction = factory.newTransaction( mock( DataSource.class ),
+                                                          TransactionIsolationLevel.READ_COMMITTED,
+                                                          false );
+        transaction.commit();
+
+        assertThat( ( (InstrumentedTransaction) transaction ).getDelegate() ).isInstanceOf( ManagedTransaction.class );
+        assertThat( PROVIDED_REGISTRY.timer( "custom.commit" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testNewTransaction_notWrappedWithoutRegistry() throws Exception {
+        InstrumentedTransactionFactory factory = new InstrumentedTransactionFactory();
+
+        Transaction transaction = factory.newTransaction( mock( Connection.class ) );
+
+        assertThat( transaction ).isInstanceOf( JdbcTransaction.class );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testSetProperties_unknownDelegate() {
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentedTransactionFactory.DELEGATE_PROPERTY, "com.example.Missing" );
+
+        new InstrumentedTransactionFactory( registry ).setProperties( properties );
+    }
+
+    public static class RegistryProvider implements Provider<MetricRegistry> {
+        @Override
+        public MetricRegistry get() {
+            return PROVIDED_REGISTRY;
+        }
+    }
+}
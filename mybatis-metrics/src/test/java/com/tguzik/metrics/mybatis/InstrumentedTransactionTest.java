@@ -0,0 +1,87 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.transaction.Transaction;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentedTransactionTest {
+    private MetricRegistry registry;
+    private Transaction delegate;
+    private InstrumentedTransaction transaction;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        this.delegate = mock( Transaction.class );
+        this.transaction = new InstrumentedTransaction( delegate, new TransactionInstrumentation( registry, "tx" ) );
+    }
+
+    @Test
+    public void testGetConnection_timesOnlyUntilConnectionIsObtained() throws Exception {
+        Connection connection = mock( Connection.class );
+        doReturn( connection ).when( delegate ).getConnection();
+
+        assertThat( transaction.getConnection() ).isSameAs( connection );
+        assertThat( transaction.getConnection() ).isSameAs( connection );
+
+        verify( delegate, times( 2 ) ).getConnection();
+        assertThat( registry.timer( "tx.getConnection" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.meter( "tx.getConnection.failures" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testGetConnection_failureIsTimedAndMetered() throws Exception {
+        doThrow( new SQLException( "pool exhausted" ) ).when( delegate ).getConnection();
+
+        for ( int i = 0; i < 2; i++ ) {
+            try {
+                transaction.getConnection();
+                fail( "Expected exception" );
+            }
+            catch ( SQLException e ) {
+                assertThat( e.getMessage() ).isEqualTo( "pool exhausted" );
+            }
+        }
+
+        assertThat( registry.timer( "tx.getConnection" ).getCount() ).isEqualTo( 2L );
+        assertThat( registry.meter( "tx.getConnection.failures" ).getCount() ).isEqualTo( 2L );
+    }
+
+    @Test
+    public void testCommitRollbackClose() throws Exception {
+        transaction.commit();
+        transaction.rollback();
+        transaction.close();
+
+        verify( delegate ).commit();
+        verify( delegate ).rollback();
+        verify( delegate ).close();
+        assertThat( registry.timer( "tx.commit" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.timer( "tx.rollback" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.timer( "tx.close" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testCommit_failureIsMetered() throws Exception {
+        doThrow( new SQLException( "deadlock" ) ).when( delegate ).commit();
+
+        try {
+            transaction.commit();
+            fail( "Expected exception" );
+        }
+        catch ( SQLException e ) {
+            assertThat( e.getMessage() ).isEqualTo( "deadlock" );
+        }
+
+        assertThat( registry.timer( "tx.commit" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.meter( "tx.commit.failures" ).getCount() ).isEqualTo( 1L );
+    }
+}
@@ -0,0 +1,101 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+import java.lang.management.ManagementFactory;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+import com.sun.management.ThreadMXBean;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.scripting.LanguageDriver;
+import org.apache.ibatis.session.Configuration;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that the hot path of the interceptor does not allocate. Mockito is deliberately kept away from the
+ * invocation itself, since the mocks allocate on every call.
+ * <p/>
+ * Note that the elapsed timer is registered with {@link SlidingWindowReservoir}, because Metrics' default
+ * reservoir allocates a sample on every update on its own.
+ */
+public class InstrumentingInterceptorAllocationTest {
+    /* Long enough for the JIT to settle - deoptimization during the measurement allocates on this thread */
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int MEASURED_ITERATIONS = 100000;
+
+    private ThreadMXBean threadBean;
+    private Level originalLogLevel;
+    private InstrumentingInterceptor interceptor;
+    private Invocation invocation;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue( ManagementFactory.getThreadMXBean() instanceof ThreadMXBean );
+        this.threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue( threadBean.isThreadAllocatedMemorySupported() );
+        threadBean.setThreadAllocatedMemoryEnabled( true );
+
+        // Tests run with TRACE enabled, which would (rightfully) allocate
+        Logger logger = Logger.getLogger( InstrumentingInterceptor.class );
+        this.originalLogLevel = logger.getLevel();
+        logger.setLevel( Level.INFO );
+
+        MetricRegistry registry = new MetricRegistry();
+        registry.register( "statement id.elapsed", new Timer( new SlidingWindowReservoir( 128 ) ) );
+
+        MappedStatement statement = new MappedStatement.Builder( mock( Configuration.class ),
+                                                                 "statement id",
+                                                                 mock( SqlSource.class ),
+                                                                 SqlCommandType.SELECT ).lang( mock(
+                LanguageDriver.class ) ).build();
+        this.interceptor = new InstrumentingInterceptor( registry );
+        this.invocation = new Invocation( new Target(),
+                                          Target.class.getMethod( "query", Object.class ),
+                                          new Object[] { statement } );
+    }
+
+    @After
+    public void tearDown() {
+        Logger.getLogger( InstrumentingInterceptor.class ).setLevel( originalLogLevel );
+    }
+
+    @Test
+    public void testIntercept_doesNotAllocate() throws Throwable {
+        runInvocations( WARMUP_ITERATIONS );
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes( threadId );
+        runInvocations( MEASURED_ITERATIONS );
+        long after = threadBean.getThreadAllocatedBytes( threadId );
+
+        /* Reading the allocation counter allocates a couple of bytes by itself, so allow for that. Anything
+         * allocated per invocation, even if only once in a thousand calls, would be way above this limit.
+         */
+        assertThat( after - before ).isLessThan( MEASURED_ITERATIONS / 1000 );
+    }
+
+    private void runInvocations( int count ) throws Throwable {
+        for ( int i = 0; i < count; i++ ) {
+            interceptor.intercept( invocation );
+        }
+    }
+
+    public static class Target {
+        private static final Object RESULT = new Object();
+
+        public Object query( Object statement ) {
+            return RESULT;
+        }
+    }
+}
@@ -5,11 +5,25 @@ import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
 
 import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.builder.StaticSqlSource;
 import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.cache.impl.PerpetualCache;
+import org.apache.ibatis.executor.BatchExecutor;
+import org.apache.ibatis.executor.BatchResult;
 import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.parameter.ParameterHandler;
+import org.apache.ibatis.executor.statement.StatementHandler;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
 import org.apache.ibatis.mapping.SqlCommandType;
@@ -19,8 +33,12 @@ import org.apache.ibatis.scripting.LanguageDriver;
 import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.transaction.Transaction;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class InstrumentingInterceptorTest {
     private InstrumentingInterceptor interceptor;
@@ -105,6 +123,154 @@ public class InstrumentingInterceptorTest {
         assertThat( metricRegistry.timer( "statement id.elapsed" ).getCount() ).isEqualTo( 1L );
     }
 
+    @Test
+    public void testIntercept_leanProfileFromProperties() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentationSettings.PROFILE_PROPERTY, "lean" );
+        interceptor.setProperties( properties );
+
+        interceptor.intercept( invocation );
+
+        assertThat( interceptor.getSettings().getProfile() ).isEqualTo( InstrumentationProfile.LEAN );
+        assertThat( metricRegistry.counter( "statement id.totalInvocations" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.meter( "statement id.invocationsPerSecond" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( "statement id.elapsed" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testIntercept_samplingKeepsCountsExact() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentationSettings.SAMPLING_INTERVAL_PROPERTY, "10" );
+        interceptor.setProperties( properties );
+
+        for ( int i = 0; i < 1000; i++ ) {
+            interceptor.intercept( invocation );
+        }
+
+        assertThat( metricRegistry.counter( "statement id.totalInvocations" ).getCount() ).isEqualTo( 1000L );
+        assertThat( metricRegistry.meter( "statement id.invocationsPerSecond" ).getCount() ).isEqualTo( 1000L );
+        assertThat( metricRegistry.timer( "statement id.elapsed" ).getCount() ).isEqualTo( 1000L );
+        assertThat( metricRegistry.timer( "statement id.elapsed" ).getSnapshot().size() ).isLessThan( 1000 );
+    }
+
+    @Test
+    public void testIntercept_samplingOverriddenForStatement() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentationSettings.SAMPLING_INTERVAL_PROPERTY, "10" );
+        properties.setProperty( InstrumentationSettings.SAMPLING_INTERVAL_OVERRIDE_PREFIX + "statement id", "1" );
+        interceptor.setProperties( properties );
+
+        for ( int i = 0; i < 100; i++ ) {
+            interceptor.intercept( invocation );
+        }
+
+        assertThat( metricRegistry.timer( "statement id.elapsed" ).getCount() ).isEqualTo( 100L );
+        assertThat( metricRegistry.timer( "statement id.elapsed" ).getSnapshot().size() ).isEqualTo( 100 );
+    }
+
+    @Test
+    public void testIntercept_samplingOverriddenForStatementSharingName() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentationSettings.NAMING_STRATEGY_PROPERTY, MetricNameStrategies.NAMESPACE );
+        properties.setProperty( InstrumentationSettings.SAMPLING_INTERVAL_PROPERTY, "10" );
+        properties.setProperty( InstrumentationSettings.SAMPLING_INTERVAL_OVERRIDE_PREFIX + "namespace.first", "1" );
+        interceptor.setProperties( properties );
+        Configuration configuration = new Configuration();
+
+        for ( String id : Arrays.asList( "namespace.first", "namespace.second" ) ) {
+            MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                     id,
+                                                                     new StaticSqlSource( configuration, "select 1" ),
+                                                                     SqlCommandType.SELECT ).build();
+            interceptor.intercept( new Invocation( fakeExecutor,
+                                                   invocation.getMethod(),
+                                                   new Object[] { statement, null, null, null, null, null } ) );
+        }
+
+        assertThat( metricRegistry.timer( "namespace.elapsed" ).getCount() ).isEqualTo( 2L );
+        assertThat( metricRegistry.timer( "namespace.elapsed" ).getSnapshot().size() ).isEqualTo( 2 );
+    }
+
+    @Test
+    public void testIntercept_capturesSlowStatements() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentationSettings.SLOW_THRESHOLD_MILLIS_PROPERTY, "0" );
+        interceptor.setProperties( properties );
+
+        interceptor.intercept( invocation );
+
+        assertThat( interceptor.getSlowStatementLog().getTotalRecorded() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testIntercept_doesNotCaptureSlowStatementsByDefault() throws Throwable {
+        interceptor.intercept( invocation );
+
+        assertThat( interceptor.getSlowStatementLog().getTotalRecorded() ).isZero();
+    }
+
+    @Test
+    public void testIntercept_recordsRowsReturned() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentationSettings.ROW_HISTOGRAMS_PROPERTY, "true" );
+        interceptor.setProperties( properties );
+        doReturn( Arrays.asList( "a", "b" ) ).when( fakeExecutor )
+                                             .query( any( MappedStatement.class ),
+                                                     any(),
+                                                     any( RowBounds.class ),
+                                                     any( ResultHandler.class ),
+                                                     any( CacheKey.class ),
+                                                     any( BoundSql.class ) );
+
+        interceptor.intercept( invocation );
+
+        assertThat( metricRegistry.histogram( "statement id.rowsReturned" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.histogram( "statement id.rowsReturned" ).getSnapshot().getMax() ).isEqualTo( 2L );
+    }
+
+    @Test
+    public void testIntercept_doesNotRecordRowsPassedToResultHandler() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentationSettings.ROW_HISTOGRAMS_PROPERTY, "true" );
+        interceptor.setProperties( properties );
+        invocation.getArgs()[ 3 ] = mock( ResultHandler.class );
+
+        interceptor.intercept( invocation );
+
+        assertThat( metricRegistry.histogram( "statement id.rowsReturned" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testIntercept_recordsRowsPassedToResultHandler() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder()
+                                                                           .resultHandlerMetrics( true )
+                                                                           .build() );
+        ResultHandler resultHandler = mock( ResultHandler.class );
+        invocation.getArgs()[ 3 ] = resultHandler;
+        when( fakeExecutor.query( any( MappedStatement.class ),
+                                  any(),
+                                  any( RowBounds.class ),
+                                  any( ResultHandler.class ),
+                                  any( CacheKey.class ),
+                                  any( BoundSql.class ) ) ).thenAnswer( new Answer<Object>() {
+            @Override
+            public Object answer( InvocationOnMock invocation ) throws Throwable {
+                ResultHandler handler = (ResultHandler) invocation.getArguments()[ 3 ];
+                for ( int i = 0; i < 3; i++ ) {
+                    handler.handleResult( null );
+                }
+                return null;
+            }
+        } );
+
+        interceptor.intercept( invocation );
+
+        verify( resultHandler, times( 3 ) ).handleResult( null );
+        assertThat( metricRegistry.timer( "statement id.resultHandler.timeToFirstRow" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.meter( "statement id.resultHandler.rows" ).getCount() ).isEqualTo( 3L );
+    }
+
     @Test
     public void testIntercept_returnsValueFromTheMapperUnmodified() throws Throwable {
         Object expectedValue = mock( List.class );
@@ -142,6 +308,481 @@ public class InstrumentingInterceptorTest {
         }
     }
 
+    @Test
+    public void testIntercept_recordsPhaseOfHandlerInvocation() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().phaseTimers( true ).build() );
+        Configuration configuration = new Configuration();
+        MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                 "statement id",
+                                                                 new StaticSqlSource( configuration, "select 1" ),
+                                                                 SqlCommandType.SELECT ).build();
+        ParameterHandler handler = configuration.newParameterHandler( statement, null, statement.getBoundSql( null ) );
+
+        interceptor.intercept( new Invocation( handler,
+                                               ParameterHandler.class.getMethod( "setParameters",
+                                                                                 PreparedStatement.class ),
+                                               new Object[] { mock( PreparedStatement.class ) } ) );
+
+        assertThat( metricRegistry.timer( "statement id.phase.bindParameters" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( "statement id.phase.execute" ).getCount() ).isZero();
+        assertThat( metricRegistry.timer( "statement id.elapsed" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testIntercept_batchedUpdatesDoNotRecordAffectedRows() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().rowHistograms( true ).build() );
+        Configuration configuration = new Configuration();
+        MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                 "update id",
+                                                                 new StaticSqlSource( configuration,
+                                                                                      "update t set a = 1" ),
+                                                                 SqlCommandType.UPDATE ).build();
+        Connection connection = mock( Connection.class );
+        when( connection.prepareStatement( anyString() ) ).thenReturn( mock( PreparedStatement.class ) );
+        Transaction transaction = mock( Transaction.class );
+        when( transaction.getConnection() ).thenReturn( connection );
+        Invocation update = new Invocation( new BatchExecutor( configuration, transaction ),
+                                            Executor.class.getMethod( "update", MappedStatement.class, Object.class ),
+                                            new Object[] { statement, null } );
+
+        assertThat( interceptor.intercept( update ) ).isEqualTo( BatchExecutor.BATCH_UPDATE_RETURN_VALUE );
+        interceptor.intercept( update );
+
+        assertThat( metricRegistry.timer( "update id.elapsed" ).getCount() ).isEqualTo( 2L );
+        assertThat( metricRegistry.histogram( "update id.rowsAffected" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testIntercept_countsNPlusOneSessionsUntilExecutorIsClosed() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().nPlusOneThreshold( 2 ).build() );
+        Configuration configuration = new Configuration();
+        MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                 "statement id",
+                                                                 new StaticSqlSource( configuration, "select 1" ),
+                                                                 SqlCommandType.SELECT ).build();
+        PreparedStatement prepared = mock( PreparedStatement.class );
+        when( prepared.getUpdateCount() ).thenReturn( -1 );
+        StatementHandler handler = configuration.newStatementHandler( fakeExecutor,
+                                                                      statement,
+                                                                      null,
+                                                                      RowBounds.DEFAULT,
+                                                                      null,
+                                                                      statement.getBoundSql( null ) );
+        Invocation query = new Invocation( handler,
+                                           StatementHandler.class.getMethod( "query",
+                                                                             Statement.class,
+                                                                             ResultHandler.class ),
+                                           new Object[] { prepared, null } );
+        Invocation close = new Invocation( fakeExecutor,
+                                           Executor.class.getMethod( "close", boolean.class ),
+                                           new Object[] { false } );
+
+        for ( int i = 0; i < 3; i++ ) {
+            interceptor.intercept( query );
+        }
+        interceptor.intercept( close );
+        for ( int i = 0; i < 2; i++ ) {
+            interceptor.intercept( query );
+        }
+
+        verify( fakeExecutor ).close( false );
+        assertThat( interceptor.shouldWrap( handler ) ).isTrue();
+        assertThat( metricRegistry.counter( "statement id.nPlusOne.sessions" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.counter( "statement id.nPlusOne.parent.none" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.counter( InstrumentingInterceptor.N_PLUS_ONE_METRIC_NAME ).getCount() ).isEqualTo(
+                1L );
+    }
+
+    @Test
+    public void testIntercept_appliesRecommendedFetchSize() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().applyFetchSize( true ).build() );
+        Configuration configuration = new Configuration();
+        MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                 "statement id",
+                                                                 new StaticSqlSource( configuration, "select 1" ),
+                                                                 SqlCommandType.SELECT ).build();
+        Invocation query = new Invocation( fakeExecutor,
+                                           invocation.getMethod(),
+                                           new Object[] { statement, null, null, null, null, null } );
+        Connection connection = mock( Connection.class );
+        PreparedStatement prepared = mock( PreparedStatement.class );
+        when( connection.prepareStatement( anyString() ) ).thenReturn( prepared );
+        StatementHandler handler = configuration.newStatementHandler( fakeExecutor,
+                                                                      statement,
+                                                                      null,
+                                                                      RowBounds.DEFAULT,
+                                                                      null,
+                                                                      statement.getBoundSql( null ) );
+        final Invocation prepare = new Invocation( handler,
+                                                   StatementHandler.class.getMethod( "prepare", Connection.class ),
+                                                   new Object[] { connection } );
+        when( fakeExecutor.query( any( MappedStatement.class ),
+                                  any(),
+                                  any( RowBounds.class ),
+                                  any( ResultHandler.class ),
+                                  any( CacheKey.class ),
+                                  any( BoundSql.class ) ) ).thenAnswer( new Answer<Object>() {
+            @Override
+            public Object answer( InvocationOnMock invocation ) throws Throwable {
+                interceptor.intercept( prepare );
+                return Collections.nCopies( 100, "row" );
+            }
+        } );
+
+        for ( int i = 0; i < FetchSizeAdvisor.MIN_SAMPLES + 1; i++ ) {
+            interceptor.intercept( query );
+        }
+
+        verify( prepared ).setFetchSize( 128 );
+        assertThat( metricRegistry.getGauges().get( "statement id.fetchSize.recommended" ).getValue() ).isEqualTo(
+                128 );
+        assertThat( metricRegistry.timer( "statement id.fetchSize.defaultElapsed" ).getCount() ).isEqualTo(
+                FetchSizeAdvisor.MIN_SAMPLES );
+        assertThat( metricRegistry.timer( "statement id.fetchSize.recommendedElapsed" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testIntercept_doesNotTimeByFetchSizeSelectsThatPreparedNothing() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().applyFetchSize( true ).build() );
+        doReturn( Collections.nCopies( 100, "row" ) ).when( fakeExecutor ).query( any( MappedStatement.class ),
+                                                                                  any(),
+                                                                                  any( RowBounds.class ),
+                                                                                  any( ResultHandler.class ),
+                                                                                  any( CacheKey.class ),
+                                                                                  any( BoundSql.class ) );
+
+        for ( int i = 0; i < FetchSizeAdvisor.MIN_SAMPLES; i++ ) {
+            interceptor.intercept( invocation );
+        }
+
+        assertThat( metricRegistry.getGauges().get( "statement id.fetchSize.recommended" ).getValue() ).isEqualTo(
+                128 );
+        assertThat( metricRegistry.timer( "statement id.fetchSize.defaultElapsed" ).getCount() ).isZero();
+        assertThat( metricRegistry.timer( "statement id.fetchSize.recommendedElapsed" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testIntercept_timesExecutionPerFingerprint() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().fingerprints( true ).build() );
+        Configuration configuration = new Configuration();
+        MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                 "statement id",
+                                                                 new StaticSqlSource( configuration,
+                                                                                      "select * from t where id = 1" ),
+                                                                 SqlCommandType.SELECT ).build();
+        StatementHandler handler = configuration.newStatementHandler( mock( Executor.class ),
+                                                                      statement,
+                                                                      null,
+                                                                      RowBounds.DEFAULT,
+                                                                      null,
+                                                                      statement.getBoundSql( null ) );
+
+        interceptor.intercept( new Invocation( handler,
+                                               StatementHandler.class.getMethod( "update", Statement.class ),
+                                               new Object[] { mock( PreparedStatement.class ) } ) );
+
+        String identifier = SqlFingerprints.identifier( "select * from t where id = ?" );
+        assertThat( metricRegistry.timer( "statement id.fingerprint." + identifier ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.getTimers() ).doesNotContainKey( "statement id.phase.execute" );
+    }
+
+    @Test
+    public void testIntercept_recordsQueriesThatNeverReachedDatabaseAsCacheHits() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().cacheMetrics( true ).build() );
+        final StatementHandler handler = mock( StatementHandler.class );
+        final Invocation execution = new Invocation( handler,
+                                                     StatementHandler.class.getMethod( "query",
+                                                                                       Statement.class,
+                                                                                       ResultHandler.class ),
+                                                     new Object[] { null, null } );
+        when( fakeExecutor.query( any( MappedStatement.class ),
+                                  any(),
+                                  any( RowBounds.class ),
+                                  any( ResultHandler.class ),
+                                  any( CacheKey.class ),
+                                  any( BoundSql.class ) ) ).thenAnswer( new Answer<Object>() {
+            @Override
+            public Object answer( InvocationOnMock ignored ) throws Throwable {
+                return interceptor.intercept( execution );
+            }
+        } ).thenReturn( null );
+
+        interceptor.intercept( invocation );
+        interceptor.intercept( invocation );
+
+        assertThat( metricRegistry.timer( "statement id.cacheMiss" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( "statement id.cacheHit" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( "statement id.phase.execute" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testIntercept_decoratesCacheOfStatement() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().cacheMetrics( true ).build() );
+        Configuration configuration = new Configuration();
+        PerpetualCache cache = new PerpetualCache( "namespace" );
+        MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                 "statement id",
+                                                                 new StaticSqlSource( configuration, "select 1" ),
+                                                                 SqlCommandType.SELECT ).cache( cache ).build();
+
+        interceptor.intercept( new Invocation( fakeExecutor,
+                                               invocation.getMethod(),
+                                               new Object[] { statement, null, null, null, null, null } ) );
+
+        assertThat( statement.getCache() ).isInstanceOf( InstrumentedCache.class );
+        assertThat( ( (InstrumentedCache) statement.getCache() ).getDelegate() ).isSameAs( cache );
+    }
+
+    @Test
+    public void testIntercept_decoratesCacheOfAllStatementsSharingIt() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().cacheMetrics( true ).build() );
+        Configuration configuration = new Configuration();
+        PerpetualCache cache = new PerpetualCache( "namespace" );
+        MappedStatement invoked = new MappedStatement.Builder( configuration,
+                                                               "invoked",
+                                                               new StaticSqlSource( configuration, "select 1" ),
+                                                               SqlCommandType.SELECT ).cache( cache ).build();
+        MappedStatement sharing = new MappedStatement.Builder( configuration,
+                                                               "sharing",
+                                                               new StaticSqlSource( configuration, "select 2" ),
+                                                               SqlCommandType.SELECT ).cache( cache ).build();
+        configuration.addMappedStatement( invoked );
+        configuration.addMappedStatement( sharing );
+
+        interceptor.intercept( new Invocation( fakeExecutor,
+                                               invocation.getMethod(),
+                                               new Object[] { invoked, null, null, null, null, null } ) );
+
+        assertThat( invoked.getCache() ).isInstanceOf( InstrumentedCache.class );
+        assertThat( sharing.getCache() ).isSameAs( invoked.getCache() );
+    }
+
+    @Test
+    public void testIntercept_tracksInvocationsInProgress() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().inFlight( true ).build() );
+        final List<Long> inFlightDuringInvocation = new ArrayList<>();
+        when( fakeExecutor.query( any( MappedStatement.class ),
+                                  any(),
+                                  any( RowBounds.class ),
+                                  any( ResultHandler.class ),
+                                  any( CacheKey.class ),
+                                  any( BoundSql.class ) ) ).thenAnswer( new Answer<Object>() {
+            @Override
+            public Object answer( InvocationOnMock ignored ) throws Throwable {
+                inFlightDuringInvocation.add( metricRegistry.counter( "statement id.inFlight" ).getCount() );
+                throw new SQLException( "expected" );
+            }
+        } );
+
+        try {
+            interceptor.intercept( invocation );
+            fail( "Expected exception" );
+        }
+        catch ( InvocationTargetException e ) {
+            // expected
+        }
+
+        assertThat( inFlightDuringInvocation ).containsExactly( 1L );
+        assertThat( metricRegistry.counter( "statement id.inFlight" ).getCount() ).isZero();
+        assertThat( metricRegistry.getGauges().get( "statement id.inFlightPeak" ).getValue() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testIntercept_sharesOverflowMetricsAboveStatementLimit() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().maxStatements( 1 ).build() );
+        Configuration configuration = new Configuration();
+
+        for ( String id : Arrays.asList( "first", "second", "third" ) ) {
+            MappedStatement statement = new MappedStatement.Builder( configuration,
+                                                                     id,
+                                                                     new StaticSqlSource( configuration, "select 1" ),
+                                                                     SqlCommandType.SELECT ).build();
+            interceptor.intercept( new Invocation( fakeExecutor,
+                                                   invocation.getMethod(),
+                                                   new Object[] { statement, null, null, null, null, null } ) );
+        }
+
+        assertThat( metricRegistry.timer( "first.elapsed" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( InstrumentingInterceptor.OVERFLOW_METRIC_NAME + ".elapsed" ).getCount() )
+                .isEqualTo( 2L );
+        assertThat( metricRegistry.getTimers() ).doesNotContainKey( "second.elapsed" );
+    }
+
+    @Test
+    public void testPreregister_createsMetricsOfAllStatementsUpFront() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().warmUpIterations( 100 ).build() );
+        Configuration configuration = new Configuration();
+        for ( String id : Arrays.asList( "namespace.first", "namespace.second", "other.first" ) ) {
+            configuration.addMappedStatement( new MappedStatement.Builder( configuration,
+                                                                           id,
+                                                                           new StaticSqlSource( configuration,
+                                                                                                "select 1" ),
+                                                                           SqlCommandType.SELECT ).build() );
+        }
+
+        assertThat( interceptor.preregister( configuration ) ).isEqualTo( 3 );
+
+        assertThat( metricRegistry.getTimers().keySet() ).containsOnly( "namespace.first.elapsed",
+                                                                        "namespace.second.elapsed",
+                                                                        "other.first.elapsed" );
+        assertThat( metricRegistry.timer( "namespace.first.elapsed" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testIntercept_recordsAsynchronously() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().async( true ).build() );
+
+        interceptor.intercept( invocation );
+        interceptor.close();
+        interceptor.intercept( invocation );
+
+        assertThat( metricRegistry.counter( "statement id.totalInvocations" ).getCount() ).isEqualTo( 2L );
+        assertThat( metricRegistry.timer( "statement id.elapsed" ).getCount() ).isEqualTo( 2L );
+    }
+
+    @Test
+    public void testIntercept_recordsFlushedBatches() throws Throwable {
+        BatchResult result = new BatchResult( fakeStatement, "insert" );
+        result.setUpdateCounts( new int[] { 1, 1, 1 } );
+        when( fakeExecutor.flushStatements() ).thenReturn( Collections.singletonList( result ) );
+
+        Object actual = interceptor.intercept( new Invocation( fakeExecutor,
+                                                               Executor.class.getMethod( "flushStatements" ),
+                                                               null ) );
+
+        assertThat( actual ).isEqualTo( Collections.singletonList( result ) );
+        assertThat( metricRegistry.timer( BatchInstrumentation.FLUSH_METRIC_NAME ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.histogram( "statement id.batch.size" ).getSnapshot().getMax() ).isEqualTo( 3L );
+        assertThat( metricRegistry.timer( "statement id.elapsed" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testIntercept_namesFlushedBatchesLikeInvocations() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry ) {
+            @Override
+            protected String deriveMetricName( Invocation invocation ) {
+                return "custom";
+            }
+        };
+        BatchResult result = new BatchResult( fakeStatement, "insert" );
+        result.setUpdateCounts( new int[] { 1 } );
+        when( fakeExecutor.flushStatements() ).thenReturn( Collections.singletonList( result ) );
+
+        interceptor.intercept( new Invocation( fakeExecutor, Executor.class.getMethod( "flushStatements" ), null ) );
+
+        assertThat( metricRegistry.getHistograms() ).containsKey( "custom.batch.size" )
+                                                    .doesNotContainKey( "statement id.batch.size" );
+    }
+
+    @Test
+    public void testIntercept_flushesBeforeCommit() throws Throwable {
+        BatchResult result = new BatchResult( fakeStatement, "insert" );
+        result.setUpdateCounts( new int[] { 1 } );
+        when( fakeExecutor.flushStatements() ).thenReturn( Collections.singletonList( result ) );
+
+        interceptor.intercept( new Invocation( fakeExecutor,
+                                               Executor.class.getMethod( "commit", boolean.class ),
+                                               new Object[] { true } ) );
+
+        InOrder inOrder = inOrder( fakeExecutor );
+        inOrder.verify( fakeExecutor ).flushStatements();
+        inOrder.verify( fakeExecutor ).commit( true );
+        assertThat( metricRegistry.timer( "statement id.batch.flush" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testIntercept_recordsFailedFlush() throws Throwable {
+        when( fakeExecutor.flushStatements() ).thenThrow( new SQLException( "expected" ) );
+
+        try {
+            interceptor.intercept( new Invocation( fakeExecutor,
+                                                   Executor.class.getMethod( "flushStatements" ),
+                                                   null ) );
+            fail( "Expected exception" );
+        }
+        catch ( InvocationTargetException e ) {
+            assertThat( e.getCause().getMessage() ).isEqualTo( "expected" );
+        }
+
+        assertThat( metricRegistry.meter( BatchInstrumentation.FLUSH_METRIC_NAME + ".failures" ).getCount() )
+                .isEqualTo( 1L );
+    }
+
+    @Test
+    public void testIntercept_recordsFailureCategory() throws Throwable {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder()
+                                                                           .failureCategories( true )
+                                                                           .build() );
+        Exception deadlock = new RuntimeException( new SQLException( "deadlock detected", "40P01" ) );
+        doThrow( deadlock ).when( fakeExecutor ).query( any( MappedStatement.class ),
+                                                        any(),
+                                                        any( RowBounds.class ),
+                                                        any( ResultHandler.class ),
+                                                        any( CacheKey.class ),
+                                                        any( BoundSql.class ) );
+
+        try {
+            interceptor.intercept( invocation );
+            fail( "Expected exception" );
+        }
+        catch ( InvocationTargetException e ) {
+            // Expected
+        }
+
+        assertThat( metricRegistry.counter( "statement id.totalFailures" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.counter( "statement id.failures.deadlock" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.timer( "statement id.failures.deadlock.elapsed" ).getCount() ).isEqualTo( 1L );
+        assertThat( metricRegistry.getCounters().keySet() ).doesNotContain( "statement id.failures.other" );
+    }
+
+    @Test
+    public void testPlugin_wrapsHandlersOnlyWithPhaseTimers() throws Exception {
+        StatementHandler handler = mock( StatementHandler.class );
+
+        assertThat( interceptor.plugin( handler ) ).isSameAs( handler );
+        assertThat( interceptor.plugin( fakeExecutor ) ).isNotSameAs( fakeExecutor );
+
+        Properties properties = new Properties();
+        properties.setProperty( InstrumentationSettings.PHASE_TIMERS_PROPERTY, "true" );
+        interceptor.setProperties( properties );
+
+        assertThat( interceptor.plugin( handler ) ).isNotSameAs( handler );
+    }
+
+    @Test
+    public void testPlugin_wrapsOnlyStatementHandlersWithCacheMetrics() throws Exception {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().cacheMetrics( true ).build() );
+        StatementHandler statementHandler = mock( StatementHandler.class );
+        ParameterHandler parameterHandler = mock( ParameterHandler.class );
+
+        assertThat( interceptor.plugin( statementHandler ) ).isNotSameAs( statementHandler );
+        assertThat( interceptor.plugin( parameterHandler ) ).isSameAs( parameterHandler );
+    }
+
+    @Test
+    public void testPlugin_wrapsStatementHandlersWithFingerprints() throws Exception {
+        interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                    InstrumentationSettings.builder().fingerprints( true ).build() );
+        StatementHandler statementHandler = mock( StatementHandler.class );
+
+        assertThat( interceptor.plugin( statementHandler ) ).isNotSameAs( statementHandler );
+    }
+
     @Test
     public void testPlugin_returnsParameterUnchanged() throws Exception {
         Object arg = "any object. really.";
@@ -156,6 +797,27 @@ public class InstrumentingInterceptorTest {
         assertThat( instrumentation ).isNotNull();
     }
 
+    @Test
+    public void testGetInstrumentation_returnsSameInstanceForSameStatement() throws Exception {
+        BasicInstrumentation first = interceptor.getInstrumentation( invocation );
+        BasicInstrumentation second = interceptor.getInstrumentation( invocation );
+
+        assertThat( second ).isSameAs( first );
+    }
+
+    @Test
+    public void testGetInstrumentation_returnsSameInstanceForInvalidInvocations() throws Exception {
+        this.invocation = new Invocation( mock( Object.class ),
+                                          Object.class.getDeclaredMethod( "equals", Object.class ),
+                                          new Object[] { "not a mapped statement" } );
+
+        BasicInstrumentation first = interceptor.getInstrumentation( invocation );
+        BasicInstrumentation second = interceptor.getInstrumentation( invocation );
+
+        assertThat( second ).isSameAs( first );
+        assertThat( metricRegistry.getTimers() ).containsKey( "mybatis-mybatis.invocations.invalid.elapsed" );
+    }
+
     @Test
     public void testGetRegistry_returnsRegistryFromConstructor() throws Exception {
         assertThat( interceptor.getRegistry() ).isSameAs( metricRegistry );
@@ -175,6 +837,15 @@ public class InstrumentingInterceptorTest {
         assertThat( interceptor.deriveMetricName( invocation ) ).isEqualTo( "statement id" );
     }
 
+    @Test
+    public void testDeriveMetricName_usesNameStrategy() throws Exception {
+        this.interceptor = new InstrumentingInterceptor( metricRegistry,
+                                                         MetricNameStrategies.withSqlCommandType(
+                                                                 MetricNameStrategies.statementId() ) );
+
+        assertThat( interceptor.deriveMetricName( invocation ) ).isEqualTo( "statement id.select" );
+    }
+
     @Test
     public void testDeriveMetricName_returnsInvalidInvocation_firstArgumentIsNotMappedStatement() throws Exception {
         this.invocation = new Invocation( fakeExecutor,
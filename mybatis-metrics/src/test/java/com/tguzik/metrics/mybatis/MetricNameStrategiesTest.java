@@ -0,0 +1,65 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.scripting.LanguageDriver;
+import org.apache.ibatis.session.Configuration;
+import org.junit.Test;
+
+public class MetricNameStrategiesTest {
+    private static final String ID = "com.example.FakeMapper.doSelect";
+
+    @Test
+    public void testStatementId() {
+        assertThat( MetricNameStrategies.statementId().deriveMetricName( statement( ID, null ) ) ).isEqualTo( ID );
+    }
+
+    @Test
+    public void testNamespace() {
+        MetricNameStrategy strategy = MetricNameStrategies.namespace();
+
+        assertThat( strategy.deriveMetricName( statement( ID, null ) ) ).isEqualTo( "com.example.FakeMapper" );
+    }
+
+    @Test
+    public void testNamespace_idWithoutNamespace() {
+        MetricNameStrategy strategy = MetricNameStrategies.namespace();
+
+        assertThat( strategy.deriveMetricName( statement( "doSelect", null ) ) ).isEqualTo( "doSelect" );
+    }
+
+    @Test
+    public void testPrefixed() {
+        MetricNameStrategy strategy = MetricNameStrategies.prefixed( "app", MetricNameStrategies.statementId() );
+
+        assertThat( strategy.deriveMetricName( statement( ID, null ) ) ).isEqualTo( "app." + ID );
+    }
+
+    @Test
+    public void testWithSqlCommandType() {
+        MetricNameStrategy strategy = MetricNameStrategies.withSqlCommandType( MetricNameStrategies.statementId() );
+
+        assertThat( strategy.deriveMetricName( statement( ID, null ) ) ).isEqualTo( ID + ".select" );
+    }
+
+    @Test
+    public void testWithDatabaseIdSuffix() {
+        MetricNameStrategy strategy = MetricNameStrategies.withDatabaseIdSuffix( MetricNameStrategies.statementId() );
+
+        assertThat( strategy.deriveMetricName( statement( ID, "oracle" ) ) ).isEqualTo( ID + ".oracle" );
+        assertThat( strategy.deriveMetricName( statement( ID, null ) ) ).isEqualTo( ID );
+    }
+
+    private static MappedStatement statement( String id, String databaseId ) {
+        return new MappedStatement.Builder( mock( Configuration.class ),
+                                            id,
+                                            mock( SqlSource.class ),
+                                            SqlCommandType.SELECT ).lang( mock( LanguageDriver.class ) )
+                                                                   .databaseId( databaseId )
+                                                                   .build();
+    }
+}
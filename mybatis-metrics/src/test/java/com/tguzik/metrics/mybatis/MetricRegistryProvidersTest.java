@@ -0,0 +1,81 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MetricRegistryProvidersTest {
+    private static final MetricRegistry DISCOVERED_REGISTRY = new MetricRegistry();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDiscover_usesRegisteredService() throws Exception {
+        ClassLoader classLoader = classLoaderWithServices( DiscoveredProvider.class.getName() );
+
+        assertThat( MetricRegistryProviders.discover( classLoader ) ).isSameAs( DISCOVERED_REGISTRY );
+    }
+
+    @Test
+    public void testDiscover_returnsNullWithoutServices() throws Exception {
+        assertThat( MetricRegistryProviders.discover( classLoaderWithServices( null ) ) ).isNull();
+    }
+
+    @Test
+    public void testDiscover_returnsNullForBrokenService() throws Exception {
+        ClassLoader classLoader = classLoaderWithServices( "com.example.Missing" );
+
+        assertThat( MetricRegistryProviders.discover( classLoader ) ).isNull();
+    }
+
+    @Test
+    public void testLookUp_returnsNullForMissingOrEmptyName() {
+        assertThat( MetricRegistryProviders.lookUp( "test", null ) ).isNull();
+        assertThat( MetricRegistryProviders.lookUp( "test", " " ) ).isNull();
+        assertThat( MetricRegistryProviders.lookUp( "test", "com.example.Missing" ) ).isNull();
+    }
+
+    @Test
+    public void testLookUp_returnsNullForClassThatIsNotProvider() {
+        assertThat( MetricRegistryProviders.lookUp( "test", String.class.getName() ) ).isNull();
+    }
+
+    @Test
+    public void testLookUp_instantiatesProvider() {
+        assertThat( MetricRegistryProviders.lookUp( "test", DiscoveredProvider.class.getName() ) ).isSameAs(
+                DISCOVERED_REGISTRY );
+    }
+
+    private ClassLoader classLoaderWithServices( String providerName ) throws IOException {
+        File services = new File( folder.getRoot(), "META-INF/services" );
+        assertThat( services.mkdirs() ).isTrue();
+
+        if ( providerName != null ) {
+            try ( OutputStream out = new FileOutputStream( new File( services,
+                                                                     MetricRegistryProvider.class.getName() ) ) ) {
+                out.write( providerName.getBytes( Charset.forName( "UTF-8" ) ) );
+            }
+        }
+
+        return new URLClassLoader( new URL[] { folder.getRoot().toURI().toURL() }, getClass().getClassLoader() );
+    }
+
+    public static class DiscoveredProvider implements MetricRegistryProvider {
+        @Override
+        public MetricRegistry get() {
+            return DISCOVERED_REGISTRY;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.Properties;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.SimpleExecutor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NPlusOneDetectorTest {
+    private MetricRegistry registry;
+    private NPlusOneDetector detector;
+    private Executor executor;
+    private MappedStatement parent;
+    private MappedStatement child;
+    private BasicInstrumentation parentInstrumentation;
+    private BasicInstrumentation childInstrumentation;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        MetricFactory factory = new MetricFactory( registry,
+                                                   InstrumentationSettings.builder().nPlusOneThreshold( 2 ).build() );
+        this.detector = new NPlusOneDetector( 2, registry.counter( "sessions" ), registry.counter( "untracked" ) );
+        this.executor = mock( Executor.class );
+        this.parent = newSelect( "parent" );
+        this.child = newSelect( "child" );
+        this.parentInstrumentation = new BasicInstrumentation( factory, "parent", parent );
+        this.childInstrumentation = new BasicInstrumentation( factory, "child", child );
+    }
+
+    @Test
+    public void testEnter_countsSessionOnceThresholdIsExceeded() {
+        Handler handler = new Handler( executor );
+
+        for ( int i = 0; i < 5; i++ ) {
+            detector.enter( handler, child, childInstrumentation );
+            detector.exit();
+        }
+
+        assertThat( registry.counter( "child.nPlusOne.sessions" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.counter( "child.nPlusOne.parent.none" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.counter( "sessions" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testEnter_recordsStatementThatRanNestedSelects() {
+        Handler handler = new Handler( executor );
+
+        detector.enter( handler, parent, parentInstrumentation );
+        for ( int i = 0; i < 3; i++ ) {
+            detector.enter( handler, child, childInstrumentation );
+            detector.exit();
+        }
+        detector.exit();
+
+        assertThat( registry.counter( "child.nPlusOne.parent.parent" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.counter( "parent.nPlusOne.sessions" ).getCount() ).isZero();
+    }
+
+    @Test
+    public void testEnter_countsSessionsSeparately() {
+        for ( int i = 0; i < 3; i++ ) {
+            detector.enter( new Handler( executor ), child, childInstrumentation );
+            detector.exit();
+            detector.enter( new Handler( mock( Executor.class ) ), child, childInstrumentation );
+            detector.exit();
+        }
+
+        assertThat( registry.counter( "child.nPlusOne.sessions" ).getCount() ).isEqualTo( 1L );
+        assertThat( detector.getTrackedSessions() ).isEqualTo( 4 );
+    }
+
+    @Test
+    public void testEnter_countsSessionOnceForManyStatements() {
+        Handler handler = new Handler( executor );
+
+        for ( int i = 0; i < 3; i++ ) {
+            detector.enter( handler, parent, parentInstrumentation );
+            detector.exit();
+            detector.enter( handler, child, childInstrumentation );
+            detector.exit();
+        }
+
+        assertThat( registry.counter( "parent.nPlusOne.sessions" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.counter( "child.nPlusOne.sessions" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.counter( "sessions" ).getCount() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testEnter_handlerWithoutExecutorIsNotCounted() {
+        for ( int i = 0; i < 3; i++ ) {
+            detector.enter( "not a handler", child, childInstrumentation );
+            detector.exit();
+        }
+
+        assertThat( registry.counter( "child.nPlusOne.sessions" ).getCount() ).isZero();
+        assertThat( detector.getTrackedSessions() ).isZero();
+    }
+
+    @Test
+    public void testEnter_countsSelectsOfSessionsOverLimit() {
+        NPlusOneDetector limited = new NPlusOneDetector( 2,
+                                                         1,
+                                                         registry.counter( "sessions" ),
+                                                         registry.counter( "untracked" ) );
+        Handler tracked = new Handler( executor );
+        Handler untracked = new Handler( mock( Executor.class ) );
+
+        for ( int i = 0; i < 3; i++ ) {
+            limited.enter( tracked, child, childInstrumentation );
+            limited.exit();
+            limited.enter( untracked, child, childInstrumentation );
+            limited.exit();
+        }
+
+        assertThat( limited.getTrackedSessions() ).isEqualTo( 1 );
+        assertThat( registry.counter( "child.nPlusOne.sessions" ).getCount() ).isEqualTo( 1L );
+        assertThat( registry.counter( "untracked" ).getCount() ).isEqualTo( 3L );
+    }
+
+    @Test
+    public void testClose_dropsCountsOfSession() {
+        Handler handler = new Handler( executor );
+
+        for ( int i = 0; i < 2; i++ ) {
+            detector.enter( handler, child, childInstrumentation );
+            detector.exit();
+        }
+        detector.close( executor );
+        detector.enter( handler, child, childInstrumentation );
+        detector.exit();
+
+        assertThat( registry.counter( "child.nPlusOne.sessions" ).getCount() ).isZero();
+        assertThat( detector.getTrackedSessions() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void testClose_executorWrappedByAnotherPlugin() {
+        detector.enter( new Handler( executor ), child, childInstrumentation );
+        detector.exit();
+
+        detector.close( Plugin.wrap( executor, new OtherPlugin() ) );
+
+        assertThat( detector.getTrackedSessions() ).isZero();
+    }
+
+    @Test
+    public void testGetTrackedSessions_dropsSessionsOfCollectedExecutors() throws Exception {
+        detector.enter( new Handler( new SimpleExecutor( new Configuration(), null ) ), child, childInstrumentation );
+        detector.exit();
+        assertThat( detector.getTrackedSessions() ).isEqualTo( 1 );
+
+        for ( int i = 0; i < 50 && detector.getTrackedSessions() > 0; i++ ) {
+            System.gc();
+            Thread.sleep( 10 );
+        }
+
+        assertThat( detector.getTrackedSessions() ).isZero();
+    }
+
+    @Test
+    public void testGetMetrics_containsParents() {
+        Handler handler = new Handler( executor );
+
+        for ( int i = 0; i < 3; i++ ) {
+            detector.enter( handler, child, childInstrumentation );
+            detector.exit();
+        }
+
+        assertThat( childInstrumentation.getMetrics() ).contains( registry.counter( "child.nPlusOne.sessions" ),
+                                                                  registry.counter( "child.nPlusOne.parent.none" ) );
+    }
+
+    private static MappedStatement newSelect( String id ) {
+        Configuration configuration = new Configuration();
+        return new MappedStatement.Builder( configuration,
+                                            id,
+                                            new StaticSqlSource( configuration, "select 1" ),
+                                            SqlCommandType.SELECT ).build();
+    }
+
+    /** Keeps the executor the way statement handlers of MyBatis do */
+    private static class Handler {
+        private final Executor executor;
+
+        Handler( Executor executor ) {
+            this.executor = executor;
+        }
+    }
+
+    @Intercepts( @Signature( type = Executor.class, method = "isClosed", args = {} ) )
+    public static class OtherPlugin implements Interceptor {
+        @Override
+        public Object intercept( Invocation invocation ) throws Throwable {
+            return invocation.proceed();
+        }
+
+        @Override
+        public Object plugin( Object target ) {
+            return Plugin.wrap( target, this );
+        }
+
+        @Override
+        public void setProperties( Properties properties ) {
+        }
+    }
+}
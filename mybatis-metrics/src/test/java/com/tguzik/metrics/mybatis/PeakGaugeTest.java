@@ -0,0 +1,128 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PeakGaugeTest {
+    private static final long WINDOW = 1000L;
+
+    private Counter counter;
+    private ManualClock clock;
+    private PeakGauge gauge;
+
+    @Before
+    public void setUp() {
+        this.counter = new Counter();
+        this.clock = new ManualClock();
+        this.gauge = new PeakGauge( counter, clock, 1, WINDOW );
+    }
+
+    @Test
+    public void testGetValue_returnsHighestValueInWindow() {
+        counter.inc();
+        gauge.update();
+        counter.inc();
+        gauge.update();
+        counter.dec();
+        gauge.update();
+
+        assertThat( gauge.getValue() ).isEqualTo( 2L );
+    }
+
+    @Test
+    public void testGetValue_doesNotResetPeak() {
+        counter.inc( 3 );
+        gauge.update();
+        counter.dec( 2 );
+
+        assertThat( gauge.getValue() ).isEqualTo( 3L );
+        assertThat( gauge.getValue() ).isEqualTo( 3L );
+    }
+
+    @Test
+    public void testGetValue_concurrentReadersSeeSamePeak() throws Exception {
+        counter.inc( 5 );
+        gauge.update();
+        counter.dec( 5 );
+
+        ExecutorService readers = Executors.newFixedThreadPool( 4 );
+        List<Future<Long>> values = new ArrayList<>();
+        try {
+            for ( int i = 0; i < 100; i++ ) {
+                values.add( readers.submit( new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return gauge.getValue();
+                    }
+                } ) );
+            }
+
+            for ( Future<Long> value : values ) {
+                assertThat( value.get() ).isEqualTo( 5L );
+            }
+        }
+        finally {
+            readers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGetValue_keepsPeakOfPreviousWindow() {
+        counter.inc( 3 );
+        gauge.update();
+        counter.dec( 2 );
+
+        clock.tick += WINDOW;
+        gauge.update();
+        assertThat( gauge.getValue() ).isEqualTo( 3L );
+
+        clock.tick += WINDOW;
+        gauge.update();
+        assertThat( gauge.getValue() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testGetValue_dropsPeakOfWindowsWithoutUpdates() {
+        counter.inc( 3 );
+        gauge.update();
+        counter.dec( 3 );
+
+        clock.tick += WINDOW;
+        assertThat( gauge.getValue() ).isEqualTo( 3L );
+
+        clock.tick += WINDOW;
+        assertThat( gauge.getValue() ).isZero();
+    }
+
+    @Test
+    public void testUpdate_readsCounterWhilePeakIsZero() {
+        PeakGauge sampled = new PeakGauge( counter, clock, Integer.MAX_VALUE, WINDOW );
+        counter.inc();
+        sampled.update();
+        counter.inc( 10 );
+        sampled.update();
+        counter.dec( 11 );
+
+        assertThat( sampled.getValue() ).isEqualTo( 1L );
+    }
+
+    private static class ManualClock extends Clock {
+        private long tick;
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+    }
+}
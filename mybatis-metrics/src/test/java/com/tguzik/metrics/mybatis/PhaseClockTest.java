@@ -0,0 +1,53 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PhaseClockTest {
+    private PhaseClock clock;
+
+    @Before
+    public void setUp() {
+        this.clock = new PhaseClock();
+    }
+
+    @Test
+    public void testExit_returnsElapsedTimeWithoutNesting() {
+        clock.enter();
+
+        assertThat( clock.exit( 100L ) ).isEqualTo( 100L );
+        assertThat( clock.getDepth() ).isZero();
+    }
+
+    @Test
+    public void testExit_subtractsNestedPhases() {
+        clock.enter();
+        clock.enter();
+        assertThat( clock.exit( 30L ) ).isEqualTo( 30L );
+        clock.enter();
+        clock.enter();
+        assertThat( clock.exit( 5L ) ).isEqualTo( 5L );
+        assertThat( clock.exit( 20L ) ).isEqualTo( 15L );
+
+        assertThat( clock.exit( 100L ) ).isEqualTo( 50L );
+    }
+
+    @Test
+    public void testEnter_growsBeyondInitialDepth() {
+        for ( int i = 0; i < 100; i++ ) {
+            clock.enter();
+        }
+        for ( int i = 0; i < 99; i++ ) {
+            clock.exit( 1L );
+        }
+
+        assertThat( clock.exit( 100L ) ).isEqualTo( 99L );
+    }
+
+    @Test
+    public void testCurrent_returnsSameInstanceOnSameThread() {
+        assertThat( PhaseClock.current() ).isSameAs( PhaseClock.current() );
+    }
+}
@@ -1,10 +0,0 @@
-package com.tguzik.metrics.mybatis;
-
-import org.junit.Test;
-
-public class PropertyBootstrappedInstrumentingInterceptorTest {
-    @Test
-    public void test() {
-    }
-}
-
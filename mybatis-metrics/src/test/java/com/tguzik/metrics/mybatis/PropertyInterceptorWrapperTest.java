@@ -0,0 +1,95 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+import javax.inject.Provider;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.reflection.SystemMetaObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PropertyInterceptorWrapperTest {
+    private static final MetricRegistry PROVIDED_REGISTRY = new MetricRegistry();
+
+    private PropertyInterceptorWrapper wrapper;
+    private Executor executor;
+
+    @Before
+    public void setUp() {
+        System.clearProperty( PropertyInterceptorWrapper.PROPERTY_NAME );
+        this.wrapper = new PropertyInterceptorWrapper();
+        this.executor = mock( Executor.class );
+    }
+
+    @Test
+    public void testPlugin_passesTargetThroughWhenNotInitialized() {
+        assertThat( wrapper.plugin( executor ) ).isSameAs( executor );
+    }
+
+    @Test
+    public void testPlugin_wrapsTargetWithInstalledInterceptor() {
+        wrapper.setProperties( providerProperties() );
+
+        Object wrapped = wrapper.plugin( executor );
+
+        assertThat( Proxy.isProxyClass( wrapped.getClass() ) ).isTrue();
+        Object handler = Proxy.getInvocationHandler( wrapped );
+        assertThat( handler ).isInstanceOf( Plugin.class );
+        assertThat( SystemMetaObject.forObject( handler ).getValue( "interceptor" ) ).isInstanceOf(
+                InstrumentingInterceptor.class );
+    }
+
+    @Test
+    public void testPlugin_installedInterceptorIsNotReplaced() {
+        wrapper.setProperties( providerProperties() );
+        Object first = SystemMetaObject.forObject( Proxy.getInvocationHandler( wrapper.plugin( executor ) ) )
+                                       .getValue( "interceptor" );
+
+        wrapper.setProperties( providerProperties() );
+        Object second = SystemMetaObject.forObject( Proxy.getInvocationHandler( wrapper.plugin( executor ) ) )
+                                        .getValue( "interceptor" );
+
+        assertThat( second ).isSameAs( first );
+    }
+
+    @Test
+    public void testPlugin_initializedFromSystemProperty() {
+        System.setProperty( PropertyInterceptorWrapper.PROPERTY_NAME, RegistryProvider.class.getName() );
+        try {
+            assertThat( new PropertyInterceptorWrapper().plugin( executor ) ).isNotSameAs( executor );
+        }
+        finally {
+            System.clearProperty( PropertyInterceptorWrapper.PROPERTY_NAME );
+        }
+    }
+
+    @Test
+    public void testIntercept_proceedsWhenNotInitialized() throws Throwable {
+        Invocation invocation = mock( Invocation.class );
+        doReturn( "result" ).when( invocation ).proceed();
+
+        assertThat( wrapper.intercept( invocation ) ).isEqualTo( "result" );
+        assertThat( wrapper.intercept( invocation ) ).isEqualTo( "result" );
+        verify( invocation, times( 2 ) ).proceed();
+    }
+
+    private static Properties providerProperties() {
+        Properties properties = new Properties();
+        properties.setProperty( PropertyInterceptorWrapper.PROPERTY_NAME, RegistryProvider.class.getName() );
+        return properties;
+    }
+
+    public static class RegistryProvider implements Provider<MetricRegistry> {
+        @Override
+        public MetricRegistry get() {
+            return PROVIDED_REGISTRY;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+public class RateLimitedWarningTest {
+    private static final long INTERVAL = 1000L;
+
+    private Logger logger;
+    private RateLimitedWarning warning;
+
+    @Before
+    public void setUp() {
+        this.logger = mock( Logger.class );
+        this.warning = new RateLimitedWarning( logger, "message", INTERVAL );
+    }
+
+    @Test
+    public void testWarn_firstOccurrenceIsLogged() {
+        assertThat( warning.warn( 5L ) ).isTrue();
+
+        verify( logger ).warn( "message" );
+    }
+
+    @Test
+    public void testWarn_occurrencesWithinIntervalAreSuppressed() {
+        warning.warn( 5L );
+
+        assertThat( warning.warn( 6L ) ).isFalse();
+        assertThat( warning.warn( 5L + INTERVAL - 1 ) ).isFalse();
+
+        verify( logger, times( 1 ) ).warn( anyString() );
+        verifyNoMoreInteractions( logger );
+    }
+
+    @Test
+    public void testWarn_loggedAgainAfterIntervalWithSuppressedCount() {
+        warning.warn( 5L );
+        warning.warn( 6L );
+        warning.warn( 7L );
+
+        assertThat( warning.warn( 5L + INTERVAL ) ).isTrue();
+        assertThat( warning.warn( 6L + INTERVAL ) ).isFalse();
+        assertThat( warning.warn( 5L + 2 * INTERVAL ) ).isTrue();
+
+        verify( logger ).warn( "{} ({} more time(s) since the last warning)", "message", 2L );
+        verify( logger ).warn( "{} ({} more time(s) since the last warning)", "message", 1L );
+    }
+
+    @Test
+    public void testWarn_handlesNanoTimeOverflow() {
+        warning.warn( Long.MAX_VALUE - 10 );
+
+        assertThat( warning.warn( Long.MAX_VALUE ) ).isFalse();
+        assertThat( warning.warn( Long.MIN_VALUE + INTERVAL ) ).isTrue();
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testConstructor_nonPositiveInterval() {
+        new RateLimitedWarning( logger, "message", 0L );
+    }
+}
@@ -0,0 +1,99 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordRingTest {
+    private BasicInstrumentation instrumentation;
+    private RecordRing.Consumer consumer;
+
+    @Before
+    public void setUp() {
+        this.instrumentation = new BasicInstrumentation( new MetricRegistry(), "statement" );
+        this.consumer = mock( RecordRing.Consumer.class );
+    }
+
+    @Test
+    public void testConstructor_roundsCapacityUpToPowerOfTwo() {
+        assertThat( new RecordRing( 1 ).capacity() ).isEqualTo( 2 );
+        assertThat( new RecordRing( 5 ).capacity() ).isEqualTo( 8 );
+        assertThat( new RecordRing( 8 ).capacity() ).isEqualTo( 8 );
+    }
+
+    @Test
+    public void testDrain_passesRecordsInOrder() {
+        RecordRing ring = new RecordRing( 4 );
+
+        ring.offer( instrumentation, 10L, false );
+        ring.offer( instrumentation, 20L, true );
+
+        assertThat( ring.drain( consumer ) ).isEqualTo( 2 );
+        assertThat( ring.drain( consumer ) ).isZero();
+        verify( consumer ).accept( instrumentation, 10L, false );
+        verify( consumer ).accept( instrumentation, 20L, true );
+    }
+
+    @Test
+    public void testOffer_rejectsRecordsWhenFullUntilDrained() {
+        RecordRing ring = new RecordRing( 2 );
+
+        assertThat( ring.offer( instrumentation, 1L, false ) ).isTrue();
+        assertThat( ring.offer( instrumentation, 2L, false ) ).isTrue();
+        assertThat( ring.offer( instrumentation, 3L, false ) ).isFalse();
+
+        ring.drain( consumer );
+
+        assertThat( ring.offer( instrumentation, 4L, false ) ).isTrue();
+        assertThat( ring.drain( consumer ) ).isEqualTo( 1 );
+        verify( consumer, never() ).accept( instrumentation, 3L, false );
+    }
+
+    @Test
+    public void testOffer_concurrentProducersLoseNothingWhileThereIsRoom() throws InterruptedException {
+        final int producers = 4;
+        final int recordsPerProducer = 10000;
+        final RecordRing ring = new RecordRing( producers * recordsPerProducer );
+        final CountDownLatch start = new CountDownLatch( 1 );
+        Thread[] threads = new Thread[ producers ];
+
+        for ( int i = 0; i < producers; i++ ) {
+            threads[ i ] = new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch ( InterruptedException e ) {
+                        return;
+                    }
+                    for ( int j = 0; j < recordsPerProducer; j++ ) {
+                        ring.offer( instrumentation, 1L, false );
+                    }
+                }
+            } );
+            threads[ i ].start();
+        }
+
+        start.countDown();
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+
+        final AtomicLong sum = new AtomicLong();
+        ring.drain( new RecordRing.Consumer() {
+            @Override
+            public void accept( BasicInstrumentation instrumentation, long elapsedNanos, boolean failed ) {
+                sum.addAndGet( elapsedNanos );
+            }
+        } );
+
+        assertThat( sum.get() ).isEqualTo( producers * recordsPerProducer );
+    }
+}
@@ -0,0 +1,54 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SampledTimerTest {
+    private SampledTimer timer;
+
+    @Before
+    public void setUp() {
+        this.timer = new SampledTimer( new SlidingWindowReservoir( 16 ) );
+    }
+
+    @Test
+    public void testUpdate_countsAndRecordsDuration() {
+        timer.update( 5, TimeUnit.MILLISECONDS );
+
+        assertThat( timer.getCount() ).isEqualTo( 1 );
+        assertThat( timer.getSnapshot().getMax() ).isEqualTo( TimeUnit.MILLISECONDS.toNanos( 5 ) );
+    }
+
+    @Test
+    public void testUpdate_ignoresNegativeDuration() {
+        timer.update( -1, TimeUnit.MILLISECONDS );
+
+        assertThat( timer.getCount() ).isZero();
+        assertThat( timer.getSnapshot().size() ).isZero();
+    }
+
+    @Test
+    public void testMarkUntimed_countsWithoutRecordingDuration() {
+        timer.markUntimed();
+        timer.markUntimed();
+
+        assertThat( timer.getCount() ).isEqualTo( 2 );
+        assertThat( timer.getMeanRate() ).isGreaterThan( 0.0 );
+        assertThat( timer.getSnapshot().size() ).isZero();
+    }
+
+    @Test
+    public void testTimerContext_goesThroughUpdate() {
+        Timer.Context context = timer.time();
+        context.stop();
+
+        assertThat( timer.getCount() ).isEqualTo( 1 );
+        assertThat( timer.getSnapshot().size() ).isEqualTo( 1 );
+    }
+}
@@ -0,0 +1,153 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SlowStatementLogTest {
+    private MappedStatement statement;
+    private Map<String, Object> parameter;
+
+    @Before
+    public void setUp() {
+        Configuration configuration = new Configuration();
+        List<ParameterMapping> mappings = Arrays.asList(
+                new ParameterMapping.Builder( configuration, "login", Object.class ).build(),
+                new ParameterMapping.Builder( configuration, "password", Object.class ).build() );
+        StaticSqlSource sqlSource = new StaticSqlSource( configuration,
+                                                         "select *\n  from users\n where login = ? and password = ?",
+                                                         mappings );
+
+        this.statement = new MappedStatement.Builder( configuration,
+                                                      "com.example.Users.select",
+                                                      sqlSource,
+                                                      SqlCommandType.SELECT ).build();
+        this.parameter = new HashMap<>();
+        this.parameter.put( "login", "tomek" );
+        this.parameter.put( "password", "secret" );
+    }
+
+    @Test
+    public void testRecord_rendersSqlAndParameters() {
+        SlowStatementLog log = new SlowStatementLog( InstrumentationSettings.defaults() );
+
+        log.record( statement, parameter, null, 1500000000L );
+
+        List<SlowStatement> slowStatements = log.getSlowStatements();
+        assertThat( slowStatements ).hasSize( 1 );
+        assertThat( slowStatements.get( 0 ).getStatementId() ).isEqualTo( "com.example.Users.select" );
+        assertThat( slowStatements.get( 0 ).getSql() ).isEqualTo(
+                "select * from users where login = ? and password = ?" );
+        assertThat( slowStatements.get( 0 ).getParameters() ).isEqualTo( "login=tomek, password=secret" );
+        assertThat( slowStatements.get( 0 ).getElapsedMillis() ).isEqualTo( 1500L );
+        assertThat( slowStatements.get( 0 ).getThreadName() ).isEqualTo( Thread.currentThread().getName() );
+    }
+
+    @Test
+    public void testRecord_usesBoundSqlWhenGiven() {
+        SlowStatementLog log = new SlowStatementLog( InstrumentationSettings.defaults() );
+
+        log.record( statement, parameter, statement.getSqlSource().getBoundSql( "login" ), 1L );
+
+        assertThat( log.getSlowStatements().get( 0 ).getParameters() ).isEqualTo( "login=login, password=login" );
+    }
+
+    @Test
+    public void testRecord_redactsParameters() {
+        SlowStatementLog log = new SlowStatementLog( InstrumentationSettings.builder()
+                                                                            .redactedParameters( Arrays.asList(
+                                                                                    "password" ) )
+                                                                            .build() );
+
+        log.record( statement, parameter, null, 1L );
+
+        assertThat( log.getSlowStatements().get( 0 ).getParameters() ).isEqualTo( "login=tomek, password=***" );
+    }
+
+    @Test
+    public void testRecord_redactsAllParameters() {
+        SlowStatementLog log = new SlowStatementLog( InstrumentationSettings.builder()
+                                                                            .redactedParameters( Arrays.asList(
+                                                                                    InstrumentationSettings
+                                                                                            .ALL_PARAMETERS ) )
+                                                                            .build() );
+
+        log.record( statement, parameter, null, 1L );
+
+        assertThat( log.getSlowStatements().get( 0 ).getParameters() ).isEqualTo( "login=***, password=***" );
+    }
+
+    @Test
+    public void testRecord_truncatesParameters() {
+        SlowStatementLog log = new SlowStatementLog( InstrumentationSettings.builder()
+                                                                            .slowParameterMaxLength( 8 )
+                                                                            .build() );
+
+        log.record( statement, parameter, null, 1L );
+
+        assertThat( log.getSlowStatements().get( 0 ).getParameters() ).isEqualTo( "login=to..." );
+    }
+
+    @Test
+    public void testRecord_overwritesOldestEntries() {
+        SlowStatementLog log = new SlowStatementLog( InstrumentationSettings.builder()
+                                                                            .slowStatementCapacity( 2 )
+                                                                            .build() );
+
+        log.record( statement, parameter, null, 1L );
+        log.record( statement, parameter, null, 2L );
+        log.record( statement, parameter, null, 3L );
+
+        List<SlowStatement> slowStatements = log.getSlowStatements();
+        assertThat( log.getTotalRecorded() ).isEqualTo( 3L );
+        assertThat( slowStatements ).hasSize( 2 );
+        assertThat( slowStatements.get( 0 ).getElapsedNanos() ).isEqualTo( 3L );
+        assertThat( slowStatements.get( 1 ).getElapsedNanos() ).isEqualTo( 2L );
+    }
+
+    @Test
+    public void testClear() {
+        SlowStatementLog log = new SlowStatementLog( InstrumentationSettings.defaults() );
+        log.record( statement, parameter, null, 1L );
+
+        log.clear();
+
+        assertThat( log.getSlowStatements() ).isEmpty();
+        assertThat( log.getTotalRecorded() ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void testMXBean_exposesSlowStatements() throws Exception {
+        SlowStatementLog log = new SlowStatementLog( InstrumentationSettings.defaults() );
+        log.record( statement, parameter, null, 1L );
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName( "com.tguzik.metrics.mybatis:type=SlowStatementLog,name=test" );
+        server.registerMBean( log, name );
+
+        try {
+            CompositeData[] slowStatements = (CompositeData[]) server.getAttribute( name, "SlowStatements" );
+
+            assertThat( slowStatements ).hasSize( 1 );
+            assertThat( slowStatements[ 0 ].get( "statementId" ) ).isEqualTo( "com.example.Users.select" );
+        }
+        finally {
+            server.unregisterMBean( name );
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class SqlFingerprintsTest {
+    @Test
+    public void testNormalize_replacesLiterals() {
+        assertThat( SqlFingerprints.normalize( "select * from t1 where name = 'O''Brien' and age > 42 and x = -1.5" ) )
+                .isEqualTo( "select * from t1 where name = ? and age > ? and x = ?" );
+    }
+
+    @Test
+    public void testNormalize_collapsesListsOfPlaceholders() {
+        assertThat( SqlFingerprints.normalize( "select * from t where id in ( ?, ?,? )" ) )
+                .isEqualTo( SqlFingerprints.normalize( "select * from t where id in (?)" ) )
+                .isEqualTo( "select * from t where id in (?+)" );
+        assertThat( SqlFingerprints.normalize( "select * from t where id in (1, 2, 3)" ) )
+                .isEqualTo( "select * from t where id in (?+)" );
+    }
+
+    @Test
+    public void testNormalize_collapsesRowsOfMultiRowInsert() {
+        assertThat( SqlFingerprints.normalize( "insert into t (a, b) values (?, ?), (?, ?), (?, ?)" ) )
+                .isEqualTo( "insert into t (a, b) values (?+)+" );
+    }
+
+    @Test
+    public void testNormalize_removesCommentsAndCollapsesWhitespace() {
+        assertThat( SqlFingerprints.normalize( "select a /* hint */\n\tfrom t -- trailing\n where b = ?" ) )
+                .isEqualTo( "select a from t where b = ?" );
+    }
+
+    @Test
+    public void testIdentifier_isStable() {
+        assertThat( SqlFingerprints.identifier( "select 1" ) ).isEqualTo( SqlFingerprints.identifier( "select 1" ) )
+                                                                 .hasSize( 8 );
+        assertThat( SqlFingerprints.identifier( "select 1" ) ).isNotEqualTo( SqlFingerprints.identifier( "select 2" ) );
+    }
+}
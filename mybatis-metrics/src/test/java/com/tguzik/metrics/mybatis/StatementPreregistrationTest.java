@@ -0,0 +1,55 @@
+package com.tguzik.metrics.mybatis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatementPreregistrationTest {
+    private MetricRegistry registry;
+    private Configuration configuration;
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Before
+    public void setUp() {
+        this.registry = new MetricRegistry();
+        this.configuration = new Configuration();
+        this.sqlSessionFactory = mock( SqlSessionFactory.class );
+        when( sqlSessionFactory.getConfiguration() ).thenReturn( configuration );
+
+        configuration.addMappedStatement( new MappedStatement.Builder( configuration,
+                                                                       "namespace.statement",
+                                                                       new StaticSqlSource( configuration, "select 1" ),
+                                                                       SqlCommandType.SELECT ).build() );
+    }
+
+    @Test
+    public void testPreregister_usesInterceptorOfFactory() {
+        configuration.addInterceptor( new InstrumentingInterceptor( registry ) );
+
+        assertThat( new StatementPreregistration( sqlSessionFactory ).getStatementCount() ).isEqualTo( 1 );
+        assertThat( registry.getTimers() ).containsKey( "namespace.statement.elapsed" );
+    }
+
+    @Test
+    public void testPreregister_addsUpStatementsOfAllInterceptors() {
+        configuration.addInterceptor( new InstrumentingInterceptor( registry ) );
+        configuration.addInterceptor( new InstrumentingInterceptor( new MetricRegistry() ) );
+
+        assertThat( StatementPreregistration.preregister( sqlSessionFactory ) ).isEqualTo( 2 );
+    }
+
+    @Test
+    public void testPreregister_doesNothingWithoutInterceptor() {
+        assertThat( StatementPreregistration.preregister( sqlSessionFactory ) ).isZero();
+        assertThat( registry.getNames() ).isEmpty();
+    }
+}